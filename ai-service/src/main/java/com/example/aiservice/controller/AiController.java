@@ -170,7 +170,7 @@ public class AiController {
             fullPrompt += "\n\nCâu hỏi của người dùng: " + request.getMessage();
             
             log.info("Calling Gemini with prompt length: {}", fullPrompt.length());
-            String text = geminiService.invokeGemini(fullPrompt);
+            String text = geminiService.invokeGeminiUncached(fullPrompt);
             log.info("Gemini response received, length: {}", text != null ? text.length() : 0);
             return ApiResponse.ok(new AiChatResponse(text));
         } catch (Exception e) {
@@ -238,7 +238,7 @@ public class AiController {
                 Chỉ trả về JSON thuần túy, không thêm lời giải thích, không thêm markdown.
                 """.formatted(request.getName());
         try {
-            String text = geminiService.invokeGemini(prompt);
+            String text = geminiService.invokeGeminiUncached(prompt);
             return ApiResponse.ok(descriptionParser.parse(text));
         } catch (AiServiceException ex) {
             // Fallback mô tả đơn giản khi Gemini quá tải / hết quota
@@ -351,7 +351,7 @@ public class AiController {
                 """.formatted(itemsData.toString());
 
         try {
-            String text = geminiService.invokeGemini(prompt);
+            String text = geminiService.invokeGemini(prompt, "inventory-forecast");
             // Parse JSON trả về từ Gemini về cấu trúc InventoryForecastResponse
             InventoryForecastResponse parsed = objectMapper.readValue(text, InventoryForecastResponse.class);
             return ApiResponse.ok(parsed);
@@ -6,7 +6,9 @@ import com.example.aiservice.service.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
 
+import java.util.Map;
 import java.util.Objects;
 
 @RestController
@@ -20,112 +22,172 @@ public class AiReportController {
     private final SalesInsightService salesInsightService;
     private final InventoryTurnoverService inventoryTurnoverService;
     private final StockOptimizationService stockOptimizationService;
+    private final AnalyticsSnapshotService analyticsSnapshotService;
+    private final GeminiResponseCache geminiResponseCache;
+    private final GeminiGateway geminiGateway;
+    private final EmbeddingService embeddingService;
+    private final MilvusService milvusService;
+    private final ImageNormalizer imageNormalizer;
 
     /**
      * 1. Cảnh báo tồn kho thông minh
      */
     @GetMapping("/inventory-alerts")
-    public ApiResponse<SmartInventoryAlertResponse> getInventoryAlerts(
+    public Mono<ApiResponse<SmartInventoryAlertResponse>> getInventoryAlerts(
             @RequestHeader(value = "Authorization", required = false) String authHeader) {
         log.info("Getting smart inventory alerts");
-        try {
-            String token = extractToken(authHeader);
-            SmartInventoryAlertResponse response = smartInventoryAlertService.analyzeInventoryAlerts(token);
-            return ApiResponse.ok(response);
-        } catch (Exception e) {
-            log.error("Error getting inventory alerts", e);
-            throw new RuntimeException("Không thể lấy cảnh báo tồn kho: " + e.getMessage());
-        }
+        String token = extractToken(authHeader);
+        return smartInventoryAlertService.analyzeInventoryAlerts(token)
+                .map(ApiResponse::ok)
+                .onErrorMap(e -> {
+                    log.error("Error getting inventory alerts", e);
+                    return new RuntimeException("Không thể lấy cảnh báo tồn kho: " + e.getMessage());
+                });
     }
 
     /**
      * 2. Dự đoán nhu cầu nhập hàng
      */
     @GetMapping("/demand-forecast")
-    public ApiResponse<DemandForecastResponse> getDemandForecast(
+    public Mono<ApiResponse<DemandForecastResponse>> getDemandForecast(
             @RequestHeader(value = "Authorization", required = false) String authHeader) {
         log.info("Getting demand forecast");
-        try {
-            String token = extractToken(authHeader);
-            DemandForecastResponse response = demandForecastingService.forecastDemand(token);
-            return ApiResponse.ok(response);
-        } catch (Exception e) {
-            log.error("Error getting demand forecast", e);
-            throw new RuntimeException("Không thể dự đoán nhu cầu nhập hàng: " + e.getMessage());
-        }
+        String token = extractToken(authHeader);
+        return demandForecastingService.forecastDemand(token)
+                .map(ApiResponse::ok)
+                .onErrorMap(e -> {
+                    log.error("Error getting demand forecast", e);
+                    return new RuntimeException("Không thể dự đoán nhu cầu nhập hàng: " + e.getMessage());
+                });
     }
 
     /**
      * 2.1. Dự đoán nhu cầu cho một sản phẩm cụ thể
      */
     @GetMapping("/demand-forecast/product/{productId}")
-    public ApiResponse<ProductDemandForecastResponse> getProductDemandForecast(
+    public Mono<ApiResponse<ProductDemandForecastResponse>> getProductDemandForecast(
             @PathVariable Long productId,
             @RequestParam(defaultValue = "30") Integer days,
             @RequestHeader(value = "Authorization", required = false) String authHeader) {
         log.info("Getting demand forecast for product {} for {} days", productId, days);
-        try {
-            String token = extractToken(authHeader);
-            ProductDemandForecastResponse response = demandForecastingService.forecastProductDemand(token, productId,
-                    days);
-            return ApiResponse.ok(response);
-        } catch (Exception e) {
-            log.error("Error getting product demand forecast", e);
-            throw new RuntimeException("Không thể dự đoán nhu cầu cho sản phẩm: " + e.getMessage());
-        }
+        String token = extractToken(authHeader);
+        return demandForecastingService.forecastProductDemand(token, productId, days)
+                .map(ApiResponse::ok)
+                .onErrorMap(e -> {
+                    log.error("Error getting product demand forecast", e);
+                    return new RuntimeException("Không thể dự đoán nhu cầu cho sản phẩm: " + e.getMessage());
+                });
     }
 
     /**
      * 3. Phân tích lịch sử bán hàng
      */
     @GetMapping("/sales-insights")
-    public ApiResponse<SalesInsightResponse> getSalesInsights(
+    public Mono<ApiResponse<SalesInsightResponse>> getSalesInsights(
             @RequestParam(defaultValue = "30") int days,
             @RequestHeader(value = "Authorization", required = false) String authHeader) {
         log.info("Getting sales insights for {} days", days);
-        try {
-            String token = extractToken(authHeader);
-            SalesInsightResponse response = salesInsightService.analyzeSalesInsights(token, days);
-            return ApiResponse.ok(response);
-        } catch (Exception e) {
-            log.error("Error getting sales insights", e);
-            throw new RuntimeException("Không thể phân tích lịch sử bán hàng: " + e.getMessage());
-        }
+        String token = extractToken(authHeader);
+        return salesInsightService.analyzeSalesInsights(token, days)
+                .map(ApiResponse::ok)
+                .onErrorMap(e -> {
+                    log.error("Error getting sales insights", e);
+                    return new RuntimeException("Không thể phân tích lịch sử bán hàng: " + e.getMessage());
+                });
     }
 
     /**
      * 4. Đánh giá chu kỳ tồn kho
      */
     @GetMapping("/inventory-turnover")
-    public ApiResponse<InventoryTurnoverResponse> getInventoryTurnover(
+    public Mono<ApiResponse<InventoryTurnoverResponse>> getInventoryTurnover(
             @RequestParam(defaultValue = "90") int periodDays,
             @RequestHeader(value = "Authorization", required = false) String authHeader) {
         log.info("Getting inventory turnover for {} days", periodDays);
-        try {
-            String token = extractToken(authHeader);
-            InventoryTurnoverResponse response = inventoryTurnoverService.analyzeInventoryTurnover(token, periodDays);
-            return ApiResponse.ok(response);
-        } catch (Exception e) {
-            log.error("Error getting inventory turnover", e);
-            throw new RuntimeException("Không thể đánh giá chu kỳ tồn kho: " + e.getMessage());
-        }
+        String token = extractToken(authHeader);
+        return inventoryTurnoverService.analyzeInventoryTurnover(token, periodDays)
+                .map(ApiResponse::ok)
+                .onErrorMap(e -> {
+                    log.error("Error getting inventory turnover", e);
+                    return new RuntimeException("Không thể đánh giá chu kỳ tồn kho: " + e.getMessage());
+                });
     }
 
     /**
      * 5. Tự động gợi ý cấu trúc kho
      */
     @GetMapping("/stock-optimization")
-    public ApiResponse<StockOptimizationResponse> getStockOptimization(
+    public Mono<ApiResponse<StockOptimizationResponse>> getStockOptimization(
             @RequestHeader(value = "Authorization", required = false) String authHeader) {
         log.info("Getting stock optimization");
-        try {
-            String token = extractToken(authHeader);
-            StockOptimizationResponse response = stockOptimizationService.optimizeStock(token);
-            return ApiResponse.ok(response);
-        } catch (Exception e) {
-            log.error("Error getting stock optimization", e);
-            throw new RuntimeException("Không thể tối ưu cấu trúc kho: " + e.getMessage());
-        }
+        String token = extractToken(authHeader);
+        return stockOptimizationService.optimizeStock(token)
+                .map(ApiResponse::ok)
+                .onErrorMap(e -> {
+                    log.error("Error getting stock optimization", e);
+                    return new RuntimeException("Không thể tối ưu cấu trúc kho: " + e.getMessage());
+                });
+    }
+
+    /**
+     * 6. Xóa cache dữ liệu báo cáo (vd: vừa nhập/xuất kho, cần số liệu mới ngay)
+     */
+    @DeleteMapping("/cache")
+    public ApiResponse<Void> invalidateCache(
+            @RequestParam(required = false) AnalyticsSnapshotService.Dataset dataset) {
+        log.info("Invalidating analytics cache: {}", dataset != null ? dataset : "ALL");
+        analyticsSnapshotService.invalidate(dataset);
+        return ApiResponse.ok("Cache cleared", null);
+    }
+
+    /**
+     * 7. Thống kê cache kết quả Gemini (hit/miss, thời gian tiết kiệm)
+     */
+    @GetMapping("/cache/gemini")
+    public ApiResponse<Map<String, Object>> getGeminiCacheStats() {
+        return ApiResponse.ok(geminiResponseCache.stats());
+    }
+
+    /**
+     * 8. Xóa cache kết quả Gemini (bộ nhớ + đĩa)
+     */
+    @DeleteMapping("/cache/gemini")
+    public ApiResponse<Void> clearGeminiCache() {
+        log.info("Clearing Gemini response cache");
+        geminiResponseCache.clear();
+        return ApiResponse.ok("Gemini cache cleared", null);
+    }
+
+    /**
+     * 9. Trạng thái gateway Gemini: slot/token còn lại, hàng đợi và số liệu theo lane
+     */
+    @GetMapping("/gemini/gateway")
+    public ApiResponse<Map<String, Object>> getGeminiGatewayStats() {
+        return ApiResponse.ok(geminiGateway.stats());
+    }
+
+    /**
+     * 10. Thống kê cache embedding (số vector, hit/miss)
+     */
+    @GetMapping("/cache/embedding")
+    public ApiResponse<Map<String, Object>> getEmbeddingCacheStats() {
+        return ApiResponse.ok(embeddingService.cacheStats());
+    }
+
+    /**
+     * 11. Trạng thái buffer ghi Milvus (đang chờ, đã ghi, lỗi)
+     */
+    @GetMapping("/milvus/write-buffer")
+    public ApiResponse<Map<String, Object>> getMilvusWriteStats() {
+        return ApiResponse.ok(milvusService.writeStats());
+    }
+
+    /**
+     * 12. Thống kê chuẩn hóa ảnh OCR (kích thước trước/sau, thời gian xử lý)
+     */
+    @GetMapping("/ocr/images")
+    public ApiResponse<Map<String, Object>> getImageNormalizerStats() {
+        return ApiResponse.ok(imageNormalizer.stats());
     }
 
     private String extractToken(String authHeader) {
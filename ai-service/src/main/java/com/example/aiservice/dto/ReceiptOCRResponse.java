@@ -32,6 +32,7 @@ public class ReceiptOCRResponse {
     // Metadata
     private String rawText; // Text thô từ OCR
     private Double confidence; // Độ tin cậy
+    private List<Integer> failedPages; // Các trang (ảnh, đánh số từ 1) xử lý lỗi khi OCR batch
 
     @Data
     @NoArgsConstructor
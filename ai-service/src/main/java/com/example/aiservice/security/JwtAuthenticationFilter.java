@@ -23,18 +23,32 @@ import java.util.List;
 public class JwtAuthenticationFilter extends OncePerRequestFilter {
 
     private final JwtService jwtService;
+    private final GatewayIdentityVerifier gatewayIdentityVerifier;
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
 
-        String authHeader = request.getHeader(HttpHeaders.AUTHORIZATION);
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+        // Header thiếu hoặc không đúng dạng JWT: bỏ qua ngay, không parse
+        String token = JwtService.resolveBearerToken(request.getHeader(HttpHeaders.AUTHORIZATION));
+        if (token == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        // Request đi qua api-gateway: JWT đã verify ở gateway, chỉ cần kiểm tra chữ ký header danh tính
+        String gatewayUser = gatewayIdentityVerifier.verifiedUsername(request, token);
+        if (gatewayUser != null) {
+            if (SecurityContextHolder.getContext().getAuthentication() == null) {
+                UsernamePasswordAuthenticationToken authToken =
+                        new UsernamePasswordAuthenticationToken(gatewayUser, null, List.of());
+                authToken.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
+                SecurityContextHolder.getContext().setAuthentication(authToken);
+            }
             filterChain.doFilter(request, response);
             return;
         }
 
-        String token = authHeader.substring(7);
         try {
             String username = jwtService.extractUsername(token);
             if (username != null && SecurityContextHolder.getContext().getAuthentication() == null) {
@@ -44,7 +58,7 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
                 SecurityContextHolder.getContext().setAuthentication(authenticationToken);
             }
         } catch (JwtException e) {
-            log.error("Invalid JWT token: {}", e.getMessage());
+            log.warn("Invalid JWT token: {}", e.getMessage());
         }
 
         filterChain.doFilter(request, response);
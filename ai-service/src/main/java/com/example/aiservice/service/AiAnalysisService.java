@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
 
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
@@ -24,13 +25,17 @@ public class AiAnalysisService {
     /**
      * 1. Tạo cảnh báo thông minh cho Dashboard
      */
-    public DashboardAlertsResponse generateDashboardAlerts(String token) {
-        List<Map<String, Object>> products = dataService.fetchProductsListPublic(token);
-        // Lấy tồn kho thực tế từ API stocks (tổng hợp từ tất cả các kho)
-        Map<Long, Integer> stockMap = dataService.fetchStocksByProduct(token);
-        String inventorySummary = dataService.getInventorySummary(token);
-        String ordersSummary = dataService.getOrdersSummary(token);
+    public Mono<DashboardAlertsResponse> generateDashboardAlerts(String token) {
+        // Sản phẩm, tồn kho thực tế (tổng hợp từ tất cả các kho) và đơn hàng được tải song song
+        return Mono.zip(
+                        dataService.fetchProductsListAsync(token),
+                        dataService.fetchStocksByProductAsync(token),
+                        dataService.getOrdersSummaryAsync(token))
+                .flatMap(t -> buildDashboardAlerts(t.getT1(), t.getT2(), t.getT3()));
+    }
 
+    private Mono<DashboardAlertsResponse> buildDashboardAlerts(List<Map<String, Object>> products,
+            Map<Long, Integer> stockMap, String ordersSummary) {
         List<DashboardAlertsResponse.Alert> alerts = new ArrayList<>();
 
         // Phân tích sản phẩm dựa trên tồn kho thực tế
@@ -113,17 +118,18 @@ public class AiAnalysisService {
                         """,
                 ordersSummary, products.size(), outOfStock, lowStock, highStock, totalValue);
 
-        String summary = geminiService.invokeGemini(prompt);
-
-        return new DashboardAlertsResponse(alerts, summary);
+        return geminiService.invokeGeminiAsync(prompt, "dashboard-alerts")
+                .map(summary -> new DashboardAlertsResponse(alerts, summary));
     }
 
     /**
      * 2. Phân tích ABC tồn kho
      */
-    public ABCAnalysisResponse generateABCAnalysis(String token) {
-        List<Map<String, Object>> products = dataService.fetchProductsListPublic(token);
+    public Mono<ABCAnalysisResponse> generateABCAnalysis(String token) {
+        return dataService.fetchProductsListAsync(token).flatMap(this::buildABCAnalysis);
+    }
 
+    private Mono<ABCAnalysisResponse> buildABCAnalysis(List<Map<String, Object>> products) {
         // Tính doanh thu cho mỗi sản phẩm (giả định = quantity * unitPrice)
         List<Map<String, Object>> productRevenues = new ArrayList<>();
         double totalRevenue = 0;
@@ -184,20 +190,18 @@ public class AiAnalysisService {
                 Trả lời bằng tiếng Việt, format dạng bullet points.
                 """, categoryA.size(), categoryB.size(), categoryC.size(), totalRevenue);
 
-        String analysis = geminiService.invokeGemini(prompt);
-
-        return new ABCAnalysisResponse(
+        return geminiService.invokeGeminiAsync(prompt, "abc-analysis").map(analysis -> new ABCAnalysisResponse(
                 categoryA.subList(0, Math.min(10, categoryA.size())), // Top 10 category A
                 categoryB.subList(0, Math.min(10, categoryB.size())),
                 categoryC.subList(0, Math.min(10, categoryC.size())),
                 analysis,
-                "Dựa trên phân tích ABC, tập trung quản lý chặt nhóm A, tối ưu nhóm B, và giảm thiểu nhóm C.");
+                "Dựa trên phân tích ABC, tập trung quản lý chặt nhóm A, tối ưu nhóm B, và giảm thiểu nhóm C."));
     }
 
     /**
      * 3. Gợi ý giá bán tối ưu
      */
-    public PriceSuggestionResponse generatePriceSuggestion(PriceSuggestionRequest request) {
+    public Mono<PriceSuggestionResponse> generatePriceSuggestion(PriceSuggestionRequest request) {
         String prompt = String.format("""
                 Bạn là chuyên gia định giá sản phẩm. Phân tích và đề xuất giá bán tối ưu:
 
@@ -231,8 +235,11 @@ public class AiAnalysisService {
                 request.getAvgDailySales() != null ? request.getAvgDailySales() : 0,
                 request.getDaysInStock() != null ? request.getDaysInStock() : 0);
 
-        String response = geminiService.invokeGemini(prompt);
+        return geminiService.invokeGeminiAsync(prompt, "price-suggestion")
+                .map(response -> parsePriceSuggestion(request, response));
+    }
 
+    private PriceSuggestionResponse parsePriceSuggestion(PriceSuggestionRequest request, String response) {
         try {
             // Parse JSON response
             String json = extractJson(response);
@@ -262,11 +269,14 @@ public class AiAnalysisService {
     /**
      * 4. Phân tích xu hướng bán hàng
      */
-    public SalesTrendResponse generateSalesTrend(String token, String period) {
-        String ordersSummary = dataService.getOrdersSummary(token);
-        String inventorySummary = dataService.getInventorySummary(token);
+    public Mono<SalesTrendResponse> generateSalesTrend(String token, String period) {
+        return Mono.zip(dataService.getOrdersSummaryAsync(token), dataService.getInventorySummaryAsync(token))
+                .flatMap(t -> geminiService.invokeGeminiAsync(buildSalesTrendPrompt(t.getT1(), t.getT2(), period), "sales-trend"))
+                .map(response -> parseSalesTrend(period, response));
+    }
 
-        String prompt = String.format("""
+    private String buildSalesTrendPrompt(String ordersSummary, String inventorySummary, String period) {
+        return String.format("""
                 Dựa trên dữ liệu sau, phân tích xu hướng bán hàng:
 
                 %s
@@ -286,9 +296,9 @@ public class AiAnalysisService {
 
                 Chỉ trả về JSON, không có text khác.
                 """, ordersSummary, inventorySummary, period);
+    }
 
-        String response = geminiService.invokeGemini(prompt);
-
+    private SalesTrendResponse parseSalesTrend(String period, String response) {
         try {
             String json = extractJson(response);
             JsonNode node = objectMapper.readTree(json);
@@ -329,10 +339,20 @@ public class AiAnalysisService {
     /**
      * 5. Tự động tạo báo cáo
      */
-    public ReportResponse generateReport(String token, ReportRequest request) {
-        String inventorySummary = dataService.getInventorySummary(token);
-        String ordersSummary = dataService.getOrdersSummary(token);
-        String productsSummary = dataService.getProductsSummary(token);
+    public Mono<ReportResponse> generateReport(String token, ReportRequest request) {
+        // Danh sách sản phẩm chỉ tải 1 lần cho cả thống kê tồn kho và danh sách sản phẩm
+        return Mono.zip(
+                        dataService.fetchProductsListAsync(token),
+                        dataService.fetchStocksByProductAsync(token),
+                        dataService.fetchOrdersListAsync(token))
+                .flatMap(t -> buildReport(request,
+                        dataService.summarizeInventory(t.getT1(), t.getT2()),
+                        dataService.summarizeOrders(t.getT3()),
+                        dataService.summarizeProducts(t.getT1())));
+    }
+
+    private Mono<ReportResponse> buildReport(ReportRequest request, String inventorySummary,
+            String ordersSummary, String productsSummary) {
 
         String reportTitle = switch (request.getReportType()) {
             case "INVENTORY" -> "Báo cáo Tồn kho";
@@ -366,8 +386,12 @@ public class AiAnalysisService {
                 Chỉ trả về JSON.
                 """, reportTitle, request.getPeriod(), inventorySummary, ordersSummary, productsSummary);
 
-        String response = geminiService.invokeGemini(prompt);
+        return geminiService.invokeGeminiAsync(prompt, "report")
+                .map(response -> parseReport(request, reportTitle, inventorySummary, ordersSummary, response));
+    }
 
+    private ReportResponse parseReport(ReportRequest request, String reportTitle, String inventorySummary,
+            String ordersSummary, String response) {
         try {
             String json = extractJson(response);
             JsonNode node = objectMapper.readTree(json);
@@ -395,8 +419,11 @@ public class AiAnalysisService {
     /**
      * 6. Gợi ý combo sản phẩm
      */
-    public ComboSuggestionResponse generateComboSuggestions(String token) {
-        List<Map<String, Object>> products = dataService.fetchProductsListPublic(token);
+    public Mono<ComboSuggestionResponse> generateComboSuggestions(String token) {
+        return dataService.fetchProductsListAsync(token).flatMap(this::buildComboSuggestions);
+    }
+
+    private Mono<ComboSuggestionResponse> buildComboSuggestions(List<Map<String, Object>> products) {
 
         // Lọc sản phẩm có tồn kho
         List<Map<String, Object>> availableProducts = products.stream()
@@ -441,8 +468,10 @@ public class AiAnalysisService {
                 Chỉ trả về JSON.
                 """, productsInfo.toString());
 
-        String response = geminiService.invokeGemini(prompt);
+        return geminiService.invokeGeminiAsync(prompt, "combo-suggestions").map(this::parseComboSuggestions);
+    }
 
+    private ComboSuggestionResponse parseComboSuggestions(String response) {
         try {
             String json = extractJson(response);
             JsonNode node = objectMapper.readTree(json);
@@ -484,11 +513,11 @@ public class AiAnalysisService {
     /**
      * 7. OCR hóa đơn/phiếu nhập
      */
-    public ImageOCRResponse processOCR(ImageOCRRequest request) {
+    public Mono<ImageOCRResponse> processOCR(ImageOCRRequest request) {
         String imageData = request.getImageBase64() != null ? request.getImageBase64() : request.getImageUrl();
 
         if (imageData == null || imageData.isEmpty()) {
-            throw new IllegalArgumentException("Image data is required");
+            return Mono.error(new IllegalArgumentException("Image data is required"));
         }
 
         // Gemini có thể xử lý ảnh qua base64
@@ -519,8 +548,10 @@ public class AiAnalysisService {
 
         // Note: Actual image processing would require Gemini Vision API
         // For now, return a placeholder response
-        String response = geminiService.invokeGemini(prompt);
+        return geminiService.invokeGeminiAsync(prompt, "ocr").map(this::parseOCR);
+    }
 
+    private ImageOCRResponse parseOCR(String response) {
         try {
             String json = extractJson(response);
             JsonNode node = objectMapper.readTree(json);
@@ -0,0 +1,234 @@
+package com.example.aiservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Nguồn dữ liệu dùng chung cho các service báo cáo (tồn kho, sản phẩm, kho, phiếu nhập/xuất).
+ * - Mỗi dataset chỉ tải 1 lần qua gateway rồi cache theo TTL ngắn,
+ *   key = dataset (+ khoảng ngày với phiếu nhập/xuất) + SHA-256 của token người gọi,
+ *   vì dữ liệu được tải bằng quyền của token đó và không được dùng chung cho người khác
+ * - Các request đồng thời cho cùng 1 key dùng chung 1 lần tải (Mono.cache)
+ * - Các dataset cần cho 1 báo cáo được tải song song (Mono.zip)
+ * Dữ liệu trả về là danh sách chỉ đọc, dùng chung giữa các báo cáo.
+ */
+@Service
+@Slf4j
+public class AnalyticsSnapshotService {
+
+    public enum Dataset {
+        STOCKS, PRODUCTS, STORES, IMPORTS, EXPORTS
+    }
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private final WebClient.Builder webClientBuilder;
+    private final Map<String, CachedDataset> cache = new ConcurrentHashMap<>();
+
+    @Value("${api.gateway.url:http://api-gateway:8080}")
+    private String apiGatewayUrl;
+
+    @Value("${ai.analytics-cache.ttl-ms:60000}")
+    private long ttlMs;
+
+    private volatile WebClient webClient;
+    private volatile long lastSweep;
+
+    public AnalyticsSnapshotService(WebClient.Builder webClientBuilder) {
+        this.webClientBuilder = webClientBuilder;
+    }
+
+    /**
+     * Tải song song các dataset cần thiết; from/to chỉ dùng cho IMPORTS/EXPORTS
+     */
+    public Mono<Snapshot> snapshot(String token, LocalDate from, LocalDate to, Dataset... datasets) {
+        Set<Dataset> wanted = datasets.length == 0 ? EnumSet.allOf(Dataset.class) : EnumSet.noneOf(Dataset.class);
+        Collections.addAll(wanted, datasets);
+
+        Mono<List<Map<String, Object>>> empty = Mono.just(Collections.emptyList());
+        return Mono.zip(
+                wanted.contains(Dataset.STOCKS) ? stocks(token) : empty,
+                wanted.contains(Dataset.PRODUCTS) ? products(token) : empty,
+                wanted.contains(Dataset.STORES) ? stores(token) : empty,
+                wanted.contains(Dataset.IMPORTS) ? imports(token, from, to) : empty,
+                wanted.contains(Dataset.EXPORTS) ? exports(token, from, to) : empty)
+                .map(t -> new Snapshot(t.getT1(), t.getT2(), t.getT3(), t.getT4(), t.getT5()));
+    }
+
+    public Mono<List<Map<String, Object>>> stocks(String token) {
+        return cached("stocks:" + caller(token), () -> fetchList(token, "/api/stocks", null, null));
+    }
+
+    public Mono<List<Map<String, Object>>> products(String token) {
+        return cached("products:" + caller(token), () -> fetchList(token, "/api/products", null, null));
+    }
+
+    public Mono<List<Map<String, Object>>> stores(String token) {
+        return cached("stores:" + caller(token), () -> fetchList(token, "/api/stores", null, null));
+    }
+
+    public Mono<List<Map<String, Object>>> imports(String token, LocalDate from, LocalDate to) {
+        return cached("imports:" + from + ":" + to + ":" + caller(token), () -> fetchList(token, "/api/imports", from, to));
+    }
+
+    public Mono<List<Map<String, Object>>> exports(String token, LocalDate from, LocalDate to) {
+        return cached("exports:" + from + ":" + to + ":" + caller(token), () -> fetchList(token, "/api/exports", from, to));
+    }
+
+    /**
+     * Xóa cache của 1 dataset (mọi khoảng ngày), null = xóa tất cả
+     */
+    public void invalidate(Dataset dataset) {
+        if (dataset == null) {
+            cache.clear();
+            return;
+        }
+        String prefix = dataset.name().toLowerCase();
+        cache.keySet().removeIf(key -> key.startsWith(prefix + ":"));
+    }
+
+    public void invalidateAll() {
+        invalidate(null);
+    }
+
+    private Mono<List<Map<String, Object>>> cached(String key, Supplier<Mono<List<Map<String, Object>>>> loader) {
+        long now = System.currentTimeMillis();
+        // Key theo từng token nên dọn entry hết hạn định kỳ, tối đa 1 lần mỗi TTL
+        if (now - lastSweep > ttlMs) {
+            lastSweep = now;
+            cache.values().removeIf(e -> e.expiresAt <= now);
+        }
+        CachedDataset entry = cache.compute(key, (k, existing) -> existing != null && existing.expiresAt > now
+                ? existing
+                : new CachedDataset(loader.get().cache(), now + ttlMs));
+
+        return entry.data.onErrorResume(e -> {
+            // Không giữ lỗi trong cache: lần gọi sau sẽ tải lại
+            cache.remove(key, entry);
+            log.error("Error fetching {}: {}", key, e.getMessage());
+            return Mono.just(Collections.emptyList());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Mono<List<Map<String, Object>>> fetchList(String token, String path, LocalDate from, LocalDate to) {
+        return client().get()
+                .uri(uriBuilder -> {
+                    uriBuilder.path(path);
+                    if (from != null && to != null) {
+                        uriBuilder.queryParam("from", from.toString())
+                                .queryParam("to", to.toString());
+                    }
+                    return uriBuilder.build();
+                })
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .accept(MediaType.APPLICATION_JSON)
+                .retrieve()
+                .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
+                })
+                .timeout(TIMEOUT)
+                .map(response -> {
+                    Object data = response.get("data");
+                    if (data instanceof List) {
+                        return Collections.unmodifiableList((List<Map<String, Object>>) data);
+                    }
+                    log.warn("Không có trường 'data' trong phản hồi {}", path);
+                    return Collections.<Map<String, Object>>emptyList();
+                })
+                .defaultIfEmpty(new ArrayList<>());
+    }
+
+    // Định danh người gọi trong key cache: SHA-256 của token (không giữ token gốc trong bộ nhớ cache)
+    private static String caller(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest((token != null ? token : "").getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 không khả dụng", e);
+        }
+    }
+
+    private WebClient client() {
+        WebClient c = webClient;
+        if (c == null) {
+            c = webClientBuilder.baseUrl(apiGatewayUrl).build();
+            webClient = c;
+        }
+        return c;
+    }
+
+    private static final class CachedDataset {
+        private final Mono<List<Map<String, Object>>> data;
+        private final long expiresAt;
+
+        private CachedDataset(Mono<List<Map<String, Object>>> data, long expiresAt) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Dữ liệu cho 1 lần chạy báo cáo; dataset không được yêu cầu là danh sách rỗng
+     */
+    public static final class Snapshot {
+        private final List<Map<String, Object>> stocks;
+        private final List<Map<String, Object>> products;
+        private final List<Map<String, Object>> stores;
+        private final List<Map<String, Object>> imports;
+        private final List<Map<String, Object>> exports;
+
+        public Snapshot(List<Map<String, Object>> stocks,
+                List<Map<String, Object>> products,
+                List<Map<String, Object>> stores,
+                List<Map<String, Object>> imports,
+                List<Map<String, Object>> exports) {
+            this.stocks = stocks;
+            this.products = products;
+            this.stores = stores;
+            this.imports = imports;
+            this.exports = exports;
+        }
+
+        public List<Map<String, Object>> getStocks() {
+            return stocks;
+        }
+
+        public List<Map<String, Object>> getProducts() {
+            return products;
+        }
+
+        public List<Map<String, Object>> getStores() {
+            return stores;
+        }
+
+        public List<Map<String, Object>> getImports() {
+            return imports;
+        }
+
+        public List<Map<String, Object>> getExports() {
+            return exports;
+        }
+    }
+}
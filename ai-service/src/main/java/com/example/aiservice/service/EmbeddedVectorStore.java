@@ -0,0 +1,301 @@
+package com.example.aiservice.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+/**
+ * Kho vector nhúng trong process (HNSW), không cần chạy Milvus.
+ * Dữ liệu được ghi ra ai.vector-store.embedded.path định kỳ và khi tắt service, nạp lại khi dùng lần đầu.
+ * Metric: L2 (mặc định, giống collection Milvus) hoặc COSINE; score trả về là khoảng cách.
+ */
+@Component
+@Slf4j
+public class EmbeddedVectorStore implements VectorStore {
+
+    @Value("${ai.vector-store.embedded.path:data/receipt-vectors.hnsw}")
+    private String path;
+
+    @Value("${ai.vector-store.embedded.metric:L2}")
+    private HnswIndex.Metric metric;
+
+    @Value("${ai.vector-store.embedded.dimension:768}")
+    private int dimension;
+
+    @Value("${ai.vector-store.embedded.m:16}")
+    private int m;
+
+    @Value("${ai.vector-store.embedded.ef-construction:100}")
+    private int efConstruction;
+
+    @Value("${ai.vector-store.embedded.ef-search:64}")
+    private int efSearch;
+
+    // Giới hạn số vector (bộ nhớ off-heap ~ dimension * 4 byte mỗi vector); đầy thì saveEmbedding ném lỗi
+    @Value("${ai.vector-store.embedded.max-vectors:1000000}")
+    private int maxVectors;
+
+    @Value("${ai.vector-store.embedded.persist-interval-ms:30000}")
+    private long persistIntervalMs;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Được bảo vệ bởi lock; payloads.get(id) là dữ liệu đi kèm vector id
+    private HnswIndex index;
+    private final List<Payload> payloads = new ArrayList<>();
+    private boolean dirty;
+    private ScheduledExecutorService persister;
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public void saveEmbedding(String receiptType, String supplierName, String customerName,
+            List<Float> embedding, Map<String, Object> metadata) {
+        String metadataJson = "{}";
+        if (metadata != null) {
+            try {
+                metadataJson = objectMapper.writeValueAsString(metadata);
+            } catch (Exception e) {
+                log.warn("Failed to serialize metadata to JSON, using toString", e);
+                metadataJson = metadata.toString();
+            }
+        }
+        float[] vector = toArray(embedding);
+        Payload payload = new Payload(receiptType,
+                VectorSearchFilter.normalizeSupplier(supplierName),
+                customerName != null ? customerName : "",
+                metadataJson);
+
+        ensureLoaded();
+        lock.writeLock().lock();
+        try {
+            index.add(vector);
+            payloads.add(payload);
+            dirty = true;
+        } catch (IllegalArgumentException e) {
+            log.warn("Skipping embedding: {}", e.getMessage());
+        } catch (IllegalStateException e) {
+            log.error("Vector store is full ({} vectors), raise ai.vector-store.embedded.max-vectors: {}",
+                    index.size(), e.getMessage());
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> searchSimilar(List<Float> queryEmbedding, int topK, VectorSearchFilter filter) {
+        return searchSimilarBatch(Collections.singletonList(queryEmbedding), topK, filter).get(0);
+    }
+
+    @Override
+    public List<List<Map<String, Object>>> searchSimilarBatch(List<List<Float>> queryEmbeddings, int topK,
+            VectorSearchFilter filter) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            IntPredicate accept = filter == null || filter.isEmpty()
+                    ? null
+                    : id -> filter.matches(payloads.get(id).receiptType, payloads.get(id).supplierName);
+            List<List<Map<String, Object>>> allResults = new ArrayList<>(queryEmbeddings.size());
+            for (List<Float> queryEmbedding : queryEmbeddings) {
+                float[] query = toArray(queryEmbedding);
+                if (query.length != index.dimension()) {
+                    log.warn("Query vector has {} dimensions, index expects {}", query.length, index.dimension());
+                    allResults.add(Collections.emptyList());
+                    continue;
+                }
+                List<Map<String, Object>> results = new ArrayList<>();
+                for (HnswIndex.Candidate candidate : index.search(query, topK, efSearch, accept)) {
+                    Payload payload = payloads.get(candidate.node);
+                    Map<String, Object> result = new HashMap<>();
+                    result.put("id", (long) candidate.node);
+                    result.put("score", candidate.distance);
+                    result.put("receipt_type", payload.receiptType);
+                    result.put("supplier_name", payload.supplierName);
+                    result.put("customer_name", payload.customerName);
+                    result.put("metadata", payload.metadataJson);
+                    results.add(result);
+                }
+                allResults.add(results);
+            }
+            return allResults;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (persister != null) {
+            persister.shutdownNow();
+        }
+        persist();
+    }
+
+    // Nạp file (nếu có) ở lần dùng đầu tiên; khi không dùng kho nhúng thì không tốn bộ nhớ
+    private void ensureLoaded() {
+        lock.readLock().lock();
+        try {
+            if (index != null) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (index != null) {
+                return;
+            }
+            Path file = Paths.get(path);
+            if (Files.exists(file)) {
+                try {
+                    load(file);
+                    log.info("Loaded {} vectors from {}", index.size(), file);
+                } catch (IOException | RuntimeException e) {
+                    log.error("Cannot load vector index from {}, starting empty", file, e);
+                    index = null;
+                    payloads.clear();
+                }
+            }
+            if (index == null) {
+                index = new HnswIndex(dimension, metric, m, efConstruction, 1024, maxVectors);
+            }
+            if (persistIntervalMs > 0) {
+                persister = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "vector-store-persist");
+                    t.setDaemon(true);
+                    return t;
+                });
+                persister.scheduleWithFixedDelay(this::persist, persistIntervalMs, persistIntervalMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            HnswIndex loaded = HnswIndex.readFrom(in, maxVectors);
+            if (loaded.dimension() != dimension || loaded.metric() != metric) {
+                throw new IOException("Index file has dimension " + loaded.dimension() + "/" + loaded.metric()
+                        + ", configured " + dimension + "/" + metric);
+            }
+            List<Payload> loadedPayloads = new ArrayList<>(loaded.size());
+            for (int i = 0; i < loaded.size(); i++) {
+                loadedPayloads.add(new Payload(readString(in), readString(in), readString(in), readString(in)));
+            }
+            index = loaded;
+            payloads.clear();
+            payloads.addAll(loadedPayloads);
+        }
+    }
+
+    // Ghi snapshot ra file tạm rồi đổi tên, để file luôn ở trạng thái đầy đủ
+    private synchronized void persist() {
+        lock.readLock().lock();
+        try {
+            if (index == null || !dirty) {
+                return;
+            }
+            Path file = Paths.get(path);
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                index.writeTo(out);
+                for (int i = 0; i < index.size(); i++) {
+                    Payload payload = payloads.get(i);
+                    writeString(out, payload.receiptType);
+                    writeString(out, payload.supplierName);
+                    writeString(out, payload.customerName);
+                    writeString(out, payload.metadataJson);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // dirty chỉ được đặt lại khi đang giữ read lock, không có add nào chen giữa
+            dirty = false;
+            log.debug("Persisted {} vectors to {}", index.size(), file);
+        } catch (IOException e) {
+            log.error("Cannot persist vector index to {}", path, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static float[] toArray(List<Float> embedding) {
+        float[] vector = new float[embedding.size()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = embedding.get(i);
+        }
+        return vector;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Payload {
+        private final String receiptType;
+        private final String supplierName;
+        private final String customerName;
+        private final String metadataJson;
+
+        private Payload(String receiptType, String supplierName, String customerName, String metadataJson) {
+            this.receiptType = receiptType;
+            this.supplierName = supplierName;
+            this.customerName = customerName;
+            this.metadataJson = metadataJson;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.aiservice.service;
 
+import com.example.aiservice.exception.AiServiceException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
@@ -11,10 +12,15 @@ import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 
 import java.time.Duration;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 @RequiredArgsConstructor
@@ -22,6 +28,7 @@ import java.util.Map;
 public class EmbeddingService {
 
     private final WebClient geminiWebClient;
+    private final GeminiGateway geminiGateway;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     @Value("${gemini.api-key}")
@@ -29,6 +36,16 @@ public class EmbeddingService {
 
     private static final Duration TIMEOUT = Duration.ofSeconds(30);
     private static final String EMBEDDING_MODEL = "models/text-embedding-004"; // 768 dimensions
+    // Giới hạn số request trong 1 lần gọi batchEmbedContents
+    private static final int BATCH_SIZE = 100;
+
+    @Value("${ai.embedding-cache.max-entries:5000}")
+    private int maxCacheEntries;
+
+    // Cache theo SHA-256(model + text), LRU; vector giữ dạng float[] (~3KB/vector 768 chiều)
+    private final LinkedHashMap<String, float[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
 
     /**
      * Tạo embedding từ text
@@ -37,6 +54,32 @@ public class EmbeddingService {
      * @return List<Float> embedding vector (768 dimensions cho text-embedding-004)
      */
     public List<Float> generateEmbedding(String text) {
+        return new FloatArrayList(generateEmbeddingArray(text));
+    }
+
+    /**
+     * Như generateEmbedding nhưng trả mảng float dùng chung với cache (không được sửa mảng trả về)
+     */
+    public float[] generateEmbeddingArray(String text) {
+        if (text == null || text.isBlank()) {
+            throw new IllegalArgumentException("Text cannot be null or empty");
+        }
+        return embedAll(List.of(text)).get(0);
+    }
+
+    /**
+     * Tạo embedding từ nhiều text (batch): text đã có trong cache không gọi lại API,
+     * phần còn lại gửi batchEmbedContents theo từng chunk tối đa BATCH_SIZE text
+     */
+    public List<List<Float>> generateEmbeddings(List<String> texts) {
+        List<List<Float>> embeddings = new ArrayList<>(texts.size());
+        for (float[] vector : embedAll(texts)) {
+            embeddings.add(new FloatArrayList(vector));
+        }
+        return embeddings;
+    }
+
+    private List<float[]> embedAll(List<String> texts) {
         // Trim API key để loại bỏ khoảng trắng thừa
         String trimmedApiKey = (apiKey != null) ? apiKey.trim() : null;
 
@@ -44,36 +87,87 @@ public class EmbeddingService {
             throw new IllegalStateException("gemini.api-key is not configured");
         }
 
-        if (text == null || text.isBlank()) {
-            throw new IllegalArgumentException("Text cannot be null or empty");
+        float[][] result = new float[texts.size()][];
+        // key -> các vị trí cần kết quả đó (cùng 1 text xuất hiện nhiều lần chỉ gửi 1 lần)
+        Map<String, List<Integer>> missing = new LinkedHashMap<>();
+        Map<String, String> missingTexts = new HashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            if (text == null || text.isBlank()) {
+                throw new IllegalArgumentException("Text cannot be null or empty");
+            }
+            String key = GeminiResponseCache.key(EMBEDDING_MODEL, text);
+            float[] cached = cacheGet(key);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                result[i] = cached;
+            } else {
+                missing.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+                missingTexts.put(key, text);
+            }
         }
+        if (missing.isEmpty()) {
+            return Arrays.asList(result);
+        }
+        cacheMisses.addAndGet(missing.size());
 
+        List<String> keys = new ArrayList<>(missing.keySet());
+        for (int from = 0; from < keys.size(); from += BATCH_SIZE) {
+            List<String> chunkKeys = keys.subList(from, Math.min(from + BATCH_SIZE, keys.size()));
+            List<String> chunkTexts = new ArrayList<>(chunkKeys.size());
+            for (String key : chunkKeys) {
+                chunkTexts.add(missingTexts.get(key));
+            }
+            List<float[]> vectors = callBatchEmbed(chunkTexts, trimmedApiKey);
+            for (int j = 0; j < chunkKeys.size(); j++) {
+                float[] vector = vectors.get(j);
+                cachePut(chunkKeys.get(j), vector);
+                for (int index : missing.get(chunkKeys.get(j))) {
+                    result[index] = vector;
+                }
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    // 1 request batchEmbedContents cho cả chunk
+    private List<float[]> callBatchEmbed(List<String> texts, String trimmedApiKey) {
         try {
-            // Gemini Embedding API format
-            Map<String, Object> body = new HashMap<>();
-            body.put("model", EMBEDDING_MODEL);
-            Map<String, Object> content = new HashMap<>();
-            content.put("parts", List.of(Map.of("text", text)));
-            body.put("content", content);
-
-            log.debug("Calling Gemini Embedding API with model: {}", EMBEDDING_MODEL);
-
-            String response = geminiWebClient.post()
-                    .uri(uriBuilder -> uriBuilder
-                            .path("/" + EMBEDDING_MODEL + ":embedContent")
-                            .queryParam("key", trimmedApiKey)
-                            .build())
-                    .contentType(MediaType.APPLICATION_JSON)
-                    .bodyValue(body)
-                    .retrieve()
-                    .onStatus(status -> status.isError(),
-                            clientResponse -> clientResponse.bodyToMono(String.class).map(msg -> {
-                                log.error("Gemini embedding error response ({}): {}",
-                                        clientResponse.statusCode(), msg);
-                                return new RuntimeException("Gemini Embedding API error: " + msg);
-                            }))
-                    .bodyToMono(String.class)
-                    .block(TIMEOUT);
+            // Gemini Batch Embedding API format
+            List<Map<String, Object>> requests = new ArrayList<>(texts.size());
+            for (String text : texts) {
+                Map<String, Object> request = new HashMap<>();
+                request.put("model", EMBEDDING_MODEL);
+                Map<String, Object> content = new HashMap<>();
+                content.put("parts", List.of(Map.of("text", text)));
+                request.put("content", content);
+                requests.add(request);
+            }
+            Map<String, Object> body = Map.of("requests", requests);
+
+            log.debug("Calling Gemini Batch Embedding API with model: {}, {} texts", EMBEDDING_MODEL, texts.size());
+
+            // Đi qua gateway (giới hạn đồng thời/quota chung với các lời gọi Gemini khác), 429/5xx được retry
+            String response = geminiGateway.execute(GeminiGateway.Lane.INTERACTIVE, () -> geminiWebClient.post()
+                            .uri(uriBuilder -> uriBuilder
+                                    .path("/" + EMBEDDING_MODEL + ":batchEmbedContents")
+                                    .queryParam("key", trimmedApiKey)
+                                    .build())
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .bodyValue(body)
+                            .retrieve()
+                            .onStatus(status -> status.isError(), clientResponse -> {
+                                int statusCode = clientResponse.statusCode().value();
+                                return clientResponse.bodyToMono(String.class).map(msg -> {
+                                    log.error("Gemini embedding error response ({}): {}",
+                                            clientResponse.statusCode(), msg);
+                                    return new AiServiceException("Gemini Embedding API error: " + msg,
+                                            statusCode == 429, statusCode == 429 || statusCode >= 500);
+                                });
+                            })
+                            .bodyToMono(String.class)
+                            .timeout(TIMEOUT))
+                    .block();
 
             if (response == null || response.isBlank()) {
                 log.error("Received null or empty response from Gemini Embedding API");
@@ -96,33 +190,33 @@ public class EmbeddingService {
                 throw new RuntimeException("Gemini Embedding API error: " + errorMessage);
             }
 
-            // Tìm embedding trong response
-            JsonNode embeddingNode = jsonResponse.path("embedding");
-
-            if (embeddingNode.isMissingNode()) {
-                log.error("Response structure: {}", jsonResponse.toPrettyString());
-                throw new RuntimeException("Không tìm thấy field 'embedding' trong response: " + response);
-            }
-
-            List<Float> embedding = new ArrayList<>();
-
-            // Lấy values từ embedding
-            JsonNode valuesNode = embeddingNode.path("values");
-            if (valuesNode.isMissingNode() || !valuesNode.isArray()) {
+            // Mỗi phần tử của 'embeddings' ứng với 1 request, đúng thứ tự gửi lên
+            JsonNode embeddingsNode = jsonResponse.path("embeddings");
+            if (!embeddingsNode.isArray() || embeddingsNode.size() != texts.size()) {
                 log.error("Response structure: {}", jsonResponse.toPrettyString());
-                throw new RuntimeException("Không tìm thấy 'embedding.values' array trong response: " + response);
+                throw new RuntimeException("Số embedding trả về không khớp số text gửi lên (" + texts.size() + ")");
             }
 
-            for (JsonNode value : valuesNode) {
-                embedding.add((float) value.asDouble());
+            List<float[]> vectors = new ArrayList<>(texts.size());
+            for (JsonNode embeddingNode : embeddingsNode) {
+                // Lấy values từ embedding
+                JsonNode valuesNode = embeddingNode.path("values");
+                if (valuesNode.isMissingNode() || !valuesNode.isArray()) {
+                    log.error("Response structure: {}", jsonResponse.toPrettyString());
+                    throw new RuntimeException("Không tìm thấy 'embedding.values' array trong response");
+                }
+                if (valuesNode.size() == 0) {
+                    throw new RuntimeException("Embedding vector rỗng trong response");
+                }
+                float[] vector = new float[valuesNode.size()];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = (float) valuesNode.get(i).asDouble();
+                }
+                vectors.add(vector);
             }
 
-            if (embedding.isEmpty()) {
-                throw new RuntimeException("Embedding vector rỗng trong response: " + response);
-            }
-
-            log.info("Generated embedding with {} dimensions", embedding.size());
-            return embedding;
+            log.info("Generated {} embeddings with {} dimensions", vectors.size(), vectors.get(0).length);
+            return vectors;
 
         } catch (WebClientResponseException ex) {
             log.error("Gemini Embedding HTTP error {} - Response body: {}",
@@ -135,14 +229,47 @@ public class EmbeddingService {
         }
     }
 
-    /**
-     * Tạo embedding từ nhiều text (batch)
-     */
-    public List<List<Float>> generateEmbeddings(List<String> texts) {
-        List<List<Float>> embeddings = new ArrayList<>();
-        for (String text : texts) {
-            embeddings.add(generateEmbedding(text));
+    private float[] cacheGet(String key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private void cachePut(String key, float[] vector) {
+        synchronized (cache) {
+            cache.put(key, vector);
+            while (cache.size() > maxCacheEntries) {
+                cache.remove(cache.keySet().iterator().next());
+            }
+        }
+    }
+
+    public Map<String, Object> cacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (cache) {
+            stats.put("entries", cache.size());
+        }
+        stats.put("hits", cacheHits.get());
+        stats.put("misses", cacheMisses.get());
+        return stats;
+    }
+
+    // List<Float> chỉ đọc bọc quanh float[]; không tạo 768 object Float cho mỗi vector
+    private static final class FloatArrayList extends AbstractList<Float> implements RandomAccess {
+        private final float[] values;
+
+        private FloatArrayList(float[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Float get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
         }
-        return embeddings;
     }
 }
@@ -0,0 +1,388 @@
+package com.example.aiservice.service;
+
+import com.example.aiservice.exception.AiServiceException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cổng duy nhất cho mọi lời gọi Gemini (text, OCR, embedding):
+ * - Giới hạn số request đồng thời (ai.gemini-gateway.max-concurrency)
+ * - Token bucket theo quota của project (requests-per-minute, burst)
+ * - 2 hàng đợi ưu tiên: INTERACTIVE (chat, OCR) luôn được phục vụ trước BACKGROUND (báo cáo)
+ * - Retry có backoff + jitter không giữ thread; mỗi lần retry xếp hàng lại
+ * - Hedging (tùy chọn) cho lời gọi tương tác: sau hedge-delay-ms mà chưa có kết quả
+ *   thì gửi thêm 1 request nếu còn slot và token, lấy kết quả về trước
+ * Không có thread nào bị chặn khi chờ: request chờ nằm trong hàng đợi và được cấp quyền khi có slot/token.
+ */
+@Component
+@Slf4j
+public class GeminiGateway {
+
+    public enum Lane {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    @Value("${ai.gemini-gateway.max-concurrency:4}")
+    private int maxConcurrency;
+
+    // <= 0: không giới hạn tốc độ
+    @Value("${ai.gemini-gateway.requests-per-minute:60}")
+    private double requestsPerMinute;
+
+    @Value("${ai.gemini-gateway.burst:10}")
+    private double burst;
+
+    @Value("${ai.gemini-gateway.max-queue:100}")
+    private int maxQueue;
+
+    @Value("${ai.gemini-gateway.queue-timeout-ms:30000}")
+    private long queueTimeoutMs;
+
+    @Value("${ai.gemini-gateway.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${ai.gemini-gateway.retry-backoff-ms:500}")
+    private long retryBackoffMs;
+
+    // <= 0: tắt hedging
+    @Value("${ai.gemini-gateway.hedge-delay-ms:0}")
+    private long hedgeDelayMs;
+
+    // Các field dưới đây được bảo vệ bởi lock
+    private final Object lock = new Object();
+    private final Map<Lane, Deque<Waiter>> queues = new EnumMap<>(Lane.class);
+    private int inFlight;
+    private double tokens = -1;
+    private long lastRefillNanos;
+    private boolean drainScheduled;
+
+    private final Map<Lane, LaneStats> laneStats = new EnumMap<>(Lane.class);
+
+    public GeminiGateway() {
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new ArrayDeque<>());
+            laneStats.put(lane, new LaneStats());
+        }
+    }
+
+    /**
+     * Chạy call khi có slot + token, retry lỗi tạm thời
+     */
+    public <T> Mono<T> execute(Lane lane, Supplier<Mono<T>> call) {
+        return execute(lane, false, call);
+    }
+
+    /**
+     * Như execute(INTERACTIVE, call) nhưng có hedging nếu ai.gemini-gateway.hedge-delay-ms &gt; 0
+     */
+    public <T> Mono<T> executeHedged(Supplier<Mono<T>> call) {
+        return execute(Lane.INTERACTIVE, hedgeDelayMs > 0, call);
+    }
+
+    private <T> Mono<T> execute(Lane lane, boolean hedge, Supplier<Mono<T>> call) {
+        LaneStats stats = laneStats.get(lane);
+        return Mono.defer(() -> {
+            stats.submitted.incrementAndGet();
+            Mono<T> attempt = Mono.defer(() -> hedge ? hedged(lane, call, stats) : guarded(lane, call));
+            return attempt
+                    .retryWhen(Retry.backoff(Math.max(0, maxAttempts - 1), Duration.ofMillis(retryBackoffMs))
+                            .jitter(0.5)
+                            .filter(GeminiGateway::isRetryable)
+                            .doBeforeRetry(signal -> {
+                                stats.retries.incrementAndGet();
+                                log.warn("Gemini {} call failed (attempt {}), retrying: {}", lane,
+                                        signal.totalRetries() + 1, signal.failure().getMessage());
+                            })
+                            .onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+                    .doOnSuccess(value -> stats.succeeded.incrementAndGet())
+                    .doOnError(e -> stats.failed.incrementAndGet());
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        synchronized (lock) {
+            refill();
+            result.put("inFlight", inFlight);
+            result.put("maxConcurrency", maxConcurrency);
+            result.put("availableTokens", requestsPerMinute > 0 ? Math.floor(tokens) : null);
+            for (Lane lane : Lane.values()) {
+                Map<String, Object> ls = laneStats.get(lane).toMap();
+                ls.put("queued", queues.get(lane).size());
+                result.put(lane.name().toLowerCase(), ls);
+            }
+        }
+        result.put("hedgeDelayMs", hedgeDelayMs);
+        return result;
+    }
+
+    private <T> Mono<T> guarded(Lane lane, Supplier<Mono<T>> call) {
+        return Mono.usingWhen(acquire(lane),
+                permit -> call.get(),
+                permit -> Mono.fromRunnable(permit::release),
+                (permit, e) -> Mono.fromRunnable(permit::release),
+                permit -> Mono.fromRunnable(permit::release));
+    }
+
+    // Request dự phòng chỉ chạy khi không phải chen hàng (còn slot, còn token, không ai đang chờ)
+    private <T> Mono<T> hedged(Lane lane, Supplier<Mono<T>> call, LaneStats stats) {
+        Mono<T> primary = guarded(lane, call);
+        Mono<T> backup = Mono.delay(Duration.ofMillis(hedgeDelayMs))
+                .flatMap(tick -> {
+                    Permit permit = tryAcquireNow();
+                    if (permit == null) {
+                        return Mono.<T>never();
+                    }
+                    stats.hedges.incrementAndGet();
+                    return Mono.usingWhen(Mono.just(permit),
+                                    p -> call.get(),
+                                    p -> Mono.fromRunnable(p::release),
+                                    (p, e) -> Mono.fromRunnable(p::release),
+                                    p -> Mono.fromRunnable(p::release))
+                            .doOnNext(value -> stats.hedgeWins.incrementAndGet());
+                })
+                // Lỗi của request dự phòng không được thắng request chính
+                .onErrorResume(e -> Mono.never());
+        return Mono.firstWithSignal(primary, backup);
+    }
+
+    private Mono<Permit> acquire(Lane lane) {
+        LaneStats stats = laneStats.get(lane);
+        return Mono.<Permit>create(sink -> {
+            Waiter waiter = new Waiter(lane, sink);
+            boolean accepted;
+            synchronized (lock) {
+                Deque<Waiter> queue = queues.get(lane);
+                accepted = queue.size() < maxQueue;
+                if (accepted) {
+                    queue.addLast(waiter);
+                }
+            }
+            if (!accepted) {
+                stats.rejected.incrementAndGet();
+                sink.error(new GatewayRejectedException("Hàng đợi Gemini đã đầy, vui lòng thử lại sau"));
+                return;
+            }
+            sink.onCancel(waiter::cancel);
+            drain();
+        }).timeout(Duration.ofMillis(queueTimeoutMs), Mono.<Permit>defer(() -> {
+            stats.rejected.incrementAndGet();
+            return Mono.error(new GatewayRejectedException("Quá thời gian chờ gọi Gemini, vui lòng thử lại sau"));
+        }));
+    }
+
+    private Permit tryAcquireNow() {
+        synchronized (lock) {
+            for (Deque<Waiter> queue : queues.values()) {
+                if (!queue.isEmpty()) {
+                    return null;
+                }
+            }
+            if (inFlight >= maxConcurrency || !takeToken()) {
+                return null;
+            }
+            inFlight++;
+            return new Permit();
+        }
+    }
+
+    // Cấp quyền cho các request đang chờ theo thứ tự ưu tiên lane; sink được gọi ngoài lock
+    private void drain() {
+        List<Waiter> ready = new ArrayList<>();
+        long retryInMillis = -1;
+        synchronized (lock) {
+            while (inFlight < maxConcurrency) {
+                Waiter next = nextWaiter();
+                if (next == null) {
+                    break;
+                }
+                if (!takeToken()) {
+                    retryInMillis = millisUntilToken();
+                    break;
+                }
+                queues.get(next.lane).pollFirst();
+                next.permit = new Permit();
+                if (next.state.compareAndSet(WAITING, GRANTED)) {
+                    inFlight++;
+                    ready.add(next);
+                } else {
+                    tokens += 1;
+                }
+            }
+            if (retryInMillis >= 0 && !drainScheduled) {
+                drainScheduled = true;
+                Schedulers.parallel().schedule(() -> {
+                    synchronized (lock) {
+                        drainScheduled = false;
+                    }
+                    drain();
+                }, Math.max(1, retryInMillis), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        for (Waiter waiter : ready) {
+            long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waiter.enqueuedAt);
+            LaneStats stats = laneStats.get(waiter.lane);
+            stats.granted.incrementAndGet();
+            stats.queueWaitMillis.addAndGet(waitedMs);
+            stats.maxQueueWaitMillis.accumulateAndGet(waitedMs, Math::max);
+            waiter.sink.success(waiter.permit);
+        }
+    }
+
+    private Waiter nextWaiter() {
+        for (Lane lane : Lane.values()) {
+            Deque<Waiter> queue = queues.get(lane);
+            while (!queue.isEmpty() && queue.peekFirst().state.get() != WAITING) {
+                queue.pollFirst();
+            }
+            if (!queue.isEmpty()) {
+                return queue.peekFirst();
+            }
+        }
+        return null;
+    }
+
+    private boolean takeToken() {
+        if (requestsPerMinute <= 0) {
+            return true;
+        }
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private long millisUntilToken() {
+        double missing = 1 - tokens;
+        return (long) Math.ceil(missing * 60_000 / requestsPerMinute);
+    }
+
+    private void refill() {
+        if (requestsPerMinute <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (tokens < 0) {
+            tokens = Math.max(1, burst);
+        } else {
+            double refilled = (now - lastRefillNanos) * requestsPerMinute / 60_000_000_000.0;
+            tokens = Math.min(Math.max(1, burst), tokens + refilled);
+        }
+        lastRefillNanos = now;
+    }
+
+    private static boolean isRetryable(Throwable ex) {
+        if (ex instanceof GatewayRejectedException) {
+            return false;
+        }
+        if (ex instanceof AiServiceException) {
+            return ((AiServiceException) ex).isTemporary();
+        }
+        if (ex instanceof WebClientResponseException) {
+            int status = ((WebClientResponseException) ex).getStatusCode().value();
+            return status == 429 || status == 408 || status >= 500;
+        }
+        return ex instanceof TimeoutException;
+    }
+
+    private final class Permit {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                synchronized (lock) {
+                    inFlight--;
+                }
+                drain();
+            }
+        }
+    }
+
+    private final class Waiter {
+        private final Lane lane;
+        private final MonoSink<Permit> sink;
+        private final long enqueuedAt = System.nanoTime();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private volatile Permit permit;
+
+        private Waiter(Lane lane, MonoSink<Permit> sink) {
+            this.lane = lane;
+            this.sink = sink;
+        }
+
+        // Hủy khi đang chờ thì bỏ khỏi hàng đợi; nếu đã được cấp quyền thì trả lại slot
+        private void cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                synchronized (lock) {
+                    queues.get(lane).remove(this);
+                }
+            } else if (state.get() == GRANTED) {
+                permit.release();
+            }
+        }
+    }
+
+    private static final class LaneStats {
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong granted = new AtomicLong();
+        private final AtomicLong hedges = new AtomicLong();
+        private final AtomicLong hedgeWins = new AtomicLong();
+        private final AtomicLong queueWaitMillis = new AtomicLong();
+        private final AtomicLong maxQueueWaitMillis = new AtomicLong();
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("submitted", submitted.get());
+            map.put("succeeded", succeeded.get());
+            map.put("failed", failed.get());
+            map.put("rejected", rejected.get());
+            map.put("retries", retries.get());
+            map.put("hedges", hedges.get());
+            map.put("hedgeWins", hedgeWins.get());
+            long grantedCount = granted.get();
+            map.put("avgQueueWaitMs", grantedCount > 0 ? queueWaitMillis.get() / grantedCount : 0);
+            map.put("maxQueueWaitMs", maxQueueWaitMillis.get());
+            return map;
+        }
+    }
+
+    // Bị gateway từ chối (hàng đợi đầy / chờ quá lâu): không retry để tránh làm quá tải thêm
+    private static final class GatewayRejectedException extends AiServiceException {
+        private GatewayRejectedException(String message) {
+            super(message, false, true);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.example.aiservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cache kết quả Gemini theo nội dung: key = SHA-256(model path + prompt).
+ * - Tầng bộ nhớ: LRU giới hạn số entry, TTL theo từng caller (ai.gemini-cache.ttl-ms.&lt;caller&gt;)
+ * - Tầng đĩa (tùy chọn, ai.gemini-cache.disk.dir): mỗi key 1 file, giữ được kết quả qua restart
+ * - Các lời gọi trùng prompt đang chạy dùng chung 1 request tới Gemini
+ * TTL &lt;= 0 nghĩa là không cache cho caller đó.
+ */
+@Component
+@Slf4j
+public class GeminiResponseCache {
+
+    private final Environment environment;
+
+    @Value("${ai.gemini-cache.max-entries:500}")
+    private int maxEntries;
+
+    @Value("${ai.gemini-cache.default-ttl-ms:600000}")
+    private long defaultTtlMs;
+
+    @Value("${ai.gemini-cache.disk.dir:}")
+    private String diskDir;
+
+    @Value("${ai.gemini-cache.disk.max-entries:5000}")
+    private int maxDiskEntries;
+
+    // Được bảo vệ bởi synchronized (memory)
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Mono<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong savedMillis = new AtomicLong();
+    private final AtomicInteger diskEntries = new AtomicInteger(-1);
+
+    public GeminiResponseCache(Environment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * TTL của caller (ms), mặc định ai.gemini-cache.default-ttl-ms
+     */
+    public long ttlMs(String caller) {
+        if (caller == null) {
+            return defaultTtlMs;
+        }
+        return environment.getProperty("ai.gemini-cache.ttl-ms." + caller, Long.class, defaultTtlMs);
+    }
+
+    /**
+     * Trả kết quả đã cache nếu còn hạn, nếu không thì gọi loader và lưu lại kết quả thành công
+     */
+    public Mono<String> get(String modelPath, String prompt, String caller, Supplier<Mono<String>> loader) {
+        long ttl = ttlMs(caller);
+        if (ttl <= 0) {
+            bypassed.incrementAndGet();
+            return loader.get();
+        }
+        String key = key(modelPath, prompt);
+
+        return Mono.defer(() -> {
+            Entry hit = fromMemory(key);
+            if (hit != null) {
+                memoryHits.incrementAndGet();
+                savedMillis.addAndGet(hit.costMillis);
+                return Mono.just(hit.text);
+            }
+            return fromDisk(key).map(entry -> {
+                diskHits.incrementAndGet();
+                savedMillis.addAndGet(entry.costMillis);
+                putMemory(key, entry);
+                return entry.text;
+            }).switchIfEmpty(Mono.defer(() -> load(key, ttl, loader)));
+        });
+    }
+
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+        Path dir = diskPath();
+        if (dir != null) {
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(this::deleteQuietly);
+            } catch (IOException e) {
+                log.warn("Không thể xóa cache Gemini trên đĩa: {}", e.getMessage());
+            }
+            diskEntries.set(0);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        int size;
+        synchronized (memory) {
+            size = memory.size();
+        }
+        stats.put("memoryEntries", size);
+        stats.put("diskEntries", diskPath() != null ? Math.max(0, diskEntries.get()) : 0);
+        stats.put("memoryHits", memoryHits.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("misses", misses.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("bypassed", bypassed.get());
+        stats.put("latencySavedMs", savedMillis.get());
+        long lookups = memoryHits.get() + diskHits.get() + misses.get();
+        stats.put("hitRate", lookups > 0 ? (double) (memoryHits.get() + diskHits.get()) / lookups : 0.0);
+        return stats;
+    }
+
+    // Lần gọi đầu tiên cho key sẽ gọi Gemini; các lời gọi đồng thời dùng chung kết quả
+    private Mono<String> load(String key, long ttl, Supplier<Mono<String>> loader) {
+        boolean[] created = new boolean[1];
+        Mono<String> shared = inFlight.computeIfAbsent(key, k -> {
+            created[0] = true;
+            long start = System.currentTimeMillis();
+            return loader.get()
+                    .doOnNext(text -> {
+                        Entry entry = new Entry(text, System.currentTimeMillis() + ttl,
+                                System.currentTimeMillis() - start);
+                        putMemory(key, entry);
+                        writeDisk(key, entry);
+                    })
+                    .doFinally(signal -> inFlight.remove(key))
+                    .cache();
+        });
+        if (created[0]) {
+            misses.incrementAndGet();
+        } else {
+            coalesced.incrementAndGet();
+        }
+        return shared;
+    }
+
+    private Entry fromMemory(String key) {
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt <= System.currentTimeMillis()) {
+                memory.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private void putMemory(String key, Entry entry) {
+        synchronized (memory) {
+            memory.put(key, entry);
+            while (memory.size() > maxEntries) {
+                String eldest = memory.keySet().iterator().next();
+                memory.remove(eldest);
+            }
+        }
+    }
+
+    private Mono<Entry> fromDisk(String key) {
+        Path dir = diskPath();
+        if (dir == null) {
+            return Mono.empty();
+        }
+        return Mono.fromCallable(() -> readEntry(dir.resolve(key)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorResume(e -> {
+                    log.warn("Không đọc được cache Gemini {}: {}", key, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    // Định dạng file: dòng 1 = expiresAt, dòng 2 = thời gian gọi Gemini (ms), phần còn lại = nội dung
+    private Entry readEntry(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        int first = content.indexOf('\n');
+        int second = first >= 0 ? content.indexOf('\n', first + 1) : -1;
+        if (second < 0) {
+            deleteQuietly(file);
+            diskEntries.decrementAndGet();
+            return null;
+        }
+        long expiresAt = Long.parseLong(content.substring(0, first));
+        if (expiresAt <= System.currentTimeMillis()) {
+            deleteQuietly(file);
+            diskEntries.decrementAndGet();
+            return null;
+        }
+        long cost = Long.parseLong(content.substring(first + 1, second));
+        return new Entry(content.substring(second + 1), expiresAt, cost);
+    }
+
+    private void writeDisk(String key, Entry entry) {
+        Path dir = diskPath();
+        if (dir == null) {
+            return;
+        }
+        Mono.fromRunnable(() -> {
+            try {
+                Path tmp = dir.resolve(key + ".tmp");
+                Files.writeString(tmp, entry.expiresAt + "\n" + entry.costMillis + "\n" + entry.text,
+                        StandardCharsets.UTF_8);
+                boolean existed = Files.exists(dir.resolve(key));
+                Files.move(tmp, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                if (!existed && diskEntries.incrementAndGet() > maxDiskEntries) {
+                    trimDisk(dir);
+                }
+            } catch (IOException e) {
+                log.warn("Không ghi được cache Gemini {}: {}", key, e.getMessage());
+            }
+        }).subscribeOn(Schedulers.boundedElastic()).subscribe();
+    }
+
+    // Xóa file hết hạn, sau đó xóa file cũ nhất cho tới khi còn 90% giới hạn
+    private synchronized void trimDisk(Path dir) {
+        try (Stream<Path> stream = Files.list(dir)) {
+            List<Path> files = stream.filter(p -> !p.getFileName().toString().endsWith(".tmp"))
+                    .sorted(Comparator.comparingLong(this::lastModified))
+                    .collect(Collectors.toList());
+            int keep = (int) (maxDiskEntries * 0.9);
+            int remaining = files.size();
+            for (Path file : files) {
+                if (remaining <= keep) {
+                    break;
+                }
+                deleteQuietly(file);
+                remaining--;
+            }
+            diskEntries.set(remaining);
+        } catch (IOException e) {
+            log.warn("Không dọn được cache Gemini trên đĩa: {}", e.getMessage());
+        }
+    }
+
+    private Path diskPath() {
+        if (diskDir == null || diskDir.isBlank()) {
+            return null;
+        }
+        Path dir = Paths.get(diskDir);
+        if (diskEntries.get() < 0) {
+            synchronized (this) {
+                if (diskEntries.get() < 0) {
+                    try {
+                        Files.createDirectories(dir);
+                        try (Stream<Path> files = Files.list(dir)) {
+                            diskEntries.set((int) files.count());
+                        }
+                    } catch (IOException e) {
+                        log.warn("Không dùng được thư mục cache Gemini {}: {}", dir, e.getMessage());
+                        diskDir = null;
+                        return null;
+                    }
+                }
+            }
+        }
+        return dir;
+    }
+
+    private long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Không xóa được {}: {}", file, e.getMessage());
+        }
+    }
+
+    static String key(String modelPath, String prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelPath.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return HexFormat.of().formatHex(digest.digest(prompt.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 không khả dụng", e);
+        }
+    }
+
+    private static final class Entry {
+        private final String text;
+        private final long expiresAt;
+        private final long costMillis;
+
+        private Entry(String text, long expiresAt, long costMillis) {
+            this.text = text;
+            this.expiresAt = expiresAt;
+            this.costMillis = costMillis;
+        }
+    }
+}
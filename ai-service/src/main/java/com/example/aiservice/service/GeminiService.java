@@ -10,6 +10,7 @@ import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
 
 import java.time.temporal.ChronoUnit;
 import java.time.Duration;
@@ -22,6 +23,8 @@ import java.util.Map;
 public class GeminiService {
 
     private final WebClient geminiWebClient;
+    private final GeminiResponseCache responseCache;
+    private final GeminiGateway gateway;
 
     @Value("${gemini.api-key}")
     private String apiKey;
@@ -29,11 +32,43 @@ public class GeminiService {
     // Keep total request time reasonable; we will retry a few times on temporary errors
     private static final Duration TIMEOUT = Duration.of(12, ChronoUnit.SECONDS);
     private static final String MODEL_PATH = "/models/gemini-2.5-flash:generateContent";
-    private static final int MAX_ATTEMPTS = 3;
+    private static final String DEFAULT_CACHE_CALLER = "default";
 
     public String invokeGemini(String prompt) {
+        return invokeGeminiAsync(prompt).block();
+    }
+
+    public String invokeGemini(String prompt, String cacheCaller) {
+        return invokeGeminiAsync(prompt, cacheCaller).block();
+    }
+
+    /**
+     * Luôn gọi Gemini, không đọc/ghi cache (chat, nội dung cần khác nhau mỗi lần).
+     * Đi lane INTERACTIVE của gateway, được ưu tiên hơn báo cáo và có thể hedging.
+     */
+    public String invokeGeminiUncached(String prompt) {
+        return gateway.executeHedged(() -> callGemini(prompt)).block();
+    }
+
+    public Mono<String> invokeGeminiAsync(String prompt) {
+        return invokeGeminiAsync(prompt, DEFAULT_CACHE_CALLER);
+    }
+
+    /**
+     * Gọi Gemini qua cache (TTL lấy theo ai.gemini-cache.ttl-ms.&lt;cacheCaller&gt;),
+     * khi miss thì đi lane BACKGROUND của gateway
+     */
+    public Mono<String> invokeGeminiAsync(String prompt, String cacheCaller) {
+        return responseCache.get(MODEL_PATH, prompt, cacheCaller,
+                () -> gateway.execute(GeminiGateway.Lane.BACKGROUND, () -> callGemini(prompt)));
+    }
+
+    /**
+     * 1 lần gọi Gemini không blocking; retry/giới hạn tốc độ do GeminiGateway đảm nhiệm
+     */
+    private Mono<String> callGemini(String prompt) {
         if (apiKey == null || apiKey.isBlank()) {
-            throw new IllegalStateException("gemini.api-key is not configured");
+            return Mono.error(new IllegalStateException("gemini.api-key is not configured"));
         }
 
         Map<String, Object> body = Map.of(
@@ -45,11 +80,7 @@ public class GeminiService {
                 )
         );
 
-        AiServiceException lastAiError = null;
-
-        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
-            try {
-                GeminiResponse response = geminiWebClient.post()
+        return Mono.defer(() -> geminiWebClient.post()
                         .uri(uriBuilder -> uriBuilder
                                 .path(MODEL_PATH)
                                 .queryParam("key", apiKey)
@@ -67,51 +98,34 @@ public class GeminiService {
                             });
                         })
                         .bodyToMono(GeminiResponse.class)
-                        .block(TIMEOUT);
-
-                if (response == null) {
-                    throw new AiServiceException("Không nhận được phản hồi từ Gemini", false, true);
-                }
-                String text = response.firstText();
-                if (text == null) {
-                    throw new AiServiceException("Không có nội dung trả về từ Gemini", false, true);
-                }
-                return text.trim();
-            } catch (WebClientResponseException ex) {
-                log.error("Gemini HTTP error {} - {}", ex.getStatusCode(), ex.getResponseBodyAsString(), ex);
-
-                boolean quota = ex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS;
-                boolean temporary =
-                        ex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS ||
-                        ex.getStatusCode() == HttpStatus.REQUEST_TIMEOUT ||
-                        ex.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE ||
-                        ex.getStatusCode().is5xxServerError();
-
-                lastAiError = new AiServiceException("Gemini API error: " + ex.getStatusCode(), quota, temporary);
-            } catch (AiServiceException ex) {
-                lastAiError = ex;
-            } catch (Exception ex) {
-                log.error("Gemini invocation failed", ex);
-                lastAiError = new AiServiceException("Không thể kết nối Gemini: " + ex.getMessage(), false, true);
-            }
-
-            // Retry only on temporary errors, and only if attempts remain
-            if (lastAiError != null && lastAiError.isTemporary() && attempt < MAX_ATTEMPTS) {
-                long backoffMs = 500L * (1L << (attempt - 1)); // 500ms, 1s, 2s
-                try {
-                    Thread.sleep(backoffMs);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-                continue;
-            }
-
-            // non-temporary or no attempts left
-            if (lastAiError != null) throw lastAiError;
-        }
+                        .timeout(TIMEOUT))
+                .switchIfEmpty(Mono.error(() -> new AiServiceException("Không nhận được phản hồi từ Gemini", false, true)))
+                .flatMap(response -> {
+                    String text = response.firstText();
+                    if (text == null) {
+                        return Mono.error(new AiServiceException("Không có nội dung trả về từ Gemini", false, true));
+                    }
+                    return Mono.just(text.trim());
+                })
+                .onErrorMap(ex -> !(ex instanceof AiServiceException), this::toAiError);
+    }
+
+    private AiServiceException toAiError(Throwable ex) {
+        if (ex instanceof WebClientResponseException) {
+            WebClientResponseException wex = (WebClientResponseException) ex;
+            log.error("Gemini HTTP error {} - {}", wex.getStatusCode(), wex.getResponseBodyAsString(), wex);
 
-        throw new AiServiceException("Không thể kết nối Gemini", false, true);
+            boolean quota = wex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS;
+            boolean temporary =
+                    wex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS ||
+                    wex.getStatusCode() == HttpStatus.REQUEST_TIMEOUT ||
+                    wex.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE ||
+                    wex.getStatusCode().is5xxServerError();
+
+            return new AiServiceException("Gemini API error: " + wex.getStatusCode(), quota, temporary);
+        }
+        log.error("Gemini invocation failed", ex);
+        return new AiServiceException("Không thể kết nối Gemini: " + ex.getMessage(), false, true);
     }
 }
 
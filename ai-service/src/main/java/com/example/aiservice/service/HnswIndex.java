@@ -0,0 +1,568 @@
+package com.example.aiservice.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+
+/**
+ * Đồ thị HNSW (Hierarchical Navigable Small World) cho tìm kiếm vector gần đúng trong process.
+ * Vector nằm off-heap (direct FloatBuffer) để không làm phình heap/GC khi có vài trăm nghìn vector,
+ * chia thành các segment tối đa SEGMENT_BYTES nên offset không tràn int và không phải chép lại khi index lớn.
+ * Số vector tối đa là maxVectors; vượt quá thì add ném IllegalStateException thay vì hỏng im lặng.
+ *
+ * Không tự đồng bộ: nhiều thread search cùng lúc được, nhưng add phải được gọi độc quyền
+ * (EmbeddedVectorStore dùng ReadWriteLock).
+ */
+final class HnswIndex {
+
+    enum Metric {
+        L2,
+        COSINE
+    }
+
+    private static final int FILE_MAGIC = 0x484E5357; // "HNSW"
+    private static final int FILE_VERSION = 1;
+    // 256MB mỗi segment (ở 768 chiều ~87 nghìn vector), luôn dưới giới hạn 2^31 byte của 1 ByteBuffer
+    private static final int SEGMENT_BYTES = 1 << 28;
+
+    private final int dimension;
+    private final Metric metric;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelFactor;
+    private final int maxVectors;
+    private final int nodesPerSegment;
+
+    // segments[node / nodesPerSegment] chứa vector của node; chỉ segment cuối có thể chưa đủ nodesPerSegment
+    private FloatBuffer[] segments = new FloatBuffer[0];
+    private int capacity;
+    private int count;
+    private int[] levels;
+    // links0[node] = [số neighbor, id...] ở tầng 0; linksUpper[node][l - 1] cho tầng l >= 1
+    private int[][] links0;
+    private int[][][] linksUpper;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    private final ThreadLocal<Visited> visited = ThreadLocal.withInitial(Visited::new);
+
+    HnswIndex(int dimension, Metric metric, int m, int efConstruction, int initialCapacity, int maxVectors) {
+        if (dimension <= 0 || dimension > SEGMENT_BYTES / Float.BYTES) {
+            throw new IllegalArgumentException("Số chiều không hợp lệ: " + dimension);
+        }
+        if (maxVectors <= 0) {
+            throw new IllegalArgumentException("maxVectors phải > 0: " + maxVectors);
+        }
+        this.dimension = dimension;
+        this.metric = metric;
+        this.m = Math.max(2, m);
+        this.maxM0 = this.m * 2;
+        this.efConstruction = Math.max(efConstruction, this.m);
+        this.levelFactor = 1.0 / Math.log(this.m);
+        this.maxVectors = maxVectors;
+        this.nodesPerSegment = SEGMENT_BYTES / (dimension * Float.BYTES);
+        this.capacity = Math.min(Math.max(16, initialCapacity), maxVectors);
+        reserveVectors(capacity);
+        this.levels = new int[capacity];
+        this.links0 = new int[capacity][];
+        this.linksUpper = new int[capacity][][];
+    }
+
+    int size() {
+        return count;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    Metric metric() {
+        return metric;
+    }
+
+    int maxVectors() {
+        return maxVectors;
+    }
+
+    /**
+     * Thêm vector, trả về id (= thứ tự thêm, bắt đầu từ 0).
+     * IllegalStateException nếu index đã có maxVectors vector.
+     */
+    int add(float[] vector) {
+        checkDimension(vector);
+        if (count >= maxVectors) {
+            throw new IllegalStateException("HNSW index đã đầy (" + maxVectors + " vector)");
+        }
+        float[] v = prepare(vector);
+        if (count == capacity) {
+            grow();
+        }
+        int node = count;
+        segment(node).put(offset(node), v);
+        int level = randomLevel();
+        levels[node] = level;
+        links0[node] = new int[maxM0 + 1];
+        if (level > 0) {
+            linksUpper[node] = new int[level][m + 1];
+        }
+        count++;
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return node;
+        }
+
+        int ep = entryPoint;
+        float epDist = distance(v, ep);
+        for (int l = maxLevel; l > level; l--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] links = links(ep, l);
+                for (int i = 1; i <= links[0]; i++) {
+                    float d = distance(v, links[i]);
+                    if (d < epDist) {
+                        epDist = d;
+                        ep = links[i];
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Candidate> candidates = searchLayer(v, ep, efConstruction, l);
+            int maxLinks = l == 0 ? maxM0 : m;
+            List<Candidate> selected = selectNeighbors(candidates, m);
+            int[] own = links(node, l);
+            for (Candidate c : selected) {
+                own[++own[0]] = c.node;
+            }
+            for (Candidate c : selected) {
+                connect(c.node, node, c.distance, l, maxLinks);
+            }
+            ep = candidates.get(0).node;
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+        return node;
+    }
+
+    /**
+     * k láng giềng gần nhất, tăng dần theo khoảng cách (L2: bình phương khoảng cách, COSINE: 1 - cos)
+     */
+    List<Candidate> search(float[] query, int k, int ef) {
+        return search(query, k, ef, null);
+    }
+
+    /**
+     * Như search nhưng chỉ trả các node thỏa accept; node không thỏa vẫn được dùng để duyệt đồ thị
+     * nên không bị mất kết quả như khi lọc sau khi search
+     */
+    List<Candidate> search(float[] query, int k, int ef, IntPredicate accept) {
+        checkDimension(query);
+        if (entryPoint < 0 || k <= 0) {
+            return Collections.emptyList();
+        }
+        float[] q = prepare(query);
+        int ep = entryPoint;
+        float epDist = distance(q, ep);
+        for (int l = maxLevel; l > 0; l--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] links = links(ep, l);
+                for (int i = 1; i <= links[0]; i++) {
+                    float d = distance(q, links[i]);
+                    if (d < epDist) {
+                        epDist = d;
+                        ep = links[i];
+                        changed = true;
+                    }
+                }
+            }
+        }
+        List<Candidate> found = accept == null
+                ? searchLayer(q, ep, Math.max(ef, k), 0)
+                : searchFiltered(q, ep, Math.max(ef, k), accept);
+        return found.size() > k ? new ArrayList<>(found.subList(0, k)) : found;
+    }
+
+    // Beam search tầng 0, chỉ giữ node thỏa accept trong tập kết quả
+    private List<Candidate> searchFiltered(float[] q, int ep, int ef, IntPredicate accept) {
+        Visited seen = visited.get();
+        seen.reset(count);
+        PriorityQueue<Candidate> frontier = new PriorityQueue<>((a, b) -> Float.compare(a.distance, b.distance));
+        PriorityQueue<Candidate> best = new PriorityQueue<>((a, b) -> Float.compare(b.distance, a.distance));
+        Candidate start = new Candidate(ep, distance(q, ep));
+        seen.mark(ep);
+        frontier.add(start);
+        if (accept.test(ep)) {
+            best.add(start);
+        }
+        float bound = best.isEmpty() ? Float.MAX_VALUE : start.distance;
+
+        while (!frontier.isEmpty()) {
+            Candidate current = frontier.poll();
+            if (current.distance > bound && best.size() >= ef) {
+                break;
+            }
+            int[] links = links(current.node, 0);
+            for (int i = 1; i <= links[0]; i++) {
+                int neighbor = links[i];
+                if (!seen.mark(neighbor)) {
+                    continue;
+                }
+                float d = distance(q, neighbor);
+                if (best.size() < ef || d < bound) {
+                    Candidate c = new Candidate(neighbor, d);
+                    frontier.add(c);
+                    if (accept.test(neighbor)) {
+                        best.add(c);
+                        if (best.size() > ef) {
+                            best.poll();
+                        }
+                        bound = best.peek().distance;
+                    }
+                }
+            }
+        }
+
+        List<Candidate> result = new ArrayList<>(best);
+        result.sort((a, b) -> Float.compare(a.distance, b.distance));
+        return result;
+    }
+
+    // Beam search trên 1 tầng, kết quả tăng dần theo khoảng cách
+    private List<Candidate> searchLayer(float[] q, int ep, int ef, int layer) {
+        Visited seen = visited.get();
+        seen.reset(count);
+        PriorityQueue<Candidate> frontier = new PriorityQueue<>((a, b) -> Float.compare(a.distance, b.distance));
+        PriorityQueue<Candidate> best = new PriorityQueue<>((a, b) -> Float.compare(b.distance, a.distance));
+        Candidate start = new Candidate(ep, distance(q, ep));
+        seen.mark(ep);
+        frontier.add(start);
+        best.add(start);
+
+        while (!frontier.isEmpty()) {
+            Candidate current = frontier.poll();
+            if (current.distance > best.peek().distance && best.size() >= ef) {
+                break;
+            }
+            int[] links = links(current.node, layer);
+            for (int i = 1; i <= links[0]; i++) {
+                int neighbor = links[i];
+                if (!seen.mark(neighbor)) {
+                    continue;
+                }
+                float d = distance(q, neighbor);
+                if (best.size() < ef || d < best.peek().distance) {
+                    Candidate c = new Candidate(neighbor, d);
+                    frontier.add(c);
+                    best.add(c);
+                    if (best.size() > ef) {
+                        best.poll();
+                    }
+                }
+            }
+        }
+
+        List<Candidate> result = new ArrayList<>(best);
+        result.sort((a, b) -> Float.compare(a.distance, b.distance));
+        return result;
+    }
+
+    // Heuristic chọn neighbor của HNSW: bỏ ứng viên gần 1 neighbor đã chọn hơn là gần điểm gốc
+    private List<Candidate> selectNeighbors(List<Candidate> sortedCandidates, int limit) {
+        List<Candidate> selected = new ArrayList<>(limit);
+        for (Candidate c : sortedCandidates) {
+            if (selected.size() >= limit) {
+                break;
+            }
+            boolean keep = true;
+            for (Candidate s : selected) {
+                if (distance(c.node, s.node) < c.distance) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected.add(c);
+            }
+        }
+        // Đồ thị quá thưa thì bổ sung ứng viên gần nhất còn lại
+        if (selected.size() < limit) {
+            for (Candidate c : sortedCandidates) {
+                if (selected.size() >= limit) {
+                    break;
+                }
+                if (!selected.contains(c)) {
+                    selected.add(c);
+                }
+            }
+        }
+        return selected;
+    }
+
+    // Thêm cạnh from -> to; nếu vượt giới hạn thì chọn lại tập neighbor của from
+    private void connect(int from, int to, float distance, int layer, int maxLinks) {
+        int[] links = links(from, layer);
+        if (links[0] < maxLinks) {
+            links[++links[0]] = to;
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<>(links[0] + 1);
+        candidates.add(new Candidate(to, distance));
+        for (int i = 1; i <= links[0]; i++) {
+            candidates.add(new Candidate(links[i], distance(from, links[i])));
+        }
+        candidates.sort((a, b) -> Float.compare(a.distance, b.distance));
+        List<Candidate> kept = selectNeighbors(candidates, maxLinks);
+        links[0] = kept.size();
+        for (int i = 0; i < kept.size(); i++) {
+            links[i + 1] = kept.get(i).node;
+        }
+    }
+
+    private int[] links(int node, int layer) {
+        return layer == 0 ? links0[node] : linksUpper[node][layer - 1];
+    }
+
+    private int randomLevel() {
+        double r = ThreadLocalRandom.current().nextDouble();
+        return (int) (-Math.log(Math.max(r, Double.MIN_VALUE)) * levelFactor);
+    }
+
+    private float distance(float[] q, int node) {
+        FloatBuffer vectors = segment(node);
+        int base = offset(node);
+        float sum = 0f;
+        if (metric == Metric.L2) {
+            for (int i = 0; i < dimension; i++) {
+                float diff = q[i] - vectors.get(base + i);
+                sum += diff * diff;
+            }
+            return sum;
+        }
+        for (int i = 0; i < dimension; i++) {
+            sum += q[i] * vectors.get(base + i);
+        }
+        return 1f - sum;
+    }
+
+    private float distance(int a, int b) {
+        FloatBuffer vectorsA = segment(a);
+        FloatBuffer vectorsB = segment(b);
+        int baseA = offset(a);
+        int baseB = offset(b);
+        float sum = 0f;
+        if (metric == Metric.L2) {
+            for (int i = 0; i < dimension; i++) {
+                float diff = vectorsA.get(baseA + i) - vectorsB.get(baseB + i);
+                sum += diff * diff;
+            }
+            return sum;
+        }
+        for (int i = 0; i < dimension; i++) {
+            sum += vectorsA.get(baseA + i) * vectorsB.get(baseB + i);
+        }
+        return 1f - sum;
+    }
+
+    private FloatBuffer segment(int node) {
+        return segments[node / nodesPerSegment];
+    }
+
+    // Offset (số float) của node trong segment, luôn < SEGMENT_BYTES / Float.BYTES
+    private int offset(int node) {
+        return (node % nodesPerSegment) * dimension;
+    }
+
+    // COSINE: chuẩn hóa về độ dài 1 để khoảng cách chỉ còn là 1 - tích vô hướng
+    private float[] prepare(float[] vector) {
+        if (metric != Metric.COSINE) {
+            return vector;
+        }
+        double norm = 0;
+        for (float f : vector) {
+            norm += f * f;
+        }
+        if (norm == 0) {
+            return vector;
+        }
+        float inv = (float) (1.0 / Math.sqrt(norm));
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = vector[i] * inv;
+        }
+        return normalized;
+    }
+
+    private void checkDimension(float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException(
+                    "Vector có " + vector.length + " chiều, index yêu cầu " + dimension + " chiều");
+        }
+    }
+
+    private void grow() {
+        int newCapacity = (int) Math.min((long) capacity * 2, maxVectors);
+        reserveVectors(newCapacity);
+        levels = Arrays.copyOf(levels, newCapacity);
+        links0 = Arrays.copyOf(links0, newCapacity);
+        linksUpper = Arrays.copyOf(linksUpper, newCapacity);
+        capacity = newCapacity;
+    }
+
+    // Đủ chỗ cho nodes vector: các segment trước đủ nodesPerSegment, chỉ segment cuối được cấp phát lại
+    private void reserveVectors(int nodes) {
+        int needed = (int) (((long) nodes + nodesPerSegment - 1) / nodesPerSegment);
+        if (needed > segments.length) {
+            segments = Arrays.copyOf(segments, needed);
+        }
+        for (int s = 0; s < needed; s++) {
+            int size = s < needed - 1 ? nodesPerSegment : nodes - s * nodesPerSegment;
+            FloatBuffer old = segments[s];
+            if (old != null && old.capacity() >= size * dimension) {
+                continue;
+            }
+            FloatBuffer grown = allocate(size);
+            if (old != null) {
+                FloatBuffer src = old.duplicate();
+                src.clear();
+                grown.put(src);
+                grown.clear();
+            }
+            segments[s] = grown;
+        }
+    }
+
+    // nodes <= nodesPerSegment nên số byte không vượt SEGMENT_BYTES
+    private FloatBuffer allocate(int nodes) {
+        return ByteBuffer.allocateDirect(nodes * dimension * Float.BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(dimension);
+        out.writeInt(metric.ordinal());
+        out.writeInt(m);
+        out.writeInt(efConstruction);
+        out.writeInt(count);
+        out.writeInt(entryPoint);
+        out.writeInt(maxLevel);
+        for (int node = 0; node < count; node++) {
+            out.writeInt(levels[node]);
+            FloatBuffer vectors = segment(node);
+            int base = offset(node);
+            for (int i = 0; i < dimension; i++) {
+                out.writeFloat(vectors.get(base + i));
+            }
+            for (int l = 0; l <= levels[node]; l++) {
+                int[] links = links(node, l);
+                out.writeInt(links[0]);
+                for (int i = 1; i <= links[0]; i++) {
+                    out.writeInt(links[i]);
+                }
+            }
+        }
+    }
+
+    static HnswIndex readFrom(DataInputStream in, int maxVectors) throws IOException {
+        if (in.readInt() != FILE_MAGIC) {
+            throw new IOException("Không phải file HNSW index");
+        }
+        int version = in.readInt();
+        if (version != FILE_VERSION) {
+            throw new IOException("Phiên bản file HNSW không hỗ trợ: " + version);
+        }
+        int dimension = in.readInt();
+        Metric metric = Metric.values()[in.readInt()];
+        int m = in.readInt();
+        int efConstruction = in.readInt();
+        int count = in.readInt();
+        if (count > maxVectors) {
+            throw new IOException("File HNSW có " + count + " vector, vượt giới hạn " + maxVectors);
+        }
+        HnswIndex index = new HnswIndex(dimension, metric, m, efConstruction, count, maxVectors);
+        index.entryPoint = in.readInt();
+        index.maxLevel = in.readInt();
+        float[] vector = new float[dimension];
+        for (int node = 0; node < count; node++) {
+            int level = in.readInt();
+            index.levels[node] = level;
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = in.readFloat();
+            }
+            index.segment(node).put(index.offset(node), vector);
+            index.links0[node] = new int[index.maxM0 + 1];
+            if (level > 0) {
+                index.linksUpper[node] = new int[level][index.m + 1];
+            }
+            for (int l = 0; l <= level; l++) {
+                int[] links = index.links(node, l);
+                links[0] = in.readInt();
+                for (int i = 1; i <= links[0]; i++) {
+                    links[i] = in.readInt();
+                }
+            }
+        }
+        index.count = count;
+        return index;
+    }
+
+    static final class Candidate {
+        final int node;
+        final float distance;
+
+        Candidate(int node, float distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+
+    // Đánh dấu node đã thăm bằng "tem" để không phải cấp phát/xóa mảng cho mỗi lần search
+    private static final class Visited {
+        private int[] marks = new int[0];
+        private int stamp;
+
+        void reset(int size) {
+            if (marks.length < size) {
+                marks = new int[Math.max(size, marks.length * 2)];
+                stamp = 0;
+            }
+            stamp++;
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                stamp = 1;
+            }
+        }
+
+        // true nếu lần đầu thăm
+        boolean mark(int node) {
+            if (marks[node] == stamp) {
+                return false;
+            }
+            marks[node] = stamp;
+            return true;
+        }
+    }
+}
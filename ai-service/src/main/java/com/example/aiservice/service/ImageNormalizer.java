@@ -0,0 +1,377 @@
+package com.example.aiservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chuẩn hóa ảnh trước khi gửi Gemini vision: thu nhỏ về cạnh dài tối đa ai.ocr.image.max-edge,
+ * chuyển xám cho ảnh phiếu, nén JPEG dưới ai.ocr.image.max-bytes và mã hóa Base64 ngay khi ghi.
+ * Ảnh JPEG có EXIF Orientation được xoay đúng chiều trước khi thu nhỏ (ảnh ghi lại không còn EXIF).
+ * Ảnh không giải mã được (định dạng ImageIO không hỗ trợ) được gửi nguyên bản như trước.
+ */
+@Component
+@Slf4j
+public class ImageNormalizer {
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int EXIF_ORIENTATION_TAG = 0x0112;
+
+    @Value("${ai.ocr.image.max-edge:2048}")
+    private int maxEdge;
+
+    @Value("${ai.ocr.image.max-bytes:1500000}")
+    private int maxBytes;
+
+    @Value("${ai.ocr.image.max-download-bytes:20971520}")
+    private int maxDownloadBytes;
+
+    @Value("${ai.ocr.image.jpeg-quality:0.85}")
+    private float jpegQuality;
+
+    @Value("${ai.ocr.image.download-timeout-ms:30000}")
+    private long downloadTimeoutMs;
+
+    // Dùng chung 1 WebClient (connection pool reactor-netty) thay vì WebClient.create() cho mỗi ảnh
+    private final WebClient webClient = WebClient.builder().build();
+
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong passthrough = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+
+    /**
+     * Tải ảnh từ URL (giới hạn ai.ocr.image.max-download-bytes) và trả về Base64 đã chuẩn hóa
+     */
+    public String fromUrl(String url, boolean grayscale) throws IOException {
+        long start = System.currentTimeMillis();
+        // Ghép các chunk thành 1 DataBuffer (không copy sang byte[]), vượt giới hạn thì hủy tải ngay
+        DataBuffer buffer = DataBufferUtils.join(
+                        webClient.get().uri(url).retrieve().bodyToFlux(DataBuffer.class), maxDownloadBytes)
+                .block(Duration.ofMillis(downloadTimeoutMs));
+        if (buffer == null) {
+            throw new IOException("Ảnh tải về rỗng: " + url);
+        }
+        try {
+            int size = buffer.readableByteCount();
+            int position = buffer.readPosition();
+            String normalized = null;
+            try (InputStream in = buffer.asInputStream()) {
+                normalized = normalize(in, size, grayscale);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Cannot normalize image from {}, sending original: {}", url, e.getMessage());
+            }
+            if (normalized == null) {
+                buffer.readPosition(position);
+                try (InputStream in = buffer.asInputStream()) {
+                    normalized = encodeOriginal(in, size);
+                }
+            }
+            record(size, normalized, start);
+            return normalized;
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    /**
+     * Chuẩn hóa ảnh Base64 do client gửi lên (chấp nhận cả dạng data URL)
+     */
+    public String fromBase64(String base64, boolean grayscale) {
+        long start = System.currentTimeMillis();
+        if (base64.contains(",")) {
+            base64 = base64.substring(base64.indexOf(",") + 1);
+        }
+        int size = base64.length() / 4 * 3;
+        String normalized = null;
+        try (InputStream in = Base64.getMimeDecoder()
+                .wrap(new ByteArrayInputStream(base64.getBytes(StandardCharsets.ISO_8859_1)))) {
+            normalized = normalize(in, size, grayscale);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot normalize uploaded image, sending original: {}", e.getMessage());
+        }
+        if (normalized == null) {
+            normalized = base64;
+        }
+        record(size, normalized, start);
+        return normalized;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long count = images.get();
+        stats.put("images", count);
+        stats.put("passthrough", passthrough.get());
+        stats.put("bytesIn", bytesIn.get());
+        stats.put("bytesOut", bytesOut.get());
+        stats.put("sizeRatio", bytesIn.get() > 0 ? (double) bytesOut.get() / bytesIn.get() : 1.0);
+        stats.put("avgMillis", count > 0 ? (double) totalMillis.get() / count : 0.0);
+        return stats;
+    }
+
+    // null = giữ ảnh gốc (không giải mã được, hoặc đã nhỏ sẵn, đúng chiều và không cần chuyển xám)
+    private String normalize(InputStream source, int originalBytes, boolean grayscale) throws IOException {
+        Decoded decoded = decode(source);
+        if (decoded == null) {
+            return null;
+        }
+        BufferedImage image = applyOrientation(decoded.image, decoded.orientation);
+        int longest = Math.max(image.getWidth(), image.getHeight());
+        if (!grayscale && decoded.orientation == 1 && longest <= maxEdge && originalBytes <= maxBytes) {
+            passthrough.incrementAndGet();
+            return null;
+        }
+
+        BufferedImage current = scale(image, Math.min(1.0, (double) maxEdge / longest), grayscale);
+        float quality = jpegQuality;
+        // Vượt max-bytes: giảm chất lượng trước, sau đó mới thu nhỏ tiếp
+        for (int attempt = 0; ; attempt++) {
+            String encoded = encodeJpeg(current, quality);
+            if ((long) encoded.length() / 4 * 3 <= maxBytes || attempt >= 5) {
+                return encoded;
+            }
+            if (quality > 0.6f) {
+                quality -= 0.15f;
+            } else {
+                current = scale(current, 0.75, grayscale);
+            }
+        }
+    }
+
+    // Đọc header trước để giải mã bỏ bớt điểm ảnh (subsampling) với ảnh lớn hơn 2 lần max-edge,
+    // tránh giữ nguyên bitmap 12MP trong heap
+    private Decoded decode(InputStream source) throws IOException {
+        try (ImageInputStream in = new MemoryCacheImageInputStream(source)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                // Cần đọc metadata để lấy EXIF Orientation
+                reader.setInput(in, true, false);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = longest / (maxEdge * 2);
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                int orientation = readOrientation(reader);
+                return new Decoded(reader.read(0, param), orientation);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // EXIF Orientation (1..8) từ segment APP1 của JPEG; không có hoặc không đọc được thì coi như 1
+    private static int readOrientation(ImageReader reader) {
+        try {
+            IIOMetadata metadata = reader.getImageMetadata(0);
+            if (metadata == null || !JPEG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+                return 1;
+            }
+            Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+            for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (!"markerSequence".equals(node.getNodeName())) {
+                    continue;
+                }
+                for (Node marker = node.getFirstChild(); marker != null; marker = marker.getNextSibling()) {
+                    if (marker instanceof IIOMetadataNode && "unknown".equals(marker.getNodeName())
+                            && "225".equals(((IIOMetadataNode) marker).getAttribute("MarkerTag"))) {
+                        Object data = ((IIOMetadataNode) marker).getUserObject();
+                        if (data instanceof byte[]) {
+                            int orientation = exifOrientation((byte[]) data);
+                            if (orientation != 0) {
+                                return orientation;
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Cannot read image orientation: {}", e.getMessage());
+        }
+        return 1;
+    }
+
+    // Tìm tag 0x0112 trong IFD0 của khối "Exif\0\0" + TIFF; 0 = không phải EXIF hoặc không có tag
+    private static int exifOrientation(byte[] app1) {
+        int tiff = EXIF_HEADER.length;
+        if (app1.length < tiff + 8) {
+            return 0;
+        }
+        for (int i = 0; i < tiff; i++) {
+            if (app1[i] != EXIF_HEADER[i]) {
+                return 0;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap(app1);
+        if (app1[tiff] == 'I' && app1[tiff + 1] == 'I') {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (app1[tiff] != 'M' || app1[tiff + 1] != 'M') {
+            return 0;
+        }
+        int ifd = tiff + buf.getInt(tiff + 4);
+        if (ifd < tiff || ifd + 2 > app1.length) {
+            return 0;
+        }
+        int entries = buf.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > app1.length) {
+                break;
+            }
+            if ((buf.getShort(entry) & 0xFFFF) == EXIF_ORIENTATION_TAG) {
+                int orientation = buf.getShort(entry + 8) & 0xFFFF;
+                return orientation >= 1 && orientation <= 8 ? orientation : 0;
+            }
+        }
+        return 0;
+    }
+
+    // Xoay/lật điểm ảnh theo Orientation để ảnh chụp dọc trên điện thoại không tới Gemini bị nằm ngang
+    private static BufferedImage applyOrientation(BufferedImage image, int orientation) {
+        if (orientation <= 1 || orientation > 8) {
+            return image;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        AffineTransform t;
+        switch (orientation) {
+            case 2: // lật ngang
+                t = new AffineTransform(-1, 0, 0, 1, w, 0);
+                break;
+            case 3: // xoay 180
+                t = new AffineTransform(-1, 0, 0, -1, w, h);
+                break;
+            case 4: // lật dọc
+                t = new AffineTransform(1, 0, 0, -1, 0, h);
+                break;
+            case 5: // chuyển vị
+                t = new AffineTransform(0, 1, 1, 0, 0, 0);
+                break;
+            case 6: // xoay 90 theo chiều kim đồng hồ
+                t = new AffineTransform(0, 1, -1, 0, h, 0);
+                break;
+            case 7: // chuyển vị ngược
+                t = new AffineTransform(0, -1, -1, 0, h, w);
+                break;
+            default: // 8: xoay 90 ngược chiều kim đồng hồ
+                t = new AffineTransform(0, -1, 1, 0, 0, w);
+                break;
+        }
+        boolean swap = orientation >= 5;
+        int type = image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB : image.getType();
+        BufferedImage target = new BufferedImage(swap ? h : w, swap ? w : h, type);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.drawImage(image, t, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    private static BufferedImage scale(BufferedImage image, double ratio, boolean grayscale) {
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        BufferedImage target = new BufferedImage(width, height,
+                grayscale ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            // Nền trắng cho ảnh có kênh alpha (PNG)
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    // JPEG được ghi thẳng qua bộ mã hóa Base64, không giữ thêm bản byte[] của ảnh nén
+    private static String encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 4);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (OutputStream base64 = Base64.getEncoder().wrap(text);
+             ImageOutputStream out = new MemoryCacheImageOutputStream(base64)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return text.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String encodeOriginal(InputStream in, int size) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream(size / 3 * 4 + 4);
+        try (OutputStream base64 = Base64.getEncoder().wrap(text)) {
+            in.transferTo(base64);
+        }
+        return text.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static final class Decoded {
+        private final BufferedImage image;
+        private final int orientation;
+
+        private Decoded(BufferedImage image, int orientation) {
+            this.image = image;
+            this.orientation = orientation;
+        }
+    }
+
+    private void record(int originalBytes, String encoded, long start) {
+        long outBytes = (long) encoded.length() / 4 * 3;
+        long elapsed = System.currentTimeMillis() - start;
+        images.incrementAndGet();
+        bytesIn.addAndGet(originalBytes);
+        bytesOut.addAndGet(outBytes);
+        totalMillis.addAndGet(elapsed);
+        log.info("Normalized image {} -> {} bytes in {} ms", originalBytes, outBytes, elapsed);
+    }
+}
@@ -6,6 +6,7 @@ import io.milvus.param.ConnectParam;
 import io.milvus.param.R;
 import io.milvus.param.collection.*;
 import io.milvus.param.dml.InsertParam;
+import io.milvus.param.index.CreateIndexParam;
 import io.milvus.param.dml.SearchParam;
 import io.milvus.param.IndexType;
 import io.milvus.param.MetricType;
@@ -18,11 +19,24 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @Service
 @Slf4j
-public class MilvusService {
+public class MilvusService implements VectorStore {
+
+    // Giới hạn của các field trong collection (VarChar tính theo byte UTF-8)
+    static final int EMBEDDING_DIMENSION = 768;
+    static final int RECEIPT_TYPE_MAX_BYTES = 50;
+    static final int NAME_MAX_BYTES = 255;
+    static final int METADATA_MAX_BYTES = 2000;
 
     @Value("${milvus.host:localhost}")
     private String milvusHost;
@@ -33,9 +47,60 @@ public class MilvusService {
     @Value("${milvus.collection.name:receipt_embeddings}")
     private String collectionName;
 
+    @Value("${milvus.index.type:IVF_FLAT}")
+    private IndexType indexType;
+
+    @Value("${milvus.index.nlist:1024}")
+    private int indexNlist;
+
+    @Value("${milvus.index.m:16}")
+    private int indexM;
+
+    @Value("${milvus.index.ef-construction:200}")
+    private int indexEfConstruction;
+
+    @Value("${milvus.search.nprobe:16}")
+    private int searchNprobe;
+
+    @Value("${milvus.search.ef:64}")
+    private int searchEf;
+
+    @Value("${milvus.write-behind.batch-size:256}")
+    private int batchSize;
+
+    @Value("${milvus.write-behind.flush-interval-ms:1000}")
+    private long flushIntervalMs;
+
+    @Value("${milvus.write-behind.capacity:10000}")
+    private int bufferCapacity;
+
+    @Value("${milvus.write-behind.offer-timeout-ms:2000}")
+    private long offerTimeoutMs;
+
+    @Value("${milvus.write-behind.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${milvus.write-behind.shutdown-timeout-ms:15000}")
+    private long shutdownTimeoutMs;
+
     private MilvusServiceClient milvusClient;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    // Write-behind: saveEmbedding chỉ đưa dòng vào buffer, thread nền insert theo lô
+    // SHUTDOWN chỉ dùng để đánh thức thread nền khi tắt (không interrupt để không hủy lệnh insert đang chạy)
+    private static final PendingRow SHUTDOWN = new PendingRow(null, null, null, null, null);
+    private BlockingQueue<PendingRow> writeBuffer = new LinkedBlockingQueue<>();
+    private Thread flusher;
+    private volatile boolean running;
+    // saveEmbedding giữ read lock khi kiểm tra running và đưa vào buffer; cleanup lấy write lock để
+    // sau khi running = false không còn dòng nào vào buffer sau lần xả cuối
+    private final ReadWriteLock intakeLock = new ReentrantReadWriteLock();
+    private final AtomicLong enqueuedRows = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong failedRows = new AtomicLong();
+    private final AtomicLong droppedRows = new AtomicLong();
+
     @PostConstruct
     public void init() {
         try {
@@ -47,6 +112,13 @@ public class MilvusService {
 
             // Tạo collection nếu chưa tồn tại
             createCollectionIfNotExists();
+            ensureIndexAndLoad();
+
+            writeBuffer = new LinkedBlockingQueue<>(bufferCapacity);
+            running = true;
+            flusher = new Thread(this::flushLoop, "milvus-write-behind");
+            flusher.setDaemon(true);
+            flusher.start();
 
             log.info("Milvus connected successfully to {}:{}", milvusHost, milvusPort);
         } catch (Exception e) {
@@ -57,11 +129,36 @@ public class MilvusService {
 
     @PreDestroy
     public void cleanup() {
+        // Dừng nhận dòng mới, chờ thread nền ghi xong rồi tự xả phần còn lại trước khi đóng kết nối
+        if (flusher != null) {
+            intakeLock.writeLock().lock();
+            try {
+                running = false;
+            } finally {
+                intakeLock.writeLock().unlock();
+            }
+            writeBuffer.offer(SHUTDOWN);
+            try {
+                flusher.join(shutdownTimeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (flusher.isAlive()) {
+                log.warn("Milvus write-behind thread still busy after {} ms, flushing remaining rows inline",
+                        shutdownTimeoutMs);
+            }
+            flushRemaining();
+        }
         if (milvusClient != null) {
             milvusClient.close();
         }
     }
 
+    @Override
+    public boolean isAvailable() {
+        return milvusClient != null;
+    }
+
     private void createCollectionIfNotExists() {
         try {
             // Kiểm tra collection đã tồn tại chưa
@@ -86,27 +183,27 @@ public class MilvusService {
                     FieldType.newBuilder()
                             .withName("receipt_type")
                             .withDataType(DataType.VarChar)
-                            .withMaxLength(50)
+                            .withMaxLength(RECEIPT_TYPE_MAX_BYTES)
                             .build(),
                     FieldType.newBuilder()
                             .withName("supplier_name")
                             .withDataType(DataType.VarChar)
-                            .withMaxLength(255)
+                            .withMaxLength(NAME_MAX_BYTES)
                             .build(),
                     FieldType.newBuilder()
                             .withName("customer_name")
                             .withDataType(DataType.VarChar)
-                            .withMaxLength(255)
+                            .withMaxLength(NAME_MAX_BYTES)
                             .build(),
                     FieldType.newBuilder()
                             .withName("embedding")
                             .withDataType(DataType.FloatVector)
-                            .withDimension(768) // Dimension của embedding (có thể thay đổi)
+                            .withDimension(EMBEDDING_DIMENSION)
                             .build(),
                     FieldType.newBuilder()
                             .withName("metadata")
                             .withDataType(DataType.VarChar)
-                            .withMaxLength(2000)
+                            .withMaxLength(METADATA_MAX_BYTES)
                             .build());
 
             CreateCollectionParam createParam = CreateCollectionParam.newBuilder()
@@ -126,9 +223,49 @@ public class MilvusService {
         }
     }
 
+    // Tạo index cho field embedding (bỏ qua nếu đã có) rồi load collection để search được
+    private void ensureIndexAndLoad() {
+        try {
+            String extraParam;
+            if (indexType == IndexType.HNSW) {
+                extraParam = "{\"M\":" + indexM + ",\"efConstruction\":" + indexEfConstruction + "}";
+            } else if (indexType == IndexType.FLAT) {
+                extraParam = "{}";
+            } else {
+                extraParam = "{\"nlist\":" + indexNlist + "}";
+            }
+            R<?> indexR = milvusClient.createIndex(CreateIndexParam.newBuilder()
+                    .withCollectionName(collectionName)
+                    .withFieldName("embedding")
+                    .withIndexType(indexType)
+                    .withMetricType(MetricType.L2)
+                    .withExtraParam(extraParam)
+                    .withSyncMode(Boolean.FALSE)
+                    .build());
+            if (indexR.getStatus() == R.Status.Success.getCode()) {
+                log.info("Index {} {} created on {}.embedding", indexType, extraParam, collectionName);
+            } else {
+                // Thường là do index đã tồn tại
+                log.info("Index not created on {}.embedding: {}", collectionName, indexR.getMessage());
+            }
+
+            R<?> loadR = milvusClient.loadCollection(LoadCollectionParam.newBuilder()
+                    .withCollectionName(collectionName)
+                    .build());
+            if (loadR.getStatus() != R.Status.Success.getCode()) {
+                log.error("Failed to load collection {}: {}", collectionName, loadR.getMessage());
+            }
+        } catch (Exception e) {
+            log.error("Error preparing index for collection {}", collectionName, e);
+        }
+    }
+
     /**
-     * Lưu embedding vào Milvus
+     * Lưu embedding vào Milvus: chỉ đưa vào buffer, thread nền sẽ insert theo lô.
+     * Khi buffer đầy, caller chờ tối đa milvus.write-behind.offer-timeout-ms (backpressure) rồi mới bỏ bản ghi.
+     * Dòng được đưa về đúng giới hạn field trước khi vào buffer, để 1 dòng sai không làm hỏng cả lô.
      */
+    @Override
     public void saveEmbedding(String receiptType, String supplierName, String customerName,
             List<Float> embedding, Map<String, Object> metadata) {
         if (milvusClient == null) {
@@ -136,84 +273,360 @@ public class MilvusService {
             return;
         }
 
+        if (embedding == null || embedding.size() != EMBEDDING_DIMENSION) {
+            droppedRows.incrementAndGet();
+            log.error("Embedding has {} dimensions, expected {}; not saving to Milvus",
+                    embedding != null ? embedding.size() : 0, EMBEDDING_DIMENSION);
+            return;
+        }
+        String metadataJson = fitMetadata(metadata);
+        if (metadataJson == null) {
+            droppedRows.incrementAndGet();
+            log.error("Receipt metadata exceeds {} bytes even without products; not saving to Milvus",
+                    METADATA_MAX_BYTES);
+            return;
+        }
+
+        PendingRow row = new PendingRow(truncateUtf8(receiptType, RECEIPT_TYPE_MAX_BYTES),
+                truncateUtf8(VectorSearchFilter.normalizeSupplier(supplierName), NAME_MAX_BYTES),
+                truncateUtf8(customerName, NAME_MAX_BYTES),
+                embedding, metadataJson);
+        intakeLock.readLock().lock();
         try {
-            List<Object> receiptTypes = Collections.singletonList(receiptType);
-            List<Object> supplierNames = Collections.singletonList(supplierName != null ? supplierName : "");
-            List<Object> customerNames = Collections.singletonList(customerName != null ? customerName : "");
-            List<List<Float>> embeddings = Collections.singletonList(embedding);
-
-            // Convert metadata to JSON string
-            String metadataJson = "{}";
-            if (metadata != null) {
-                try {
-                    metadataJson = objectMapper.writeValueAsString(metadata);
-                } catch (Exception e) {
-                    log.warn("Failed to serialize metadata to JSON, using toString", e);
-                    metadataJson = metadata.toString();
+            if (!running) {
+                droppedRows.incrementAndGet();
+                log.error("Milvus service is shutting down, rejecting embedding for {}", receiptType);
+                return;
+            }
+            if (writeBuffer.offer(row, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                enqueuedRows.incrementAndGet();
+            } else {
+                droppedRows.incrementAndGet();
+                log.error("Milvus write buffer full ({} rows), dropping embedding", writeBuffer.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedRows.incrementAndGet();
+            log.warn("Interrupted while queueing embedding for Milvus");
+        } finally {
+            intakeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * JSON metadata vừa VarChar(METADATA_MAX_BYTES): quá dài thì giữ số sản phẩm đầu nhiều nhất còn vừa
+     * (JSON vẫn hợp lệ, đánh dấu productsTruncated); không vừa cả khi bỏ hết sản phẩm thì trả null
+     */
+    String fitMetadata(Map<String, Object> metadata) {
+        if (metadata == null) {
+            return "{}";
+        }
+        String json = toJson(metadata);
+        if (utf8Length(json) <= METADATA_MAX_BYTES) {
+            return json;
+        }
+        Object products = metadata.get("products");
+        if (!(products instanceof List)) {
+            return null;
+        }
+        List<?> all = (List<?>) products;
+        Map<String, Object> shrunk = new LinkedHashMap<>(metadata);
+        shrunk.put("productsTruncated", true);
+        String best = null;
+        int lo = 0;
+        int hi = all.size() - 1;
+        while (lo <= hi) {
+            int keep = (lo + hi) >>> 1;
+            shrunk.put("products", all.subList(0, keep));
+            String candidate = toJson(shrunk);
+            if (utf8Length(candidate) <= METADATA_MAX_BYTES) {
+                best = candidate;
+                lo = keep + 1;
+            } else {
+                hi = keep - 1;
+            }
+        }
+        if (best != null) {
+            log.warn("Receipt metadata over {} bytes, keeping the first products only", METADATA_MAX_BYTES);
+        }
+        return best;
+    }
+
+    private String toJson(Map<String, Object> metadata) {
+        try {
+            return objectMapper.writeValueAsString(metadata);
+        } catch (Exception e) {
+            log.warn("Failed to serialize metadata to JSON, using toString", e);
+            return metadata.toString();
+        }
+    }
+
+    private static int utf8Length(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Cắt theo byte UTF-8 mà không cắt đôi ký tự
+    static String truncateUtf8(String value, int maxBytes) {
+        if (value == null) {
+            return "";
+        }
+        int bytes = 0;
+        for (int i = 0; i < value.length(); ) {
+            int cp = value.codePointAt(i);
+            int size = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (bytes + size > maxBytes) {
+                return value.substring(0, i);
+            }
+            bytes += size;
+            i += Character.charCount(cp);
+        }
+        return value;
+    }
+
+    public Map<String, Object> writeStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pending", writeBuffer.size());
+        stats.put("enqueued", enqueuedRows.get());
+        stats.put("flushedRows", flushedRows.get());
+        stats.put("flushedBatches", flushedBatches.get());
+        stats.put("failedRows", failedRows.get());
+        stats.put("droppedRows", droppedRows.get());
+        return stats;
+    }
+
+    // Gom tối đa batchSize dòng, hoặc những gì có được sau flushIntervalMs kể từ dòng đầu tiên.
+    // Thoát khi gặp SHUTDOWN, hoặc khi đã tắt và buffer rỗng (poll có timeout nên không treo)
+    private void flushLoop() {
+        List<PendingRow> batch = new ArrayList<>(batchSize);
+        boolean stop = false;
+        while (!stop && (running || !writeBuffer.isEmpty())) {
+            try {
+                PendingRow first = writeBuffer.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
                 }
+                if (first == SHUTDOWN) {
+                    stop = true;
+                } else {
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + flushIntervalMs;
+                    while (batch.size() < batchSize) {
+                        int before = batch.size();
+                        writeBuffer.drainTo(batch, batchSize - batch.size());
+                        if (batch.size() > before) {
+                            // SHUTDOWN luôn là phần tử cuối cùng được đưa vào buffer
+                            if (batch.get(batch.size() - 1) == SHUTDOWN) {
+                                batch.remove(batch.size() - 1);
+                                stop = true;
+                                break;
+                            }
+                            continue;
+                        }
+                        if (!running) {
+                            break;
+                        }
+                        long remaining = deadline - System.currentTimeMillis();
+                        PendingRow next = remaining > 0
+                                ? writeBuffer.poll(remaining, TimeUnit.MILLISECONDS)
+                                : null;
+                        if (next == null) {
+                            break;
+                        }
+                        if (next == SHUTDOWN) {
+                            stop = true;
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop = true;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            try {
+                insertWithRetry(batch);
+            } catch (Exception e) {
+                log.error("Unexpected error in Milvus write-behind loop", e);
+            } finally {
+                batch.clear();
             }
-            List<Object> metadatas = Collections.singletonList(metadataJson);
+        }
+    }
 
-            List<InsertParam.Field> fields = Arrays.asList(
-                    new InsertParam.Field("receipt_type", receiptTypes),
-                    new InsertParam.Field("supplier_name", supplierNames),
-                    new InsertParam.Field("customer_name", customerNames),
-                    new InsertParam.Field("embedding", embeddings),
-                    new InsertParam.Field("metadata", metadatas));
+    // Gọi từ cleanup sau khi đã dừng nhận dòng mới: ghi đồng bộ những gì còn trong buffer
+    private void flushRemaining() {
+        List<PendingRow> batch = new ArrayList<>(batchSize);
+        while (true) {
+            writeBuffer.drainTo(batch, batchSize);
+            batch.removeIf(row -> row == SHUTDOWN);
+            if (batch.isEmpty()) {
+                if (writeBuffer.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                insertWithRetry(batch);
+            } catch (Exception e) {
+                log.error("Failed to flush {} embeddings to Milvus on shutdown", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
 
-            InsertParam insertParam = InsertParam.newBuilder()
-                    .withCollectionName(collectionName)
-                    .withFields(fields)
-                    .build();
+    // At-least-once: thử lại cả lô với backoff; vẫn lỗi thì chia đôi lô để 1 dòng bị Milvus từ chối
+    // không kéo theo cả lô, dòng lỗi riêng lẻ được ghi log và bỏ
+    private void insertWithRetry(List<PendingRow> batch) {
+        if (tryInsert(batch, maxAttempts)) {
+            return;
+        }
+        if (batch.size() == 1) {
+            failedRows.incrementAndGet();
+            log.error("Giving up on 1 embedding after {} attempts", maxAttempts);
+            return;
+        }
+        log.warn("Batch of {} embeddings failed after {} attempts, splitting to isolate rejected rows",
+                batch.size(), maxAttempts);
+        insertSplit(batch);
+    }
 
-            R<?> insertR = milvusClient.insert(insertParam);
-            if (insertR.getStatus() == R.Status.Success.getCode()) {
-                log.info("Embedding saved successfully");
-            } else {
-                log.error("Failed to save embedding: {}", insertR.getMessage());
+    // Mỗi nửa chỉ thử 1 lần (không backoff): lỗi tạm thời đã được thử lại ở cấp cả lô
+    private void insertSplit(List<PendingRow> rows) {
+        if (tryInsert(rows, 1)) {
+            return;
+        }
+        if (rows.size() == 1) {
+            failedRows.incrementAndGet();
+            log.error("Milvus rejected embedding ({}, metadata {} bytes)", rows.get(0).receiptType,
+                    utf8Length(rows.get(0).metadataJson));
+            return;
+        }
+        int mid = rows.size() / 2;
+        insertSplit(rows.subList(0, mid));
+        insertSplit(rows.subList(mid, rows.size()));
+    }
+
+    private boolean tryInsert(List<PendingRow> batch, int attempts) {
+        InsertParam insertParam = buildInsertParam(batch);
+        long backoffMs = 500;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                R<?> insertR = milvusClient.insert(insertParam);
+                if (insertR.getStatus() == R.Status.Success.getCode()) {
+                    flushedRows.addAndGet(batch.size());
+                    flushedBatches.incrementAndGet();
+                    log.info("Saved {} embeddings to Milvus", batch.size());
+                    return true;
+                }
+                log.warn("Failed to save {} embeddings (attempt {}/{}): {}", batch.size(), attempt, attempts,
+                        insertR.getMessage());
+            } catch (Exception e) {
+                log.warn("Error saving {} embeddings to Milvus (attempt {}/{})", batch.size(), attempt, attempts, e);
+            }
+            if (attempt < attempts) {
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException e) {
+                    // Không bỏ lô vì bị interrupt: thử lại ngay, giữ lại cờ interrupt cho caller
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted during Milvus retry backoff, retrying without delay");
+                }
+                backoffMs = Math.min(backoffMs * 2, 10_000);
             }
-        } catch (Exception e) {
-            log.error("Error saving embedding to Milvus", e);
         }
+        return false;
+    }
+
+    // Dữ liệu theo cột: mỗi field là 1 list có batch.size() phần tử
+    private InsertParam buildInsertParam(List<PendingRow> batch) {
+        List<Object> receiptTypes = new ArrayList<>(batch.size());
+        List<Object> supplierNames = new ArrayList<>(batch.size());
+        List<Object> customerNames = new ArrayList<>(batch.size());
+        List<List<Float>> embeddings = new ArrayList<>(batch.size());
+        List<Object> metadatas = new ArrayList<>(batch.size());
+        for (PendingRow row : batch) {
+            receiptTypes.add(row.receiptType);
+            supplierNames.add(row.supplierName);
+            customerNames.add(row.customerName);
+            embeddings.add(row.embedding);
+            metadatas.add(row.metadataJson);
+        }
+
+        List<InsertParam.Field> fields = Arrays.asList(
+                new InsertParam.Field("receipt_type", receiptTypes),
+                new InsertParam.Field("supplier_name", supplierNames),
+                new InsertParam.Field("customer_name", customerNames),
+                new InsertParam.Field("embedding", embeddings),
+                new InsertParam.Field("metadata", metadatas));
+
+        return InsertParam.newBuilder()
+                .withCollectionName(collectionName)
+                .withFields(fields)
+                .build();
+    }
+
+    /**
+     * Tìm kiếm tương tự dựa trên embedding, lọc theo receipt_type/supplier_name ngay trong Milvus
+     */
+    @Override
+    public List<Map<String, Object>> searchSimilar(List<Float> queryEmbedding, int topK, VectorSearchFilter filter) {
+        return searchSimilarBatch(Collections.singletonList(queryEmbedding), topK, filter).get(0);
     }
 
     /**
-     * Tìm kiếm tương tự dựa trên embedding
+     * Tìm kiếm nhiều vector trong 1 request; phần tử i ứng với queryEmbeddings.get(i)
      */
-    public List<Map<String, Object>> searchSimilar(List<Float> queryEmbedding, int topK) {
+    @Override
+    public List<List<Map<String, Object>>> searchSimilarBatch(List<List<Float>> queryEmbeddings, int topK,
+            VectorSearchFilter filter) {
+        List<List<Map<String, Object>>> empty = new ArrayList<>(queryEmbeddings.size());
+        for (int q = 0; q < queryEmbeddings.size(); q++) {
+            empty.add(Collections.emptyList());
+        }
         if (milvusClient == null) {
             log.warn("Milvus client not available, returning empty results");
-            return Collections.emptyList();
+            return empty;
+        }
+        if (queryEmbeddings.isEmpty()) {
+            return empty;
         }
 
         try {
             List<String> outputFields = Arrays.asList("receipt_type", "supplier_name", "customer_name", "metadata");
 
-            SearchParam searchParam = SearchParam.newBuilder()
+            SearchParam.Builder builder = SearchParam.newBuilder()
                     .withCollectionName(collectionName)
                     .withMetricType(MetricType.L2)
                     .withOutFields(outputFields)
                     .withTopK(topK)
-                    .withVectors(Collections.singletonList(queryEmbedding))
+                    .withVectors(queryEmbeddings)
                     .withVectorFieldName("embedding")
-                    .build();
+                    .withParams(searchParams());
+            String expr = toExpr(filter);
+            if (expr != null) {
+                builder.withExpr(expr);
+            }
 
-            R<?> searchR = milvusClient.search(searchParam);
+            R<?> searchR = milvusClient.search(builder.build());
             if (searchR.getStatus() != R.Status.Success.getCode()) {
                 log.error("Search failed: {}", searchR.getMessage());
-                return Collections.emptyList();
+                return empty;
             }
 
             // Get search results - SearchResultsWrapper constructor takes SearchResults
             Object searchData = searchR.getData();
             if (searchData == null) {
-                return Collections.emptyList();
+                return empty;
             }
 
             // Cast to SearchResults and create wrapper
             if (!(searchData instanceof SearchResults)) {
                 log.error("Unexpected search result type: {}", searchData.getClass().getName());
-                return Collections.emptyList();
+                return empty;
             }
 
             try {
@@ -222,38 +635,94 @@ public class MilvusService {
                 // Based on SDK docs, it should accept the results from SearchResults
                 SearchResultsWrapper wrapper = new SearchResultsWrapper(searchResults.getResults());
 
-                List<Map<String, Object>> resultList = new ArrayList<>();
-
-                for (int i = 0; i < wrapper.getIDScore(0).size(); i++) {
-                    Map<String, Object> result = new HashMap<>();
-                    result.put("id", wrapper.getIDScore(0).get(i).getLongID());
-                    result.put("score", wrapper.getIDScore(0).get(i).getScore());
-
-                    // Lấy các field khác
-                    if (wrapper.getFieldData("receipt_type", 0) != null) {
-                        result.put("receipt_type", wrapper.getFieldData("receipt_type", 0).get(i));
-                    }
-                    if (wrapper.getFieldData("supplier_name", 0) != null) {
-                        result.put("supplier_name", wrapper.getFieldData("supplier_name", 0).get(i));
+                List<List<Map<String, Object>>> allResults = new ArrayList<>(queryEmbeddings.size());
+                for (int q = 0; q < queryEmbeddings.size(); q++) {
+                    List<SearchResultsWrapper.IDScore> scores = wrapper.getIDScore(q);
+                    List<?> receiptTypes = wrapper.getFieldData("receipt_type", q);
+                    List<?> supplierNames = wrapper.getFieldData("supplier_name", q);
+                    List<?> customerNames = wrapper.getFieldData("customer_name", q);
+                    List<?> metadatas = wrapper.getFieldData("metadata", q);
+
+                    List<Map<String, Object>> resultList = new ArrayList<>(scores.size());
+                    for (int i = 0; i < scores.size(); i++) {
+                        Map<String, Object> result = new HashMap<>();
+                        result.put("id", scores.get(i).getLongID());
+                        result.put("score", scores.get(i).getScore());
+
+                        // Lấy các field khác
+                        if (receiptTypes != null) {
+                            result.put("receipt_type", receiptTypes.get(i));
+                        }
+                        if (supplierNames != null) {
+                            result.put("supplier_name", supplierNames.get(i));
+                        }
+                        if (customerNames != null) {
+                            result.put("customer_name", customerNames.get(i));
+                        }
+                        if (metadatas != null) {
+                            result.put("metadata", metadatas.get(i));
+                        }
+
+                        resultList.add(result);
                     }
-                    if (wrapper.getFieldData("customer_name", 0) != null) {
-                        result.put("customer_name", wrapper.getFieldData("customer_name", 0).get(i));
-                    }
-                    if (wrapper.getFieldData("metadata", 0) != null) {
-                        result.put("metadata", wrapper.getFieldData("metadata", 0).get(i));
-                    }
-
-                    resultList.add(result);
+                    allResults.add(resultList);
                 }
 
-                return resultList;
+                return allResults;
             } catch (Exception reflectionEx) {
                 log.error("Error accessing search results via reflection", reflectionEx);
-                return Collections.emptyList();
+                return empty;
             }
         } catch (Exception e) {
             log.error("Error searching in Milvus", e);
-            return Collections.emptyList();
+            return empty;
+        }
+    }
+
+    // Tham số search theo loại index: IVF_* dùng nprobe, HNSW dùng ef
+    private String searchParams() {
+        if (indexType == IndexType.HNSW) {
+            return "{\"ef\":" + searchEf + "}";
+        }
+        if (indexType == IndexType.FLAT) {
+            return "{}";
+        }
+        return "{\"nprobe\":" + searchNprobe + "}";
+    }
+
+    // VD: receipt_type == "IMPORT" && supplier_name == "công ty abc" (tên đã chuẩn hóa khi lưu)
+    static String toExpr(VectorSearchFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return null;
+        }
+        List<String> conditions = new ArrayList<>(2);
+        if (filter.getReceiptType() != null) {
+            conditions.add("receipt_type == " + quote(filter.getReceiptType()));
+        }
+        if (filter.getSupplierName() != null) {
+            conditions.add("supplier_name == " + quote(filter.getSupplierName()));
+        }
+        return String.join(" && ", conditions);
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static final class PendingRow {
+        private final String receiptType;
+        private final String supplierName;
+        private final String customerName;
+        private final List<Float> embedding;
+        private final String metadataJson;
+
+        private PendingRow(String receiptType, String supplierName, String customerName,
+                List<Float> embedding, String metadataJson) {
+            this.receiptType = receiptType;
+            this.supplierName = supplierName;
+            this.customerName = customerName;
+            this.embedding = embedding;
+            this.metadataJson = metadataJson;
         }
     }
 }
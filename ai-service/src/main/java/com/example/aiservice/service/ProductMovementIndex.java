@@ -0,0 +1,350 @@
+package com.example.aiservice.service;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tổng hợp nhập/xuất theo sản phẩm trong 1 lần duyệt danh sách phiếu.
+ * Trước đây mỗi sản phẩm lại quét toàn bộ phiếu nhập/xuất (O(sản phẩm × dòng phiếu));
+ * giờ duyệt 1 lần (O(dòng phiếu)) rồi mọi phép tính dự báo/vòng quay/cảnh báo chỉ tra cứu O(1).
+ *
+ * Dữ liệu theo sản phẩm nằm trong bảng băm khóa long (không boxing), số lượng theo ngày giữ trong mảng int
+ * (mỗi phần tử = 1 ngày tính từ from), chỉ cấp phát khi sản phẩm có dòng trong khoảng ngày.
+ * "Bán" = dòng của phiếu xuất có status EXPORTED; một số báo cáo cũ tính cả phiếu chưa duyệt,
+ * nên có thêm các bộ đếm cho mọi trạng thái.
+ */
+public final class ProductMovementIndex {
+
+    private static final String EXPORTED = "EXPORTED";
+    private static final int TOP_IMPORTS = 3;
+
+    private final LocalDate from;
+    private final int days;
+    private final SeriesTable byProduct;
+    private final int exportedDayCount;
+    private final int importDayCount;
+
+    private ProductMovementIndex(LocalDate from, int days, SeriesTable byProduct,
+            int exportedDayCount, int importDayCount) {
+        this.from = from;
+        this.days = days;
+        this.byProduct = byProduct;
+        this.exportedDayCount = exportedDayCount;
+        this.importDayCount = importDayCount;
+    }
+
+    /**
+     * Duyệt 1 lần các phiếu xuất/nhập (dạng Map từ API inventory) trong khoảng [from, to]
+     */
+    public static ProductMovementIndex build(List<Map<String, Object>> exports,
+            List<Map<String, Object>> imports, LocalDate from, LocalDate to) {
+        int days = (int) Math.max(1, to.toEpochDay() - from.toEpochDay() + 1);
+        long fromDay = from.toEpochDay();
+        SeriesTable byProduct = new SeriesTable(days);
+        Set<String> exportedDates = new HashSet<>();
+        Set<String> importDates = new HashSet<>();
+
+        for (Map<String, Object> export : nullSafe(exports)) {
+            Object status = export.get("status");
+            boolean exported = status != null && EXPORTED.equals(status.toString());
+            Object dateObj = export.get("exportDate");
+            long epochDay = parseEpochDay(dateObj);
+            if (exported && dateObj != null) {
+                exportedDates.add(dateObj.toString());
+            }
+
+            Object items = export.get("items");
+            if (!(items instanceof List)) {
+                continue;
+            }
+            for (Object item : (List<?>) items) {
+                if (!(item instanceof Map)) {
+                    continue;
+                }
+                Map<?, ?> line = (Map<?, ?>) item;
+                Object productId = line.get("productId");
+                if (!(productId instanceof Number)) {
+                    continue;
+                }
+                int quantity = intValue(line.get("quantity"));
+                Series s = byProduct.getOrCreate(((Number) productId).longValue());
+                s.exportLines++;
+                s.exportedAnyStatus += quantity;
+                if (exported) {
+                    s.sold += quantity;
+                    if (epochDay != Long.MIN_VALUE) {
+                        s.addSold(epochDay - fromDay, quantity);
+                        s.lastSaleDay = Math.max(s.lastSaleDay, epochDay);
+                    }
+                }
+            }
+        }
+
+        for (Map<String, Object> importOrder : nullSafe(imports)) {
+            Object dateObj = importOrder.get("importDate");
+            long epochDay = parseEpochDay(dateObj);
+            if (dateObj != null) {
+                importDates.add(dateObj.toString());
+            }
+
+            Object items = importOrder.get("items");
+            if (!(items instanceof List)) {
+                continue;
+            }
+            for (Object item : (List<?>) items) {
+                if (!(item instanceof Map)) {
+                    continue;
+                }
+                Map<?, ?> line = (Map<?, ?>) item;
+                Object productId = line.get("productId");
+                if (!(productId instanceof Number)) {
+                    continue;
+                }
+                int quantity = intValue(line.get("quantity"));
+                Series s = byProduct.getOrCreate(((Number) productId).longValue());
+                s.imported += quantity;
+                s.importLines++;
+                s.offerImport(quantity);
+                if (epochDay != Long.MIN_VALUE) {
+                    s.addImported(epochDay - fromDay, quantity);
+                    s.lastImportDay = Math.max(s.lastImportDay, epochDay);
+                }
+            }
+        }
+
+        return new ProductMovementIndex(from, days, byProduct, exportedDates.size(), importDates.size());
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public int getDays() {
+        return days;
+    }
+
+    /**
+     * Số ngày (khác nhau) có phiếu xuất đã xác nhận, trên toàn bộ sản phẩm
+     */
+    public int getExportedDayCount() {
+        return exportedDayCount;
+    }
+
+    /**
+     * Số ngày (khác nhau) có phiếu nhập, trên toàn bộ sản phẩm
+     */
+    public int getImportDayCount() {
+        return importDayCount;
+    }
+
+    /**
+     * Tổng số lượng bán (phiếu xuất EXPORTED)
+     */
+    public int soldQuantity(long productId) {
+        Series s = byProduct.get(productId);
+        return s != null ? s.sold : 0;
+    }
+
+    /**
+     * Tổng số lượng xuất, mọi trạng thái phiếu
+     */
+    public int exportedQuantityAnyStatus(long productId) {
+        Series s = byProduct.get(productId);
+        return s != null ? s.exportedAnyStatus : 0;
+    }
+
+    /**
+     * Số dòng phiếu xuất có sản phẩm, mọi trạng thái phiếu
+     */
+    public int exportLineCount(long productId) {
+        Series s = byProduct.get(productId);
+        return s != null ? s.exportLines : 0;
+    }
+
+    public int importedQuantity(long productId) {
+        Series s = byProduct.get(productId);
+        return s != null ? s.imported : 0;
+    }
+
+    /**
+     * Các số lượng nhập lớn nhất (tối đa 3 dòng), giảm dần
+     */
+    public int[] topImportQuantities(long productId) {
+        Series s = byProduct.get(productId);
+        if (s == null) {
+            return new int[0];
+        }
+        int[] result = new int[Math.min(s.importLines, TOP_IMPORTS)];
+        System.arraycopy(s.topImports, 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Số lượng bán theo ngày, phần tử i = ngày from + i (không được sửa mảng trả về)
+     */
+    public int[] dailySold(long productId) {
+        Series s = byProduct.get(productId);
+        return s != null && s.soldByDay != null ? s.soldByDay : new int[days];
+    }
+
+    /**
+     * Số lượng nhập theo ngày, phần tử i = ngày from + i (không được sửa mảng trả về)
+     */
+    public int[] dailyImported(long productId) {
+        Series s = byProduct.get(productId);
+        return s != null && s.importedByDay != null ? s.importedByDay : new int[days];
+    }
+
+    public LocalDate lastSaleDate(long productId) {
+        Series s = byProduct.get(productId);
+        return s != null && s.lastSaleDay != Long.MIN_VALUE ? LocalDate.ofEpochDay(s.lastSaleDay) : null;
+    }
+
+    public LocalDate lastImportDate(long productId) {
+        Series s = byProduct.get(productId);
+        return s != null && s.lastImportDay != Long.MIN_VALUE ? LocalDate.ofEpochDay(s.lastImportDay) : null;
+    }
+
+    private static List<Map<String, Object>> nullSafe(List<Map<String, Object>> list) {
+        return list != null ? list : Collections.emptyList();
+    }
+
+    private static int intValue(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    private static long parseEpochDay(Object dateObj) {
+        if (dateObj == null) {
+            return Long.MIN_VALUE;
+        }
+        String text = dateObj.toString();
+        try {
+            // exportDate/importDate có thể là yyyy-MM-dd hoặc yyyy-MM-ddTHH:mm:ss
+            return LocalDate.parse(text.length() > 10 ? text.substring(0, 10) : text).toEpochDay();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // Bảng băm địa chỉ mở (dò tuyến tính) productId -> Series, khóa là long nguyên thủy
+    private static final class SeriesTable {
+        private final int days;
+        private long[] keys = new long[64];
+        private Series[] values = new Series[64];
+        private int size;
+
+        private SeriesTable(int days) {
+            this.days = days;
+        }
+
+        private Series get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        private Series getOrCreate(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            Series created = new Series(days);
+            keys[i] = key;
+            values[i] = created;
+            // Giữ tải <= 1/2 để chuỗi dò ngắn
+            if (++size * 2 > keys.length) {
+                rehash();
+            }
+            return created;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            Series[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Series[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] == null) {
+                    continue;
+                }
+                int i = slot(oldKeys[j], mask);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+
+        // productId thường liên tiếp nhau, trộn bit để không dồn cụm
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+
+    // Dữ liệu của 1 sản phẩm; mảng theo ngày chỉ cấp phát khi có dòng trong khoảng ngày
+    private static final class Series {
+        private final int days;
+        private int[] soldByDay;
+        private int[] importedByDay;
+        private int sold;
+        private int exportedAnyStatus;
+        private int exportLines;
+        private int imported;
+        private int importLines;
+        private final int[] topImports = new int[TOP_IMPORTS];
+        private long lastSaleDay = Long.MIN_VALUE;
+        private long lastImportDay = Long.MIN_VALUE;
+
+        private Series(int days) {
+            this.days = days;
+        }
+
+        private void addSold(long bucket, int quantity) {
+            if (bucket >= 0 && bucket < days) {
+                if (soldByDay == null) {
+                    soldByDay = new int[days];
+                }
+                soldByDay[(int) bucket] += quantity;
+            }
+        }
+
+        private void addImported(long bucket, int quantity) {
+            if (bucket >= 0 && bucket < days) {
+                if (importedByDay == null) {
+                    importedByDay = new int[days];
+                }
+                importedByDay[(int) bucket] += quantity;
+            }
+        }
+
+        // Giữ 3 số lượng nhập lớn nhất (giảm dần); importLines đã được tăng trước khi gọi
+        private void offerImport(int quantity) {
+            int filled = Math.min(importLines - 1, TOP_IMPORTS);
+            int pos = filled;
+            while (pos > 0 && topImports[pos - 1] < quantity) {
+                if (pos < TOP_IMPORTS) {
+                    topImports[pos] = topImports[pos - 1];
+                }
+                pos--;
+            }
+            if (pos < TOP_IMPORTS) {
+                topImports[pos] = quantity;
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.example.aiservice.dto.ProductOCRResponse;
 import com.example.aiservice.dto.ReceiptOCRRequest;
 import com.example.aiservice.dto.ReceiptOCRResponse;
 import com.example.aiservice.dto.UpdateReceiptMetadataRequest;
+import com.example.aiservice.exception.AiServiceException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
@@ -15,10 +16,16 @@ import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.util.*;
-import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
 
 @Service
 @RequiredArgsConstructor
@@ -26,58 +33,107 @@ import java.util.Base64;
 public class ReceiptOCRService {
 
     private final GeminiService geminiService;
-    private final MilvusService milvusService;
+    private final VectorStore vectorStore;
     private final EmbeddingService embeddingService;
     private final DataService dataService;
     private final WebClient geminiWebClient;
+    private final GeminiGateway geminiGateway;
+    private final ImageNormalizer imageNormalizer;
+    private final GeminiResponseCache geminiResponseCache;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     @Value("${gemini.api-key}")
     private String apiKey;
 
+    @Value("${ai.ocr.image.grayscale-receipts:true}")
+    private boolean grayscaleReceipts;
+
+    @Value("${ai.ocr.batch.parallelism:4}")
+    private int batchParallelism;
+
+    @Value("${ai.ocr.batch.page-timeout-ms:120000}")
+    private long pageTimeoutMs;
+
     private static final Duration TIMEOUT = Duration.ofSeconds(60);
     private static final String MODEL_PATH = "/models/gemini-2.5-flash:generateContent";
+    private static final String OCR_CACHE_CALLER = "ocr-result";
+    private static final String OCR_CACHE_RECEIPT = "ocr/receipt/";
+    private static final String OCR_CACHE_PRODUCT = "ocr/product";
+    private static final String QUOTA_MESSAGE = "Đã vượt quá hạn mức sử dụng Gemini API. " +
+            "Free tier có giới hạn ~20 requests/ngày. " +
+            "Vui lòng set up billing trong Google AI Studio để tăng quota " +
+            "(https://aistudio.google.com/usage) hoặc đợi đến ngày mai để quota reset.";
 
     /**
      * Đọc ảnh phiếu nhập/xuất và trích xuất thông tin
      */
     public ReceiptOCRResponse processReceiptImage(ReceiptOCRRequest request) {
+        return processReceiptImage(request, () -> false);
+    }
+
+    // cancelled = trang đã bị bỏ (timeout batch): không lưu embedding của kết quả không ai dùng
+    private ReceiptOCRResponse processReceiptImage(ReceiptOCRRequest request, BooleanSupplier cancelled) {
         try {
             // Bước 1: Lấy ảnh từ URL hoặc base64
             String imageData = getImageData(request);
 
-            // Bước 2: Gọi Gemini để đọc ảnh và trích xuất thông tin
-            String extractedData = extractDataFromImage(imageData, request.getReceiptType());
-
-            // Bước 3: Parse JSON response từ Gemini
-            ReceiptOCRResponse response = parseGeminiResponse(extractedData, request.getReceiptType());
-
-            // Bước 4: Tạo embedding từ text đã trích xuất
-            String searchText = buildSearchText(response);
-            List<Float> embedding = embeddingService.generateEmbedding(searchText);
-            log.info("Generated embedding with {} dimensions", embedding.size());
-
-            // Bước 5: Tìm kiếm vector trong Milvus để lấy thông tin từ phiếu tương tự
-            enrichWithVectorSearch(response, embedding, request.getReceiptType());
-
-            // Bước 6: Lưu embedding vào Milvus để sử dụng sau này
-            saveToMilvus(response, embedding, extractedData);
-
-            return response;
+            // Ảnh đã xử lý trước đó (upload lại, frontend retry) dùng lại kết quả đọc cũ, không gọi lại Gemini
+            String receiptType = request.getReceiptType();
+            String[] freshExtraction = new String[1];
+            ReceiptOCRResponse response = cachedOcr(OCR_CACHE_RECEIPT + receiptType, imageData,
+                    ReceiptOCRResponse.class, () -> {
+                        // Bước 2 + 3: Gọi Gemini để đọc ảnh rồi parse JSON
+                        String extractedData = extractDataFromImage(imageData, receiptType);
+                        freshExtraction[0] = extractedData;
+                        return parseGeminiResponse(extractedData, receiptType);
+                    });
+            return enrichReceipt(response, receiptType, freshExtraction[0], cancelled);
         } catch (Exception e) {
             log.error("Error processing receipt image", e);
             throw new RuntimeException("Không thể xử lý ảnh: " + e.getMessage(), e);
         }
     }
 
+    // Chạy lại mỗi lần (kể cả khi trúng cache) để gợi ý sản phẩm theo dữ liệu mới nhất trong kho vector
+    private ReceiptOCRResponse enrichReceipt(ReceiptOCRResponse response, String receiptType, String extractedData,
+            BooleanSupplier cancelled) {
+        // Bước 4: Tạo embedding từ text đã trích xuất
+        String searchText = buildSearchText(response);
+        List<Float> embedding = embeddingService.generateEmbedding(searchText);
+        log.info("Generated embedding with {} dimensions", embedding.size());
+
+        // Bước 5: Tìm kiếm vector trong Milvus để lấy thông tin từ phiếu tương tự
+        enrichWithVectorSearch(response, embedding, receiptType);
+
+        // Bước 6: Lưu embedding vào Milvus để sử dụng sau này (chỉ lần đọc thật, trúng cache thì đã lưu rồi)
+        if (extractedData != null) {
+            if (cancelled.getAsBoolean()) {
+                log.info("Receipt OCR was cancelled, not saving embedding to Milvus");
+            } else {
+                saveToMilvus(response, embedding, extractedData);
+            }
+        }
+
+        return response;
+    }
+
     /**
-     * Xử lý batch nhiều ảnh: merge products + metadata.
+     * Cache kết quả đọc ảnh của Gemini (chưa enrich) theo SHA-256 của ảnh đã chuẩn hóa + loại phiếu
+     * (qua GeminiResponseCache, caller "ocr-result").
+     * Kết quả lưu dạng JSON, mỗi lần trả về là 1 bản sao mới nên bước enrich/merge phía sau không sửa được cache.
      */
-    public ReceiptOCRResponse processBatchReceiptImages(ReceiptOCRRequest request) {
-        List<ReceiptOCRResponse.ExtractedProduct> mergedProducts = new ArrayList<>();
-        ReceiptOCRResponse baseResponse = new ReceiptOCRResponse();
-        baseResponse.setReceiptType(request.getReceiptType());
+    private <T> T cachedOcr(String kind, String imageData, Class<T> type, Callable<T> extractor) throws IOException {
+        String json = geminiResponseCache.get(kind, imageData, OCR_CACHE_CALLER,
+                        () -> Mono.fromCallable(() -> objectMapper.writeValueAsString(extractor.call())))
+                .block();
+        return objectMapper.readValue(json, type);
+    }
 
+    /**
+     * Xử lý batch nhiều ảnh song song (tối đa ai.ocr.batch.parallelism ảnh cùng lúc, mỗi ảnh có timeout riêng),
+     * merge products + metadata theo thứ tự trang. Trang lỗi được bỏ qua và ghi vào failedPages.
+     */
+    public ReceiptOCRResponse processBatchReceiptImages(ReceiptOCRRequest request) {
         List<String> imageSources = new ArrayList<>();
         if (request.getImageUrls() != null) {
             imageSources.addAll(request.getImageUrls());
@@ -86,27 +142,30 @@ public class ReceiptOCRService {
             imageSources.addAll(request.getImageBase64s());
         }
 
+        // flatMapSequential: xử lý song song nhưng trả kết quả đúng thứ tự trang
+        List<PageResult> pages = Flux.range(0, imageSources.size())
+                .flatMapSequential(page -> processPage(request.getReceiptType(), imageSources.get(page), page),
+                        Math.max(1, batchParallelism))
+                .collectList()
+                .block();
+
+        ReceiptOCRResponse baseResponse = new ReceiptOCRResponse();
+        baseResponse.setReceiptType(request.getReceiptType());
+        // dedupe theo (name, code), giữ sản phẩm xuất hiện đầu tiên
+        Map<List<String>, ReceiptOCRResponse.ExtractedProduct> mergedProducts = new LinkedHashMap<>();
+        List<Integer> failedPages = new ArrayList<>();
         double totalAmount = 0.0;
 
-        for (String source : imageSources) {
-            ReceiptOCRRequest single = new ReceiptOCRRequest();
-            single.setReceiptType(request.getReceiptType());
-            if (source != null && source.startsWith("http")) {
-                single.setImageUrl(source);
-            } else {
-                single.setImageBase64(source);
+        for (PageResult page : pages) {
+            ReceiptOCRResponse resp = page.response;
+            if (resp == null) {
+                failedPages.add(page.page + 1);
+                continue;
             }
 
-            ReceiptOCRResponse resp = processReceiptImage(single);
-
             if (resp.getProducts() != null) {
                 for (ReceiptOCRResponse.ExtractedProduct p : resp.getProducts()) {
-                    // dedupe theo name+code
-                    boolean exists = mergedProducts.stream().anyMatch(mp -> Objects.equals(mp.getName(), p.getName()) &&
-                            Objects.equals(mp.getCode(), p.getCode()));
-                    if (!exists) {
-                        mergedProducts.add(p);
-                    }
+                    mergedProducts.putIfAbsent(Arrays.asList(p.getName(), p.getCode()), p);
                 }
             }
 
@@ -137,11 +196,50 @@ public class ReceiptOCRService {
                 baseResponse.setRawText(resp.getRawText());
         }
 
-        baseResponse.setProducts(mergedProducts);
+        if (!imageSources.isEmpty() && failedPages.size() == imageSources.size()) {
+            throw new RuntimeException("Không thể xử lý ảnh: tất cả " + imageSources.size() + " trang đều lỗi");
+        }
+        if (!failedPages.isEmpty()) {
+            log.warn("Batch OCR: {}/{} pages failed: {}", failedPages.size(), imageSources.size(), failedPages);
+            baseResponse.setFailedPages(failedPages);
+        }
+
+        baseResponse.setProducts(new ArrayList<>(mergedProducts.values()));
         baseResponse.setTotalAmount(totalAmount > 0 ? totalAmount : null);
         return baseResponse;
     }
 
+    // Xử lý 1 trang trên boundedElastic (các bước bên trong đều là lời gọi chặn); lỗi/timeout -> response null
+    private Mono<PageResult> processPage(String receiptType, String source, int page) {
+        ReceiptOCRRequest single = new ReceiptOCRRequest();
+        single.setReceiptType(receiptType);
+        if (source != null && source.startsWith("http")) {
+            single.setImageUrl(source);
+        } else {
+            single.setImageBase64(source);
+        }
+        // timeout chỉ hủy subscription, lời gọi chặn vẫn chạy tiếp: đánh dấu để bỏ bước lưu Milvus
+        AtomicBoolean cancelled = new AtomicBoolean();
+        return Mono.fromCallable(() -> new PageResult(page, processReceiptImage(single, cancelled::get)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .doOnCancel(() -> cancelled.set(true))
+                .timeout(Duration.ofMillis(pageTimeoutMs))
+                .onErrorResume(e -> {
+                    log.error("Batch OCR page {} failed: {}", page + 1, e.getMessage());
+                    return Mono.just(new PageResult(page, null));
+                });
+    }
+
+    private static final class PageResult {
+        private final int page;
+        private final ReceiptOCRResponse response;
+
+        private PageResult(int page, ReceiptOCRResponse response) {
+            this.page = page;
+            this.response = response;
+        }
+    }
+
     /**
      * Cập nhật/ghi thêm metadata đã được user chỉnh sửa vào Milvus
      * (học từ thao tác mapping thủ công).
@@ -177,7 +275,7 @@ public class ReceiptOCRService {
                 metadata.put("products", productsMeta);
             }
 
-            milvusService.saveEmbedding(
+            vectorStore.saveEmbedding(
                     request.getReceiptType(),
                     request.getSupplierName() != null ? request.getSupplierName() : "",
                     request.getCustomerName() != null ? request.getCustomerName() : "",
@@ -198,13 +296,9 @@ public class ReceiptOCRService {
             // Bước 1: Lấy ảnh từ URL hoặc base64
             String imageData = getProductImageData(request);
 
-            // Bước 2: Gọi Gemini để đọc ảnh và trích xuất thông tin
-            String extractedData = extractProductDataFromImage(imageData);
-
-            // Bước 3: Parse JSON response từ Gemini
-            ProductOCRResponse response = parseProductOCRResponse(extractedData);
-
-            return response;
+            // Bước 2 + 3: Gọi Gemini đọc ảnh rồi parse JSON (bỏ qua nếu ảnh đã có trong cache)
+            return cachedOcr(OCR_CACHE_PRODUCT, imageData, ProductOCRResponse.class,
+                    () -> parseProductOCRResponse(extractProductDataFromImage(imageData)));
         } catch (Exception e) {
             log.error("Error processing product image", e);
             throw new RuntimeException("Không thể xử lý ảnh sản phẩm: " + e.getMessage(), e);
@@ -214,27 +308,15 @@ public class ReceiptOCRService {
     private String getProductImageData(ProductOCRRequest request) {
         if (request.getImageUrl() != null && !request.getImageUrl().isBlank()) {
             try {
-                byte[] imageBytes = WebClient.create()
-                        .get()
-                        .uri(request.getImageUrl())
-                        .retrieve()
-                        .bodyToMono(byte[].class)
-                        .block(Duration.ofSeconds(30));
-
-                if (imageBytes != null) {
-                    return Base64.getEncoder().encodeToString(imageBytes);
-                }
+                // Ảnh sản phẩm giữ màu (màu bao bì giúp nhận diện)
+                return imageNormalizer.fromUrl(request.getImageUrl(), false);
             } catch (Exception e) {
                 log.warn("Failed to download image from URL, trying base64", e);
             }
         }
 
         if (request.getImageBase64() != null && !request.getImageBase64().isBlank()) {
-            String base64 = request.getImageBase64();
-            if (base64.contains(",")) {
-                base64 = base64.substring(base64.indexOf(",") + 1);
-            }
-            return base64;
+            return imageNormalizer.fromBase64(request.getImageBase64(), false);
         }
 
         throw new IllegalArgumentException("Cần có imageUrl hoặc imageBase64");
@@ -264,21 +346,7 @@ public class ReceiptOCRService {
         body.put("contents", Collections.singletonList(content));
 
         try {
-            String response = geminiWebClient.post()
-                    .uri(uriBuilder -> uriBuilder
-                            .path(MODEL_PATH)
-                            .queryParam("key", apiKey)
-                            .build())
-                    .contentType(MediaType.APPLICATION_JSON)
-                    .bodyValue(body)
-                    .retrieve()
-                    .onStatus(status -> status.isError(),
-                            clientResponse -> clientResponse.bodyToMono(String.class).map(msg -> {
-                                log.error("Gemini error response: {}", msg);
-                                return new RuntimeException("Gemini API error: " + msg);
-                            }))
-                    .bodyToMono(String.class)
-                    .block(TIMEOUT);
+            String response = callGemini(body);
 
             JsonNode jsonResponse = objectMapper.readTree(response);
             String text = jsonResponse.path("candidates")
@@ -290,6 +358,11 @@ public class ReceiptOCRService {
                     .asText();
 
             return text;
+        } catch (AiServiceException ex) {
+            if (ex.isQuotaExceeded()) {
+                throw new RuntimeException("Đã vượt quá hạn mức sử dụng Gemini API. Vui lòng thử lại sau.");
+            }
+            throw new RuntimeException(ex.getMessage());
         } catch (WebClientResponseException ex) {
             log.error("Gemini HTTP error {} - {}", ex.getStatusCode(), ex.getResponseBodyAsString(), ex);
             if (ex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
@@ -491,30 +564,17 @@ public class ReceiptOCRService {
 
     private String getImageData(ReceiptOCRRequest request) {
         if (request.getImageUrl() != null && !request.getImageUrl().isBlank()) {
-            // Nếu có URL, download ảnh và convert sang base64
+            // Nếu có URL, download ảnh, thu nhỏ/chuyển xám rồi convert sang base64
             try {
-                byte[] imageBytes = WebClient.create()
-                        .get()
-                        .uri(request.getImageUrl())
-                        .retrieve()
-                        .bodyToMono(byte[].class)
-                        .block(Duration.ofSeconds(30));
-
-                if (imageBytes != null) {
-                    return Base64.getEncoder().encodeToString(imageBytes);
-                }
+                return imageNormalizer.fromUrl(request.getImageUrl(), grayscaleReceipts);
             } catch (Exception e) {
                 log.warn("Failed to download image from URL, trying base64", e);
             }
         }
 
         if (request.getImageBase64() != null && !request.getImageBase64().isBlank()) {
-            // Remove data URL prefix if present
-            String base64 = request.getImageBase64();
-            if (base64.contains(",")) {
-                base64 = base64.substring(base64.indexOf(",") + 1);
-            }
-            return base64;
+            // Bỏ prefix data URL (nếu có) và chuẩn hóa ảnh
+            return imageNormalizer.fromBase64(request.getImageBase64(), grayscaleReceipts);
         }
 
         throw new IllegalArgumentException("Cần có imageUrl hoặc imageBase64");
@@ -548,21 +608,7 @@ public class ReceiptOCRService {
         body.put("contents", Collections.singletonList(content));
 
         try {
-            String response = geminiWebClient.post()
-                    .uri(uriBuilder -> uriBuilder
-                            .path(MODEL_PATH)
-                            .queryParam("key", apiKey)
-                            .build())
-                    .contentType(MediaType.APPLICATION_JSON)
-                    .bodyValue(body)
-                    .retrieve()
-                    .onStatus(status -> status.isError(),
-                            clientResponse -> clientResponse.bodyToMono(String.class).map(msg -> {
-                                log.error("Gemini error response: {}", msg);
-                                return new RuntimeException("Gemini API error: " + msg);
-                            }))
-                    .bodyToMono(String.class)
-                    .block(TIMEOUT);
+            String response = callGemini(body);
 
             // Parse response để lấy text
             JsonNode jsonResponse = objectMapper.readTree(response);
@@ -575,6 +621,11 @@ public class ReceiptOCRService {
                     .asText();
 
             return text;
+        } catch (AiServiceException ex) {
+            if (ex.isQuotaExceeded()) {
+                throw new RuntimeException(QUOTA_MESSAGE);
+            }
+            throw new RuntimeException(ex.getMessage());
         } catch (WebClientResponseException ex) {
             log.error("Gemini HTTP error {} - {}", ex.getStatusCode(), ex.getResponseBodyAsString(), ex);
 
@@ -582,11 +633,7 @@ public class ReceiptOCRService {
             if (ex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
                 String errorBody = ex.getResponseBodyAsString();
                 log.error("Gemini API quota exceeded. Response: {}", errorBody);
-                throw new RuntimeException(
-                        "Đã vượt quá hạn mức sử dụng Gemini API. " +
-                                "Free tier có giới hạn ~20 requests/ngày. " +
-                                "Vui lòng set up billing trong Google AI Studio để tăng quota " +
-                                "(https://aistudio.google.com/usage) hoặc đợi đến ngày mai để quota reset.");
+                throw new RuntimeException(QUOTA_MESSAGE);
             }
 
             throw new RuntimeException("Gemini API error: " + ex.getStatusCode());
@@ -596,6 +643,32 @@ public class ReceiptOCRService {
         }
     }
 
+    /**
+     * Gọi Gemini (ảnh + prompt) qua gateway, lane INTERACTIVE vì người dùng đang chờ kết quả OCR.
+     * 429/5xx được đánh dấu tạm thời để gateway retry.
+     */
+    private String callGemini(Map<String, Object> body) {
+        return geminiGateway.execute(GeminiGateway.Lane.INTERACTIVE, () -> geminiWebClient.post()
+                        .uri(uriBuilder -> uriBuilder
+                                .path(MODEL_PATH)
+                                .queryParam("key", apiKey)
+                                .build())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(body)
+                        .retrieve()
+                        .onStatus(status -> status.isError(), clientResponse -> {
+                            int statusCode = clientResponse.statusCode().value();
+                            return clientResponse.bodyToMono(String.class).map(msg -> {
+                                log.error("Gemini error response: {}", msg);
+                                return new AiServiceException("Gemini API error: " + msg,
+                                        statusCode == 429, statusCode == 429 || statusCode >= 500);
+                            });
+                        })
+                        .bodyToMono(String.class)
+                        .timeout(TIMEOUT))
+                .block();
+    }
+
     private String buildPrompt(String receiptType) {
         if ("IMPORT".equals(receiptType)) {
             return """
@@ -1036,30 +1109,99 @@ public class ReceiptOCRService {
     }
 
     /**
-     * Tìm kiếm vector trong Milvus và điền thông tin vào response
+     * Tạo vector cho từng sản phẩm (tên + mã) bằng 1 lần gọi batch embedding, thêm vào queries.
+     * Trả về vị trí query của từng sản phẩm, -1 nếu sản phẩm không có tên/mã hoặc không tạo được embedding.
      */
-    private void enrichWithVectorSearch(ReceiptOCRResponse response, List<Float> embedding, String receiptType) {
+    private int[] buildProductQueries(List<ReceiptOCRResponse.ExtractedProduct> products, List<List<Float>> queries) {
+        int[] queryIndex = new int[products.size()];
+        Arrays.fill(queryIndex, -1);
+        List<String> texts = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        for (int i = 0; i < products.size(); i++) {
+            ReceiptOCRResponse.ExtractedProduct p = products.get(i);
+            String text = ((p.getName() != null ? p.getName() : "") + " "
+                    + (p.getCode() != null ? p.getCode() : "")).trim();
+            if (!text.isEmpty()) {
+                texts.add(text);
+                owners.add(i);
+            }
+        }
+        if (texts.isEmpty()) {
+            return queryIndex;
+        }
         try {
-            // Tìm kiếm top 5 phiếu tương tự nhất
-            List<Map<String, Object>> similarReceipts = milvusService.searchSimilar(embedding, 5);
-
-            if (similarReceipts.isEmpty()) {
-                log.info("No similar receipts found in Milvus");
-                return;
+            List<List<Float>> vectors = embeddingService.generateEmbeddings(texts);
+            for (int j = 0; j < vectors.size(); j++) {
+                queryIndex[owners.get(j)] = queries.size();
+                queries.add(vectors.get(j));
             }
+        } catch (Exception e) {
+            log.warn("Failed to embed products, matching by receipt vector only: {}", e.getMessage());
+        }
+        return queryIndex;
+    }
 
-            log.info("Found {} similar receipts", similarReceipts.size());
+    // Ứng viên của 1 sản phẩm = kết quả theo vector phiếu + kết quả theo vector sản phẩm (bỏ trùng id)
+    private List<Map<String, Object>> candidatesFor(List<List<Map<String, Object>>> results, int productQuery) {
+        if (productQuery < 0 || productQuery >= results.size()) {
+            return results.get(0);
+        }
+        List<Map<String, Object>> merged = new ArrayList<>(results.get(0));
+        Set<Object> ids = new HashSet<>();
+        for (Map<String, Object> candidate : merged) {
+            ids.add(candidate.get("id"));
+        }
+        for (Map<String, Object> candidate : results.get(productQuery)) {
+            if (ids.add(candidate.get("id"))) {
+                merged.add(candidate);
+            }
+        }
+        return merged;
+    }
 
+    /**
+     * Tìm kiếm vector (phiếu + từng sản phẩm) và điền sản phẩm gợi ý vào response
+     */
+    private void enrichWithVectorSearch(ReceiptOCRResponse response, List<Float> embedding, String receiptType) {
+        try {
             if (response.getProducts() == null || response.getProducts().isEmpty()) {
                 return;
             }
+            List<ReceiptOCRResponse.ExtractedProduct> products = response.getProducts();
+
+            // Vector của cả phiếu + vector của từng sản phẩm, tìm trong 1 lần gọi
+            List<List<Float>> queries = new ArrayList<>();
+            queries.add(embedding);
+            int[] queryIndex = buildProductQueries(products, queries);
+
+            // Lọc loại phiếu (và nhà cung cấp với phiếu nhập) ngay trong kho vector;
+            // nhà cung cấp mới chưa có phiếu nào thì tìm lại chỉ theo loại phiếu
+            VectorSearchFilter filter = VectorSearchFilter.of(receiptType,
+                    "IMPORT".equals(receiptType) ? response.getSupplierName() : null);
+            List<List<Map<String, Object>>> results = vectorStore.searchSimilarBatch(queries, 5, filter);
+            if (results.stream().allMatch(List::isEmpty) && filter.getSupplierName() != null) {
+                results = vectorStore.searchSimilarBatch(queries, 5, filter.withoutSupplier());
+            }
 
-            for (ReceiptOCRResponse.ExtractedProduct product : response.getProducts()) {
+            if (results.stream().allMatch(List::isEmpty)) {
+                log.info("No similar receipts found in vector store");
+                return;
+            }
+
+            log.info("Found {} similar receipts", results.get(0).size());
+
+            // Mỗi metadata chỉ parse 1 lần dù xuất hiện trong kết quả của nhiều sản phẩm
+            Map<Object, JsonNode> parsedMetadata = new HashMap<>();
+
+            for (int productIndex = 0; productIndex < products.size(); productIndex++) {
+                ReceiptOCRResponse.ExtractedProduct product = products.get(productIndex);
                 double bestScore = 0.0;
                 Long bestProductId = null;
 
-                for (Map<String, Object> candidate : similarReceipts) {
-                    Double l2Distance = (Double) candidate.get("score");
+                for (Map<String, Object> candidate : candidatesFor(results, queryIndex[productIndex])) {
+                    // Milvus trả score kiểu Float, không ép trực tiếp sang Double
+                    Object rawScore = candidate.get("score");
+                    Double l2Distance = rawScore instanceof Number ? ((Number) rawScore).doubleValue() : null;
                     Double baseScore = normalizeMatchScore(l2Distance);
                     if (baseScore == null) {
                         baseScore = 0.0;
@@ -1071,7 +1213,12 @@ public class ReceiptOCRService {
                     }
 
                     try {
-                        JsonNode metadata = objectMapper.readTree(metadataStr);
+                        Object candidateId = candidate.get("id") != null ? candidate.get("id") : metadataStr;
+                        JsonNode metadata = parsedMetadata.get(candidateId);
+                        if (metadata == null) {
+                            metadata = objectMapper.readTree(metadataStr);
+                            parsedMetadata.put(candidateId, metadata);
+                        }
 
                         // supplier/customer weight
                         double weightedScore = baseScore;
@@ -1188,14 +1335,14 @@ public class ReceiptOCRService {
             }
 
             // Lưu vào Milvus
-            milvusService.saveEmbedding(
+            vectorStore.saveEmbedding(
                     response.getReceiptType(),
                     response.getSupplierName() != null ? response.getSupplierName() : "",
                     response.getCustomerName() != null ? response.getCustomerName() : "",
                     embedding,
                     metadata);
 
-            log.info("Saved receipt embedding to Milvus");
+            log.info("Queued receipt embedding for Milvus");
         } catch (Exception e) {
             log.warn("Failed to save to Milvus", e);
             // Không throw exception, chỉ log warning
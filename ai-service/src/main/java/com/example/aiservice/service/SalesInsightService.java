@@ -1,16 +1,12 @@
 package com.example.aiservice.service;
 
 import com.example.aiservice.dto.SalesInsightResponse;
+import com.example.aiservice.service.AnalyticsSnapshotService.Dataset;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
 
-import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -22,63 +18,60 @@ import java.util.stream.Collectors;
 @Slf4j
 public class SalesInsightService {
 
-    private final WebClient.Builder webClientBuilder;
+    private final AnalyticsSnapshotService snapshotService;
     private final GeminiService geminiService;
 
-    @Value("${api.gateway.url:http://api-gateway:8080}")
-    private String apiGatewayUrl;
-
-    private static final Duration TIMEOUT = Duration.ofSeconds(30);
-
     /**
      * Phân tích lịch sử bán hàng để đưa ra insights
      */
-    public SalesInsightResponse analyzeSalesInsights(String token, int days) {
-        try {
-            LocalDate endDate = LocalDate.now();
-            LocalDate startDate = endDate.minusDays(days);
-
-            List<Map<String, Object>> exports = fetchExports(token, startDate, endDate);
-            List<Map<String, Object>> products = fetchProducts(token);
-
-            // Tạo map productId -> product info
-            Map<Long, Map<String, Object>> productMap = products.stream()
-                    .collect(Collectors.toMap(
-                            p -> Long.valueOf(p.get("id").toString()),
-                            p -> p,
-                            (a, b) -> a));
-
-            // Phân tích doanh thu
-            SalesInsightResponse.RevenueAnalysis revenueAnalysis = analyzeRevenue(exports, days);
-
-            // Top sản phẩm bán chạy
-            List<SalesInsightResponse.TopProduct> topProducts = calculateTopProducts(exports, productMap);
-
-            // Sản phẩm giảm doanh số
-            List<SalesInsightResponse.DecliningProduct> decliningProducts = findDecliningProducts(exports, productMap,
-                    days);
-
-            // Giờ bán tốt nhất
-            SalesInsightResponse.BestSellingHours bestSellingHours = analyzeBestSellingHours(exports);
-
-            // Sản phẩm theo mùa vụ
-            List<SalesInsightResponse.SeasonalProduct> seasonalProducts = analyzeSeasonalProducts(exports, productMap);
-
-            // Tạo phân tích tổng quan bằng AI
-            String overallAnalysis = generateOverallAnalysis(revenueAnalysis, topProducts, decliningProducts, days);
-
-            return new SalesInsightResponse(
-                    revenueAnalysis,
-                    topProducts,
-                    decliningProducts,
-                    bestSellingHours,
-                    seasonalProducts,
-                    overallAnalysis);
-
-        } catch (Exception e) {
-            log.error("Error analyzing sales insights", e);
-            throw new RuntimeException("Không thể phân tích lịch sử bán hàng: " + e.getMessage());
-        }
+    public Mono<SalesInsightResponse> analyzeSalesInsights(String token, int days) {
+        LocalDate endDate = LocalDate.now();
+        LocalDate startDate = endDate.minusDays(days);
+
+        return snapshotService.snapshot(token, startDate, endDate, Dataset.EXPORTS, Dataset.PRODUCTS)
+                .flatMap(data -> buildSalesInsights(data, days))
+                .onErrorMap(e -> {
+                    log.error("Error analyzing sales insights", e);
+                    return new RuntimeException("Không thể phân tích lịch sử bán hàng: " + e.getMessage());
+                });
+    }
+
+    private Mono<SalesInsightResponse> buildSalesInsights(AnalyticsSnapshotService.Snapshot data, int days) {
+        List<Map<String, Object>> exports = data.getExports();
+        List<Map<String, Object>> products = data.getProducts();
+
+        // Tạo map productId -> product info
+        Map<Long, Map<String, Object>> productMap = products.stream()
+                .collect(Collectors.toMap(
+                        p -> Long.valueOf(p.get("id").toString()),
+                        p -> p,
+                        (a, b) -> a));
+
+        // Phân tích doanh thu
+        SalesInsightResponse.RevenueAnalysis revenueAnalysis = analyzeRevenue(exports, days);
+
+        // Top sản phẩm bán chạy
+        List<SalesInsightResponse.TopProduct> topProducts = calculateTopProducts(exports, productMap);
+
+        // Sản phẩm giảm doanh số
+        List<SalesInsightResponse.DecliningProduct> decliningProducts = findDecliningProducts(exports, productMap,
+                days);
+
+        // Giờ bán tốt nhất
+        SalesInsightResponse.BestSellingHours bestSellingHours = analyzeBestSellingHours(exports);
+
+        // Sản phẩm theo mùa vụ
+        List<SalesInsightResponse.SeasonalProduct> seasonalProducts = analyzeSeasonalProducts(exports, productMap);
+
+        // Tạo phân tích tổng quan bằng AI
+        return generateOverallAnalysis(revenueAnalysis, topProducts, decliningProducts, days)
+                .map(overallAnalysis -> new SalesInsightResponse(
+                        revenueAnalysis,
+                        topProducts,
+                        decliningProducts,
+                        bestSellingHours,
+                        seasonalProducts,
+                        overallAnalysis));
     }
 
     private SalesInsightResponse.RevenueAnalysis analyzeRevenue(List<Map<String, Object>> exports, int days) {
@@ -386,7 +379,7 @@ public class SalesInsightService {
                 .collect(Collectors.toList());
     }
 
-    private String generateOverallAnalysis(
+    private Mono<String> generateOverallAnalysis(
             SalesInsightResponse.RevenueAnalysis revenue,
             List<SalesInsightResponse.TopProduct> topProducts,
             List<SalesInsightResponse.DecliningProduct> declining,
@@ -415,59 +408,12 @@ public class SalesInsightService {
                 "Hãy phân tích dữ liệu sau và đưa ra nhận định tổng quan (2-3 câu) về tình hình bán hàng:\n\n" +
                 context.toString();
 
-        String analysis = geminiService.invokeGemini(prompt);
-        if (analysis == null || analysis.isBlank()) {
-            throw new RuntimeException("Gemini không trả về phân tích bán hàng.");
-        }
-        return analysis.trim();
-    }
-
-    private List<Map<String, Object>> fetchExports(String token, LocalDate from, LocalDate to) {
-        try {
-            WebClient webClient = webClientBuilder.baseUrl(apiGatewayUrl).build();
-            Map<String, Object> response = webClient.get()
-                    .uri(uriBuilder -> uriBuilder
-                            .path("/api/exports")
-                            .queryParam("from", from.toString())
-                            .queryParam("to", to.toString())
-                            .build())
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
-                    })
-                    .block(TIMEOUT);
-
-            if (response != null && response.containsKey("data")) {
-                return (List<Map<String, Object>>) response.get("data");
+        return geminiService.invokeGeminiAsync(prompt, "sales-insight").map(analysis -> {
+            if (analysis == null || analysis.isBlank()) {
+                throw new RuntimeException("Gemini không trả về phân tích bán hàng.");
             }
-            return new ArrayList<>();
-        } catch (Exception e) {
-            log.error("Error fetching exports", e);
-            return new ArrayList<>();
-        }
-    }
-
-    private List<Map<String, Object>> fetchProducts(String token) {
-        try {
-            WebClient webClient = webClientBuilder.baseUrl(apiGatewayUrl).build();
-            Map<String, Object> response = webClient.get()
-                    .uri("/api/products")
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
-                    })
-                    .block(TIMEOUT);
-
-            if (response != null && response.containsKey("data")) {
-                return (List<Map<String, Object>>) response.get("data");
-            }
-            return new ArrayList<>();
-        } catch (Exception e) {
-            log.error("Error fetching products", e);
-            return new ArrayList<>();
-        }
+            return analysis.trim();
+        });
     }
 
     private Integer getIntegerValue(Map<String, Object> map, String key, Integer defaultValue) {
@@ -1,16 +1,12 @@
 package com.example.aiservice.service;
 
 import com.example.aiservice.dto.StockOptimizationResponse;
+import com.example.aiservice.service.AnalyticsSnapshotService.Dataset;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
 
-import java.time.Duration;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -21,109 +17,107 @@ import java.util.Objects;
 @Slf4j
 public class StockOptimizationService {
 
-    private final WebClient.Builder webClientBuilder;
+    private final AnalyticsSnapshotService snapshotService;
     private final GeminiService geminiService;
 
-    @Value("${api.gateway.url:http://api-gateway:8080}")
-    private String apiGatewayUrl;
-
-    private static final Duration TIMEOUT = Duration.ofSeconds(30);
-
     /**
      * Tự động gợi ý cấu trúc kho tối ưu
      */
-    public StockOptimizationResponse optimizeStock(String token) {
-        try {
-            LocalDate endDate = LocalDate.now();
-            LocalDate startDate = endDate.minusDays(90);
-
-            List<Map<String, Object>> stocks = fetchStocks(token);
-            List<Map<String, Object>> products = fetchProducts(token);
-            List<Map<String, Object>> stores = fetchStores(token);
-            List<Map<String, Object>> exports = fetchExports(token, startDate, endDate);
-            List<Map<String, Object>> imports = fetchImports(token, startDate, endDate);
-
-            // Tạo maps
-            Map<Long, Map<String, Object>> productMap = products.stream()
-                    .collect(Collectors.toMap(
-                            p -> Long.valueOf(p.get("id").toString()),
-                            p -> p,
-                            (a, b) -> a));
-
-            Map<Long, Map<String, Object>> storeMap = stores.stream()
-                    .collect(Collectors.toMap(
-                            s -> Long.valueOf(s.get("id").toString()),
-                            s -> s,
-                            (a, b) -> a));
-
-            // Phân tích và tối ưu từng sản phẩm
-            List<StockOptimizationResponse.ProductOptimization> optimizations = new ArrayList<>();
-            List<StockOptimizationResponse.WarehouseRecommendation> warehouseRecommendations = new ArrayList<>();
-
-            for (Map<String, Object> stock : stocks) {
-                Long productId = Long.valueOf(stock.get("productId").toString());
-                Map<String, Object> product = productMap.get(productId);
-                if (product == null)
-                    continue;
-
-                Integer currentStock = getIntegerValue(stock, "quantity", 0);
-                Long storeId = getLongValue(stock, "storeId");
-
-                // Tính tốc độ bán trung bình
-                Double avgDailySales = calculateAverageDailySales(exports, productId);
-
-                // Tính mức tồn min/max tối ưu
-                int minStock = calculateMinStock(avgDailySales);
-                int maxStock = calculateMaxStock(avgDailySales);
-                int optimalReorderQuantity = calculateOptimalReorderQuantity(avgDailySales, minStock, maxStock);
-
-                StockOptimizationResponse.ProductOptimization opt = new StockOptimizationResponse.ProductOptimization();
-                opt.setProductId(productId);
-                opt.setProductCode(String.valueOf(product.getOrDefault("code", "")));
-                opt.setProductName(String.valueOf(product.getOrDefault("name", "")));
-                opt.setCurrentStock(currentStock);
-                opt.setMinStock(minStock);
-                opt.setMaxStock(maxStock);
-                opt.setOptimalReorderQuantity(optimalReorderQuantity);
-                opt.setReasoning(String.format(
-                        "Dựa trên tốc độ bán %.1f/ngày. Mức tồn tối thiểu: %d (7 ngày), tối đa: %d (21 ngày).",
-                        avgDailySales, minStock, maxStock));
-                optimizations.add(opt);
-
-                // Gợi ý kho hàng dựa trên lịch sử xuất
-                Long recommendedStoreId = recommendWarehouse(stocks, exports, productId, storeMap);
-                if (recommendedStoreId != null && !recommendedStoreId.equals(storeId)) {
-                    Map<String, Object> recommendedStore = storeMap.get(recommendedStoreId);
-                    if (recommendedStore != null) {
-                        StockOptimizationResponse.WarehouseRecommendation wr = new StockOptimizationResponse.WarehouseRecommendation();
-                        wr.setProductId(productId);
-                        wr.setProductCode(String.valueOf(product.getOrDefault("code", "")));
-                        wr.setProductName(String.valueOf(product.getOrDefault("name", "")));
-                        wr.setRecommendedStoreId(recommendedStoreId);
-                        wr.setRecommendedStoreName(String.valueOf(recommendedStore.getOrDefault("name", "")));
-                        wr.setReasoning("Kho này có lịch sử xuất hàng tốt hơn cho sản phẩm này");
-                        warehouseRecommendations.add(wr);
-                    }
-                }
-            }
-
-            // Phân tích danh mục
-            List<StockOptimizationResponse.CategoryOptimization> categoryOptimizations = analyzeCategories(products,
-                    exports);
-
-            // Tạo summary
-            String summary = generateOptimizationSummary(optimizations, warehouseRecommendations);
+    public Mono<StockOptimizationResponse> optimizeStock(String token) {
+        LocalDate endDate = LocalDate.now();
+        LocalDate startDate = endDate.minusDays(90);
+
+        return snapshotService.snapshot(token, startDate, endDate,
+                        Dataset.STOCKS, Dataset.PRODUCTS, Dataset.STORES, Dataset.EXPORTS, Dataset.IMPORTS)
+                .flatMap(this::buildStockOptimization)
+                .onErrorMap(e -> {
+                    log.error("Error optimizing stock", e);
+                    return new RuntimeException("Không thể tối ưu cấu trúc kho: " + e.getMessage());
+                });
+    }
 
-            return new StockOptimizationResponse(
-                    optimizations,
-                    warehouseRecommendations,
-                    categoryOptimizations,
-                    summary);
+    private Mono<StockOptimizationResponse> buildStockOptimization(AnalyticsSnapshotService.Snapshot data) {
+        List<Map<String, Object>> stocks = data.getStocks();
+        List<Map<String, Object>> products = data.getProducts();
+        List<Map<String, Object>> stores = data.getStores();
+        List<Map<String, Object>> exports = data.getExports();
+        List<Map<String, Object>> imports = data.getImports();
+
+        // Tạo maps
+        Map<Long, Map<String, Object>> productMap = products.stream()
+                .collect(Collectors.toMap(
+                        p -> Long.valueOf(p.get("id").toString()),
+                        p -> p,
+                        (a, b) -> a));
+
+        Map<Long, Map<String, Object>> storeMap = stores.stream()
+                .collect(Collectors.toMap(
+                        s -> Long.valueOf(s.get("id").toString()),
+                        s -> s,
+                        (a, b) -> a));
+
+        // Phân tích và tối ưu từng sản phẩm
+        List<StockOptimizationResponse.ProductOptimization> optimizations = new ArrayList<>();
+        List<StockOptimizationResponse.WarehouseRecommendation> warehouseRecommendations = new ArrayList<>();
+
+        for (Map<String, Object> stock : stocks) {
+            Long productId = Long.valueOf(stock.get("productId").toString());
+            Map<String, Object> product = productMap.get(productId);
+            if (product == null)
+                continue;
 
-        } catch (Exception e) {
-            log.error("Error optimizing stock", e);
-            throw new RuntimeException("Không thể tối ưu cấu trúc kho: " + e.getMessage());
+            Integer currentStock = getIntegerValue(stock, "quantity", 0);
+            Long storeId = getLongValue(stock, "storeId");
+
+            // Tính tốc độ bán trung bình
+            Double avgDailySales = calculateAverageDailySales(exports, productId);
+
+            // Tính mức tồn min/max tối ưu
+            int minStock = calculateMinStock(avgDailySales);
+            int maxStock = calculateMaxStock(avgDailySales);
+            int optimalReorderQuantity = calculateOptimalReorderQuantity(avgDailySales, minStock, maxStock);
+
+            StockOptimizationResponse.ProductOptimization opt = new StockOptimizationResponse.ProductOptimization();
+            opt.setProductId(productId);
+            opt.setProductCode(String.valueOf(product.getOrDefault("code", "")));
+            opt.setProductName(String.valueOf(product.getOrDefault("name", "")));
+            opt.setCurrentStock(currentStock);
+            opt.setMinStock(minStock);
+            opt.setMaxStock(maxStock);
+            opt.setOptimalReorderQuantity(optimalReorderQuantity);
+            opt.setReasoning(String.format(
+                    "Dựa trên tốc độ bán %.1f/ngày. Mức tồn tối thiểu: %d (7 ngày), tối đa: %d (21 ngày).",
+                    avgDailySales, minStock, maxStock));
+            optimizations.add(opt);
+
+            // Gợi ý kho hàng dựa trên lịch sử xuất
+            Long recommendedStoreId = recommendWarehouse(stocks, exports, productId, storeMap);
+            if (recommendedStoreId != null && !recommendedStoreId.equals(storeId)) {
+                Map<String, Object> recommendedStore = storeMap.get(recommendedStoreId);
+                if (recommendedStore != null) {
+                    StockOptimizationResponse.WarehouseRecommendation wr = new StockOptimizationResponse.WarehouseRecommendation();
+                    wr.setProductId(productId);
+                    wr.setProductCode(String.valueOf(product.getOrDefault("code", "")));
+                    wr.setProductName(String.valueOf(product.getOrDefault("name", "")));
+                    wr.setRecommendedStoreId(recommendedStoreId);
+                    wr.setRecommendedStoreName(String.valueOf(recommendedStore.getOrDefault("name", "")));
+                    wr.setReasoning("Kho này có lịch sử xuất hàng tốt hơn cho sản phẩm này");
+                    warehouseRecommendations.add(wr);
+                }
+            }
         }
+
+        // Phân tích danh mục
+        List<StockOptimizationResponse.CategoryOptimization> categoryOptimizations = analyzeCategories(products,
+                exports);
+
+        // Tạo summary
+        return generateOptimizationSummary(optimizations, warehouseRecommendations)
+                .map(summary -> new StockOptimizationResponse(
+                        optimizations,
+                        warehouseRecommendations,
+                        categoryOptimizations,
+                        summary));
     }
 
     private int calculateMinStock(Double avgDailySales) {
@@ -205,60 +199,58 @@ public class StockOptimizationService {
         return categoryOpts;
     }
 
-    private String generateOptimizationSummary(
+    private Mono<String> generateOptimizationSummary(
             List<StockOptimizationResponse.ProductOptimization> optimizations,
             List<StockOptimizationResponse.WarehouseRecommendation> warehouseRecs) {
         if (optimizations.isEmpty()) {
-            throw new IllegalStateException("Không có dữ liệu tối ưu kho để phân tích bằng Gemini");
+            return Mono.error(new IllegalStateException("Không có dữ liệu tối ưu kho để phân tích bằng Gemini"));
         }
 
-        try {
-            String topProducts = optimizations.stream()
-                    .limit(5)
-                    .map(opt -> String.format("%s (%s) - tồn hiện tại %d, min %d, max %d",
-                            opt.getProductName(),
-                            opt.getProductCode(),
-                            opt.getCurrentStock(),
-                            opt.getMinStock(),
-                            opt.getMaxStock()))
-                    .collect(Collectors.joining("\n"));
-
-            String warehouseHighlights = warehouseRecs.stream()
-                    .limit(3)
-                    .map(rec -> String.format("%s → %s (%s)",
-                            rec.getProductName(),
-                            rec.getRecommendedStoreName(),
-                            rec.getReasoning()))
-                    .collect(Collectors.joining("\n"));
-
-            String prompt = String.format("""
-                    Bạn là chuyên gia tối ưu kho hàng. Dựa trên dữ liệu sau, hãy viết 3 bullet points khuyến nghị
-                    và một câu kết luận (<120 từ):
-
-                    - Số sản phẩm đã phân tích: %d
-                    - Gợi ý điều phối kho: %d
-                    - Các sản phẩm nổi bật:
-                    %s
-
-                    - Các đề xuất điều phối kho nổi bật:
-                    %s
-
-                    Trả lời bằng tiếng Việt, tập trung vào hành động cụ thể.
-                    """,
-                    optimizations.size(),
-                    warehouseRecs.size(),
-                    topProducts.isBlank() ? "Không có" : topProducts,
-                    warehouseHighlights.isBlank() ? "Không có" : warehouseHighlights);
-
-            String summary = geminiService.invokeGemini(prompt);
-            if (summary != null && !summary.isBlank()) {
-                return summary.trim();
-            }
-        } catch (Exception e) {
-            log.error("Không thể tạo summary tối ưu kho bằng Gemini", e);
-            throw new RuntimeException("Gemini không khả dụng cho phân tích tối ưu kho: " + e.getMessage(), e);
-        }
-        throw new IllegalStateException("Gemini không trả về dữ liệu cho tối ưu kho");
+        String topProducts = optimizations.stream()
+                .limit(5)
+                .map(opt -> String.format("%s (%s) - tồn hiện tại %d, min %d, max %d",
+                        opt.getProductName(),
+                        opt.getProductCode(),
+                        opt.getCurrentStock(),
+                        opt.getMinStock(),
+                        opt.getMaxStock()))
+                .collect(Collectors.joining("\n"));
+
+        String warehouseHighlights = warehouseRecs.stream()
+                .limit(3)
+                .map(rec -> String.format("%s → %s (%s)",
+                        rec.getProductName(),
+                        rec.getRecommendedStoreName(),
+                        rec.getReasoning()))
+                .collect(Collectors.joining("\n"));
+
+        String prompt = String.format("""
+                Bạn là chuyên gia tối ưu kho hàng. Dựa trên dữ liệu sau, hãy viết 3 bullet points khuyến nghị
+                và một câu kết luận (<120 từ):
+
+                - Số sản phẩm đã phân tích: %d
+                - Gợi ý điều phối kho: %d
+                - Các sản phẩm nổi bật:
+                %s
+
+                - Các đề xuất điều phối kho nổi bật:
+                %s
+
+                Trả lời bằng tiếng Việt, tập trung vào hành động cụ thể.
+                """,
+                optimizations.size(),
+                warehouseRecs.size(),
+                topProducts.isBlank() ? "Không có" : topProducts,
+                warehouseHighlights.isBlank() ? "Không có" : warehouseHighlights);
+
+        return geminiService.invokeGeminiAsync(prompt, "stock-optimization")
+                .onErrorMap(e -> {
+                    log.error("Không thể tạo summary tối ưu kho bằng Gemini", e);
+                    return new RuntimeException("Gemini không khả dụng cho phân tích tối ưu kho: " + e.getMessage(), e);
+                })
+                .flatMap(summary -> summary != null && !summary.isBlank()
+                        ? Mono.just(summary.trim())
+                        : Mono.error(new IllegalStateException("Gemini không trả về dữ liệu cho tối ưu kho")));
     }
 
     private Double calculateAverageDailySales(List<Map<String, Object>> exports, Long productId) {
@@ -294,124 +286,6 @@ public class StockOptimizationService {
         return totalSold / (double) days;
     }
 
-    private List<Map<String, Object>> fetchStocks(String token) {
-        try {
-            WebClient webClient = webClientBuilder.baseUrl(apiGatewayUrl).build();
-            Map<String, Object> response = webClient.get()
-                    .uri("/api/stocks")
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
-                    })
-                    .block(TIMEOUT);
-
-            if (response != null && response.containsKey("data")) {
-                return (List<Map<String, Object>>) response.get("data");
-            }
-            return new ArrayList<>();
-        } catch (Exception e) {
-            log.error("Error fetching stocks", e);
-            return new ArrayList<>();
-        }
-    }
-
-    private List<Map<String, Object>> fetchProducts(String token) {
-        try {
-            WebClient webClient = webClientBuilder.baseUrl(apiGatewayUrl).build();
-            Map<String, Object> response = webClient.get()
-                    .uri("/api/products")
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
-                    })
-                    .block(TIMEOUT);
-
-            if (response != null && response.containsKey("data")) {
-                return (List<Map<String, Object>>) response.get("data");
-            }
-            return new ArrayList<>();
-        } catch (Exception e) {
-            log.error("Error fetching products", e);
-            return new ArrayList<>();
-        }
-    }
-
-    private List<Map<String, Object>> fetchStores(String token) {
-        try {
-            WebClient webClient = webClientBuilder.baseUrl(apiGatewayUrl).build();
-            Map<String, Object> response = webClient.get()
-                    .uri("/api/stores")
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
-                    })
-                    .block(TIMEOUT);
-
-            if (response != null && response.containsKey("data")) {
-                return (List<Map<String, Object>>) response.get("data");
-            }
-            return new ArrayList<>();
-        } catch (Exception e) {
-            log.error("Error fetching stores", e);
-            return new ArrayList<>();
-        }
-    }
-
-    private List<Map<String, Object>> fetchExports(String token, LocalDate from, LocalDate to) {
-        try {
-            WebClient webClient = webClientBuilder.baseUrl(apiGatewayUrl).build();
-            Map<String, Object> response = webClient.get()
-                    .uri(uriBuilder -> uriBuilder
-                            .path("/api/exports")
-                            .queryParam("from", from.toString())
-                            .queryParam("to", to.toString())
-                            .build())
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
-                    })
-                    .block(TIMEOUT);
-
-            if (response != null && response.containsKey("data")) {
-                return (List<Map<String, Object>>) response.get("data");
-            }
-            return new ArrayList<>();
-        } catch (Exception e) {
-            log.error("Error fetching exports", e);
-            return new ArrayList<>();
-        }
-    }
-
-    private List<Map<String, Object>> fetchImports(String token, LocalDate from, LocalDate to) {
-        try {
-            WebClient webClient = webClientBuilder.baseUrl(apiGatewayUrl).build();
-            Map<String, Object> response = webClient.get()
-                    .uri(uriBuilder -> uriBuilder
-                            .path("/api/imports")
-                            .queryParam("from", from.toString())
-                            .queryParam("to", to.toString())
-                            .build())
-                    .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(new ParameterizedTypeReference<Map<String, Object>>() {
-                    })
-                    .block(TIMEOUT);
-
-            if (response != null && response.containsKey("data")) {
-                return (List<Map<String, Object>>) response.get("data");
-            }
-            return new ArrayList<>();
-        } catch (Exception e) {
-            log.error("Error fetching imports", e);
-            return new ArrayList<>();
-        }
-    }
-
     private Integer getIntegerValue(Map<String, Object> map, String key, Integer defaultValue) {
         Object value = map.get(key);
         if (value instanceof Number) {
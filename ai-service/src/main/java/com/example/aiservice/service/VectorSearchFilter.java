@@ -0,0 +1,90 @@
+package com.example.aiservice.service;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * Điều kiện lọc khi tìm vector phiếu; field null/rỗng = không lọc theo field đó.
+ * Milvus nhận điều kiện dưới dạng biểu thức boolean, kho nhúng lọc ngay trong lúc duyệt đồ thị.
+ * Tên nhà cung cấp so khớp không phân biệt hoa thường: cả lúc lưu và lúc lọc đều dùng normalizeSupplier.
+ */
+public final class VectorSearchFilter {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    public static final VectorSearchFilter NONE = new VectorSearchFilter(null, null);
+
+    private final String receiptType;
+    private final String supplierName;
+
+    private VectorSearchFilter(String receiptType, String supplierName) {
+        this.receiptType = blankToNull(receiptType);
+        this.supplierName = supplierName == null || supplierName.isBlank() ? null : normalizeSupplier(supplierName);
+    }
+
+    public static VectorSearchFilter of(String receiptType, String supplierName) {
+        return new VectorSearchFilter(receiptType, supplierName);
+    }
+
+    public String getReceiptType() {
+        return receiptType;
+    }
+
+    public String getSupplierName() {
+        return supplierName;
+    }
+
+    public boolean isEmpty() {
+        return receiptType == null && supplierName == null;
+    }
+
+    public boolean matches(String receiptType, String supplierName) {
+        return (this.receiptType == null || this.receiptType.equals(receiptType))
+                && (this.supplierName == null || this.supplierName.equals(normalizeSupplier(supplierName)));
+    }
+
+    /**
+     * Dạng lưu/so khớp của tên nhà cung cấp: gộp khoảng trắng, chữ thường ("ABC  Corp" ~ "abc corp").
+     * Milvus không có phép so sánh chuỗi không phân biệt hoa thường nên supplier_name được lưu sẵn ở dạng này.
+     */
+    public static String normalizeSupplier(String supplierName) {
+        if (supplierName == null) {
+            return "";
+        }
+        return WHITESPACE.matcher(supplierName.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Bỏ điều kiện nhà cung cấp, giữ loại phiếu
+     */
+    public VectorSearchFilter withoutSupplier() {
+        return supplierName == null ? this : new VectorSearchFilter(receiptType, null);
+    }
+
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VectorSearchFilter)) {
+            return false;
+        }
+        VectorSearchFilter that = (VectorSearchFilter) o;
+        return Objects.equals(receiptType, that.receiptType) && Objects.equals(supplierName, that.supplierName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(receiptType, supplierName);
+    }
+
+    @Override
+    public String toString() {
+        return "VectorSearchFilter{receiptType=" + receiptType + ", supplierName=" + supplierName + "}";
+    }
+}
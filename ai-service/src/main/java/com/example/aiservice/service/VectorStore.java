@@ -0,0 +1,35 @@
+package com.example.aiservice.service;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Kho vector embedding của phiếu nhập/xuất (Milvus hoặc index nhúng trong process).
+ * Mỗi kết quả search gồm: id, score (khoảng cách, càng nhỏ càng giống),
+ * receipt_type, supplier_name, customer_name, metadata (JSON).
+ */
+public interface VectorStore {
+
+    /**
+     * Kho đã sẵn sàng để lưu/tìm kiếm
+     */
+    boolean isAvailable();
+
+    void saveEmbedding(String receiptType, String supplierName, String customerName,
+            List<Float> embedding, Map<String, Object> metadata);
+
+    default List<Map<String, Object>> searchSimilar(List<Float> queryEmbedding, int topK) {
+        return searchSimilar(queryEmbedding, topK, VectorSearchFilter.NONE);
+    }
+
+    /**
+     * Tìm topK vector gần nhất thỏa filter (lọc trong kho, không lọc lại ở Java)
+     */
+    List<Map<String, Object>> searchSimilar(List<Float> queryEmbedding, int topK, VectorSearchFilter filter);
+
+    /**
+     * Tìm cho nhiều vector trong 1 lần gọi; phần tử i của kết quả ứng với queryEmbeddings.get(i)
+     */
+    List<List<Map<String, Object>>> searchSimilarBatch(List<List<Float>> queryEmbeddings, int topK,
+            VectorSearchFilter filter);
+}
@@ -0,0 +1,61 @@
+package com.example.aiservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chọn kho vector theo ai.vector-store.type:
+ * - milvus: chỉ dùng Milvus (như trước đây)
+ * - embedded: chỉ dùng index HNSW trong process
+ * - auto (mặc định): Milvus nếu kết nối được, nếu không thì dùng index trong process
+ */
+@Component
+@Primary
+@RequiredArgsConstructor
+@Slf4j
+public class VectorStoreRouter implements VectorStore {
+
+    private final MilvusService milvusService;
+    private final EmbeddedVectorStore embeddedVectorStore;
+
+    @Value("${ai.vector-store.type:auto}")
+    private String type;
+
+    @Override
+    public boolean isAvailable() {
+        return current().isAvailable();
+    }
+
+    @Override
+    public void saveEmbedding(String receiptType, String supplierName, String customerName,
+            List<Float> embedding, Map<String, Object> metadata) {
+        current().saveEmbedding(receiptType, supplierName, customerName, embedding, metadata);
+    }
+
+    @Override
+    public List<Map<String, Object>> searchSimilar(List<Float> queryEmbedding, int topK, VectorSearchFilter filter) {
+        return current().searchSimilar(queryEmbedding, topK, filter);
+    }
+
+    @Override
+    public List<List<Map<String, Object>>> searchSimilarBatch(List<List<Float>> queryEmbeddings, int topK,
+            VectorSearchFilter filter) {
+        return current().searchSimilarBatch(queryEmbeddings, topK, filter);
+    }
+
+    private VectorStore current() {
+        if ("embedded".equalsIgnoreCase(type)) {
+            return embeddedVectorStore;
+        }
+        if ("milvus".equalsIgnoreCase(type) || milvusService.isAvailable()) {
+            return milvusService;
+        }
+        return embeddedVectorStore;
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.aiservice.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.milvus.client.MilvusServiceClient;
+import io.milvus.param.R;
+import io.milvus.param.dml.InsertParam;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Ghi lô vào Milvus (client giả lập kiểm tra giới hạn field như server): 1 dòng quá khổ hoặc bị từ chối
+ * không được làm mất cả lô.
+ */
+class MilvusServiceTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private MilvusService service;
+    private final List<Map<String, Object>> inserted = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        MilvusServiceClient client = mock(MilvusServiceClient.class);
+        // Như Milvus: cả lô bị từ chối nếu 1 dòng vượt VarChar hoặc có customer_name "REJECTED"
+        doAnswer(inv -> {
+            Map<String, List<?>> columns = columns(inv.getArgument(0));
+            List<?> metadata = columns.get("metadata");
+            for (int i = 0; i < metadata.size(); i++) {
+                if (bytes(metadata.get(i)) > MilvusService.METADATA_MAX_BYTES
+                        || bytes(columns.get("supplier_name").get(i)) > MilvusService.NAME_MAX_BYTES
+                        || "REJECTED".equals(columns.get("customer_name").get(i))) {
+                    return R.failed(new IllegalArgumentException("row " + i + " rejected"));
+                }
+            }
+            for (int i = 0; i < metadata.size(); i++) {
+                Map<String, Object> row = new HashMap<>();
+                columns.forEach((name, values) -> row.put(name, values.get(i)));
+                inserted.add(row);
+            }
+            return R.success(null);
+        }).when(client).insert(any(InsertParam.class));
+
+        service = new MilvusService();
+        ReflectionTestUtils.setField(service, "milvusClient", client);
+        ReflectionTestUtils.setField(service, "collectionName", "receipt_embeddings");
+        ReflectionTestUtils.setField(service, "batchSize", 256);
+        ReflectionTestUtils.setField(service, "maxAttempts", 1);
+        ReflectionTestUtils.setField(service, "offerTimeoutMs", 100L);
+        ReflectionTestUtils.setField(service, "shutdownTimeoutMs", 1000L);
+        ReflectionTestUtils.setField(service, "writeBuffer", new LinkedBlockingQueue<>(1000));
+        ReflectionTestUtils.setField(service, "running", true);
+        // Thread chưa chạy: cleanup() xả cả buffer thành 1 lô, đồng bộ
+        ReflectionTestUtils.setField(service, "flusher", new Thread(() -> { }));
+    }
+
+    @Test
+    void oversizeRowInBatchIsShrunkAndWholeBatchLands() throws Exception {
+        for (int i = 0; i < 9; i++) {
+            service.saveEmbedding("IMPORT", "NCC " + i, "", embedding(), receipt(2));
+        }
+        service.saveEmbedding("IMPORT", "Công ty TNHH Thương mại Dịch vụ " + "Đồng Tháp ".repeat(40), "",
+                embedding(), receipt(40));
+        service.cleanup();
+
+        assertEquals(10, inserted.size());
+        assertEquals(10L, service.writeStats().get("flushedRows"));
+        assertEquals(0L, service.writeStats().get("failedRows"));
+
+        Map<String, Object> oversize = inserted.get(9);
+        assertTrue(bytes(oversize.get("metadata")) <= MilvusService.METADATA_MAX_BYTES);
+        assertTrue(bytes(oversize.get("supplier_name")) <= MilvusService.NAME_MAX_BYTES);
+        JsonNode metadata = objectMapper.readTree((String) oversize.get("metadata"));
+        assertTrue(metadata.get("productsTruncated").asBoolean());
+        assertTrue(metadata.get("products").size() > 0 && metadata.get("products").size() < 40);
+    }
+
+    @Test
+    void rejectedRowIsIsolatedAndOtherRowsAreSaved() {
+        for (int i = 0; i < 10; i++) {
+            service.saveEmbedding("EXPORT", "", i == 6 ? "REJECTED" : "Khách " + i, embedding(), receipt(1));
+        }
+        service.cleanup();
+
+        assertEquals(9, inserted.size());
+        assertEquals(9L, service.writeStats().get("flushedRows"));
+        assertEquals(1L, service.writeStats().get("failedRows"));
+        assertTrue(inserted.stream().noneMatch(row -> "REJECTED".equals(row.get("customer_name"))));
+    }
+
+    @Test
+    void wrongDimensionIsDroppedBeforeQueueing() {
+        service.saveEmbedding("IMPORT", "", "", Collections.nCopies(3, 0.1f), receipt(1));
+        service.saveEmbedding("IMPORT", "", "", embedding(), receipt(1));
+        service.cleanup();
+
+        assertEquals(1, inserted.size());
+        assertEquals(1L, service.writeStats().get("droppedRows"));
+    }
+
+    private static Map<String, List<?>> columns(InsertParam param) {
+        Map<String, List<?>> columns = new HashMap<>();
+        for (InsertParam.Field field : param.getFields()) {
+            columns.put(field.getName(), field.getValues());
+        }
+        return columns;
+    }
+
+    private static int bytes(Object value) {
+        return value.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static List<Float> embedding() {
+        return Collections.nCopies(MilvusService.EMBEDDING_DIMENSION, 0.5f);
+    }
+
+    private static Map<String, Object> receipt(int productCount) {
+        List<Map<String, Object>> products = new ArrayList<>();
+        for (int i = 0; i < productCount; i++) {
+            Map<String, Object> product = new HashMap<>();
+            product.put("name", "Nước mắm Phú Quốc thượng hạng chai thủy tinh 500ml loại " + i);
+            product.put("code", "SP" + (10000 + i));
+            product.put("quantity", 12);
+            product.put("unitPrice", 85000.0);
+            product.put("unit", "Thùng");
+            products.add(product);
+        }
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("receiptType", "IMPORT");
+        metadata.put("note", "Giao hàng trước 10 giờ sáng");
+        metadata.put("products", products);
+        return metadata;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.aiservice.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dự báo nhu cầu cho mọi sản phẩm trên dữ liệu giả lập 90 ngày, khoảng 200 nghìn dòng phiếu:
+ * - singlePassIndex: ProductMovementIndex (duyệt phiếu 1 lần, rồi tra cứu theo sản phẩm)
+ * - legacyRescan: cách cũ, mỗi sản phẩm quét lại toàn bộ phiếu nhập/xuất (4 lần quét như DemandForecastingService cũ)
+ *
+ * Chạy tay (không thuộc mvn test):
+ * <pre>
+ * ./mvnw -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt -Dmdep.includeScope=test
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.openjdk.jmh.Main ProductMovementIndexBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProductMovementIndexBenchmark {
+
+    private static final int DAYS = 90;
+    private static final int LINES_PER_RECEIPT = 8;
+    private static final int EXPORT_LINES = 160_000;
+    private static final int IMPORT_LINES = 40_000;
+
+    @Param({"1000", "5000"})
+    public int skus;
+
+    private LocalDate from;
+    private LocalDate to;
+    private List<Map<String, Object>> exports;
+    private List<Map<String, Object>> imports;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        Random random = new Random(42);
+        to = LocalDate.of(2026, 6, 30);
+        from = to.minusDays(DAYS - 1);
+        exports = receipts(random, EXPORT_LINES / LINES_PER_RECEIPT, "exportDate", true);
+        imports = receipts(random, IMPORT_LINES / LINES_PER_RECEIPT, "importDate", false);
+    }
+
+    @Benchmark
+    public double singlePassIndex() {
+        ProductMovementIndex movements = ProductMovementIndex.build(exports, imports, from, to);
+        int exportedDays = Math.max(1, movements.getExportedDayCount());
+        int importDays = Math.max(1, movements.getImportDayCount());
+        double checksum = 0;
+        for (long productId = 1; productId <= skus; productId++) {
+            checksum += movements.soldQuantity(productId) / (double) exportedDays;
+            checksum += movements.importedQuantity(productId) / (double) importDays;
+            for (int quantity : movements.topImportQuantities(productId)) {
+                checksum += quantity;
+            }
+            checksum += movements.exportLineCount(productId);
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    public double legacyRescan() {
+        double checksum = 0;
+        for (long productId = 1; productId <= skus; productId++) {
+            checksum += averageDailySales(productId);
+            checksum += averageDailyImport(productId);
+            for (int quantity : topImports(productId)) {
+                checksum += quantity;
+            }
+            checksum += exportLineCount(productId);
+        }
+        return checksum;
+    }
+
+    private List<Map<String, Object>> receipts(Random random, int count, String dateField, boolean export) {
+        List<Map<String, Object>> receipts = new ArrayList<>(count);
+        for (int r = 0; r < count; r++) {
+            List<Map<String, Object>> items = new ArrayList<>(LINES_PER_RECEIPT);
+            for (int i = 0; i < LINES_PER_RECEIPT; i++) {
+                Map<String, Object> item = new HashMap<>();
+                item.put("productId", (long) (1 + random.nextInt(skus)));
+                item.put("quantity", 1 + random.nextInt(export ? 20 : 200));
+                items.add(item);
+            }
+            Map<String, Object> receipt = new HashMap<>();
+            receipt.put(dateField, from.plusDays(random.nextInt(DAYS)).toString());
+            // ~10% phiếu xuất chưa duyệt
+            receipt.put("status", export && random.nextInt(10) == 0 ? "PENDING" : "EXPORTED");
+            receipt.put("items", items);
+            receipts.add(receipt);
+        }
+        return receipts;
+    }
+
+    // Các hàm dưới là bản sao cách tính trong DemandForecastingService trước khi có ProductMovementIndex
+
+    private double averageDailySales(long productId) {
+        int totalSold = 0;
+        Set<String> dates = new HashSet<>();
+        for (Map<String, Object> export : exports) {
+            if (!"EXPORTED".equals(String.valueOf(export.get("status")))) {
+                continue;
+            }
+            dates.add(export.get("exportDate").toString());
+            for (Map<?, ?> item : items(export)) {
+                if (productId == ((Number) item.get("productId")).longValue()) {
+                    totalSold += ((Number) item.get("quantity")).intValue();
+                }
+            }
+        }
+        return totalSold / (double) Math.max(1, dates.size());
+    }
+
+    private double averageDailyImport(long productId) {
+        int totalImported = 0;
+        Set<String> dates = new HashSet<>();
+        for (Map<String, Object> importOrder : imports) {
+            dates.add(importOrder.get("importDate").toString());
+            for (Map<?, ?> item : items(importOrder)) {
+                if (productId == ((Number) item.get("productId")).longValue()) {
+                    totalImported += ((Number) item.get("quantity")).intValue();
+                }
+            }
+        }
+        return totalImported / (double) Math.max(1, dates.size());
+    }
+
+    private List<Integer> topImports(long productId) {
+        List<Integer> quantities = new ArrayList<>();
+        for (Map<String, Object> importOrder : imports) {
+            for (Map<?, ?> item : items(importOrder)) {
+                if (productId == ((Number) item.get("productId")).longValue()) {
+                    quantities.add(((Number) item.get("quantity")).intValue());
+                }
+            }
+        }
+        quantities.sort(Collections.reverseOrder());
+        return quantities.subList(0, Math.min(3, quantities.size()));
+    }
+
+    private int exportLineCount(long productId) {
+        int count = 0;
+        for (Map<String, Object> export : exports) {
+            for (Map<?, ?> item : items(export)) {
+                if (productId == ((Number) item.get("productId")).longValue()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<?, ?>> items(Map<String, Object> receipt) {
+        return (List<Map<?, ?>>) receipt.get("items");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ProductMovementIndexBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.aiservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Gom phiếu theo sản phẩm 1 lần: tổng, chuỗi theo ngày và tra cứu trên bảng băm khóa long.
+ */
+class ProductMovementIndexTest {
+
+    private static final LocalDate FROM = LocalDate.of(2026, 3, 1);
+    private static final LocalDate TO = LocalDate.of(2026, 3, 10);
+
+    @Test
+    void bucketsQuantitiesByDayAndCountsOnlyExportedAsSold() {
+        List<Map<String, Object>> exports = List.of(
+                receipt("exportDate", "2026-03-01", "EXPORTED", line(7L, 5), line(8L, 1)),
+                receipt("exportDate", "2026-03-03T09:30:00", "EXPORTED", line(7L, 2)),
+                receipt("exportDate", "2026-03-03", "PENDING", line(7L, 100)),
+                // ngoài khoảng ngày: vẫn vào tổng nhưng không vào chuỗi theo ngày
+                receipt("exportDate", "2026-02-20", "EXPORTED", line(7L, 4)));
+        List<Map<String, Object>> imports = List.of(
+                receipt("importDate", "2026-03-10", null, line(7L, 50), line(7L, 30), line(7L, 70), line(7L, 10)));
+
+        ProductMovementIndex index = ProductMovementIndex.build(exports, imports, FROM, TO);
+
+        assertEquals(10, index.getDays());
+        assertEquals(11, index.soldQuantity(7L));
+        assertEquals(111, index.exportedQuantityAnyStatus(7L));
+        assertEquals(4, index.exportLineCount(7L));
+        assertArrayEquals(new int[] {5, 0, 2, 0, 0, 0, 0, 0, 0, 0}, index.dailySold(7L));
+        assertArrayEquals(new int[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 160}, index.dailyImported(7L));
+        assertArrayEquals(new int[] {70, 50, 30}, index.topImportQuantities(7L));
+        assertEquals(LocalDate.of(2026, 3, 3), index.lastSaleDate(7L));
+        assertEquals(3, index.getExportedDayCount());
+        assertEquals(1, index.getImportDayCount());
+    }
+
+    @Test
+    void lookupsStayCorrectAcrossRehashAndForUnknownProducts() {
+        List<Object> lines = new ArrayList<>();
+        for (long productId = -500; productId < 5000; productId += 3) {
+            lines.add(line(productId, (int) Math.floorMod(productId, 97) + 1));
+        }
+        List<Map<String, Object>> exports = List.of(
+                receipt("exportDate", "2026-03-05", "EXPORTED", lines.toArray()));
+
+        ProductMovementIndex index = ProductMovementIndex.build(exports, null, FROM, TO);
+
+        for (long productId = -500; productId < 5000; productId++) {
+            int expected = (productId + 500) % 3 == 0 ? (int) Math.floorMod(productId, 97) + 1 : 0;
+            assertEquals(expected, index.soldQuantity(productId), "productId " + productId);
+            assertEquals(expected, index.dailySold(productId)[4], "productId " + productId);
+        }
+        assertEquals(0, index.importedQuantity(1L));
+        assertNull(index.lastImportDate(1L));
+    }
+
+    private static Map<String, Object> receipt(String dateField, String date, String status, Object... lines) {
+        Map<String, Object> receipt = new HashMap<>();
+        receipt.put(dateField, date);
+        receipt.put("status", status);
+        receipt.put("items", List.of(lines));
+        return receipt;
+    }
+
+    private static Map<String, Object> line(long productId, int quantity) {
+        Map<String, Object> line = new HashMap<>();
+        line.put("productId", productId);
+        line.put("quantity", quantity);
+        return line;
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.api_gateway.security;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Verify JWT 1 lần tại gateway, chặn token sai/hết hạn ngay ở biên và chuyển danh tính xuống service
+ * qua các header X-Auth-* có chữ ký HMAC bằng security.gateway-identity.secret (khóa riêng, không dùng lại jwt.secret).
+ * Chữ ký gồm cả SHA-256 của bearer token, nên bộ header bị lộ không dùng lại được với token khác.
+ * Service phía sau kiểm tra chữ ký header thay vì parse lại JWT.
+ * Header X-Auth-* do client tự gửi luôn bị xóa; chưa cấu hình secret thì không gắn header danh tính.
+ */
+@Component
+public class JwtAuthenticationGlobalFilter implements GlobalFilter, Ordered {
+
+    private static final Logger log = LoggerFactory.getLogger(JwtAuthenticationGlobalFilter.class);
+
+    public static final String HEADER_USER = "X-Auth-User";
+    public static final String HEADER_USER_ID = "X-Auth-User-Id";
+    public static final String HEADER_ROLES = "X-Auth-Roles";
+    public static final String HEADER_TIMESTAMP = "X-Auth-Timestamp";
+    public static final String HEADER_SIGNATURE = "X-Auth-Signature";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final int MAX_HEADER_LENGTH = 8192;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    // Các endpoint không cần đăng nhập: token cũ đi kèm (nếu có) không bị chặn
+    private static final Set<String> PUBLIC_PATHS = Set.of(
+            "/api/auth/login",
+            "/api/auth/refresh",
+            "/api/auth/forgot-password",
+            "/api/auth/reset-password",
+            "/api/auth/verify-email",
+            "/api/auth/resend-verification");
+    private static final String UPLOADS_PREFIX = "/uploads/";
+
+    @Value("${jwt.secret}")
+    private String secretKey;
+
+    // Không có mặc định: để trống thì không ký header danh tính, service phía sau tự verify JWT
+    @Value("${security.gateway-identity.secret:}")
+    private String identitySecret;
+
+    @Value("${security.gateway-identity.enabled:true}")
+    private boolean enabled;
+
+    @Value("${jwt.claims-cache.max-entries:10000}")
+    private int cacheMaxEntries;
+
+    private JwtParser jwtParser;
+    private SecretKeySpec identityKey;
+
+    // SHA-256(token) -> danh tính đã verify, hết hạn cùng token
+    private final Map<String, Identity> identityCache = new ConcurrentHashMap<>();
+    private volatile long lastSweep;
+
+    @PostConstruct
+    public void init() {
+        jwtParser = Jwts.parserBuilder()
+                .setSigningKey(Keys.hmacShaKeyFor(secretKey.getBytes(StandardCharsets.UTF_8)))
+                .build();
+        if (identitySecret == null || identitySecret.isBlank()) {
+            log.warn("[GATEWAY] security.gateway-identity.secret is not set, identity headers will not be forwarded");
+        } else if (identitySecret.equals(secretKey)) {
+            throw new IllegalStateException("security.gateway-identity.secret phải khác jwt.secret");
+        } else {
+            identityKey = new SecretKeySpec(identitySecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        }
+        log.info("[GATEWAY] JWT verification at edge enabled={}, identity headers={}", enabled, identityKey != null);
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE + 100;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        ServerHttpRequest.Builder forwarded = request.mutate().headers(headers -> {
+            headers.remove(HEADER_USER);
+            headers.remove(HEADER_USER_ID);
+            headers.remove(HEADER_ROLES);
+            headers.remove(HEADER_TIMESTAMP);
+            headers.remove(HEADER_SIGNATURE);
+        });
+
+        String path = request.getURI().getPath();
+        String authHeader = request.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        if (!enabled
+                || HttpMethod.OPTIONS.equals(request.getMethod())
+                || PUBLIC_PATHS.contains(path)
+                || path.startsWith(UPLOADS_PREFIX)
+                || authHeader == null
+                || !authHeader.startsWith(BEARER_PREFIX)) {
+            // Không có token: service phía sau tự quyết định endpoint có cần đăng nhập hay không
+            return chain.filter(exchange.mutate().request(forwarded.build()).build());
+        }
+
+        String token = resolveBearerToken(authHeader);
+        if (token == null) {
+            return reject(exchange, "Token không hợp lệ");
+        }
+
+        String tokenDigest = digest(token);
+        Identity identity;
+        try {
+            identity = verify(token, tokenDigest);
+        } catch (ExpiredJwtException e) {
+            return reject(exchange, "Token đã hết hạn");
+        } catch (JwtException | IllegalArgumentException e) {
+            log.debug("[GATEWAY] Invalid JWT on {}: {}", path, e.getMessage());
+            return reject(exchange, "Token không hợp lệ");
+        }
+
+        if (identityKey == null) {
+            return chain.filter(exchange.mutate().request(forwarded.build()).build());
+        }
+        String timestamp = Long.toString(System.currentTimeMillis());
+        String signature = sign(identity.username, identity.userId, identity.roles, timestamp, tokenDigest);
+        forwarded.headers(headers -> {
+            headers.set(HEADER_USER, identity.username);
+            headers.set(HEADER_USER_ID, identity.userId);
+            headers.set(HEADER_ROLES, identity.roles);
+            headers.set(HEADER_TIMESTAMP, timestamp);
+            headers.set(HEADER_SIGNATURE, signature);
+        });
+        return chain.filter(exchange.mutate().request(forwarded.build()).build());
+    }
+
+    /**
+     * Chữ ký HMAC-SHA256 (base64url) của danh tính và SHA-256 (base64url) của bearer token;
+     * service phía sau tính lại theo đúng thứ tự này
+     */
+    String sign(String username, String userId, String roles, String timestamp, String tokenDigest) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(identityKey);
+            byte[] payload = (username + "\n" + userId + "\n" + roles + "\n" + timestamp + "\n" + tokenDigest)
+                    .getBytes(StandardCharsets.UTF_8);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(payload));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 không khả dụng", e);
+        }
+    }
+
+    private Identity verify(String token, String key) {
+        long now = System.currentTimeMillis();
+        Identity cached = identityCache.get(key);
+        if (cached != null) {
+            if (cached.expiresAt > now) {
+                return cached;
+            }
+            identityCache.remove(key);
+        }
+
+        Claims claims = jwtParser.parseClaimsJws(token).getBody();
+        Object userId = claims.get("userId");
+        Object roles = claims.get("roles");
+        Identity identity = new Identity(
+                claims.getSubject(),
+                userId != null ? userId.toString() : "",
+                roles instanceof List<?> list ? String.join(",", list.stream().map(Object::toString).toList()) : "",
+                expiresAt(claims));
+        if (identity.username == null) {
+            throw new JwtException("Token không có subject");
+        }
+        cacheIdentity(key, identity, now);
+        return identity;
+    }
+
+    private static long expiresAt(Claims claims) {
+        Date exp = claims.getExpiration();
+        return exp != null ? exp.getTime() : Long.MAX_VALUE;
+    }
+
+    // Token không có exp không được cache
+    private void cacheIdentity(String key, Identity identity, long now) {
+        if (identity.expiresAt == Long.MAX_VALUE) {
+            return;
+        }
+        if (identityCache.size() >= cacheMaxEntries) {
+            if (now - lastSweep < SWEEP_INTERVAL_MS) {
+                return;
+            }
+            lastSweep = now;
+            identityCache.values().removeIf(c -> c.expiresAt <= now);
+            if (identityCache.size() >= cacheMaxEntries) {
+                return;
+            }
+        }
+        identityCache.put(key, identity);
+    }
+
+    private Mono<Void> reject(ServerWebExchange exchange, String message) {
+        ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(HttpStatus.UNAUTHORIZED);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        byte[] body = ("{\"message\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(body)));
+    }
+
+    // Header không có dạng 3 phần base64url -> null, không cần gọi parser
+    private static String resolveBearerToken(String authHeader) {
+        if (authHeader.length() <= BEARER_PREFIX.length() || authHeader.length() > MAX_HEADER_LENGTH) {
+            return null;
+        }
+        int dots = 0;
+        for (int i = BEARER_PREFIX.length(); i < authHeader.length(); i++) {
+            char c = authHeader.charAt(i);
+            if (c == '.') {
+                dots++;
+            } else if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_')) {
+                return null;
+            }
+        }
+        return dots == 2 ? authHeader.substring(BEARER_PREFIX.length()) : null;
+    }
+
+    private static String digest(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 không khả dụng", e);
+        }
+    }
+
+    private static final class Identity {
+        private final String username;
+        private final String userId;
+        private final String roles;
+        private final long expiresAt;
+
+        private Identity(String username, String userId, String roles, long expiresAt) {
+            this.username = username;
+            this.userId = userId;
+            this.roles = roles;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -12,19 +12,25 @@ import com.example.auth_service.dto.TokenPairResponse;
 import com.example.auth_service.dto.UpdateProfileRequest;
 import com.example.auth_service.dto.UserProfileDto;
 import com.example.auth_service.service.AuthService;
+import com.example.auth_service.service.RateLimitingService;
 import jakarta.validation.Valid;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Map;
+
 @RestController
 @RequestMapping("/api/auth")
 public class AuthController {
 
     private final AuthService authService;
+    private final RateLimitingService rateLimitingService;
 
-    public AuthController(AuthService authService) {
+    public AuthController(AuthService authService, RateLimitingService rateLimitingService) {
         this.authService = authService;
+        this.rateLimitingService = rateLimitingService;
     }
 
     @PostMapping("/login")
@@ -64,6 +70,12 @@ public class AuthController {
         return ApiResponse.ok("Nếu tài khoản cần xác thực email, hệ thống đã gửi lại email xác thực.", null);
     }
 
+    @GetMapping("/rate-limit/stats")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public ApiResponse<Map<String, Object>> getRateLimitStats() {
+        return ApiResponse.ok(rateLimitingService.stats());
+    }
+
     @GetMapping("/profile")
     public ApiResponse<UserProfileDto> getProfile() {
         String username = getCurrentUsername();
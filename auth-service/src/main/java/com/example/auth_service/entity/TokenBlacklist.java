@@ -14,6 +14,7 @@ public class TokenBlacklist {
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
+    // SHA-256 (hex) của access token, không lưu token gốc
     @Column(name = "token", nullable = false, unique = true, length = 512)
     private String token;
 
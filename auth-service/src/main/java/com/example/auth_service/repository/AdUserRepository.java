@@ -7,6 +7,7 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
+import java.util.List;
 import java.util.Optional;
 
 public interface AdUserRepository extends JpaRepository<AdUser, Long> {
@@ -29,4 +30,8 @@ public interface AdUserRepository extends JpaRepository<AdUser, Long> {
         @Param("roleId") Long roleId,
         Pageable pageable
     );
-}
\ No newline at end of file
+
+    // Username của các user đang giữ role, dùng để xóa cache UserDetails khi role thay đổi
+    @Query("SELECT u.username FROM AdUser u JOIN u.roles r WHERE r.id = :roleId")
+    List<String> findUsernamesByRoleId(@Param("roleId") Long roleId);
+}
@@ -2,12 +2,22 @@ package com.example.auth_service.repository;
 
 import com.example.auth_service.entity.TokenBlacklist;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.util.Date;
+import java.util.List;
 
 public interface TokenBlacklistRepository extends JpaRepository<TokenBlacklist, Long> {
+    // token = SHA-256 (hex) của access token
     boolean existsByToken(String token);
     long deleteByExpiryDateBefore(Date cutoff);
-}
 
+    @Query("SELECT t.token FROM TokenBlacklist t WHERE t.expiryDate > :now")
+    List<String> findActiveTokens(@Param("now") Date now);
+
+    List<TokenBlacklist> findByBlacklistedAtAfter(Date since);
 
+    // Bản ghi cũ còn lưu token gốc (JWT có dấu chấm, digest hex thì không)
+    List<TokenBlacklist> findByTokenContaining(String fragment);
+}
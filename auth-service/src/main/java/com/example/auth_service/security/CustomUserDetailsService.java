@@ -4,34 +4,143 @@ import com.example.auth_service.entity.AdUser;
 import com.example.auth_service.entity.AdRole;
 import com.example.auth_service.repository.AdUserRepository;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.*;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+/**
+ * loadUserByUsername luôn đọc DB (dùng cho đăng nhập).
+ * loadCachedUserByUsername dùng cho JwtAuthenticationFilter: giữ UserDetails trong bộ nhớ tối đa
+ * app.auth.user-details-cache.ttl-ms, bị xóa ngay khi user/role thay đổi (evictUsers/evictAll).
+ * Cache là cục bộ từng instance, nên thay đổi ở instance khác có hiệu lực chậm nhất sau TTL.
+ */
 @Service
 @RequiredArgsConstructor
 public class CustomUserDetailsService implements UserDetailsService {
 
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
     private final AdUserRepository userRepository;
 
+    @Value("${app.auth.user-details-cache.ttl-ms:60000}")
+    private long cacheTtlMs;
+
+    @Value("${app.auth.user-details-cache.max-entries:10000}")
+    private int cacheMaxEntries;
+
+    private final Map<String, CachedUser> cache = new ConcurrentHashMap<>();
+    // Tăng mỗi lần evict: bản đọc từ DB trước đó (có thể đã cũ) không được ghi vào cache nữa
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile long lastSweep;
+
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
         AdUser user = userRepository.findByUsername(username)
                 .orElseThrow(() -> new UsernameNotFoundException("User not found: " + username));
+        return toUserDetails(user);
+    }
+
+    public UserDetails loadCachedUserByUsername(String username) throws UsernameNotFoundException {
+        if (cacheTtlMs <= 0) {
+            return loadUserByUsername(username);
+        }
+        long now = System.currentTimeMillis();
+        CachedUser cached = cache.get(username);
+        if (cached != null) {
+            if (cached.expiresAt > now) {
+                return cached.userDetails;
+            }
+            cache.remove(username, cached);
+        }
+
+        long generation = invalidations.get();
+        AdUser user = userRepository.findByUsername(username)
+                .orElseThrow(() -> new UsernameNotFoundException("User not found: " + username));
+        UserDetails userDetails = toUserDetails(user);
+
+        // Hết hạn sớm hơn nếu tài khoản đang bị khóa tạm, để tự mở khóa đúng thời điểm
+        long expiresAt = now + cacheTtlMs;
+        Date lockedUntil = user.getAccountLockedUntil();
+        if (lockedUntil != null && lockedUntil.getTime() > now) {
+            expiresAt = Math.min(expiresAt, lockedUntil.getTime());
+        }
+        put(username, new CachedUser(userDetails, expiresAt), generation, now);
+        return userDetails;
+    }
+
+    /**
+     * Xóa cache của các user, ngay lập tức và lần nữa sau khi transaction hiện tại commit
+     * (tránh request chen giữa nạp lại dữ liệu chưa commit)
+     */
+    public void evictUsers(Collection<String> usernames) {
+        runNowAndAfterCommit(() -> {
+            invalidations.incrementAndGet();
+            usernames.forEach(cache::remove);
+        });
+    }
 
+    public void evictUser(String username) {
+        evictUsers(List.of(username));
+    }
+
+    public void evictAll() {
+        runNowAndAfterCommit(() -> {
+            invalidations.incrementAndGet();
+            cache.clear();
+        });
+    }
+
+    private void put(String username, CachedUser entry, long generation, long now) {
+        if (cache.size() >= cacheMaxEntries) {
+            if (now - lastSweep < SWEEP_INTERVAL_MS) {
+                return;
+            }
+            lastSweep = now;
+            cache.values().removeIf(c -> c.expiresAt <= now);
+            if (cache.size() >= cacheMaxEntries) {
+                return;
+            }
+        }
+        cache.put(username, entry);
+        // Có evict trong lúc đọc DB: bỏ bản vừa ghi, lần sau đọc lại
+        if (invalidations.get() != generation) {
+            cache.remove(username, entry);
+        }
+    }
+
+    private static void runNowAndAfterCommit(Runnable action) {
+        action.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        }
+    }
+
+    private static UserDetails toUserDetails(AdUser user) {
         Set<AdRole> roles = user.getRoles();
         List<GrantedAuthority> authorities = roles.stream()
                 .map(role -> new SimpleGrantedAuthority(role.getRoleCode()))
                 .collect(Collectors.toList());
 
         boolean enabled = Boolean.TRUE.equals(user.getActive());
-        
+
         // Check if account is locked (either disabled or locked until a future date)
         boolean accountLocked = !enabled;
         Date lockedUntil = user.getAccountLockedUntil();
@@ -46,4 +155,14 @@ public class CustomUserDetailsService implements UserDetailsService {
                 .disabled(!enabled)
                 .build();
     }
+
+    private static final class CachedUser {
+        private final UserDetails userDetails;
+        private final long expiresAt;
+
+        private CachedUser(UserDetails userDetails, long expiresAt) {
+            this.userDetails = userDetails;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
@@ -26,6 +26,7 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
     private final JwtService jwtService;
     private final CustomUserDetailsService userDetailsService;
     private final TokenBlacklistService tokenBlacklistService;
+    private final GatewayIdentityVerifier gatewayIdentityVerifier;
 
     @Override
     protected void doFilterInternal(
@@ -64,12 +65,15 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
                 response.getWriter().write("{\"message\":\"Token đã bị vô hiệu hóa\"}");
                 return;
             }
-            final String username = jwtService.extractUsername(token);
+            // Request đi qua api-gateway: JWT đã verify ở gateway, lấy username từ header đã ký thay vì parse lại
+            final String gatewayUser = gatewayIdentityVerifier.verifiedUsername(request, token);
+            final String username = gatewayUser != null ? gatewayUser : jwtService.extractUsername(token);
 
             if (username != null && SecurityContextHolder.getContext().getAuthentication() == null) {
-                UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+                // Quyền lấy từ cache UserDetails, cache bị xóa ngay khi user/role thay đổi
+                UserDetails userDetails = userDetailsService.loadCachedUserByUsername(username);
 
-                if (jwtService.isTokenValid(token, userDetails)) {
+                if (gatewayUser != null || jwtService.isTokenValid(token, userDetails)) {
                     UsernamePasswordAuthenticationToken authToken =
                             new UsernamePasswordAuthenticationToken(
                                     userDetails,
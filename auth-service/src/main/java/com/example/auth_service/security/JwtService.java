@@ -12,6 +12,8 @@ import org.springframework.stereotype.Service;
 
 import java.nio.charset.StandardCharsets;
 import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -20,6 +22,14 @@ import java.util.stream.Collectors;
 @Slf4j
 public class JwtService {
 
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 không khả dụng", e);
+        }
+    });
+
     @Value("${jwt.secret}")
     private String secret;
 
@@ -166,4 +176,14 @@ public class JwtService {
         }
     }
 
+    /**
+     * SHA-256 (base64url) của token, phần token trong chữ ký header danh tính mà GatewayIdentityVerifier kiểm tra
+     */
+    static String tokenDigest(String token) {
+        MessageDigest sha256 = SHA256.get();
+        sha256.reset();
+        byte[] hash = sha256.digest(token.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
 }
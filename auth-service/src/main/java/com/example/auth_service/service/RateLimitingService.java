@@ -1,94 +1,166 @@
 package com.example.auth_service.service;
 
+import com.example.auth_service.util.TokenBucketRateLimiter;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Giới hạn số lần đăng nhập theo nhiều policy cùng lúc (app.auth.rate-limit.*):
+ * username:ip, username (1 tài khoản bị thử từ nhiều IP), ip (1 IP thử nhiều tài khoản) và global.
+ * Policy có max-attempts = 0 bị tắt.
+ */
 @Service
+@Slf4j
 public class RateLimitingService {
-    private final Map<String, List<Long>> attempts = new ConcurrentHashMap<>();
-    private static final int MAX_ATTEMPTS = 5;
-    private static final long WINDOW_MS = 15 * 60 * 1000; // 15 minutes
+
+    public enum Policy { USER_IP, USERNAME, IP, GLOBAL }
+
+    private static final String GLOBAL_KEY = "*";
+    private static final String UNKNOWN_IP = "unknown";
+
+    @Value("${app.auth.rate-limit.max-keys:100000}")
+    private int maxKeys;
+
+    @Value("${app.auth.rate-limit.user-ip.max-attempts:5}")
+    private int userIpMaxAttempts;
+
+    @Value("${app.auth.rate-limit.user-ip.window-ms:900000}")
+    private long userIpWindowMs;
+
+    @Value("${app.auth.rate-limit.username.max-attempts:10}")
+    private int usernameMaxAttempts;
+
+    @Value("${app.auth.rate-limit.username.window-ms:900000}")
+    private long usernameWindowMs;
+
+    @Value("${app.auth.rate-limit.ip.max-attempts:50}")
+    private int ipMaxAttempts;
+
+    @Value("${app.auth.rate-limit.ip.window-ms:900000}")
+    private long ipWindowMs;
+
+    @Value("${app.auth.rate-limit.global.max-attempts:0}")
+    private int globalMaxAttempts;
+
+    @Value("${app.auth.rate-limit.global.window-ms:60000}")
+    private long globalWindowMs;
+
+    // Chỉ chứa các policy đang bật
+    private final Map<Policy, TokenBucketRateLimiter> limiters = new EnumMap<>(Policy.class);
+
+    @PostConstruct
+    public void init() {
+        register(Policy.GLOBAL, globalMaxAttempts, globalWindowMs);
+        register(Policy.IP, ipMaxAttempts, ipWindowMs);
+        register(Policy.USERNAME, usernameMaxAttempts, usernameWindowMs);
+        register(Policy.USER_IP, userIpMaxAttempts, userIpWindowMs);
+        log.info("[RATE-LIMIT] Login policies enabled: {}", limiters.keySet());
+    }
 
     /**
-     * Check if the identifier (username:ip) is allowed to make a request
-     * @param identifier - Format: "username:ip" or just "ip"
-     * @return true if allowed, false if rate limited
+     * Lấy 1 lượt đăng nhập trên tất cả policy trước khi xác thực (nhiều request đoán mật khẩu song song
+     * cũng bị chặn đúng số lượt); nếu 1 policy từ chối thì trả lại lượt đã lấy ở policy khác.
+     * Đăng nhập thành công thì clearLoginAttempts trả lại lượt theo IP.
+     * @return 0 nếu được phép, ngược lại là số giây cần chờ
      */
-    public boolean isAllowed(String identifier) {
+    public long tryAcquireLogin(String username, String clientIp) {
         long now = System.currentTimeMillis();
-        List<Long> attemptTimes = attempts.computeIfAbsent(identifier, k -> new CopyOnWriteArrayList<>());
-        
-        // Remove attempts older than the time window
-        attemptTimes.removeIf(time -> (now - time) > WINDOW_MS);
-        
-        // Check if we've exceeded the limit
-        if (attemptTimes.size() >= MAX_ATTEMPTS) {
-            return false;
+        List<Map.Entry<TokenBucketRateLimiter, String>> acquired = new ArrayList<>(limiters.size());
+        for (Map.Entry<Policy, TokenBucketRateLimiter> entry : limiters.entrySet()) {
+            String key = key(entry.getKey(), username, clientIp);
+            if (key == null) {
+                continue;
+            }
+            TokenBucketRateLimiter limiter = entry.getValue();
+            long waitMs = limiter.tryAcquire(key, now);
+            if (waitMs > 0) {
+                for (Map.Entry<TokenBucketRateLimiter, String> taken : acquired) {
+                    taken.getKey().refund(taken.getValue(), now);
+                }
+                log.debug("[RATE-LIMIT] {} denied for {}", entry.getKey(), key);
+                return Math.max(1, (waitMs + 999) / 1000);
+            }
+            acquired.add(Map.entry(limiter, key));
         }
-        
-        // Add current attempt
-        attemptTimes.add(now);
-        return true;
+        return 0;
     }
 
     /**
-     * Get remaining time in seconds until the rate limit resets
-     * @param identifier - Format: "username:ip" or just "ip"
-     * @return remaining seconds, or 0 if not rate limited
+     * Sau khi đăng nhập thành công: xóa lượt của tài khoản và trả lại lượt theo IP vừa lấy,
+     * để đăng nhập đúng không làm hết lượt của cả văn phòng dùng chung 1 IP (global vẫn giữ)
      */
-    public long getRemainingSeconds(String identifier) {
-        List<Long> attemptTimes = attempts.get(identifier);
-        if (attemptTimes == null || attemptTimes.isEmpty()) {
-            return 0;
+    public void clearLoginAttempts(String username, String clientIp) {
+        TokenBucketRateLimiter userIp = limiters.get(Policy.USER_IP);
+        if (userIp != null) {
+            userIp.reset(key(Policy.USER_IP, username, clientIp));
         }
-        
-        long now = System.currentTimeMillis();
-        long oldestAttempt = attemptTimes.stream()
-                .mapToLong(Long::longValue)
-                .min()
-                .orElse(0);
-        
-        if (oldestAttempt == 0) {
-            return 0;
+        TokenBucketRateLimiter byUsername = limiters.get(Policy.USERNAME);
+        if (byUsername != null) {
+            byUsername.reset(key(Policy.USERNAME, username, clientIp));
+        }
+        TokenBucketRateLimiter byIp = limiters.get(Policy.IP);
+        String ipKey = key(Policy.IP, username, clientIp);
+        if (byIp != null && ipKey != null) {
+            byIp.refund(ipKey, System.currentTimeMillis());
         }
-        
-        long elapsed = now - oldestAttempt;
-        long remaining = WINDOW_MS - elapsed;
-        
-        return remaining > 0 ? (remaining / 1000) : 0;
     }
 
-    /**
-     * Clear attempts for an identifier (useful after successful login)
-     * @param identifier - Format: "username:ip" or just "ip"
-     */
-    public void clearAttempts(String identifier) {
-        attempts.remove(identifier);
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        limiters.forEach((policy, limiter) -> {
+            Map<String, Object> policyStats = new LinkedHashMap<>();
+            policyStats.put("keys", limiter.size());
+            policyStats.put("allowed", limiter.allowedCount());
+            policyStats.put("denied", limiter.deniedCount());
+            policyStats.put("evicted", limiter.evictedCount());
+            stats.put(policy.name(), policyStats);
+        });
+        return stats;
     }
 
     /**
      * Clean up old entries to prevent memory leak
-     * This should be called periodically (e.g., via @Scheduled)
      */
     public void cleanup() {
         long now = System.currentTimeMillis();
-        attempts.entrySet().removeIf(entry -> {
-            entry.getValue().removeIf(time -> (now - time) > WINDOW_MS);
-            return entry.getValue().isEmpty();
-        });
+        limiters.values().forEach(limiter -> limiter.evictExpired(now));
     }
 
     /**
-     * Scheduled cleanup to run every hour
+     * Dọn key hết hạn định kỳ (key mới vẫn bị giới hạn bởi max-keys giữa 2 lần dọn)
      */
-    @Scheduled(fixedRate = 3600000) // Run every hour (3600000 ms)
+    @Scheduled(fixedRateString = "${app.auth.rate-limit.cleanup-ms:60000}")
     public void scheduledCleanup() {
         cleanup();
     }
-}
 
+    private void register(Policy policy, int maxAttempts, long windowMs) {
+        if (maxAttempts > 0 && windowMs > 0) {
+            limiters.put(policy, new TokenBucketRateLimiter(maxAttempts, windowMs, maxKeys));
+        }
+    }
+
+    // null = policy không áp dụng cho request (không xác định được IP)
+    private static String key(Policy policy, String username, String clientIp) {
+        boolean knownIp = clientIp != null && !clientIp.isEmpty() && !UNKNOWN_IP.equals(clientIp);
+        switch (policy) {
+            case USER_IP:
+                return username + ":" + clientIp;
+            case USERNAME:
+                return username;
+            case IP:
+                return knownIp ? clientIp : null;
+            default:
+                return GLOBAL_KEY;
+        }
+    }
+}
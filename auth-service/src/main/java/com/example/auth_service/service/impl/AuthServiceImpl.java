@@ -14,6 +14,7 @@ import com.example.auth_service.entity.RefreshToken;
 import com.example.auth_service.exception.NotFoundException;
 import com.example.auth_service.exception.BadRequestException;
 import com.example.auth_service.repository.AdUserRepository;
+import com.example.auth_service.security.CustomUserDetailsService;
 import com.example.auth_service.security.JwtService;
 import com.example.auth_service.service.AuthService;
 import com.example.auth_service.service.EmailService;
@@ -22,6 +23,7 @@ import com.example.auth_service.service.RateLimitingService;
 import com.example.auth_service.service.TokenBlacklistService;
 import com.example.auth_service.util.ActivityLogHelper;
 import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.*;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
@@ -35,6 +37,7 @@ import java.security.SecureRandom;
 import java.util.Base64;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Calendar;
 
 @Service
@@ -49,6 +52,11 @@ public class AuthServiceImpl implements AuthService {
     private final RefreshTokenService refreshTokenService;
     private final TokenBlacklistService tokenBlacklistService;
     private final EmailService emailService;
+    private final CustomUserDetailsService userDetailsService;
+
+    // Số proxy tin cậy (api-gateway) nối địa chỉ vào cuối X-Forwarded-For; 0 = chỉ dùng remote address
+    @Value("${app.auth.rate-limit.trusted-proxy-hops:1}")
+    private int trustedProxyHops;
 
     public AuthServiceImpl(AuthenticationManager authenticationManager,
                            JwtService jwtService,
@@ -58,7 +66,8 @@ public class AuthServiceImpl implements AuthService {
                            RateLimitingService rateLimitingService,
                            RefreshTokenService refreshTokenService,
                            TokenBlacklistService tokenBlacklistService,
-                           EmailService emailService) {
+                           EmailService emailService,
+                           CustomUserDetailsService userDetailsService) {
         this.authenticationManager = authenticationManager;
         this.jwtService = jwtService;
         this.userRepository = userRepository;
@@ -68,6 +77,7 @@ public class AuthServiceImpl implements AuthService {
         this.refreshTokenService = refreshTokenService;
         this.tokenBlacklistService = tokenBlacklistService;
         this.emailService = emailService;
+        this.userDetailsService = userDetailsService;
     }
 
     @Override
@@ -76,11 +86,10 @@ public class AuthServiceImpl implements AuthService {
 
         // Get client IP for rate limiting
         String clientIp = getClientIp();
-        String rateLimitKey = request.getUsername() + ":" + clientIp;
 
-        // Check rate limiting before authentication
-        if (!rateLimitingService.isAllowed(rateLimitKey)) {
-            long remainingSeconds = rateLimitingService.getRemainingSeconds(rateLimitKey);
+        // Lấy lượt trước khi xác thực; đăng nhập thành công sẽ được trả lại lượt theo IP
+        long remainingSeconds = rateLimitingService.tryAcquireLogin(request.getUsername(), clientIp);
+        if (remainingSeconds > 0) {
             throw new BadRequestException(
                 String.format("Quá nhiều lần đăng nhập sai. Vui lòng thử lại sau %d giây.", remainingSeconds)
             );
@@ -103,17 +112,20 @@ public class AuthServiceImpl implements AuthService {
             org.springframework.security.core.userdetails.User userDetails =
                     (org.springframework.security.core.userdetails.User) auth.getPrincipal();
 
-            String token = jwtService.generateToken(userDetails);
-
-            List<String> roles = userDetails.getAuthorities().stream()
-                    .map(GrantedAuthority::getAuthority)
-                    .toList();
-
             // Lấy lại user từ DB nếu cần
             if (user == null) {
                 user = userRepository.findByUsername(userDetails.getUsername()).orElse(null);
             }
 
+            // userId trong token được api-gateway chuyển xuống các service qua header X-Auth-User-Id
+            String token = user != null
+                    ? jwtService.generateToken(Map.of("userId", user.getId()), userDetails)
+                    : jwtService.generateToken(userDetails);
+
+            List<String> roles = userDetails.getAuthorities().stream()
+                    .map(GrantedAuthority::getAuthority)
+                    .toList();
+
             // refresh token (opaque) - revoke old tokens for single-session behavior
             RefreshToken refreshToken = null;
             if (user != null) {
@@ -123,13 +135,16 @@ public class AuthServiceImpl implements AuthService {
 
             if (user != null) {
                 // Reset failed attempts & unlock account
+                if (user.getAccountLockedUntil() != null) {
+                    userDetailsService.evictUser(user.getUsername());
+                }
                 user.setFailedLoginAttempts(0);
                 user.setAccountLockedUntil(null);
                 user.setUpdatedAt(new Date());
                 userRepository.save(user);
 
                 // Clear rate limiting on successful login
-                rateLimitingService.clearAttempts(rateLimitKey);
+                rateLimitingService.clearLoginAttempts(request.getUsername(), clientIp);
 
                 // Log login activity
                 activityLogHelper.logActivity(
@@ -172,6 +187,7 @@ public class AuthServiceImpl implements AuthService {
                     cal.add(Calendar.MINUTE, 15); // khóa 15 phút
                     Date lockedUntil = cal.getTime();
                     user.setAccountLockedUntil(lockedUntil);
+                    userDetailsService.evictUser(user.getUsername());
 
                     activityLogHelper.logActivity(
                             user.getId(),
@@ -214,7 +230,7 @@ public class AuthServiceImpl implements AuthService {
                                 : List.of()
                 );
 
-        String newAccessToken = jwtService.generateAccessToken(userDetails);
+        String newAccessToken = jwtService.generateToken(Map.of("userId", user.getId()), userDetails);
         return new TokenPairResponse(newAccessToken, newRt.getToken());
     }
 
@@ -271,6 +287,7 @@ public class AuthServiceImpl implements AuthService {
         user.setAccountLockedUntil(null);
         user.setUpdatedAt(new Date());
         userRepository.save(user);
+        userDetailsService.evictUser(user.getUsername());
 
         // revoke all refresh tokens for safety
         refreshTokenService.revokeAllUserTokens(user.getId());
@@ -415,6 +432,7 @@ public class AuthServiceImpl implements AuthService {
         user.setActive(false);
         user.setUpdatedAt(new Date());
         userRepository.save(user);
+        userDetailsService.evictUser(user.getUsername());
     }
 
     @Override
@@ -443,6 +461,7 @@ public class AuthServiceImpl implements AuthService {
         user.setPassword(hashedPassword);
         user.setUpdatedAt(new Date());
         userRepository.save(user);
+        userDetailsService.evictUser(user.getUsername());
 
         // Log activity
         activityLogHelper.logActivity(
@@ -464,7 +483,9 @@ public class AuthServiceImpl implements AuthService {
     }
 
     /**
-     * Get client IP address from request
+     * Get client IP address from request.
+     * Các phần tử đầu của X-Forwarded-For do client tự gửi được, nên chỉ lấy địa chỉ do proxy tin cậy nối vào:
+     * phần tử thứ trustedProxyHops tính từ cuối; header ngắn hơn hoặc trustedProxyHops = 0 thì dùng remote address.
      */
     private String getClientIp() {
         try {
@@ -472,13 +493,14 @@ public class AuthServiceImpl implements AuthService {
             if (attributes != null) {
                 HttpServletRequest request = attributes.getRequest();
                 String xForwardedFor = request.getHeader("X-Forwarded-For");
-                if (xForwardedFor != null && !xForwardedFor.isEmpty()) {
-                    // Take the first IP if there are multiple (proxy chain)
-                    return xForwardedFor.split(",")[0].trim();
-                }
-                String xRealIp = request.getHeader("X-Real-IP");
-                if (xRealIp != null && !xRealIp.isEmpty()) {
-                    return xRealIp;
+                if (trustedProxyHops > 0 && xForwardedFor != null && !xForwardedFor.isEmpty()) {
+                    String[] hops = xForwardedFor.split(",");
+                    if (hops.length >= trustedProxyHops) {
+                        String ip = hops[hops.length - trustedProxyHops].trim();
+                        if (!ip.isEmpty()) {
+                            return ip;
+                        }
+                    }
                 }
                 return request.getRemoteAddr();
             }
@@ -7,6 +7,8 @@ import com.example.auth_service.exception.NotFoundException;
 import com.example.auth_service.exception.DuplicateException;
 import com.example.auth_service.repository.AdPermissionRepository;
 import com.example.auth_service.repository.AdRoleRepository;
+import com.example.auth_service.repository.AdUserRepository;
+import com.example.auth_service.security.CustomUserDetailsService;
 import com.example.auth_service.service.RoleService;
 import com.example.auth_service.util.ActivityLogHelper;
 import com.example.auth_service.util.ChangeLogUtils;
@@ -27,11 +29,16 @@ public class RoleServiceImpl implements RoleService {
     private final AdRoleRepository roleRepository;
     private final AdPermissionRepository permissionRepository;
     private final ActivityLogHelper activityLogHelper;
+    private final AdUserRepository userRepository;
+    private final CustomUserDetailsService userDetailsService;
 
-    public RoleServiceImpl(AdRoleRepository roleRepository, AdPermissionRepository permissionRepository, ActivityLogHelper activityLogHelper) {
+    public RoleServiceImpl(AdRoleRepository roleRepository, AdPermissionRepository permissionRepository, ActivityLogHelper activityLogHelper,
+                           AdUserRepository userRepository, CustomUserDetailsService userDetailsService) {
         this.roleRepository = roleRepository;
         this.permissionRepository = permissionRepository;
         this.activityLogHelper = activityLogHelper;
+        this.userRepository = userRepository;
+        this.userDetailsService = userDetailsService;
     }
 
     @Override
@@ -141,6 +148,7 @@ public class RoleServiceImpl implements RoleService {
 
         role.setUpdatedAt(new Date());
         AdRole updatedRole = roleRepository.save(role);
+        evictRoleUsers(id);
 
         // Snapshot sau khi cập nhật
         Map<String, Object> after = new LinkedHashMap<>();
@@ -173,6 +181,8 @@ public class RoleServiceImpl implements RoleService {
                 .orElseThrow(() -> new NotFoundException("Role not found with id: " + id));
         
         String roleCode = role.getRoleCode();
+        // Lấy danh sách user trước khi xóa role
+        evictRoleUsers(id);
         roleRepository.delete(role);
         
         // Log activity
@@ -201,6 +211,7 @@ public class RoleServiceImpl implements RoleService {
         role.setUpdatedAt(new Date());
 
         AdRole updatedRole = roleRepository.save(role);
+        evictRoleUsers(roleId);
         
         // Log activity
         activityLogHelper.logActivity(
@@ -213,5 +224,9 @@ public class RoleServiceImpl implements RoleService {
         
         return RoleDto.fromEntity(updatedRole);
     }
-}
 
+    // Xóa cache UserDetails của các user đang giữ role (authorities lấy theo role)
+    private void evictRoleUsers(Long roleId) {
+        userDetailsService.evictUsers(userRepository.findUsernamesByRoleId(roleId));
+    }
+}
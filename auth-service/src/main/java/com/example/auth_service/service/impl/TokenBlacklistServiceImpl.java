@@ -4,30 +4,75 @@ import com.example.auth_service.entity.TokenBlacklist;
 import com.example.auth_service.repository.TokenBlacklistRepository;
 import com.example.auth_service.security.JwtService;
 import com.example.auth_service.service.TokenBlacklistService;
+import com.example.auth_service.util.DigestBloomFilter;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Blacklist token lưu theo SHA-256, kèm bộ lọc trong bộ nhớ:
+ * - Bloom filter trên digest của mọi token còn hạn trong DB: không khớp = chắc chắn chưa bị thu hồi, không hỏi DB
+ * - confirmed: digest đã xác nhận bị thu hồi (thêm ở instance này hoặc đã tra DB)
+ * Chỉ khi Bloom filter khớp mà confirmed chưa có mới gọi existsByToken.
+ * Token bị thu hồi ở instance khác được nạp qua syncBlacklist (mặc định 30s).
+ */
 @Service
 @Slf4j
 public class TokenBlacklistServiceImpl implements TokenBlacklistService {
 
+    // Lùi mốc đồng bộ để không sót bản ghi do lệch giờ giữa các instance
+    private static final long SYNC_OVERLAP_MS = 60_000L;
+
     private final TokenBlacklistRepository tokenBlacklistRepository;
     private final JwtService jwtService;
 
+    @Value("${app.auth.blacklist.expected-size:100000}")
+    private int expectedSize;
+
+    @Value("${app.auth.blacklist.false-positive-rate:0.01}")
+    private double falsePositiveRate;
+
+    // null = chưa nạp được từ DB, mọi lần kiểm tra đều hỏi DB
+    private volatile DigestBloomFilter bloomFilter;
+    // digest -> thời điểm token hết hạn (ms)
+    private final Map<String, Long> confirmed = new ConcurrentHashMap<>();
+    private volatile Date lastSync;
+
     public TokenBlacklistServiceImpl(TokenBlacklistRepository tokenBlacklistRepository, JwtService jwtService) {
         this.tokenBlacklistRepository = tokenBlacklistRepository;
         this.jwtService = jwtService;
     }
 
+    @PostConstruct
+    public void init() {
+        try {
+            migrateRawTokens();
+        } catch (RuntimeException e) {
+            log.error("[AUTH] Cannot migrate token blacklist to digests", e);
+        }
+        reload();
+    }
+
     @Override
     @Transactional
     public void blacklistToken(String token, Long userId, String reason) {
         if (token == null || token.isBlank()) return;
-        if (tokenBlacklistRepository.existsByToken(token)) return;
+        String digest = digest(token);
+        if (confirmed.containsKey(digest) || tokenBlacklistRepository.existsByToken(digest)) return;
 
         Date exp = jwtService.extractExpirationAllowExpired(token);
         if (exp == null) {
@@ -36,20 +81,44 @@ public class TokenBlacklistServiceImpl implements TokenBlacklistService {
         }
 
         TokenBlacklist bl = new TokenBlacklist();
-        bl.setToken(token);
+        bl.setToken(digest);
         bl.setUserId(userId);
         bl.setReason(reason != null ? reason : "UNKNOWN");
         bl.setBlacklistedAt(new Date());
         bl.setExpiryDate(exp);
 
         tokenBlacklistRepository.save(bl);
+
+        // Chỉ đưa vào bộ lọc khi đã commit, tránh chặn nhầm token nếu transaction rollback
+        long expiresAt = exp.getTime();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                markBlacklisted(digest, expiresAt);
+            }
+        });
     }
 
     @Override
-    @Transactional(readOnly = true)
     public boolean isTokenBlacklisted(String token) {
         if (token == null || token.isBlank()) return false;
-        return tokenBlacklistRepository.existsByToken(token);
+        byte[] hash = sha256(token);
+        DigestBloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(hash)) {
+            return false;
+        }
+
+        String digest = HexFormat.of().formatHex(hash);
+        if (confirmed.containsKey(digest)) {
+            return true;
+        }
+        // Bloom filter khớp (hoặc chưa nạp được): hỏi DB
+        boolean blacklisted = tokenBlacklistRepository.existsByToken(digest);
+        if (blacklisted) {
+            Date exp = jwtService.extractExpirationAllowExpired(token);
+            confirmed.put(digest, exp != null ? exp.getTime() : System.currentTimeMillis() + 30L * 60L * 1000L);
+        }
+        return blacklisted;
     }
 
     @Scheduled(fixedRateString = "${app.auth.cleanup-rate-ms:3600000}")
@@ -59,7 +128,84 @@ public class TokenBlacklistServiceImpl implements TokenBlacklistService {
         if (deleted > 0) {
             log.info("[AUTH] Cleanup token blacklist deleted={}", deleted);
         }
+        long now = System.currentTimeMillis();
+        confirmed.values().removeIf(expiresAt -> expiresAt <= now);
+        // Bloom filter không xóa được phần tử: tạo lại từ các token còn hạn
+        reload();
+    }
+
+    /**
+     * Nạp các token bị thu hồi ở instance khác từ lần đồng bộ trước
+     */
+    @Scheduled(fixedDelayString = "${app.auth.blacklist.sync-ms:30000}")
+    public void syncBlacklist() {
+        DigestBloomFilter filter = bloomFilter;
+        if (filter == null || filter.isOverCapacity()) {
+            reload();
+            return;
+        }
+        try {
+            Date now = new Date();
+            Date since = new Date(lastSync.getTime() - SYNC_OVERLAP_MS);
+            for (TokenBlacklist bl : tokenBlacklistRepository.findByBlacklistedAtAfter(since)) {
+                markBlacklisted(bl.getToken(), bl.getExpiryDate().getTime());
+            }
+            lastSync = now;
+        } catch (RuntimeException e) {
+            log.warn("[AUTH] Token blacklist sync failed: {}", e.getMessage());
+        }
+    }
+
+    private synchronized void markBlacklisted(String digest, long expiresAt) {
+        confirmed.put(digest, expiresAt);
+        DigestBloomFilter filter = bloomFilter;
+        if (filter != null) {
+            filter.put(HexFormat.of().parseHex(digest));
+        }
     }
-}
 
+    // Lỗi DB: giữ filter cũ (hoặc null nếu chưa từng nạp được -> hỏi thẳng DB)
+    private synchronized void reload() {
+        try {
+            Date now = new Date();
+            List<String> digests = tokenBlacklistRepository.findActiveTokens(now);
+            DigestBloomFilter filter = new DigestBloomFilter(Math.max(expectedSize, digests.size() * 2),
+                    falsePositiveRate);
+            for (String digest : digests) {
+                filter.put(HexFormat.of().parseHex(digest));
+            }
+            // Token vừa thu hồi sau câu query vẫn phải có trong filter mới
+            for (String digest : confirmed.keySet()) {
+                filter.put(HexFormat.of().parseHex(digest));
+            }
+            bloomFilter = filter;
+            lastSync = now;
+            log.info("[AUTH] Token blacklist filter loaded size={}", digests.size());
+        } catch (RuntimeException e) {
+            log.error("[AUTH] Cannot load token blacklist filter, falling back to DB lookups", e);
+        }
+    }
 
+    // Bản ghi cũ lưu token gốc: chuyển sang digest để tra cứu được theo cách mới
+    private void migrateRawTokens() {
+        List<TokenBlacklist> legacy = tokenBlacklistRepository.findByTokenContaining(".");
+        if (legacy.isEmpty()) return;
+        for (TokenBlacklist bl : legacy) {
+            bl.setToken(digest(bl.getToken()));
+        }
+        tokenBlacklistRepository.saveAll(legacy);
+        log.info("[AUTH] Migrated {} blacklisted tokens to SHA-256 digests", legacy.size());
+    }
+
+    private static String digest(String token) {
+        return HexFormat.of().formatHex(sha256(token));
+    }
+
+    private static byte[] sha256(String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 không khả dụng", e);
+        }
+    }
+}
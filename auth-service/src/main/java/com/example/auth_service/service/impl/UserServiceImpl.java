@@ -14,6 +14,7 @@ import com.example.auth_service.exception.ValidationException;
 import com.example.auth_service.repository.AdPermissionRepository;
 import com.example.auth_service.repository.AdRoleRepository;
 import com.example.auth_service.repository.AdUserRepository;
+import com.example.auth_service.security.CustomUserDetailsService;
 import com.example.auth_service.service.EmailService;
 import com.example.auth_service.service.RefreshTokenService;
 import com.example.auth_service.service.UserService;
@@ -30,6 +31,7 @@ import java.security.SecureRandom;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -43,6 +45,7 @@ public class UserServiceImpl implements UserService {
     private final ActivityLogHelper activityLogHelper;
     private final EmailService emailService;
     private final RefreshTokenService refreshTokenService;
+    private final CustomUserDetailsService userDetailsService;
 
     public UserServiceImpl(AdUserRepository userRepository,
                           AdRoleRepository roleRepository,
@@ -50,7 +53,8 @@ public class UserServiceImpl implements UserService {
                           PasswordEncoder passwordEncoder,
                           ActivityLogHelper activityLogHelper,
                           EmailService emailService,
-                          RefreshTokenService refreshTokenService) {
+                          RefreshTokenService refreshTokenService,
+                          CustomUserDetailsService userDetailsService) {
         this.userRepository = userRepository;
         this.roleRepository = roleRepository;
         this.permissionRepository = permissionRepository;
@@ -58,6 +62,7 @@ public class UserServiceImpl implements UserService {
         this.activityLogHelper = activityLogHelper;
         this.emailService = emailService;
         this.refreshTokenService = refreshTokenService;
+        this.userDetailsService = userDetailsService;
     }
 
     @Override
@@ -223,6 +228,8 @@ public class UserServiceImpl implements UserService {
 
         user.setUpdatedAt(new Date());
         AdUser updatedUser = userRepository.save(user);
+        // Đổi username: xóa cache cả tên cũ lẫn tên mới
+        userDetailsService.evictUsers(List.of((String) before.get("username"), updatedUser.getUsername()));
 
         // Snapshot sau khi cập nhật
         Map<String, Object> after = new LinkedHashMap<>();
@@ -262,6 +269,7 @@ public class UserServiceImpl implements UserService {
         Long userId = user.getId();
         
         userRepository.delete(user);
+        userDetailsService.evictUser(username);
         
         // Log activity
         activityLogHelper.logActivity(
@@ -294,6 +302,7 @@ public class UserServiceImpl implements UserService {
         user.setPassword(passwordEncoder.encode(newPassword));
         user.setUpdatedAt(new Date());
         userRepository.save(user);
+        userDetailsService.evictUser(user.getUsername());
         // revoke refresh tokens so old sessions cannot continue after password reset
         refreshTokenService.revokeAllUserTokens(user.getId());
         
@@ -335,6 +344,7 @@ public class UserServiceImpl implements UserService {
         user.setUpdatedAt(new Date());
 
         AdUser updatedUser = userRepository.save(user);
+        userDetailsService.evictUser(updatedUser.getUsername());
         
         // Log activity
         activityLogHelper.logActivity(
@@ -0,0 +1,72 @@
+package com.example.auth_service.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter cho digest SHA-256 (đã phân bố đều nên lấy thẳng 16 byte đầu làm 2 hàm băm).
+ * Thread-safe, không khóa; không hỗ trợ xóa - muốn bỏ phần tử thì tạo filter mới.
+ */
+public final class DigestBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final int capacity;
+    private final AtomicInteger size = new AtomicInteger();
+
+    public DigestBloomFilter(int expectedInsertions, double falsePositiveRate) {
+        int n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((m + 63) / 64));
+        this.bitCount = bits.length() * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+        this.capacity = n;
+    }
+
+    public void put(byte[] digest) {
+        long h1 = h1(digest);
+        long h2 = h2(digest);
+        for (int i = 0; i < hashCount; i++) {
+            long index = Math.floorMod(h1 + i * h2, bitCount);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+        size.incrementAndGet();
+    }
+
+    public boolean mightContain(byte[] digest) {
+        long h1 = h1(digest);
+        long h2 = h2(digest);
+        for (int i = 0; i < hashCount; i++) {
+            long index = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Vượt số phần tử dự kiến thì tỉ lệ dương tính giả tăng, nên tạo lại filter lớn hơn
+    public boolean isOverCapacity() {
+        return size.get() > capacity;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private static long h1(byte[] digest) {
+        return ByteBuffer.wrap(digest, 0, 8).getLong();
+    }
+
+    // Luôn lẻ để các vị trí h1 + i*h2 không bị lặp sớm
+    private static long h2(byte[] digest) {
+        return ByteBuffer.wrap(digest, 8, 8).getLong() | 1L;
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.auth_service.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket theo key, mỗi key chỉ là 1 AtomicLong (thuật toán GCRA: lưu thời điểm bucket đầy trở lại).
+ * Cho phép tối đa maxAttempts lần liên tiếp, sau đó hồi 1 lượt mỗi windowMs / maxAttempts.
+ * Cập nhật bằng CAS, không khóa; key có bucket đã đầy lại là hết hạn và bị dọn.
+ * Số key bị giới hạn bởi maxKeys: khi đầy thì bỏ key hết hạn, sau đó bỏ 10% key sắp đầy lại nhất.
+ */
+public final class TokenBucketRateLimiter {
+
+    private final long windowMs;
+    private final long emissionMs;
+    private final int maxKeys;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public TokenBucketRateLimiter(int maxAttempts, long windowMs, int maxKeys) {
+        if (maxAttempts <= 0 || windowMs <= 0) {
+            throw new IllegalArgumentException("maxAttempts và windowMs phải lớn hơn 0");
+        }
+        this.windowMs = windowMs;
+        this.emissionMs = Math.max(1, windowMs / maxAttempts);
+        this.maxKeys = Math.max(1, maxKeys);
+    }
+
+    /**
+     * Lấy 1 lượt cho key
+     * @return 0 nếu được phép, ngược lại là số ms cần chờ
+     */
+    public long tryAcquire(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            ensureCapacity(now);
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        while (true) {
+            long tat = bucket.get();
+            long next = Math.max(tat, now) + emissionMs;
+            if (next - now > windowMs) {
+                denied.incrementAndGet();
+                return next - windowMs - now;
+            }
+            if (bucket.compareAndSet(tat, next)) {
+                allowed.incrementAndGet();
+                return 0;
+            }
+        }
+    }
+
+    // Trả lại lượt vừa lấy (khi policy khác từ chối request, hoặc đăng nhập thành công)
+    public void refund(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            bucket.getAndUpdate(tat -> Math.max(now, tat - emissionMs));
+            allowed.decrementAndGet();
+        }
+    }
+
+    // Số ms cần chờ đến khi key được phép lại, 0 nếu đang được phép
+    public long retryAfterMs(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            return 0;
+        }
+        long next = Math.max(bucket.get(), now) + emissionMs;
+        return Math.max(0, next - windowMs - now);
+    }
+
+    public void reset(String key) {
+        buckets.remove(key);
+    }
+
+    public int evictExpired(long now) {
+        int before = buckets.size();
+        buckets.values().removeIf(bucket -> bucket.get() <= now);
+        int removed = Math.max(0, before - buckets.size());
+        evicted.addAndGet(removed);
+        return removed;
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    public long allowedCount() {
+        return allowed.get();
+    }
+
+    public long deniedCount() {
+        return denied.get();
+    }
+
+    public long evictedCount() {
+        return evicted.get();
+    }
+
+    // Chỉ 1 thread dọn; các thread khác không chờ mà thêm key luôn (vượt maxKeys tạm thời)
+    private void ensureCapacity(long now) {
+        if (buckets.size() < maxKeys || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            if (evictExpired(now) > 0 && buckets.size() < maxKeys) {
+                return;
+            }
+            long[] tats = buckets.values().stream().mapToLong(AtomicLong::get).toArray();
+            if (tats.length == 0) {
+                return;
+            }
+            Arrays.sort(tats);
+            int toRemove = Math.max(1, tats.length / 10);
+            long threshold = tats[toRemove - 1];
+            // Nhiều key trùng thời điểm: chỉ bỏ đúng toRemove key, không xóa hết
+            Iterator<AtomicLong> it = buckets.values().iterator();
+            int removed = 0;
+            while (it.hasNext() && removed < toRemove) {
+                if (it.next().get() <= threshold) {
+                    it.remove();
+                    removed++;
+                }
+            }
+            evicted.addAndGet(removed);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.auth_service.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * So sánh TokenBucketRateLimiter với cách cũ (CopyOnWriteArrayList timestamp theo key) khi nhiều thread cùng gọi,
+ * cùng cấu hình 5 lượt / 15 phút.
+ * - HOT_KEY: mọi thread thử cùng 1 tài khoản
+ * - STUFFING: mỗi lần thử 1 key khác nhau (credential stuffing từ nhiều IP), key space 1 triệu
+ *
+ * Chạy tay (không thuộc mvn test):
+ * <pre>
+ * ./mvnw -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt -Dmdep.includeScope=test
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.openjdk.jmh.Main TokenBucketRateLimiterBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class TokenBucketRateLimiterBenchmark {
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long WINDOW_MS = 15 * 60 * 1000;
+    private static final int MAX_KEYS = 100_000;
+    private static final int KEY_SPACE = 1_000_000;
+
+    @Param({"HOT_KEY", "STUFFING"})
+    public String scenario;
+
+    private String[] keys;
+    private TokenBucketRateLimiter tokenBucket;
+    private LegacyAttemptLog legacy;
+
+    @Setup(Level.Trial)
+    public void prepareKeys() {
+        int count = "HOT_KEY".equals(scenario) ? 1 : KEY_SPACE;
+        keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = "user" + i + ":10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF);
+        }
+    }
+
+    // Tạo lại mỗi iteration để cách cũ (không giới hạn key) không tích lũy qua các lần đo
+    @Setup(Level.Iteration)
+    public void resetLimiters() {
+        tokenBucket = new TokenBucketRateLimiter(MAX_ATTEMPTS, WINDOW_MS, MAX_KEYS);
+        legacy = new LegacyAttemptLog();
+    }
+
+    @Benchmark
+    public long tokenBucket() {
+        return tokenBucket.tryAcquire(nextKey(), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean legacyCopyOnWrite() {
+        return legacy.isAllowed(nextKey());
+    }
+
+    private String nextKey() {
+        return keys.length == 1 ? keys[0] : keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    // Bản sao RateLimitingService.isAllowed trước khi chuyển sang token bucket
+    private static final class LegacyAttemptLog {
+        private final Map<String, List<Long>> attempts = new ConcurrentHashMap<>();
+
+        boolean isAllowed(String identifier) {
+            long now = System.currentTimeMillis();
+            List<Long> attemptTimes = attempts.computeIfAbsent(identifier, k -> new CopyOnWriteArrayList<>());
+            attemptTimes.removeIf(time -> (now - time) > WINDOW_MS);
+            if (attemptTimes.size() >= MAX_ATTEMPTS) {
+                return false;
+            }
+            attemptTimes.add(now);
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TokenBucketRateLimiterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
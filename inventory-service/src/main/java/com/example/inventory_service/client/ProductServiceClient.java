@@ -1,20 +1,66 @@
 package com.example.inventory_service.client;
 
+import com.example.inventory_service.common.ApiResponse;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
 /**
  * Client để gọi API sang Product-service
  */
 @Component
 public class ProductServiceClient {
 
+    private static final Logger logger = LoggerFactory.getLogger(ProductServiceClient.class);
+
+    // Bằng MAX_BATCH_SIZE của SupplierController (product-service)
+    private static final int SUPPLIER_BATCH_SIZE = 500;
+
+    private static final ParameterizedTypeReference<ApiResponse<SupplierDto>> SUPPLIER_RESPONSE =
+            new ParameterizedTypeReference<>() {
+            };
+    private static final ParameterizedTypeReference<ApiResponse<List<SupplierDto>>> SUPPLIER_LIST_RESPONSE =
+            new ParameterizedTypeReference<>() {
+            };
+
     private final RestTemplate restTemplate;
 
     @Value("${product.service.url:http://localhost:8081}")
     private String productServiceUrl;
 
+    @Value("${product.supplier-cache.ttl-ms:60000}")
+    private long supplierCacheTtlMs;
+
+    @Value("${product.supplier-cache.max-size:2000}")
+    private int supplierCacheMaxSize;
+
+    // Near cache cho supplier (ít thay đổi, bị gọi lặp lại khi map danh sách phiếu nhập)
+    private final Map<Long, CachedSupplier> supplierCache = new ConcurrentHashMap<>();
+    // Các request đang chạy, để các luồng cùng hỏi 1 supplier dùng chung 1 lần gọi
+    private final Map<Long, CompletableFuture<SupplierDto>> supplierInFlight = new ConcurrentHashMap<>();
+    private final AtomicLong supplierCacheHits = new AtomicLong();
+    private final AtomicLong supplierCacheMisses = new AtomicLong();
+    private final AtomicLong supplierCoalesced = new AtomicLong();
+    private final AtomicLong supplierRemoteCalls = new AtomicLong();
+
     public ProductServiceClient(RestTemplate restTemplate) {
         this.restTemplate = restTemplate;
         System.out.println("🔧 ProductServiceClient initialized with URL: " + productServiceUrl);
@@ -81,79 +127,239 @@ public class ProductServiceClient {
     /**
      * Lấy danh sách suppliers theo type
      */
-    public java.util.List<SupplierDto> getSuppliersByType(String type) {
+    public List<SupplierDto> getSuppliersByType(String type) {
         String url = productServiceUrl + "/api/suppliers?type=" + type;
 
         try {
-            System.out.println("🔵 Calling Product-service: " + url);
-            @SuppressWarnings("unchecked")
-            java.util.Map<String, Object> response = restTemplate.getForObject(url, java.util.Map.class);
-            System.out.println("📦 Response from Product-service: " + response);
-
-            if (response != null && response.get("data") != null) {
-                @SuppressWarnings("unchecked")
-                java.util.List<java.util.Map<String, Object>> dataList = (java.util.List<java.util.Map<String, Object>>) response
-                        .get("data");
-
-                java.util.List<SupplierDto> suppliers = new java.util.ArrayList<>();
-                for (java.util.Map<String, Object> data : dataList) {
-                    SupplierDto dto = new SupplierDto();
-                    dto.setId(data.get("id") != null ? ((Number) data.get("id")).longValue() : null);
-                    dto.setName((String) data.get("name"));
-                    dto.setCode((String) data.get("code"));
-                    dto.setPhone((String) data.get("phone"));
-                    dto.setAddress((String) data.get("address"));
-                    suppliers.add(dto);
-                }
-
-                System.out.println("✅ Loaded " + suppliers.size() + " suppliers with type=" + type);
+            ApiResponse<List<SupplierDto>> response = restTemplate
+                    .exchange(url, HttpMethod.GET, null, SUPPLIER_LIST_RESPONSE)
+                    .getBody();
+            if (response != null && response.getData() != null) {
+                List<SupplierDto> suppliers = response.getData();
+                suppliers.forEach(this::cacheSupplier);
+                logger.debug("Loaded {} suppliers with type={}", suppliers.size(), type);
                 return suppliers;
             }
-            System.err.println("❌ Response is null or data is missing");
-            return new java.util.ArrayList<>();
+            logger.warn("Response is null or data is missing for suppliers type={}", type);
+            return new ArrayList<>();
         } catch (Exception e) {
-            System.err.println("❌ Failed to get suppliers by type: " + e.getMessage());
-            e.printStackTrace();
-            return new java.util.ArrayList<>();
+            logger.warn("Failed to get suppliers by type {}: {}", type, e.getMessage());
+            return new ArrayList<>();
         }
     }
 
     /**
-     * Lấy thông tin supplier theo ID
+     * Lấy thông tin supplier theo ID (có near cache + gộp request đồng thời)
      */
     public SupplierDto getSupplier(Long supplierId) {
-        String url = productServiceUrl + "/api/suppliers/" + supplierId;
+        if (supplierId == null) {
+            return null;
+        }
+        SupplierDto cached = getCachedSupplier(supplierId);
+        if (cached != null) {
+            supplierCacheHits.incrementAndGet();
+            return cached;
+        }
+        supplierCacheMisses.incrementAndGet();
+
+        CompletableFuture<SupplierDto> mine = new CompletableFuture<>();
+        CompletableFuture<SupplierDto> existing = supplierInFlight.putIfAbsent(supplierId, mine);
+        if (existing != null) {
+            supplierCoalesced.incrementAndGet();
+            return awaitSupplier(existing, supplierId);
+        }
 
         try {
-            System.out.println("🔵 Calling Product-service: " + url);
-            @SuppressWarnings("unchecked")
-            java.util.Map<String, Object> response = restTemplate.getForObject(url, java.util.Map.class);
-            System.out.println("📦 Response from Product-service: " + response);
+            SupplierDto dto = fetchSupplier(supplierId);
+            cacheSupplier(dto);
+            mine.complete(dto);
+            return dto;
+        } catch (RuntimeException e) {
+            mine.complete(null);
+            throw e;
+        } finally {
+            supplierInFlight.remove(supplierId, mine);
+        }
+    }
 
-            if (response != null && response.get("data") != null) {
-                @SuppressWarnings("unchecked")
-                java.util.Map<String, Object> data = (java.util.Map<String, Object>) response.get("data");
-                System.out.println("📦 Data from response: " + data);
+    /**
+     * Lấy nhiều supplier 1 lần: dùng cache trước, phần còn thiếu gọi
+     * GET /api/suppliers/batch?ids=... (1 request cho mỗi 500 id)
+     */
+    public Map<Long, SupplierDto> getSuppliers(Collection<Long> supplierIds) {
+        Map<Long, SupplierDto> result = new HashMap<>();
+        if (supplierIds == null || supplierIds.isEmpty()) {
+            return result;
+        }
 
-                SupplierDto dto = new SupplierDto();
-                dto.setId(data.get("id") != null ? ((Number) data.get("id")).longValue() : null);
-                dto.setName((String) data.get("name"));
-                dto.setCode((String) data.get("code"));
-                dto.setPhone((String) data.get("phone"));
-                dto.setAddress((String) data.get("address"));
-                dto.setType((String) data.get("type")); // Lấy supplier type
+        Set<Long> missing = new LinkedHashSet<>();
+        for (Long id : supplierIds) {
+            if (id == null || result.containsKey(id)) {
+                continue;
+            }
+            SupplierDto cached = getCachedSupplier(id);
+            if (cached != null) {
+                supplierCacheHits.incrementAndGet();
+                result.put(id, cached);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        supplierCacheMisses.addAndGet(missing.size());
+
+        // Đăng ký in-flight cho các id chưa có ai fetch, chờ các id đang được luồng khác fetch
+        Map<Long, CompletableFuture<SupplierDto>> owned = new LinkedHashMap<>();
+        Map<Long, CompletableFuture<SupplierDto>> waiting = new LinkedHashMap<>();
+        for (Long id : missing) {
+            CompletableFuture<SupplierDto> mine = new CompletableFuture<>();
+            CompletableFuture<SupplierDto> existing = supplierInFlight.putIfAbsent(id, mine);
+            if (existing != null) {
+                supplierCoalesced.incrementAndGet();
+                waiting.put(id, existing);
+            } else {
+                owned.put(id, mine);
+            }
+        }
 
-                System.out.println("✅ Supplier DTO created: id=" + dto.getId() + ", name=" + dto.getName() + ", type="
-                        + dto.getType());
-                return dto;
+        if (!owned.isEmpty()) {
+            Map<Long, SupplierDto> loaded = new HashMap<>();
+            try {
+                loaded = fetchSuppliers(owned.keySet());
+                loaded.values().forEach(this::cacheSupplier);
+            } finally {
+                for (Map.Entry<Long, CompletableFuture<SupplierDto>> entry : owned.entrySet()) {
+                    SupplierDto dto = loaded.get(entry.getKey());
+                    entry.getValue().complete(dto);
+                    supplierInFlight.remove(entry.getKey(), entry.getValue());
+                    if (dto != null) {
+                        result.put(entry.getKey(), dto);
+                    }
+                }
             }
-            System.err.println("❌ Response is null or data is missing");
+        }
+
+        for (Map.Entry<Long, CompletableFuture<SupplierDto>> entry : waiting.entrySet()) {
+            SupplierDto dto = awaitSupplier(entry.getValue(), entry.getKey());
+            if (dto != null) {
+                result.put(entry.getKey(), dto);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Thống kê near cache supplier (hit/miss/coalesced/remote calls)
+     */
+    public Map<String, Long> getSupplierCacheStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("size", (long) supplierCache.size());
+        stats.put("hits", supplierCacheHits.get());
+        stats.put("misses", supplierCacheMisses.get());
+        stats.put("coalesced", supplierCoalesced.get());
+        stats.put("remoteCalls", supplierRemoteCalls.get());
+        return stats;
+    }
+
+    public void evictSupplier(Long supplierId) {
+        if (supplierId != null) {
+            supplierCache.remove(supplierId);
+        }
+    }
+
+    private SupplierDto fetchSupplier(Long supplierId) {
+        String url = productServiceUrl + "/api/suppliers/" + supplierId;
+        supplierRemoteCalls.incrementAndGet();
+        try {
+            ApiResponse<SupplierDto> response = restTemplate
+                    .exchange(url, HttpMethod.GET, null, SUPPLIER_RESPONSE)
+                    .getBody();
+            if (response != null && response.getData() != null) {
+                return response.getData();
+            }
+            logger.warn("Response is null or data is missing for supplierId={}", supplierId);
             return null;
         } catch (Exception e) {
-            System.err.println("❌ Failed to get supplier info: " + e.getMessage());
-            e.printStackTrace();
+            logger.warn("Failed to get supplier info for supplierId={}: {}", supplierId, e.getMessage());
+            return null;
+        }
+    }
+
+    // Chia theo SUPPLIER_BATCH_SIZE (giới hạn của /api/suppliers/batch); 1 lô lỗi không làm mất các lô khác
+    private Map<Long, SupplierDto> fetchSuppliers(Collection<Long> supplierIds) {
+        Map<Long, SupplierDto> result = new HashMap<>();
+        List<Long> ids = new ArrayList<>(supplierIds);
+        for (int from = 0; from < ids.size(); from += SUPPLIER_BATCH_SIZE) {
+            fetchSupplierBatch(ids.subList(from, Math.min(ids.size(), from + SUPPLIER_BATCH_SIZE)), result);
+        }
+        return result;
+    }
+
+    private void fetchSupplierBatch(List<Long> supplierIds, Map<Long, SupplierDto> result) {
+        String ids = supplierIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+        String url = productServiceUrl + "/api/suppliers/batch?ids=" + ids;
+        supplierRemoteCalls.incrementAndGet();
+        try {
+            ApiResponse<List<SupplierDto>> response = restTemplate
+                    .exchange(url, HttpMethod.GET, null, SUPPLIER_LIST_RESPONSE)
+                    .getBody();
+            if (response != null && response.getData() != null) {
+                for (SupplierDto dto : response.getData()) {
+                    if (dto != null && dto.getId() != null) {
+                        result.put(dto.getId(), dto);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to get suppliers batch ({} ids): {}", supplierIds.size(), e.getMessage());
+        }
+    }
+
+    private SupplierDto awaitSupplier(CompletableFuture<SupplierDto> future, Long supplierId) {
+        try {
+            return future.join();
+        } catch (Exception e) {
+            logger.warn("Failed waiting for in-flight supplier {}: {}", supplierId, e.getMessage());
+            return null;
+        }
+    }
+
+    private SupplierDto getCachedSupplier(Long supplierId) {
+        CachedSupplier cached = supplierCache.get(supplierId);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.expiresAt <= System.currentTimeMillis()) {
+            supplierCache.remove(supplierId, cached);
             return null;
         }
+        return cached.supplier;
+    }
+
+    private void cacheSupplier(SupplierDto dto) {
+        if (dto == null || dto.getId() == null) {
+            return;
+        }
+        if (supplierCache.size() >= supplierCacheMaxSize) {
+            long now = System.currentTimeMillis();
+            supplierCache.entrySet().removeIf(entry -> entry.getValue().expiresAt <= now);
+            if (supplierCache.size() >= supplierCacheMaxSize) {
+                supplierCache.clear();
+            }
+        }
+        supplierCache.put(dto.getId(), new CachedSupplier(dto, System.currentTimeMillis() + supplierCacheTtlMs));
+    }
+
+    private static final class CachedSupplier {
+        private final SupplierDto supplier;
+        private final long expiresAt;
+
+        private CachedSupplier(SupplierDto supplier, long expiresAt) {
+            this.supplier = supplier;
+            this.expiresAt = expiresAt;
+        }
     }
 
     /**
@@ -260,6 +466,7 @@ public class ProductServiceClient {
     }
 
     // DTO for Supplier
+    @JsonIgnoreProperties(ignoreUnknown = true)
     public static class SupplierDto {
         private Long id;
         private String name;
@@ -1,11 +1,13 @@
 package com.example.inventory_service.controller;
 
+import com.example.inventory_service.client.ProductServiceClient;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
 
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 @RestController
@@ -13,9 +15,11 @@ import java.util.stream.Collectors;
 public class DebugController {
 
     private final RequestMappingHandlerMapping handlerMapping;
+    private final ProductServiceClient productClient;
 
-    public DebugController(RequestMappingHandlerMapping handlerMapping) {
+    public DebugController(RequestMappingHandlerMapping handlerMapping, ProductServiceClient productClient) {
         this.handlerMapping = handlerMapping;
+        this.productClient = productClient;
     }
 
     @GetMapping("/mappings")
@@ -24,5 +28,9 @@ public class DebugController {
                 .map(e -> e.getKey().getPatternsCondition() + " -> " + e.getValue().toString())
                 .collect(Collectors.toList());
     }
-}
 
+    @GetMapping("/supplier-cache")
+    public Map<String, Long> supplierCacheStats() {
+        return productClient.getSupplierCacheStats();
+    }
+}
@@ -3,6 +3,9 @@ package com.example.inventory_service.controller;
 import com.example.inventory_service.common.ApiResponse;
 import com.example.inventory_service.dto.StockByStoreDto;
 import com.example.inventory_service.dto.CreateStockRequest;
+import com.example.inventory_service.dto.StockReservationDto;
+import com.example.inventory_service.dto.StockReservationRequest;
+import com.example.inventory_service.service.StockReservationService;
 import com.example.inventory_service.service.StockService;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
@@ -16,9 +19,11 @@ import java.util.List;
 public class StockController {
 
     private final StockService stockService;
+    private final StockReservationService reservationService;
 
-    public StockController(StockService stockService) {
+    public StockController(StockService stockService, StockReservationService reservationService) {
         this.stockService = stockService;
+        this.reservationService = reservationService;
     }
 
     // 1) Tổng tồn kho tất cả sản phẩm (từ shop_stocks)
@@ -73,4 +78,30 @@ public class StockController {
         stockService.deleteByProductId(productId);
         return ApiResponse.ok("Deleted", null);
     }
+
+    // 7) Số lượng còn có thể giữ của 1 sản phẩm tại 1 kho (tồn - đang giữ, đọc từ bộ nhớ)
+    @GetMapping("/product/{productId}/store/{storeId}/available")
+    public ApiResponse<Long> getAvailable(
+            @PathVariable Long productId,
+            @PathVariable Long storeId) {
+        return ApiResponse.ok(reservationService.getAvailable(productId, storeId));
+    }
+
+    // 8) Giữ hàng (hết hạn sau ttlSeconds nếu không commit/release)
+    @PostMapping("/reservations")
+    public ApiResponse<StockReservationDto> reserve(@RequestBody StockReservationRequest request) {
+        return ApiResponse.ok(reservationService.reserve(request));
+    }
+
+    // 9) Xác nhận giữ hàng: trừ tồn, ghi xuống shop_stocks theo lô
+    @PostMapping("/reservations/{reservationId}/commit")
+    public ApiResponse<StockReservationDto> commitReservation(@PathVariable String reservationId) {
+        return ApiResponse.ok(reservationService.commit(reservationId));
+    }
+
+    // 10) Hủy giữ hàng
+    @PostMapping("/reservations/{reservationId}/release")
+    public ApiResponse<StockReservationDto> releaseReservation(@PathVariable String reservationId) {
+        return ApiResponse.ok(reservationService.release(reservationId));
+    }
 }
@@ -0,0 +1,25 @@
+package com.example.inventory_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Một dòng biến động tồn kho (cộng/trừ) của 1 sản phẩm tại 1 kho
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockDelta {
+    private Long productId;
+    private Long storeId;
+    private int quantity; // dương: nhập thêm, âm: xuất/giảm
+
+    // Giá trị min/max khi phải tạo mới bản ghi shop_stocks
+    private int minStock;
+    private int maxStock;
+
+    public StockDelta(Long productId, Long storeId, int quantity) {
+        this(productId, storeId, quantity, 0, 999999);
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.inventory_service.dto;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.Data;
+
+import java.util.Date;
+
+@Data
+public class StockReservationDto {
+    private String reservationId;
+    private Long productId;
+    private Long storeId;
+    private Integer quantity;
+    private String status; // RESERVED, COMMITTED, RELEASED
+    private Long available; // Số lượng còn có thể giữ sau thao tác
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
+    private Date expiresAt;
+}
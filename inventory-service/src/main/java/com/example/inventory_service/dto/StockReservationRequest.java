@@ -0,0 +1,11 @@
+package com.example.inventory_service.dto;
+
+import lombok.Data;
+
+@Data
+public class StockReservationRequest {
+    private Long productId;
+    private Long storeId;
+    private Integer quantity;
+    private Long ttlSeconds; // Thời gian giữ hàng, null = dùng mặc định
+}
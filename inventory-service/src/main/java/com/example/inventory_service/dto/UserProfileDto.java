@@ -0,0 +1,18 @@
+package com.example.inventory_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Thông tin hiển thị của user (tên + vai trò) dùng cho các cột audit
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserProfileDto {
+    private Long userId;
+    private String username;
+    private String displayName; // fullName, nếu trống thì dùng username
+    private String role; // role_code, nếu trống thì dùng display_name của role
+}
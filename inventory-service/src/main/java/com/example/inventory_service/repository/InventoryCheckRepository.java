@@ -12,6 +12,8 @@ import java.util.List;
 
 public interface InventoryCheckRepository extends JpaRepository<InventoryCheck, Long> {
 
+    boolean existsByCheckCode(String checkCode);
+
     @Query("""
             SELECT ic FROM InventoryCheck ic
             WHERE (:status IS NULL OR ic.status = :status)
@@ -14,6 +14,8 @@ import java.util.List;
 
 public interface ShopExportRepository extends JpaRepository<ShopExport, Long> {
 
+  boolean existsByCode(String code);
+
   Page<ShopExport> findByStoreId(Long storeId, Pageable pageable);
 
   Page<ShopExport> findByOrderId(Long orderId, Pageable pageable);
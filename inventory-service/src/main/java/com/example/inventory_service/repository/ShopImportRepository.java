@@ -13,6 +13,8 @@ import java.util.List;
 
 public interface ShopImportRepository extends JpaRepository<ShopImport, Long> {
 
+  boolean existsByCode(String code);
+
   List<ShopImport> findByStoreId(Long storeId);
 
   // Pagination version để tránh load quá nhiều records
@@ -7,11 +7,12 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
-public interface ShopStockRepository extends JpaRepository<ShopStock, Long> {
+public interface ShopStockRepository extends JpaRepository<ShopStock, Long>, ShopStockRepositoryCustom {
 
     /**
      * Tìm tồn kho của 1 sản phẩm tại 1 kho
@@ -28,6 +29,11 @@ public interface ShopStockRepository extends JpaRepository<ShopStock, Long> {
      */
     List<ShopStock> findByProductId(Long productId);
 
+    /**
+     * Lấy tồn kho của nhiều sản phẩm (tại tất cả các kho) trong 1 query
+     */
+    List<ShopStock> findByProductIdIn(Collection<Long> productIds);
+
     /**
      * Tăng số lượng tồn kho
      */
@@ -36,7 +42,7 @@ public interface ShopStockRepository extends JpaRepository<ShopStock, Long> {
     int increaseQuantity(@Param("productId") Long productId, @Param("storeId") Long storeId, @Param("amount") Integer amount);
 
     /**
-     * Giảm số lượng tồn kho
+     * Giảm số lượng tồn kho (không kiểm tra tồn, xuất kho dùng decreaseIfAvailable)
      */
     @Modifying
     @Query("UPDATE ShopStock s SET s.quantity = s.quantity - :amount WHERE s.productId = :productId AND s.storeId = :storeId")
@@ -0,0 +1,36 @@
+package com.example.inventory_service.repository;
+
+import com.example.inventory_service.dto.StockDelta;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Các thao tác ghi sổ tồn kho theo lô (JDBC), dùng chung cho nhập kho, xuất kho và kiểm kê
+ */
+public interface ShopStockRepositoryCustom {
+
+    /**
+     * Cộng dồn biến động vào shop_stocks bằng batch upsert
+     * (INSERT ... ON DUPLICATE KEY UPDATE quantity = quantity + ?) trên uk_stock_product_store.
+     * Các dòng cùng (product, store) được gộp lại trước khi ghi.
+     *
+     * @param deltas      danh sách biến động
+     * @param floorAtZero true: không cho tồn kho âm sau khi cộng (dùng cho kiểm kê)
+     * @return số cặp (product, store) đã ghi
+     */
+    int postDeltas(Collection<StockDelta> deltas, boolean floorAtZero);
+
+    /**
+     * Trừ tồn kho có điều kiện theo lô:
+     * UPDATE ... SET quantity = quantity - ? WHERE products_id = ? AND stores_id = ? AND quantity >= ?.
+     * Điều kiện được MySQL kiểm tra trên row đã khóa nên không thể bán quá tồn khi xuất đồng thời.
+     * Các dòng cùng (product, store) được gộp lại trước khi trừ.
+     * Hàm không tự rollback: caller (trong @Transactional) phải throw nếu kết quả khác rỗng
+     * để hoàn tác các dòng đã trừ của cùng phiếu.
+     *
+     * @param deltas danh sách cần trừ (quantity là số lượng dương cần trừ)
+     * @return các dòng (đã gộp) không đủ tồn hoặc chưa có bản ghi tồn kho; rỗng nếu tất cả thành công
+     */
+    List<StockDelta> decreaseIfAvailable(Collection<StockDelta> deltas);
+}
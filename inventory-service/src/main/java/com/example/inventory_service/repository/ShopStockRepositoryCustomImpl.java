@@ -0,0 +1,142 @@
+package com.example.inventory_service.repository;
+
+import com.example.inventory_service.dto.StockDelta;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Implementation của {@link ShopStockRepositoryCustom}, được Spring Data ghép vào ShopStockRepository
+ */
+public class ShopStockRepositoryCustomImpl implements ShopStockRepositoryCustom {
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final String UPSERT_SQL =
+            "INSERT INTO shop_stocks (products_id, stores_id, quantity, min_stock, max_stock) " +
+            "VALUES (?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE quantity = quantity + ?";
+
+    private static final String UPSERT_FLOOR_SQL =
+            "INSERT INTO shop_stocks (products_id, stores_id, quantity, min_stock, max_stock) " +
+            "VALUES (?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE quantity = GREATEST(quantity + ?, 0)";
+
+    private static final String GUARDED_DECREASE_SQL =
+            "UPDATE shop_stocks SET quantity = quantity - ? " +
+            "WHERE products_id = ? AND stores_id = ? AND quantity >= ?";
+
+    // Sắp xếp theo (product, store) để các transaction khóa row theo cùng thứ tự, tránh deadlock
+    private static final Comparator<StockKey> KEY_ORDER = Comparator
+            .comparing(StockKey::productId)
+            .thenComparing(StockKey::storeId);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public ShopStockRepositoryCustomImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public int postDeltas(Collection<StockDelta> deltas, boolean floorAtZero) {
+        if (deltas == null || deltas.isEmpty()) {
+            return 0;
+        }
+
+        Map<StockKey, StockDelta> merged = merge(deltas);
+
+        List<Object[]> args = new ArrayList<>(merged.size());
+        for (StockDelta d : merged.values()) {
+            if (d.getQuantity() == 0) {
+                continue;
+            }
+            int insertQty = floorAtZero ? Math.max(d.getQuantity(), 0) : d.getQuantity();
+            args.add(new Object[]{
+                    d.getProductId(), d.getStoreId(), insertQty, d.getMinStock(), d.getMaxStock(), d.getQuantity()
+            });
+        }
+        if (args.isEmpty()) {
+            return 0;
+        }
+
+        String sql = floorAtZero ? UPSERT_FLOOR_SQL : UPSERT_SQL;
+        for (int from = 0; from < args.size(); from += BATCH_SIZE) {
+            jdbcTemplate.batchUpdate(sql, args.subList(from, Math.min(from + BATCH_SIZE, args.size())));
+        }
+        return args.size();
+    }
+
+    @Override
+    public List<StockDelta> decreaseIfAvailable(Collection<StockDelta> deltas) {
+        List<StockDelta> failed = new ArrayList<>();
+        if (deltas == null || deltas.isEmpty()) {
+            return failed;
+        }
+
+        List<StockDelta> lines = new ArrayList<>();
+        for (StockDelta d : merge(deltas).values()) {
+            if (d.getQuantity() > 0) {
+                lines.add(d);
+            }
+        }
+
+        for (int from = 0; from < lines.size(); from += BATCH_SIZE) {
+            List<StockDelta> chunk = lines.subList(from, Math.min(from + BATCH_SIZE, lines.size()));
+            List<Object[]> args = new ArrayList<>(chunk.size());
+            for (StockDelta d : chunk) {
+                args.add(new Object[]{d.getQuantity(), d.getProductId(), d.getStoreId(), d.getQuantity()});
+            }
+            int[] counts = jdbcTemplate.batchUpdate(GUARDED_DECREASE_SQL, args);
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    failed.add(chunk.get(i));
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Gộp các dòng cùng sản phẩm + kho, sắp xếp theo (product, store)
+     */
+    private static Map<StockKey, StockDelta> merge(Collection<StockDelta> deltas) {
+        Map<StockKey, StockDelta> merged = new TreeMap<>(KEY_ORDER);
+        for (StockDelta d : deltas) {
+            if (d == null || d.getProductId() == null || d.getStoreId() == null || d.getQuantity() == 0) {
+                continue;
+            }
+            StockKey key = new StockKey(d.getProductId(), d.getStoreId());
+            StockDelta existing = merged.get(key);
+            if (existing == null) {
+                merged.put(key, new StockDelta(d.getProductId(), d.getStoreId(), d.getQuantity(),
+                        d.getMinStock(), d.getMaxStock()));
+            } else {
+                existing.setQuantity(Math.addExact(existing.getQuantity(), d.getQuantity()));
+            }
+        }
+        return merged;
+    }
+
+    private static final class StockKey {
+        private final Long productId;
+        private final Long storeId;
+
+        private StockKey(Long productId, Long storeId) {
+            this.productId = productId;
+            this.storeId = storeId;
+        }
+
+        private Long productId() {
+            return productId;
+        }
+
+        private Long storeId() {
+            return storeId;
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package com.example.inventory_service.repository;
 
+import com.example.inventory_service.dto.UserProfileDto;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 @Repository("userQueryRepository")
@@ -101,5 +106,50 @@ public class UserQueryRepository {
             return Optional.empty();
         }
     }
+
+    /**
+     * Lấy tên hiển thị và role của nhiều user trong 1 query (IN ...)
+     * Mỗi user lấy role có roles_id nhỏ nhất, giống findRoleByUserId
+     */
+    public Map<Long, UserProfileDto> findProfilesByUserIds(Collection<Long> userIds) {
+        Map<Long, UserProfileDto> result = new HashMap<>();
+        if (userIds == null || userIds.isEmpty()) {
+            return result;
+        }
+
+        String placeholders = String.join(",", Collections.nCopies(userIds.size(), "?"));
+        String sql = "SELECT u.user_id, u.username, " +
+                "TRIM(CONCAT(COALESCE(u.first_name, ''), ' ', COALESCE(u.last_name, ''))) AS full_name, " +
+                "r.role_code, r.display_name " +
+                "FROM ad_users u " +
+                "LEFT JOIN ad_user_has_roles uhr ON uhr.user_id = u.user_id " +
+                "LEFT JOIN ad_roles r ON uhr.roles_id = r.roles_id " +
+                "WHERE u.user_id IN (" + placeholders + ") " +
+                "ORDER BY u.user_id ASC, r.roles_id ASC";
+
+        jdbcTemplate.query(sql, rs -> {
+            Long userId = rs.getLong("user_id");
+            if (result.containsKey(userId)) {
+                return; // đã có role ưu tiên (roles_id nhỏ nhất)
+            }
+            String username = rs.getString("username");
+            String fullName = trimToNull(rs.getString("full_name"));
+            String role = trimToNull(rs.getString("role_code"));
+            if (role == null) {
+                role = trimToNull(rs.getString("display_name"));
+            }
+            result.put(userId, new UserProfileDto(userId, username,
+                    fullName != null ? fullName : username, role));
+        }, userIds.toArray());
+        return result;
+    }
+
+    private static String trimToNull(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
 }
 
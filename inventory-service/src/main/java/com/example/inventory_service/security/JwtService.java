@@ -1,6 +1,7 @@
 package com.example.inventory_service.security;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.JwtException;
@@ -13,40 +14,113 @@ import org.springframework.stereotype.Service;
 
 import java.nio.charset.StandardCharsets;
 import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 @Slf4j
 public class JwtService {
 
+    private static final String BEARER_PREFIX = "Bearer ";
+    // Header dài hơn mức này chắc chắn không phải token do auth-service cấp
+    private static final int MAX_HEADER_LENGTH = 8192;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 không khả dụng", e);
+        }
+    });
+
     @Value("${jwt.secret}")
     private String secretKey;
 
     @Value("${jwt.expiration-ms}")
     private long jwtExpirationMs;
 
+    @Value("${jwt.claims-cache.max-entries:10000}")
+    private int claimsCacheMaxEntries;
+
+    // Key và parser chỉ tạo 1 lần; JwtParser của jjwt dùng chung giữa các thread được
+    private Key signingKey;
+    private JwtParser jwtParser;
+
+    // SHA-256(token) -> claims đã verify chữ ký; entry hết hạn cùng lúc với token
+    private final Map<String, CachedClaims> claimsCache = new ConcurrentHashMap<>();
+    private volatile long lastSweep;
+
     @PostConstruct
-    public void printSecretInfo() {
+    public void init() {
         log.info("[ORDER] jwt.secret length = {}", secretKey != null ? secretKey.length() : null);
+
+        // KHÔNG dùng Decoders.BASE64.decode(secretKey) nữa
+        signingKey = Keys.hmacShaKeyFor(secretKey.getBytes(StandardCharsets.UTF_8));
+        jwtParser = Jwts.parserBuilder()
+                .setSigningKey(signingKey)
+                .build();
     }
 
     private Key getSigningKey() {
-        // KHÔNG dùng Decoders.BASE64.decode(secretKey) nữa
-        return Keys.hmacShaKeyFor(secretKey.getBytes(StandardCharsets.UTF_8));
+        return signingKey;
+    }
+
+    /**
+     * Lấy token từ header "Bearer &lt;jwt&gt;". Trả null (không ném exception, không log) nếu header
+     * không có dạng 3 phần base64url ngăn cách bởi dấu chấm, để filter bỏ qua request rác thật nhanh.
+     */
+    public static String resolveBearerToken(String authHeader) {
+        if (authHeader == null
+                || authHeader.length() <= BEARER_PREFIX.length()
+                || authHeader.length() > MAX_HEADER_LENGTH
+                || !authHeader.startsWith(BEARER_PREFIX)) {
+            return null;
+        }
+        int dots = 0;
+        for (int i = BEARER_PREFIX.length(); i < authHeader.length(); i++) {
+            char c = authHeader.charAt(i);
+            if (c == '.') {
+                dots++;
+            } else if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_')) {
+                return null;
+            }
+        }
+        return dots == 2 ? authHeader.substring(BEARER_PREFIX.length()) : null;
     }
 
     public String extractUsername(String token) {
         return extractAllClaims(token).getSubject();
     }
 
+    /**
+     * Claims đã verify. Token đã gặp và chưa hết hạn lấy từ cache, không verify HMAC/parse JSON lại.
+     * Claims trả về dùng chung giữa các request, chỉ được đọc.
+     */
     public Claims extractAllClaims(String token) {
-        return Jwts.parserBuilder()
-                .setSigningKey(getSigningKey())
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
+        String key = tokenDigest(token);
+        long now = System.currentTimeMillis();
+        CachedClaims cached = claimsCache.get(key);
+        if (cached != null) {
+            if (cached.expiresAt > now) {
+                return cached.claims;
+            }
+            claimsCache.remove(key);
+        }
+
+        // Token sai/hết hạn ném exception ở đây như trước, không được đưa vào cache
+        Claims claims = jwtParser.parseClaimsJws(token).getBody();
+        Date exp = claims.getExpiration();
+        if (exp != null) {
+            cacheClaims(key, claims, exp.getTime(), now);
+        }
+        return claims;
     }
 
     public boolean isTokenValid(String token) {
@@ -77,4 +151,40 @@ public class JwtService {
                 .signWith(getSigningKey(), SignatureAlgorithm.HS256)
                 .compact();
     }
+
+    // Cache đầy: dọn entry hết hạn (tối đa 1 lần/giây); vẫn đầy thì không cache thêm
+    private void cacheClaims(String key, Claims claims, long expiresAt, long now) {
+        if (claimsCache.size() >= claimsCacheMaxEntries) {
+            if (now - lastSweep < SWEEP_INTERVAL_MS) {
+                return;
+            }
+            lastSweep = now;
+            claimsCache.values().removeIf(c -> c.expiresAt <= now);
+            if (claimsCache.size() >= claimsCacheMaxEntries) {
+                return;
+            }
+        }
+        claimsCache.put(key, new CachedClaims(claims, expiresAt));
+    }
+
+    /**
+     * SHA-256 (base64url) của token: khóa cache claims (không giữ token gốc trong bộ nhớ), cũng là phần
+     * token trong chữ ký header danh tính mà GatewayIdentityVerifier kiểm tra
+     */
+    static String tokenDigest(String token) {
+        MessageDigest sha256 = SHA256.get();
+        sha256.reset();
+        byte[] hash = sha256.digest(token.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    private static final class CachedClaims {
+        private final Claims claims;
+        private final long expiresAt;
+
+        private CachedClaims(Claims claims, long expiresAt) {
+            this.claims = claims;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
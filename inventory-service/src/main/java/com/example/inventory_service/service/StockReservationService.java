@@ -0,0 +1,22 @@
+package com.example.inventory_service.service;
+
+import com.example.inventory_service.dto.StockReservationDto;
+import com.example.inventory_service.dto.StockReservationRequest;
+
+public interface StockReservationService {
+
+    // Giữ hàng tạm (soft reservation) có thời hạn, không chạm DB nếu kho đã được nạp vào bộ nhớ
+    StockReservationDto reserve(StockReservationRequest request);
+
+    // Xác nhận giữ hàng: trừ tồn, phần chênh lệch được ghi xuống shop_stocks theo lô
+    StockReservationDto commit(String reservationId);
+
+    // Hủy giữ hàng
+    StockReservationDto release(String reservationId);
+
+    // Số lượng còn có thể giữ = tồn - đang giữ
+    long getAvailable(Long productId, Long storeId);
+
+    // Ghi các biến động đã commit xuống DB và làm mới tồn từ DB
+    void flush();
+}
@@ -0,0 +1,124 @@
+package com.example.inventory_service.service;
+
+import com.example.inventory_service.dto.UserProfileDto;
+import com.example.inventory_service.repository.UserQueryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolve tên + vai trò của user cho các cột audit (createdBy, approvedBy, ...).
+ * Gom tất cả userId của 1 trang để query ad_users 1 lần (IN ...),
+ * kết quả được cache theo TTL để các trang sau không phải query lại.
+ */
+@Service
+public class UserProfileResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserProfileResolver.class);
+
+    private final UserQueryRepository userRepo;
+    private final Map<Long, CachedProfile> cache = new ConcurrentHashMap<>();
+
+    @Value("${inventory.user-profile-cache.ttl-ms:300000}")
+    private long ttlMs;
+
+    @Value("${inventory.user-profile-cache.max-size:5000}")
+    private int maxSize;
+
+    public UserProfileResolver(UserQueryRepository userRepo) {
+        this.userRepo = userRepo;
+    }
+
+    /**
+     * Lấy profile cho nhiều userId, chỉ query DB cho các id chưa có trong cache
+     */
+    public Map<Long, UserProfileDto> resolve(Collection<Long> userIds) {
+        Map<Long, UserProfileDto> result = new HashMap<>();
+        if (userIds == null || userIds.isEmpty()) {
+            return result;
+        }
+
+        long now = System.currentTimeMillis();
+        Set<Long> missing = new LinkedHashSet<>();
+        for (Long userId : userIds) {
+            if (userId == null || result.containsKey(userId)) {
+                continue;
+            }
+            CachedProfile cached = cache.get(userId);
+            if (cached != null && cached.expiresAt > now) {
+                if (cached.profile != null) {
+                    result.put(userId, cached.profile);
+                }
+            } else {
+                missing.add(userId);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<Long, UserProfileDto> loaded;
+            try {
+                loaded = userRepo.findProfilesByUserIds(missing);
+            } catch (Exception e) {
+                logger.warn("Failed to load user profiles for {} users: {}", missing.size(), e.getMessage());
+                return result;
+            }
+            evictIfFull();
+            long expiresAt = now + ttlMs;
+            for (Long userId : missing) {
+                UserProfileDto profile = loaded.get(userId);
+                // Cache cả user không tồn tại để không query lại liên tục
+                cache.put(userId, new CachedProfile(profile, expiresAt));
+                if (profile != null) {
+                    result.put(userId, profile);
+                }
+            }
+        }
+        return result;
+    }
+
+    public UserProfileDto resolve(Long userId) {
+        if (userId == null) {
+            return null;
+        }
+        return resolve(Set.of(userId)).get(userId);
+    }
+
+    public void evict(Long userId) {
+        if (userId != null) {
+            cache.remove(userId);
+        }
+    }
+
+    public void evictAll() {
+        cache.clear();
+    }
+
+    private void evictIfFull() {
+        if (cache.size() < maxSize) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        cache.entrySet().removeIf(entry -> entry.getValue().expiresAt <= now);
+        if (cache.size() >= maxSize) {
+            cache.clear();
+        }
+    }
+
+    private static final class CachedProfile {
+        private final UserProfileDto profile;
+        private final long expiresAt;
+
+        private CachedProfile(UserProfileDto profile, long expiresAt) {
+            this.profile = profile;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
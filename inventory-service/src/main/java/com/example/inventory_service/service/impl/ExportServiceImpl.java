@@ -2,18 +2,21 @@ package com.example.inventory_service.service.impl;
 
 import com.example.inventory_service.dto.ExportDetailDto;
 import com.example.inventory_service.dto.ExportDetailRequest;
+import com.example.inventory_service.dto.StockDelta;
 import com.example.inventory_service.dto.SupplierExportDto;
 import com.example.inventory_service.dto.SupplierExportRequest;
+import com.example.inventory_service.dto.UserProfileDto;
 import com.example.inventory_service.entity.ExportStatus;
 import com.example.inventory_service.entity.ExportType;
 import com.example.inventory_service.entity.ShopExport;
 import com.example.inventory_service.entity.ShopExportDetail;
 import com.example.inventory_service.exception.NotFoundException;
-import com.example.inventory_service.entity.ShopStock;
 import com.example.inventory_service.repository.ShopExportDetailRepository;
 import com.example.inventory_service.repository.ShopExportRepository;
 import com.example.inventory_service.repository.ShopStockRepository;
+import com.example.inventory_service.service.CodeSequenceService;
 import com.example.inventory_service.service.ExportService;
+import com.example.inventory_service.service.UserProfileResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Page;
@@ -29,9 +32,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -46,6 +51,8 @@ public class ExportServiceImpl implements ExportService {
     private final ShopStockRepository stockRepo;
     private com.example.inventory_service.repository.UserQueryRepository userRepo;
     private final com.example.inventory_service.client.AiServiceClient aiServiceClient;
+    private final UserProfileResolver userProfileResolver;
+    private final CodeSequenceService codeSequence;
 
     public ExportServiceImpl(
             ShopExportRepository exportRepo,
@@ -53,13 +60,17 @@ public class ExportServiceImpl implements ExportService {
             com.example.inventory_service.repository.ShopStoreRepository storeRepo,
             ShopStockRepository stockRepo,
             com.example.inventory_service.repository.UserQueryRepository userRepo,
-            com.example.inventory_service.client.AiServiceClient aiServiceClient) {
+            com.example.inventory_service.client.AiServiceClient aiServiceClient,
+            UserProfileResolver userProfileResolver,
+            CodeSequenceService codeSequence) {
         this.exportRepo = exportRepo;
         this.detailRepo = detailRepo;
         this.storeRepo = storeRepo;
         this.stockRepo = stockRepo;
         this.userRepo = userRepo;
         this.aiServiceClient = aiServiceClient;
+        this.userProfileResolver = userProfileResolver;
+        this.codeSequence = codeSequence;
     }
 
     @Override
@@ -86,7 +97,9 @@ public class ExportServiceImpl implements ExportService {
         LocalDateTime now = LocalDateTime.now();
 
         ShopExport export = new ShopExport();
-        export.setCode(req.getCode() != null ? req.getCode() : "PXNCC" + System.currentTimeMillis());
+        export.setCode(req.getCode() != null && !req.getCode().isBlank()
+                ? req.getCode()
+                : codeSequence.nextCode("PXNCC", exportRepo::existsByCode));
         export.setExportType(ExportType.ORDER); // Cố định = ORDER
         export.setStoreId(storeId);
 
@@ -261,12 +274,14 @@ public class ExportServiceImpl implements ExportService {
 
         final Map<Long, List<ShopExportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(exportPage.getContent());
         List<SupplierExportDto> dtoPage = exportPage.getContent().stream()
                 .map(e -> toDtoWithCalcTotal(
                         e,
                         detailsMapFinal.getOrDefault(e.getId(), List.of()),
                         totalsMap.get(e.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         logger.debug("Total processing time: {}ms", System.currentTimeMillis() - startTime);
@@ -326,12 +341,14 @@ public class ExportServiceImpl implements ExportService {
 
         final Map<Long, List<ShopExportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(exportPage.getContent());
         List<SupplierExportDto> dtoPage = exportPage.getContent().stream()
                 .map(e -> toDtoWithCalcTotal(
                         e,
                         detailsMapFinal.getOrDefault(e.getId(), List.of()),
                         totalsMap.get(e.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         logger.debug("Search paged query took {}ms, processed {} records", 
@@ -394,12 +411,14 @@ public class ExportServiceImpl implements ExportService {
 
         final Map<Long, List<ShopExportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(exportPage.getContent());
         List<SupplierExportDto> dtoPage = exportPage.getContent().stream()
                 .map(e -> toDtoWithCalcTotal(
                         e,
                         detailsMapFinal.getOrDefault(e.getId(), List.of()),
                         totalsMap.get(e.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         logger.debug("Keyset pagination query took {}ms, processed {} records", 
@@ -541,35 +560,26 @@ public class ExportServiceImpl implements ExportService {
             throw new IllegalStateException("Chỉ có thể xuất kho khi phiếu đã được duyệt (APPROVED)");
         }
 
-        // Kiểm tra và trừ tồn kho từ shop_stocks
+        // Trừ tồn kho từ shop_stocks (mỗi dòng có thể khác kho)
         List<ShopExportDetail> details = detailRepo.findByExportId(id);
-
-        // Kiểm tra tồn kho trước khi xuất (mỗi dòng có thể khác kho)
+        List<StockDelta> deltas = new ArrayList<>();
         for (ShopExportDetail d : details) {
             Integer quantity = d.getQuantity();
             if (quantity == null || quantity <= 0) {
                 continue;
             }
-
-            Long productId = d.getProductId();
-            Long storeId = d.getStoreId(); // Lấy từ detail (mỗi dòng có thể khác kho)
-
-            if (storeId == null) {
+            if (d.getStoreId() == null) {
                 throw new IllegalStateException(
-                        String.format("Dòng sản phẩm ID %d không có kho xuất", productId));
+                        String.format("Dòng sản phẩm ID %d không có kho xuất", d.getProductId()));
             }
+            deltas.add(new StockDelta(d.getProductId(), d.getStoreId(), quantity));
+        }
 
-            // Kiểm tra tồn kho từ shop_stocks
-            ShopStock stock = stockRepo.findByProductIdAndStoreId(productId, storeId)
-                    .orElseThrow(() -> new IllegalStateException(
-                            String.format("Không tìm thấy tồn kho cho sản phẩm ID %d tại kho ID %d",
-                                    productId, storeId)));
-
-            if (stock.getQuantity() < quantity) {
-                throw new IllegalStateException(
-                        String.format("Sản phẩm ID %d không đủ số lượng trong kho ID %d. Tồn: %d, Cần: %d",
-                                productId, storeId, stock.getQuantity(), quantity));
-            }
+        // Trừ có điều kiện (quantity >= cần xuất) trong cùng transaction:
+        // nếu 1 dòng không đủ tồn thì throw để rollback toàn bộ phiếu
+        List<StockDelta> insufficient = stockRepo.decreaseIfAvailable(deltas);
+        if (!insufficient.isEmpty()) {
+            throw new IllegalStateException(describeInsufficientStock(insufficient.get(0)));
         }
 
         // Cập nhật trạng thái
@@ -582,20 +592,6 @@ public class ExportServiceImpl implements ExportService {
         export.setUpdatedAt(LocalDateTime.now());
         export = exportRepo.save(export);
 
-        // Trừ tồn kho từ shop_stocks (mỗi dòng trừ tại kho riêng)
-        for (ShopExportDetail d : details) {
-            if (d.getQuantity() != null && d.getQuantity() > 0 && d.getStoreId() != null) {
-                Long storeId = d.getStoreId(); // Lấy từ detail
-                ShopStock stock = stockRepo.findByProductIdAndStoreId(d.getProductId(), storeId)
-                        .orElseThrow(() -> new IllegalStateException(
-                                String.format("Không tìm thấy tồn kho cho sản phẩm ID %d tại kho ID %d",
-                                        d.getProductId(), storeId)));
-
-                stock.setQuantity(stock.getQuantity() - d.getQuantity());
-                stockRepo.save(stock);
-            }
-        }
-
         return toDtoWithCalcTotal(export);
     }
 
@@ -674,12 +670,14 @@ public class ExportServiceImpl implements ExportService {
 
         final Map<Long, List<ShopExportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(exportPage.getContent());
         List<SupplierExportDto> dtoPage = exportPage.getContent().stream()
                 .map(e -> toDtoWithCalcTotal(
                         e,
                         detailsMapFinal.getOrDefault(e.getId(), List.of()),
                         totalsMap.get(e.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         return new PageImpl<>(dtoPage, pageable, exportPage.getTotalElements());
@@ -721,12 +719,14 @@ public class ExportServiceImpl implements ExportService {
 
         final Map<Long, List<ShopExportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(exportPage.getContent());
         List<SupplierExportDto> dtoPage = exportPage.getContent().stream()
                 .map(e -> toDtoWithCalcTotal(
                         e,
                         detailsMapFinal.getOrDefault(e.getId(), List.of()),
                         totalsMap.get(e.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         return new PageImpl<>(dtoPage, pageable, exportPage.getTotalElements());
@@ -768,12 +768,14 @@ public class ExportServiceImpl implements ExportService {
 
         final Map<Long, List<ShopExportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(exportPage.getContent());
         List<SupplierExportDto> dtoPage = exportPage.getContent().stream()
                 .map(e -> toDtoWithCalcTotal(
                         e,
                         detailsMapFinal.getOrDefault(e.getId(), List.of()),
                         totalsMap.get(e.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         return new PageImpl<>(dtoPage, pageable, exportPage.getTotalElements());
@@ -813,24 +815,26 @@ public class ExportServiceImpl implements ExportService {
     }
     
     /**
-     * Lấy fullName từ userId bằng cách query database
+     * Gom userId audit của cả trang và lấy tên/role trong 1 lần (có cache)
      */
-    private String getUserFullNameFromId(Long userId) {
-        try {
-            if (userRepo == null) {
-                return null;
-            }
-            java.util.Optional<String> fullName = userRepo.findFullNameByUserId(userId);
-            if (fullName.isPresent() && !fullName.get().trim().isEmpty()) {
-                return fullName.get().trim();
-            }
-            // Nếu không có fullName, lấy username
-            java.util.Optional<String> username = userRepo.findUsernameByUserId(userId);
-            return username.orElse(null);
-        } catch (Exception e) {
-            System.err.println("⚠️ Failed to get user full name from userId " + userId + ": " + e.getMessage());
-            return null;
+    private Map<Long, UserProfileDto> resolveAuditUsers(List<ShopExport> exports) {
+        Set<Long> userIds = new LinkedHashSet<>();
+        for (ShopExport e : exports) {
+            userIds.add(e.getCreatedBy());
+            userIds.add(e.getApprovedBy());
+            userIds.add(e.getRejectedBy());
+            userIds.add(e.getExportedBy());
         }
+        userIds.remove(null);
+        return userProfileResolver.resolve(userIds);
+    }
+
+    private String describeInsufficientStock(StockDelta line) {
+        return stockRepo.findByProductIdAndStoreId(line.getProductId(), line.getStoreId())
+                .map(stock -> String.format("Sản phẩm ID %d không đủ số lượng trong kho ID %d. Tồn: %d, Cần: %d",
+                        line.getProductId(), line.getStoreId(), stock.getQuantity(), line.getQuantity()))
+                .orElseGet(() -> String.format("Không tìm thấy tồn kho cho sản phẩm ID %d tại kho ID %d",
+                        line.getProductId(), line.getStoreId()));
     }
 
     private String normalizeImagePath(String raw) {
@@ -865,14 +869,15 @@ public class ExportServiceImpl implements ExportService {
             }
         }
 
-        return toDtoWithCalcTotal(e, details, null, storeMap);
+        return toDtoWithCalcTotal(e, details, null, storeMap, resolveAuditUsers(List.of(e)));
     }
 
     private SupplierExportDto toDtoWithCalcTotal(
             ShopExport e,
             List<ShopExportDetail> details,
             BigDecimal precomputedTotal,
-            Map<Long, com.example.inventory_service.entity.ShopStore> storeMap) {
+            Map<Long, com.example.inventory_service.entity.ShopStore> storeMap,
+            Map<Long, UserProfileDto> userMap) {
         BigDecimal total = precomputedTotal != null ? precomputedTotal : BigDecimal.ZERO;
         List<ExportDetailDto> itemDtos = new ArrayList<>();
 
@@ -920,16 +925,18 @@ public class ExportServiceImpl implements ExportService {
             }
         }
 
-        SupplierExportDto dto = toDto(e, total, storeMap);
+        SupplierExportDto dto = toDto(e, total, storeMap, userMap);
         dto.setItems(itemDtos);
         return dto;
     }
 
     private SupplierExportDto toDto(ShopExport e, BigDecimal total) {
-        return toDto(e, total, null);
+        return toDto(e, total, null, resolveAuditUsers(List.of(e)));
     }
 
-    private SupplierExportDto toDto(ShopExport e, BigDecimal total, Map<Long, com.example.inventory_service.entity.ShopStore> storeMap) {
+    private SupplierExportDto toDto(ShopExport e, BigDecimal total,
+                                    Map<Long, com.example.inventory_service.entity.ShopStore> storeMap,
+                                    Map<Long, UserProfileDto> userMap) {
         SupplierExportDto dto = new SupplierExportDto();
         dto.setId(e.getId());
         dto.setCode(e.getCode());
@@ -996,80 +1003,26 @@ public class ExportServiceImpl implements ExportService {
             dto.setExportedAt(java.sql.Timestamp.valueOf(e.getExportedAt()));
         }
         
-        // Lấy tên user và role từ userId
-        try {
-            if (userRepo == null) {
-                System.err.println("⚠️ userRepo is null, cannot fetch user names");
-            } else {
-                if (e.getCreatedBy() != null) {
-                    String createdByUsername = getUserFullNameFromId(e.getCreatedBy());
-                    if (createdByUsername != null && !createdByUsername.trim().isEmpty()) {
-                        dto.setCreatedByName(createdByUsername);
-                        System.out.println("✅ Set createdByName: " + createdByUsername + " for userId: " + e.getCreatedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get name for createdBy userId: " + e.getCreatedBy());
-                    }
-                    String createdByRole = getUserRoleFromId(e.getCreatedBy());
-                    if (createdByRole != null && !createdByRole.trim().isEmpty()) {
-                        dto.setCreatedByRole(createdByRole);
-                        System.out.println("✅ Set createdByRole: " + createdByRole + " for userId: " + e.getCreatedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get role for createdBy userId: " + e.getCreatedBy());
-                    }
-                }
-                if (e.getApprovedBy() != null) {
-                    String approvedByUsername = getUserFullNameFromId(e.getApprovedBy());
-                    if (approvedByUsername != null && !approvedByUsername.trim().isEmpty()) {
-                        dto.setApprovedByName(approvedByUsername);
-                        System.out.println("✅ Set approvedByName: " + approvedByUsername + " for userId: " + e.getApprovedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get name for approvedBy userId: " + e.getApprovedBy());
-                    }
-                    String approvedByRole = getUserRoleFromId(e.getApprovedBy());
-                    if (approvedByRole != null && !approvedByRole.trim().isEmpty()) {
-                        dto.setApprovedByRole(approvedByRole);
-                        System.out.println("✅ Set approvedByRole: " + approvedByRole + " for userId: " + e.getApprovedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get role for approvedBy userId: " + e.getApprovedBy());
-                    }
-                }
-                if (e.getRejectedBy() != null) {
-                    String rejectedByUsername = getUserFullNameFromId(e.getRejectedBy());
-                    if (rejectedByUsername != null && !rejectedByUsername.trim().isEmpty()) {
-                        dto.setRejectedByName(rejectedByUsername);
-                        System.out.println("✅ Set rejectedByName: " + rejectedByUsername + " for userId: " + e.getRejectedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get name for rejectedBy userId: " + e.getRejectedBy());
-                    }
-                    String rejectedByRole = getUserRoleFromId(e.getRejectedBy());
-                    if (rejectedByRole != null && !rejectedByRole.trim().isEmpty()) {
-                        dto.setRejectedByRole(rejectedByRole);
-                        System.out.println("✅ Set rejectedByRole: " + rejectedByRole + " for userId: " + e.getRejectedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get role for rejectedBy userId: " + e.getRejectedBy());
-                    }
-                }
-                if (e.getExportedBy() != null) {
-                    String exportedByUsername = getUserFullNameFromId(e.getExportedBy());
-                    if (exportedByUsername != null && !exportedByUsername.trim().isEmpty()) {
-                        dto.setExportedByName(exportedByUsername);
-                        System.out.println("✅ Set exportedByName: " + exportedByUsername + " for userId: " + e.getExportedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get name for exportedBy userId: " + e.getExportedBy());
-                    }
-                    String exportedByRole = getUserRoleFromId(e.getExportedBy());
-                    if (exportedByRole != null && !exportedByRole.trim().isEmpty()) {
-                        dto.setExportedByRole(exportedByRole);
-                        System.out.println("✅ Set exportedByRole: " + exportedByRole + " for userId: " + e.getExportedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get role for exportedBy userId: " + e.getExportedBy());
-                    }
-                }
-            }
-        } catch (Exception ex) {
-            // Nếu có lỗi khi lấy user name, bỏ qua và tiếp tục
-            System.err.println("⚠️ Failed to get user names: " + ex.getMessage());
-            ex.printStackTrace();
+        // Lấy tên user và role từ map đã resolve theo lô
+        UserProfileDto createdByUser = userMap.get(e.getCreatedBy());
+        if (createdByUser != null) {
+            dto.setCreatedByName(createdByUser.getDisplayName());
+            dto.setCreatedByRole(createdByUser.getRole());
+        }
+        UserProfileDto approvedByUser = userMap.get(e.getApprovedBy());
+        if (approvedByUser != null) {
+            dto.setApprovedByName(approvedByUser.getDisplayName());
+            dto.setApprovedByRole(approvedByUser.getRole());
+        }
+        UserProfileDto rejectedByUser = userMap.get(e.getRejectedBy());
+        if (rejectedByUser != null) {
+            dto.setRejectedByName(rejectedByUser.getDisplayName());
+            dto.setRejectedByRole(rejectedByUser.getRole());
+        }
+        UserProfileDto exportedByUser = userMap.get(e.getExportedBy());
+        if (exportedByUser != null) {
+            dto.setExportedByName(exportedByUser.getDisplayName());
+            dto.setExportedByRole(exportedByUser.getRole());
         }
 
         return dto;
@@ -3,8 +3,10 @@ package com.example.inventory_service.service.impl;
 import com.example.inventory_service.client.ProductServiceClient;
 import com.example.inventory_service.dto.ImportDetailDto;
 import com.example.inventory_service.dto.ImportDetailRequest;
+import com.example.inventory_service.dto.StockDelta;
 import com.example.inventory_service.dto.SupplierImportDto;
 import com.example.inventory_service.dto.SupplierImportRequest;
+import com.example.inventory_service.dto.UserProfileDto;
 import com.example.inventory_service.entity.ImportStatus;
 import com.example.inventory_service.entity.ImportType;
 import com.example.inventory_service.entity.ShopImport;
@@ -13,8 +15,9 @@ import com.example.inventory_service.exception.NotFoundException;
 import com.example.inventory_service.repository.ShopImportDetailRepository;
 import com.example.inventory_service.repository.ShopImportRepository;
 import com.example.inventory_service.repository.ShopStockRepository;
-import com.example.inventory_service.entity.ShopStock;
+import com.example.inventory_service.service.CodeSequenceService;
 import com.example.inventory_service.service.ImportService;
+import com.example.inventory_service.service.UserProfileResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Page;
@@ -29,10 +32,12 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -48,6 +53,8 @@ public class ImportServiceImpl implements ImportService {
     private final com.example.inventory_service.repository.ShopStoreRepository storeRepo;
     private final ShopStockRepository stockRepo;
     private com.example.inventory_service.repository.UserQueryRepository userRepo;
+    private final UserProfileResolver userProfileResolver;
+    private final CodeSequenceService codeSequence;
 
     public ImportServiceImpl(
             ShopImportRepository importRepo,
@@ -56,7 +63,9 @@ public class ImportServiceImpl implements ImportService {
             com.example.inventory_service.client.AiServiceClient aiServiceClient,
             com.example.inventory_service.repository.ShopStoreRepository storeRepo,
             ShopStockRepository stockRepo,
-            com.example.inventory_service.repository.UserQueryRepository userRepo) {
+            com.example.inventory_service.repository.UserQueryRepository userRepo,
+            UserProfileResolver userProfileResolver,
+            CodeSequenceService codeSequence) {
         this.importRepo = importRepo;
         this.detailRepo = detailRepo;
         this.productClient = productClient;
@@ -64,6 +73,8 @@ public class ImportServiceImpl implements ImportService {
         this.storeRepo = storeRepo;
         this.stockRepo = stockRepo;
         this.userRepo = userRepo;
+        this.userProfileResolver = userProfileResolver;
+        this.codeSequence = codeSequence;
     }
 
     @Override
@@ -82,7 +93,7 @@ public class ImportServiceImpl implements ImportService {
         if (request.getCode() != null && !request.getCode().isBlank()) {
             im.setCode(request.getCode());
         } else {
-            im.setCode("PNNCC" + System.currentTimeMillis());
+            im.setCode(codeSequence.nextCode("PNNCC", importRepo::existsByCode));
         }
 
         // Lấy supplier type để set vào importType
@@ -240,9 +251,12 @@ public class ImportServiceImpl implements ImportService {
                 toDate,
                 org.springframework.data.domain.PageRequest.of(0, 1000)); // Limit to 1000 records
 
+        Map<Long, UserProfileDto> userMap = resolveAuditUsers(page.getContent());
+        prefetchSuppliers(page.getContent());
         List<SupplierImportDto> result = new ArrayList<>();
         for (ShopImport im : page.getContent()) {
-            result.add(toDtoWithCalcTotal(im));
+            List<ShopImportDetail> details = detailRepo.findByImportId(im.getId());
+            result.add(toDtoWithCalcTotal(im, details, null, null, userMap));
         }
         return result;
     }
@@ -308,12 +322,15 @@ public class ImportServiceImpl implements ImportService {
 
         final Map<Long, List<ShopImportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(importPage.getContent());
+        prefetchSuppliers(importPage.getContent());
         List<SupplierImportDto> dtoPage = importPage.getContent().stream()
                 .map(im -> toDtoWithCalcTotal(
                         im,
                         detailsMapFinal.getOrDefault(im.getId(), List.of()),
                         totalsMap.get(im.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         logger.debug("Search paged query took {}ms, processed {} records",
@@ -476,30 +493,16 @@ public class ImportServiceImpl implements ImportService {
         im.setUpdatedAt(now);
         im = importRepo.save(im);
 
-        // Cập nhật tồn kho vào shop_stocks
+        // Cập nhật tồn kho vào shop_stocks: gộp các dòng và ghi 1 batch upsert
+        // (mỗi dòng có thể khác kho; sản phẩm chưa có trong kho được tạo với minStock = 10, maxStock = 1000)
         List<ShopImportDetail> details = detailRepo.findByImportId(id);
+        List<StockDelta> deltas = new ArrayList<>();
         for (ShopImportDetail d : details) {
             if (d.getQuantity() != null && d.getQuantity() > 0 && d.getStoreId() != null) {
-                // Lấy storeId từ detail (mỗi dòng có thể khác kho)
-                Long storeId = d.getStoreId();
-                // Tìm hoặc tạo stock record
-                ShopStock stock = stockRepo.findByProductIdAndStoreId(d.getProductId(), storeId)
-                        .orElseGet(() -> {
-                            ShopStock newStock = new ShopStock();
-                            newStock.setProductId(d.getProductId());
-                            newStock.setStoreId(storeId);
-                            newStock.setQuantity(0);
-                            // Nếu sản phẩm chưa có trong kho, set mặc định minStock = 10 và maxStock = 1000
-                            newStock.setMinStock(10);
-                            newStock.setMaxStock(1000);
-                            return stockRepo.save(newStock);
-                        });
-
-                // Tăng số lượng
-                stock.setQuantity(stock.getQuantity() + d.getQuantity());
-                stockRepo.save(stock);
+                deltas.add(new StockDelta(d.getProductId(), d.getStoreId(), d.getQuantity(), 10, 1000));
             }
         }
+        stockRepo.postDeltas(deltas, false);
 
         return toDtoWithCalcTotal(im);
     }
@@ -584,12 +587,15 @@ public class ImportServiceImpl implements ImportService {
 
         final Map<Long, List<ShopImportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(importPage.getContent());
+        prefetchSuppliers(importPage.getContent());
         return importPage.getContent().stream()
                 .map(im -> toDtoWithCalcTotal(
                         im,
                         detailsMapFinal.getOrDefault(im.getId(), List.of()),
                         totalsMap.get(im.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
     }
 
@@ -634,12 +640,15 @@ public class ImportServiceImpl implements ImportService {
 
         final Map<Long, List<ShopImportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(importPage.getContent());
+        prefetchSuppliers(importPage.getContent());
         return importPage.getContent().stream()
                 .map(im -> toDtoWithCalcTotal(
                         im,
                         detailsMapFinal.getOrDefault(im.getId(), List.of()),
                         totalsMap.get(im.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
     }
 
@@ -682,12 +691,15 @@ public class ImportServiceImpl implements ImportService {
 
         final Map<Long, List<ShopImportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(importPage.getContent());
+        prefetchSuppliers(importPage.getContent());
         List<SupplierImportDto> dtoPage = importPage.getContent().stream()
                 .map(im -> toDtoWithCalcTotal(
                         im,
                         detailsMapFinal.getOrDefault(im.getId(), List.of()),
                         totalsMap.get(im.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         return new PageImpl<>(dtoPage, pageable, importPage.getTotalElements());
@@ -732,12 +744,15 @@ public class ImportServiceImpl implements ImportService {
 
         final Map<Long, List<ShopImportDetail>> detailsMapFinal = detailsMap;
         final Map<Long, com.example.inventory_service.entity.ShopStore> storeMapFinal = storeMap;
+        final Map<Long, UserProfileDto> userMap = resolveAuditUsers(importPage.getContent());
+        prefetchSuppliers(importPage.getContent());
         List<SupplierImportDto> dtoPage = importPage.getContent().stream()
                 .map(im -> toDtoWithCalcTotal(
                         im,
                         detailsMapFinal.getOrDefault(im.getId(), List.of()),
                         totalsMap.get(im.getId()),
-                        storeMapFinal))
+                        storeMapFinal,
+                        userMap))
                 .toList();
 
         return new PageImpl<>(dtoPage, pageable, importPage.getTotalElements());
@@ -833,14 +848,15 @@ public class ImportServiceImpl implements ImportService {
 
     private SupplierImportDto toDtoWithCalcTotal(ShopImport im) {
         List<ShopImportDetail> details = detailRepo.findByImportId(im.getId());
-        return toDtoWithCalcTotal(im, details, null, null);
+        return toDtoWithCalcTotal(im, details, null, null, resolveAuditUsers(List.of(im)));
     }
 
     private SupplierImportDto toDtoWithCalcTotal(
             ShopImport im,
             List<ShopImportDetail> details,
             BigDecimal precomputedTotal,
-            Map<Long, com.example.inventory_service.entity.ShopStore> storeMap) {
+            Map<Long, com.example.inventory_service.entity.ShopStore> storeMap,
+            Map<Long, UserProfileDto> userMap) {
         BigDecimal total = precomputedTotal != null ? precomputedTotal : BigDecimal.ZERO;
         List<ImportDetailDto> itemDtos = new ArrayList<>();
 
@@ -894,16 +910,18 @@ public class ImportServiceImpl implements ImportService {
             }
         }
 
-        SupplierImportDto dto = toDto(im, total, storeMap);
+        SupplierImportDto dto = toDto(im, total, storeMap, userMap);
         dto.setItems(itemDtos);
         return dto;
     }
 
     private SupplierImportDto toDto(ShopImport imp, BigDecimal total) {
-        return toDto(imp, total, null);
+        return toDto(imp, total, null, resolveAuditUsers(List.of(imp)));
     }
 
-    private SupplierImportDto toDto(ShopImport imp, BigDecimal total, Map<Long, com.example.inventory_service.entity.ShopStore> storeMap) {
+    private SupplierImportDto toDto(ShopImport imp, BigDecimal total,
+                                    Map<Long, com.example.inventory_service.entity.ShopStore> storeMap,
+                                    Map<Long, UserProfileDto> userMap) {
         SupplierImportDto dto = new SupplierImportDto();
         dto.setId(imp.getId());
         dto.setCode(imp.getCode());
@@ -942,7 +960,7 @@ public class ImportServiceImpl implements ImportService {
                     dto.setSupplierAddress(supplierInfo.getAddress());
                 }
             } catch (Exception ex) {
-                System.err.println("❌ Failed to get supplier info for supplierId: " + imp.getSupplierId());
+                logger.warn("Failed to get supplier info for supplierId {}: {}", imp.getSupplierId(), ex.getMessage());
                 dto.setSupplierName(null);
             }
         }
@@ -972,106 +990,61 @@ public class ImportServiceImpl implements ImportService {
         dto.setImportedAt(imp.getImportedAt() != null ? 
             java.sql.Timestamp.valueOf(imp.getImportedAt()) : null);
         
-        // Lấy tên user và role từ userId
-        try {
-            if (userRepo == null) {
-                System.err.println("⚠️ userRepo is null, cannot fetch user names");
-            } else {
-                if (imp.getCreatedBy() != null) {
-                    String createdByUsername = getUserFullNameFromId(imp.getCreatedBy());
-                    if (createdByUsername != null && !createdByUsername.trim().isEmpty()) {
-                        dto.setCreatedByName(createdByUsername);
-                        System.out.println("✅ Set createdByName: " + createdByUsername + " for userId: " + imp.getCreatedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get name for createdBy userId: " + imp.getCreatedBy());
-                    }
-                    String createdByRole = getUserRoleFromId(imp.getCreatedBy());
-                    if (createdByRole != null && !createdByRole.trim().isEmpty()) {
-                        dto.setCreatedByRole(createdByRole);
-                        System.out.println("✅ Set createdByRole: " + createdByRole + " for userId: " + imp.getCreatedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get role for createdBy userId: " + imp.getCreatedBy());
-                    }
-                }
-                if (imp.getApprovedBy() != null) {
-                    String approvedByUsername = getUserFullNameFromId(imp.getApprovedBy());
-                    if (approvedByUsername != null && !approvedByUsername.trim().isEmpty()) {
-                        dto.setApprovedByName(approvedByUsername);
-                        System.out.println("✅ Set approvedByName: " + approvedByUsername + " for userId: " + imp.getApprovedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get name for approvedBy userId: " + imp.getApprovedBy());
-                    }
-                    String approvedByRole = getUserRoleFromId(imp.getApprovedBy());
-                    if (approvedByRole != null && !approvedByRole.trim().isEmpty()) {
-                        dto.setApprovedByRole(approvedByRole);
-                        System.out.println("✅ Set approvedByRole: " + approvedByRole + " for userId: " + imp.getApprovedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get role for approvedBy userId: " + imp.getApprovedBy());
-                    }
-                }
-                if (imp.getRejectedBy() != null) {
-                    String rejectedByUsername = getUserFullNameFromId(imp.getRejectedBy());
-                    if (rejectedByUsername != null && !rejectedByUsername.trim().isEmpty()) {
-                        dto.setRejectedByName(rejectedByUsername);
-                        System.out.println("✅ Set rejectedByName: " + rejectedByUsername + " for userId: " + imp.getRejectedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get name for rejectedBy userId: " + imp.getRejectedBy());
-                    }
-                    String rejectedByRole = getUserRoleFromId(imp.getRejectedBy());
-                    if (rejectedByRole != null && !rejectedByRole.trim().isEmpty()) {
-                        dto.setRejectedByRole(rejectedByRole);
-                        System.out.println("✅ Set rejectedByRole: " + rejectedByRole + " for userId: " + imp.getRejectedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get role for rejectedBy userId: " + imp.getRejectedBy());
-                    }
-                }
-                if (imp.getImportedBy() != null) {
-                    String importedByUsername = getUserFullNameFromId(imp.getImportedBy());
-                    if (importedByUsername != null && !importedByUsername.trim().isEmpty()) {
-                        dto.setImportedByName(importedByUsername);
-                        System.out.println("✅ Set importedByName: " + importedByUsername + " for userId: " + imp.getImportedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get name for importedBy userId: " + imp.getImportedBy());
-                    }
-                    String importedByRole = getUserRoleFromId(imp.getImportedBy());
-                    if (importedByRole != null && !importedByRole.trim().isEmpty()) {
-                        dto.setImportedByRole(importedByRole);
-                        System.out.println("✅ Set importedByRole: " + importedByRole + " for userId: " + imp.getImportedBy());
-                    } else {
-                        System.out.println("⚠️ Could not get role for importedBy userId: " + imp.getImportedBy());
-                    }
-                }
-            }
-        } catch (Exception e) {
-            // Nếu có lỗi khi lấy user name, bỏ qua và tiếp tục
-            System.err.println("⚠️ Failed to get user names: " + e.getMessage());
-            e.printStackTrace();
+        // Lấy tên user và role từ map đã resolve theo lô
+        UserProfileDto createdByUser = userMap.get(imp.getCreatedBy());
+        if (createdByUser != null) {
+            dto.setCreatedByName(createdByUser.getDisplayName());
+            dto.setCreatedByRole(createdByUser.getRole());
+        }
+        UserProfileDto approvedByUser = userMap.get(imp.getApprovedBy());
+        if (approvedByUser != null) {
+            dto.setApprovedByName(approvedByUser.getDisplayName());
+            dto.setApprovedByRole(approvedByUser.getRole());
+        }
+        UserProfileDto rejectedByUser = userMap.get(imp.getRejectedBy());
+        if (rejectedByUser != null) {
+            dto.setRejectedByName(rejectedByUser.getDisplayName());
+            dto.setRejectedByRole(rejectedByUser.getRole());
+        }
+        UserProfileDto importedByUser = userMap.get(imp.getImportedBy());
+        if (importedByUser != null) {
+            dto.setImportedByName(importedByUser.getDisplayName());
+            dto.setImportedByRole(importedByUser.getRole());
         }
 
         return dto;
     }
     
     /**
-     * Lấy fullName từ userId bằng cách query database
+     * Gom userId audit của cả trang và lấy tên/role trong 1 lần (có cache)
      */
-    private String getUserFullNameFromId(Long userId) {
-        try {
-            if (userRepo == null) {
-                return null;
-            }
-            Optional<String> fullName = userRepo.findFullNameByUserId(userId);
-            if (fullName.isPresent() && !fullName.get().trim().isEmpty()) {
-                return fullName.get().trim();
+    private Map<Long, UserProfileDto> resolveAuditUsers(List<ShopImport> imports) {
+        Set<Long> userIds = new LinkedHashSet<>();
+        for (ShopImport im : imports) {
+            userIds.add(im.getCreatedBy());
+            userIds.add(im.getApprovedBy());
+            userIds.add(im.getRejectedBy());
+            userIds.add(im.getImportedBy());
+        }
+        userIds.remove(null);
+        return userProfileResolver.resolve(userIds);
+    }
+
+    /**
+     * Nạp trước supplier của cả trang bằng 1 batch request, toDto sẽ đọc từ near cache
+     */
+    private void prefetchSuppliers(List<ShopImport> imports) {
+        Set<Long> supplierIds = new LinkedHashSet<>();
+        for (ShopImport im : imports) {
+            if (im.getSupplierId() != null) {
+                supplierIds.add(im.getSupplierId());
             }
-            // Nếu không có fullName, lấy username
-            Optional<String> username = userRepo.findUsernameByUserId(userId);
-            return username.orElse(null);
-        } catch (Exception e) {
-            System.err.println("⚠️ Failed to get user full name from userId " + userId + ": " + e.getMessage());
-            return null;
+        }
+        if (!supplierIds.isEmpty()) {
+            productClient.getSuppliers(supplierIds);
         }
     }
-    
+
     /**
      * Lấy role từ userId bằng cách query database
      */
@@ -7,6 +7,7 @@ import com.example.inventory_service.entity.InventoryCheckDetail;
 import com.example.inventory_service.exception.NotFoundException;
 import com.example.inventory_service.repository.InventoryCheckDetailRepository;
 import com.example.inventory_service.repository.InventoryCheckRepository;
+import com.example.inventory_service.service.CodeSequenceService;
 import com.example.inventory_service.service.InventoryCheckService;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
@@ -37,6 +38,7 @@ public class InventoryCheckServiceImpl implements InventoryCheckService {
     private final com.example.inventory_service.repository.ShopStoreRepository storeRepo;
     private final com.example.inventory_service.repository.ShopStockRepository stockRepo;
     private com.example.inventory_service.repository.UserQueryRepository userRepo;
+    private final CodeSequenceService codeSequence;
 
     public InventoryCheckServiceImpl(
             InventoryCheckRepository checkRepo,
@@ -44,13 +46,15 @@ public class InventoryCheckServiceImpl implements InventoryCheckService {
             ProductServiceClient productClient,
             com.example.inventory_service.repository.ShopStoreRepository storeRepo,
             com.example.inventory_service.repository.ShopStockRepository stockRepo,
-            com.example.inventory_service.repository.UserQueryRepository userRepo) {
+            com.example.inventory_service.repository.UserQueryRepository userRepo,
+            CodeSequenceService codeSequence) {
         this.checkRepo = checkRepo;
         this.detailRepo = detailRepo;
         this.productClient = productClient;
         this.storeRepo = storeRepo;
         this.stockRepo = stockRepo;
         this.userRepo = userRepo;
+        this.codeSequence = codeSequence;
     }
 
     @Override
@@ -441,7 +445,7 @@ public class InventoryCheckServiceImpl implements InventoryCheckService {
     // ========= HELPER METHODS ========= //
 
     private String generateCode() {
-        return "BKK" + System.currentTimeMillis();
+        return codeSequence.nextCode("BKK", checkRepo::existsByCheckCode);
     }
 
     private String normalizeImagePath(String raw) {
@@ -470,39 +474,17 @@ public class InventoryCheckServiceImpl implements InventoryCheckService {
 
         List<InventoryCheckDetail> details = detailRepo.findByInventoryCheckId(inventoryCheckId);
 
+        // Ghi toàn bộ chênh lệch trong 1 batch upsert, không cho phép tồn kho âm
+        List<StockDelta> deltas = new ArrayList<>();
         for (InventoryCheckDetail d : details) {
             if (d.getDifferenceQuantity() != null && d.getDifferenceQuantity() != 0) {
-                Long productId = d.getProductId();
-                Integer diffQty = d.getDifferenceQuantity();
-
-                // Tìm hoặc tạo stock record
-                com.example.inventory_service.entity.ShopStock stock = stockRepo
-                        .findByProductIdAndStoreId(productId, storeId)
-                        .orElseGet(() -> {
-                            com.example.inventory_service.entity.ShopStock newStock = new com.example.inventory_service.entity.ShopStock();
-                            newStock.setProductId(productId);
-                            newStock.setStoreId(storeId);
-                            newStock.setQuantity(0);
-                            newStock.setMinStock(0);
-                            newStock.setMaxStock(999999);
-                            return stockRepo.save(newStock);
-                        });
-
-                // Cập nhật số lượng tồn kho
-                int newQuantity = stock.getQuantity() + diffQty;
-                if (newQuantity < 0) {
-                    logger.warn("Tồn kho âm sau khi kiểm kê: productId={}, storeId={}, quantity={}, diff={}",
-                            productId, storeId, stock.getQuantity(), diffQty);
-                    newQuantity = 0; // Không cho phép tồn kho âm
-                }
-
-                stock.setQuantity(newQuantity);
-                stockRepo.save(stock);
-
-                logger.info("Đã cập nhật tồn kho: productId={}, storeId={}, diff={}, newQuantity={}",
-                        productId, storeId, diffQty, newQuantity);
+                deltas.add(new StockDelta(d.getProductId(), storeId, d.getDifferenceQuantity()));
             }
         }
+        int posted = stockRepo.postDeltas(deltas, true);
+
+        logger.info("Đã cập nhật tồn kho từ phiếu kiểm kê {}: {} sản phẩm tại kho {}",
+                inventoryCheckId, posted, storeId);
     }
 
     private InventoryCheckDto toDtoWithCalcTotal(InventoryCheck check) {
@@ -0,0 +1,375 @@
+package com.example.inventory_service.service.impl;
+
+import com.example.inventory_service.dto.StockDelta;
+import com.example.inventory_service.dto.StockReservationDto;
+import com.example.inventory_service.dto.StockReservationRequest;
+import com.example.inventory_service.entity.ShopStock;
+import com.example.inventory_service.exception.BadRequestException;
+import com.example.inventory_service.exception.NotFoundException;
+import com.example.inventory_service.repository.ShopStockRepository;
+import com.example.inventory_service.service.StockReservationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sổ giữ hàng trong bộ nhớ theo (productId, storeId).
+ * - Mỗi (product, store) là 1 ô với các bộ đếm long (tồn, đang giữ, chưa ghi DB),
+ *   được bảo vệ bằng lock phân dải (striped) nên các SKU khác nhau không chặn nhau.
+ * - Kiểm tra/giữ hàng chỉ đọc bộ nhớ; ô chỉ query shop_stocks lần đầu được dùng.
+ * - Commit trừ tồn trong bộ nhớ, phần chênh lệch được ghi xuống shop_stocks theo lô định kỳ
+ *   (trong 1 transaction), sau đó tồn trong bộ nhớ được làm mới từ DB (để nhận các thay đổi từ nhập/xuất/kiểm kê).
+ * - Ô không dùng quá inventory.reservation.cell-idle-ms (không giữ hàng, không còn phần chưa ghi) bị bỏ khỏi bộ nhớ.
+ * Sổ nằm trong từng instance; khi chạy nhiều replica cần định tuyến theo kho/sản phẩm.
+ */
+@Service
+public class StockReservationServiceImpl implements StockReservationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StockReservationServiceImpl.class);
+
+    private static final int REFRESH_CHUNK_SIZE = 1000;
+
+    private final ShopStockRepository stockRepo;
+    private final TransactionTemplate transactionTemplate;
+    private final Object[] stripes;
+    private final Map<CellKey, StockCell> cells = new ConcurrentHashMap<>();
+    private final Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+    @Value("${inventory.reservation.default-ttl-seconds:900}")
+    private long defaultTtlSeconds;
+
+    @Value("${inventory.reservation.cell-idle-ms:600000}")
+    private long cellIdleMs;
+
+    public StockReservationServiceImpl(
+            ShopStockRepository stockRepo,
+            PlatformTransactionManager transactionManager,
+            @Value("${inventory.reservation.lock-stripes:64}") int stripeCount) {
+        this.stockRepo = stockRepo;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.stripes = new Object[Math.max(1, stripeCount)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public StockReservationDto reserve(StockReservationRequest request) {
+        if (request.getProductId() == null || request.getStoreId() == null) {
+            throw new BadRequestException("Giữ hàng bắt buộc phải có sản phẩm và kho");
+        }
+        if (request.getQuantity() == null || request.getQuantity() <= 0) {
+            throw new BadRequestException("Số lượng giữ hàng phải lớn hơn 0");
+        }
+
+        long ttlSeconds = request.getTtlSeconds() != null && request.getTtlSeconds() > 0
+                ? request.getTtlSeconds()
+                : defaultTtlSeconds;
+        CellKey key = new CellKey(request.getProductId(), request.getStoreId());
+        int quantity = request.getQuantity();
+
+        while (true) {
+            StockCell cell = cellFor(key);
+            synchronized (lockFor(key)) {
+                // Ô vừa bị bỏ khỏi bộ nhớ giữa cellFor và lock: lấy lại ô mới
+                if (cell.evicted) {
+                    continue;
+                }
+                cell.lastUsed = System.currentTimeMillis();
+                long available = cell.onHand - cell.reserved;
+                if (available < quantity) {
+                    throw new BadRequestException(String.format(
+                            "Sản phẩm ID %d không đủ số lượng trong kho ID %d. Có thể giữ: %d, Cần: %d",
+                            key.productId, key.storeId, Math.max(available, 0), quantity));
+                }
+                cell.reserved += quantity;
+
+                Reservation reservation = new Reservation(UUID.randomUUID().toString(), key, quantity,
+                        System.currentTimeMillis() + ttlSeconds * 1000);
+                reservations.put(reservation.id, reservation);
+                return toDto(reservation, "RESERVED", cell.onHand - cell.reserved);
+            }
+        }
+    }
+
+    @Override
+    public StockReservationDto commit(String reservationId) {
+        Reservation reservation = takeReservation(reservationId);
+        StockCell cell = cellFor(reservation.key);
+        synchronized (lockFor(reservation.key)) {
+            cell.lastUsed = System.currentTimeMillis();
+            cell.reserved -= reservation.quantity;
+            cell.onHand -= reservation.quantity;
+            cell.pending -= reservation.quantity;
+            return toDto(reservation, "COMMITTED", cell.onHand - cell.reserved);
+        }
+    }
+
+    @Override
+    public StockReservationDto release(String reservationId) {
+        Reservation reservation = takeReservation(reservationId);
+        StockCell cell = cellFor(reservation.key);
+        synchronized (lockFor(reservation.key)) {
+            cell.lastUsed = System.currentTimeMillis();
+            cell.reserved -= reservation.quantity;
+            return toDto(reservation, "RELEASED", cell.onHand - cell.reserved);
+        }
+    }
+
+    @Override
+    public long getAvailable(Long productId, Long storeId) {
+        CellKey key = new CellKey(productId, storeId);
+        while (true) {
+            StockCell cell = cellFor(key);
+            synchronized (lockFor(key)) {
+                if (cell.evicted) {
+                    continue;
+                }
+                cell.lastUsed = System.currentTimeMillis();
+                return Math.max(cell.onHand - cell.reserved, 0);
+            }
+        }
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${inventory.reservation.flush-interval-ms:2000}")
+    public synchronized void flush() {
+        expireReservations();
+        if (cells.isEmpty()) {
+            return;
+        }
+
+        // Lấy phần chênh lệch chưa ghi của từng ô
+        List<StockDelta> decreases = new ArrayList<>();
+        List<StockDelta> increases = new ArrayList<>();
+        for (StockCell cell : cells.values()) {
+            synchronized (lockFor(cell.key)) {
+                if (cell.pending == 0) {
+                    continue;
+                }
+                int delta = Math.toIntExact(cell.pending);
+                cell.pending = 0;
+                if (delta < 0) {
+                    decreases.add(new StockDelta(cell.key.productId, cell.key.storeId, -delta));
+                } else {
+                    increases.add(new StockDelta(cell.key.productId, cell.key.storeId, delta));
+                }
+            }
+        }
+
+        if (!decreases.isEmpty() || !increases.isEmpty()) {
+            try {
+                // Trừ có kiểm tra và upsert trong cùng 1 transaction: câu nào lỗi thì rollback cả lô,
+                // nên đưa phần chênh lệch trở lại hàng đợi không làm nó bị ghi 2 lần
+                transactionTemplate.executeWithoutResult(status -> writeDeltas(decreases, increases));
+            } catch (RuntimeException e) {
+                logger.error("Failed to flush stock reservations, rolled back and will retry: {}", e.getMessage());
+                restorePending(decreases, -1);
+                restorePending(increases, 1);
+                return;
+            }
+        }
+
+        evictIdleCells();
+        refreshFromDb();
+    }
+
+    // Chạy trong flush (synchronized) sau khi đã ghi/đưa lại phần chênh lệch, nên ô bị bỏ không còn gì chưa ghi
+    private void evictIdleCells() {
+        long cutoff = System.currentTimeMillis() - cellIdleMs;
+        for (StockCell cell : cells.values()) {
+            synchronized (lockFor(cell.key)) {
+                if (cell.lastUsed < cutoff && cell.reserved == 0 && cell.pending == 0) {
+                    cell.evicted = true;
+                    cells.remove(cell.key, cell);
+                }
+            }
+        }
+    }
+
+    private void writeDeltas(List<StockDelta> decreases, List<StockDelta> increases) {
+        if (!decreases.isEmpty()) {
+            List<StockDelta> insufficient = stockRepo.decreaseIfAvailable(decreases);
+            if (!insufficient.isEmpty()) {
+                // Tồn DB đã bị giảm bởi luồng khác (xuất kho trực tiếp) trước khi ghi: không để âm tồn
+                logger.warn("Stock reservations committed beyond DB stock for {} items, clamping to 0",
+                        insufficient.size());
+                List<StockDelta> clamped = new ArrayList<>();
+                for (StockDelta d : insufficient) {
+                    clamped.add(new StockDelta(d.getProductId(), d.getStoreId(), -d.getQuantity()));
+                }
+                stockRepo.postDeltas(clamped, true);
+            }
+        }
+        if (!increases.isEmpty()) {
+            stockRepo.postDeltas(increases, false);
+        }
+        logger.debug("Flushed stock reservations: {} decreases, {} increases", decreases.size(), increases.size());
+    }
+
+    private void restorePending(List<StockDelta> deltas, int sign) {
+        for (StockDelta d : deltas) {
+            CellKey key = new CellKey(d.getProductId(), d.getStoreId());
+            StockCell cell = cells.get(key);
+            if (cell != null) {
+                synchronized (lockFor(key)) {
+                    cell.pending += (long) sign * d.getQuantity();
+                }
+            }
+        }
+    }
+
+    /**
+     * Làm mới tồn trong bộ nhớ = tồn DB + phần chưa ghi
+     */
+    private void refreshFromDb() {
+        Set<Long> productIds = new LinkedHashSet<>();
+        for (CellKey key : cells.keySet()) {
+            productIds.add(key.productId);
+        }
+        List<Long> ids = new ArrayList<>(productIds);
+
+        Map<CellKey, Integer> dbQuantities = new HashMap<>();
+        for (int from = 0; from < ids.size(); from += REFRESH_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + REFRESH_CHUNK_SIZE, ids.size()));
+            for (ShopStock stock : stockRepo.findByProductIdIn(chunk)) {
+                dbQuantities.put(new CellKey(stock.getProductId(), stock.getStoreId()), stock.getQuantity());
+            }
+        }
+
+        for (StockCell cell : cells.values()) {
+            Integer dbQuantity = dbQuantities.get(cell.key);
+            synchronized (lockFor(cell.key)) {
+                cell.onHand = (dbQuantity != null ? dbQuantity : 0) + cell.pending;
+            }
+        }
+    }
+
+    private void expireReservations() {
+        long now = System.currentTimeMillis();
+        for (Reservation reservation : reservations.values()) {
+            if (reservation.expiresAt > now || !reservations.remove(reservation.id, reservation)) {
+                continue;
+            }
+            StockCell cell = cells.get(reservation.key);
+            if (cell != null) {
+                synchronized (lockFor(reservation.key)) {
+                    cell.reserved -= reservation.quantity;
+                }
+            }
+            logger.debug("Stock reservation {} expired", reservation.id);
+        }
+    }
+
+    private Reservation takeReservation(String reservationId) {
+        Reservation reservation = reservationId != null ? reservations.remove(reservationId) : null;
+        if (reservation == null) {
+            throw new NotFoundException("Reservation not found or expired: " + reservationId);
+        }
+        return reservation;
+    }
+
+    /**
+     * Lấy ô tồn kho, lần đầu thì nạp tồn từ shop_stocks
+     */
+    private StockCell cellFor(CellKey key) {
+        StockCell cell = cells.get(key);
+        if (cell != null) {
+            return cell;
+        }
+        int quantity = stockRepo.findByProductIdAndStoreId(key.productId, key.storeId)
+                .map(ShopStock::getQuantity)
+                .orElse(0);
+        StockCell loaded = new StockCell(key, quantity);
+        StockCell existing = cells.putIfAbsent(key, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    private Object lockFor(CellKey key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    private StockReservationDto toDto(Reservation reservation, String status, long available) {
+        StockReservationDto dto = new StockReservationDto();
+        dto.setReservationId(reservation.id);
+        dto.setProductId(reservation.key.productId);
+        dto.setStoreId(reservation.key.storeId);
+        dto.setQuantity(reservation.quantity);
+        dto.setStatus(status);
+        dto.setAvailable(Math.max(available, 0));
+        dto.setExpiresAt(new Date(reservation.expiresAt));
+        return dto;
+    }
+
+    private static final class CellKey {
+        private final Long productId;
+        private final Long storeId;
+
+        private CellKey(Long productId, Long storeId) {
+            this.productId = productId;
+            this.storeId = storeId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CellKey)) {
+                return false;
+            }
+            CellKey other = (CellKey) o;
+            return Objects.equals(productId, other.productId) && Objects.equals(storeId, other.storeId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(productId, storeId);
+        }
+    }
+
+    // Các bộ đếm chỉ được đọc/ghi khi giữ lock của stripe tương ứng
+    private static final class StockCell {
+        private final CellKey key;
+        private long onHand;   // tồn hiện tại (DB + phần chưa ghi)
+        private long reserved; // đang giữ
+        private long pending;  // đã commit nhưng chưa ghi xuống DB
+        private long lastUsed;
+        private boolean evicted;
+
+        private StockCell(CellKey key, long onHand) {
+            this.key = key;
+            this.onHand = onHand;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private static final class Reservation {
+        private final String id;
+        private final CellKey key;
+        private final int quantity;
+        private final long expiresAt;
+
+        private Reservation(String id, CellKey key, int quantity, long expiresAt) {
+            this.id = id;
+            this.key = key;
+            this.quantity = quantity;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+-- Bảng cấp số cho mã chứng từ (CodeSequenceService, cấp theo khối hi/lo)
+-- Mỗi dòng là 1 prefix: PNNCC (phiếu nhập), PXNCC (phiếu xuất), BKK (kiểm kê)
+CREATE TABLE IF NOT EXISTS code_sequences (
+    seq_name VARCHAR(32) NOT NULL PRIMARY KEY,
+    next_value BIGINT NOT NULL
+);
+
+-- Mã cũ dạng prefix + timestamp không trùng với mã mới (prefix + 5 số),
+-- nên các prefix trên bắt đầu từ 1 (dòng được tạo tự động ở lần cấp đầu tiên).
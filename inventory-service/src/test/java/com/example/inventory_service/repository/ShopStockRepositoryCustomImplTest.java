@@ -0,0 +1,175 @@
+package com.example.inventory_service.repository;
+
+import com.example.inventory_service.dto.StockDelta;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Kiểm tra ghi sổ tồn kho theo lô trên H2 (MySQL mode), không cần MySQL thật
+ */
+class ShopStockRepositoryCustomImplTest {
+
+    // Ngưỡng rộng để không flaky trên CI (H2 thường đạt vài nghìn lần/giây); chỉ bắt hồi quy kiểu
+    // khóa/retry làm chậm đi hàng chục lần
+    private static final double MIN_DECREMENTS_PER_SECOND = 200;
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate txTemplate;
+    private ShopStockRepositoryCustomImpl repo;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000",
+                "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        txTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        repo = new ShopStockRepositoryCustomImpl(jdbcTemplate);
+
+        jdbcTemplate.execute("CREATE TABLE shop_stocks (" +
+                "stock_id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                "products_id BIGINT NOT NULL, " +
+                "stores_id BIGINT NOT NULL, " +
+                "quantity INT NOT NULL, " +
+                "min_stock INT, " +
+                "max_stock INT, " +
+                "CONSTRAINT uk_stock_product_store UNIQUE (products_id, stores_id))");
+    }
+
+    @Test
+    void concurrentGuardedDecrementsNeverOversell() throws Exception {
+        int initialQuantity = 1000;
+        int threads = 16;
+        int attemptsPerThread = 200;
+        insertStock(1L, 1L, initialQuantity);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < attemptsPerThread; i++) {
+                    List<StockDelta> failed = repo.decreaseIfAvailable(List.of(new StockDelta(1L, 1L, 1)));
+                    if (failed.isEmpty()) {
+                        succeeded.incrementAndGet();
+                    } else {
+                        rejected.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long startedAt = System.nanoTime();
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+        long elapsedNanos = System.nanoTime() - startedAt;
+        pool.shutdown();
+
+        int totalAttempts = threads * attemptsPerThread;
+        assertEquals(initialQuantity, succeeded.get());
+        assertEquals(totalAttempts - initialQuantity, rejected.get());
+        assertEquals(0, quantityOf(1L, 1L));
+
+        double perSecond = totalAttempts / (elapsedNanos / 1e9);
+        assertTrue(perSecond >= MIN_DECREMENTS_PER_SECOND, String.format(
+                "%d guarded decrements on one row took %d ms (%.0f/s, expected >= %.0f/s)",
+                totalAttempts, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), perSecond, MIN_DECREMENTS_PER_SECOND));
+    }
+
+    @Test
+    void insufficientLineRollsBackWholeSlip() {
+        insertStock(1L, 1L, 5);
+        insertStock(2L, 1L, 1);
+
+        List<StockDelta> failed = txTemplate.execute(status -> {
+            List<StockDelta> result = repo.decreaseIfAvailable(List.of(
+                    new StockDelta(1L, 1L, 3),
+                    new StockDelta(2L, 1L, 2)));
+            if (!result.isEmpty()) {
+                status.setRollbackOnly();
+            }
+            return result;
+        });
+
+        assertEquals(1, failed.size());
+        assertEquals(2L, failed.get(0).getProductId());
+        assertEquals(5, quantityOf(1L, 1L));
+        assertEquals(1, quantityOf(2L, 1L));
+    }
+
+    @Test
+    void decreaseMergesLinesOfSameProductAndStore() {
+        insertStock(1L, 1L, 5);
+
+        List<StockDelta> failed = repo.decreaseIfAvailable(List.of(
+                new StockDelta(1L, 1L, 3),
+                new StockDelta(1L, 1L, 3)));
+
+        assertEquals(1, failed.size());
+        assertEquals(6, failed.get(0).getQuantity());
+        assertEquals(5, quantityOf(1L, 1L));
+    }
+
+    @Test
+    void postDeltasUpsertsAndMerges() {
+        insertStock(1L, 1L, 2);
+
+        int posted = repo.postDeltas(List.of(
+                new StockDelta(1L, 1L, 3),
+                new StockDelta(1L, 1L, 4),
+                new StockDelta(2L, 1L, 6, 10, 1000)), false);
+
+        assertEquals(2, posted);
+        assertEquals(9, quantityOf(1L, 1L));
+        assertEquals(6, quantityOf(2L, 1L));
+        assertEquals(10, jdbcTemplate.queryForObject(
+                "SELECT min_stock FROM shop_stocks WHERE products_id = 2 AND stores_id = 1", Integer.class));
+    }
+
+    @Test
+    void postDeltasWithFloorNeverGoesNegative() {
+        insertStock(1L, 1L, 3);
+
+        repo.postDeltas(List.of(
+                new StockDelta(1L, 1L, -10),
+                new StockDelta(2L, 1L, -4)), true);
+
+        assertEquals(0, quantityOf(1L, 1L));
+        assertEquals(0, quantityOf(2L, 1L));
+        assertTrue(jdbcTemplate.queryForObject("SELECT MIN(quantity) FROM shop_stocks", Integer.class) >= 0);
+    }
+
+    private void insertStock(Long productId, Long storeId, int quantity) {
+        jdbcTemplate.update("INSERT INTO shop_stocks (products_id, stores_id, quantity, min_stock, max_stock) " +
+                "VALUES (?, ?, ?, 0, 999999)", productId, storeId, quantity);
+    }
+
+    private int quantityOf(Long productId, Long storeId) {
+        return jdbcTemplate.queryForObject(
+                "SELECT quantity FROM shop_stocks WHERE products_id = ? AND stores_id = ?",
+                Integer.class, productId, storeId);
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.inventory_service.security;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chi phí xác thực 1 request đã mang JWT hợp lệ (như UI poll tồn kho), nhiều thread cùng lúc:
+ * - coldBaseline: như JwtService trước khi có cache, tạo key + parser rồi verify HMAC/parse JSON mỗi request
+ * - cachedClaims: JwtService.extractAllClaims, token đã gặp lấy claims từ cache theo digest
+ * - gatewayIdentity: request qua api-gateway, chỉ kiểm tra chữ ký header X-Auth-* (GatewayIdentityVerifier)
+ * - malformedHeader: header rác bị loại ở JwtService.resolveBearerToken, không parse
+ *
+ * Chạy tay (không thuộc mvn test):
+ * <pre>
+ * ./mvnw -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt -Dmdep.includeScope=test
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.openjdk.jmh.Main JwtVerificationBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class JwtVerificationBenchmark {
+
+    private static final String JWT_SECRET = "benchmark-jwt-secret-key-at-least-32-bytes-long";
+    private static final String IDENTITY_SECRET = "benchmark-gateway-identity-secret-32-bytes";
+    private static final String USERNAME = "kho.hanoi";
+
+    private JwtService jwtService;
+    private GatewayIdentityVerifier gatewayIdentityVerifier;
+    private String token;
+    private MockHttpServletRequest gatewayRequest;
+
+    @Setup
+    public void setUp() throws Exception {
+        jwtService = new JwtService();
+        ReflectionTestUtils.setField(jwtService, "secretKey", JWT_SECRET);
+        ReflectionTestUtils.setField(jwtService, "jwtExpirationMs", TimeUnit.HOURS.toMillis(1));
+        ReflectionTestUtils.setField(jwtService, "claimsCacheMaxEntries", 10_000);
+        jwtService.init();
+        token = jwtService.generateToken(USERNAME);
+
+        gatewayIdentityVerifier = new GatewayIdentityVerifier();
+        ReflectionTestUtils.setField(gatewayIdentityVerifier, "identitySecret", IDENTITY_SECRET);
+        ReflectionTestUtils.setField(gatewayIdentityVerifier, "jwtSecret", JWT_SECRET);
+        ReflectionTestUtils.setField(gatewayIdentityVerifier, "trust", true);
+        // Header ký 1 lần lúc setup nên nới max-age cho cả lần chạy
+        ReflectionTestUtils.setField(gatewayIdentityVerifier, "maxAgeMs", TimeUnit.HOURS.toMillis(1));
+        gatewayIdentityVerifier.init();
+
+        String timestamp = String.valueOf(System.currentTimeMillis());
+        gatewayRequest = new MockHttpServletRequest();
+        gatewayRequest.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        gatewayRequest.addHeader(GatewayIdentityVerifier.HEADER_USER, USERNAME);
+        gatewayRequest.addHeader(GatewayIdentityVerifier.HEADER_TIMESTAMP, timestamp);
+        gatewayRequest.addHeader(GatewayIdentityVerifier.HEADER_SIGNATURE,
+                gatewaySignature(USERNAME + "\n\n\n" + timestamp + "\n" + JwtService.tokenDigest(token)));
+    }
+
+    @Benchmark
+    public Claims coldBaseline() {
+        return Jwts.parserBuilder()
+                .setSigningKey(Keys.hmacShaKeyFor(JWT_SECRET.getBytes(StandardCharsets.UTF_8)))
+                .build()
+                .parseClaimsJws(JwtService.resolveBearerToken("Bearer " + token))
+                .getBody();
+    }
+
+    @Benchmark
+    public Claims cachedClaims() {
+        return jwtService.extractAllClaims(JwtService.resolveBearerToken("Bearer " + token));
+    }
+
+    @Benchmark
+    public String gatewayIdentity() {
+        return gatewayIdentityVerifier.verifiedUsername(gatewayRequest,
+                JwtService.resolveBearerToken(gatewayRequest.getHeader(HttpHeaders.AUTHORIZATION)));
+    }
+
+    @Benchmark
+    public String malformedHeader() {
+        return JwtService.resolveBearerToken("Bearer <script>alert(1)</script>");
+    }
+
+    // Như JwtAuthenticationGlobalFilter.sign ở api-gateway
+    private static String gatewaySignature(String payload) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(IDENTITY_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtVerificationBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.inventory_service.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Sinh mã chứng từ trên H2 (MySQL mode): mã người dùng tự nhập không bị cấp trùng
+ */
+class CodeSequenceServiceTest {
+
+    private CodeSequenceService codeSequence;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE code_sequences (" +
+                "seq_name VARCHAR(32) NOT NULL PRIMARY KEY, " +
+                "next_value BIGINT NOT NULL)");
+        codeSequence = new CodeSequenceService(jdbcTemplate, new DataSourceTransactionManager(dataSource));
+        ReflectionTestUtils.setField(codeSequence, "blockSize", 2);
+        ReflectionTestUtils.setField(codeSequence, "digits", 5);
+    }
+
+    @Test
+    void skipsCodesAlreadyEnteredByHand() {
+        // PNNCC00002, PNNCC00003 do người dùng tự nhập (nằm vắt qua 2 khối số)
+        Set<String> taken = Set.of("PNNCC00002", "PNNCC00003");
+
+        List<String> codes = List.of(
+                codeSequence.nextCode("PNNCC", taken::contains),
+                codeSequence.nextCode("PNNCC", taken::contains),
+                codeSequence.nextCode("PNNCC", taken::contains));
+
+        assertEquals(List.of("PNNCC00001", "PNNCC00004", "PNNCC00005"), codes);
+    }
+
+    @Test
+    void prefixesHaveIndependentSequences() {
+        assertEquals("PXNCC00001", codeSequence.nextCode("PXNCC", code -> false));
+        assertEquals("BKK00001", codeSequence.nextCode("BKK"));
+        assertEquals("PXNCC00002", codeSequence.nextCode("PXNCC", code -> false));
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.inventory_service.service.impl;
+
+import com.example.inventory_service.dto.StockReservationDto;
+import com.example.inventory_service.dto.StockReservationRequest;
+import com.example.inventory_service.entity.ShopStock;
+import com.example.inventory_service.exception.BadRequestException;
+import com.example.inventory_service.repository.ShopStockRepository;
+import com.example.inventory_service.repository.ShopStockRepositoryCustomImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Kiểm tra sổ giữ hàng trên H2 (MySQL mode): ghi lô trong transaction và không giữ vượt tồn
+ */
+class StockReservationServiceImplTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private ShopStockRepositoryCustomImpl batchRepo;
+    private ShopStockRepository stockRepo;
+    private StockReservationServiceImpl service;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000",
+                "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        batchRepo = new ShopStockRepositoryCustomImpl(jdbcTemplate);
+        jdbcTemplate.execute("CREATE TABLE shop_stocks (" +
+                "stock_id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                "products_id BIGINT NOT NULL, " +
+                "stores_id BIGINT NOT NULL, " +
+                "quantity INT NOT NULL, " +
+                "min_stock INT, " +
+                "max_stock INT, " +
+                "CONSTRAINT uk_stock_product_store UNIQUE (products_id, stores_id))");
+
+        // Phần JPA được giả lập bằng query JDBC, phần ghi lô dùng implementation thật
+        stockRepo = mock(ShopStockRepository.class);
+        when(stockRepo.findByProductIdAndStoreId(any(), any()))
+                .thenAnswer(inv -> findStock(inv.getArgument(0), inv.getArgument(1)));
+        when(stockRepo.findByProductIdIn(anyCollection()))
+                .thenAnswer(inv -> findStocks(inv.getArgument(0)));
+        when(stockRepo.decreaseIfAvailable(anyCollection()))
+                .thenAnswer(inv -> batchRepo.decreaseIfAvailable(inv.getArgument(0)));
+        when(stockRepo.postDeltas(anyCollection(), anyBoolean()))
+                .thenAnswer(inv -> batchRepo.postDeltas(inv.getArgument(0), inv.getArgument(1)));
+
+        service = new StockReservationServiceImpl(stockRepo, new DataSourceTransactionManager(dataSource), 16);
+        ReflectionTestUtils.setField(service, "defaultTtlSeconds", 900L);
+        ReflectionTestUtils.setField(service, "cellIdleMs", 600000L);
+    }
+
+    @Test
+    void failedFlushRollsBackAndIsAppliedOnceOnRetry() {
+        insertStock(1L, 1L, 10);
+        insertStock(2L, 1L, 10);
+        service.commit(service.reserve(request(1L, 1L, 3)).getReservationId());
+        service.commit(service.reserve(request(2L, 1L, 4)).getReservationId());
+
+        // Lần ghi đầu: câu trừ tồn đã chạy rồi mới lỗi
+        doAnswer(inv -> {
+            batchRepo.decreaseIfAvailable(inv.getArgument(0));
+            throw new IllegalStateException("connection reset");
+        }).doAnswer(inv -> batchRepo.decreaseIfAvailable(inv.getArgument(0)))
+                .when(stockRepo).decreaseIfAvailable(anyCollection());
+
+        service.flush();
+        assertEquals(10, quantityOf(1L, 1L));
+        assertEquals(10, quantityOf(2L, 1L));
+        assertEquals(7, service.getAvailable(1L, 1L));
+
+        service.flush();
+        assertEquals(7, quantityOf(1L, 1L));
+        assertEquals(6, quantityOf(2L, 1L));
+
+        service.flush();
+        assertEquals(7, quantityOf(1L, 1L));
+        assertEquals(6, quantityOf(2L, 1L));
+        assertEquals(7, service.getAvailable(1L, 1L));
+    }
+
+    @Test
+    void concurrentReservationsNeverExceedStock() throws Exception {
+        int initialQuantity = 50;
+        int threads = 8;
+        int attemptsPerThread = 100;
+        insertStock(1L, 1L, initialQuantity);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger reserved = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < attemptsPerThread; i++) {
+                    try {
+                        service.reserve(request(1L, 1L, 1));
+                        reserved.incrementAndGet();
+                    } catch (BadRequestException e) {
+                        rejected.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(initialQuantity, reserved.get());
+        assertEquals(threads * attemptsPerThread - initialQuantity, rejected.get());
+        assertEquals(0, service.getAvailable(1L, 1L));
+        assertThrows(BadRequestException.class, () -> service.reserve(request(1L, 1L, 1)));
+    }
+
+    @Test
+    void flushNeverDrivesDbStockNegative() {
+        insertStock(1L, 1L, 5);
+        StockReservationDto reservation = service.reserve(request(1L, 1L, 4));
+        service.commit(reservation.getReservationId());
+
+        // Xuất kho trực tiếp làm giảm tồn DB trước lần ghi
+        jdbcTemplate.update("UPDATE shop_stocks SET quantity = 2 WHERE products_id = 1 AND stores_id = 1");
+        service.flush();
+
+        assertEquals(0, quantityOf(1L, 1L));
+        assertEquals(0, service.getAvailable(1L, 1L));
+    }
+
+    @Test
+    void idleCellsAreDroppedAndReloadedFromDb() {
+        insertStock(1L, 1L, 5);
+        assertEquals(5, service.getAvailable(1L, 1L));
+        StockReservationDto held = service.reserve(request(1L, 1L, 2));
+
+        ReflectionTestUtils.setField(service, "cellIdleMs", -1L);
+        jdbcTemplate.update("UPDATE shop_stocks SET quantity = 8 WHERE products_id = 1 AND stores_id = 1");
+        service.flush();
+        // Ô đang giữ hàng không bị bỏ, tồn được làm mới từ DB
+        assertEquals(6, service.getAvailable(1L, 1L));
+
+        service.release(held.getReservationId());
+        service.flush();
+        jdbcTemplate.update("UPDATE shop_stocks SET quantity = 9 WHERE products_id = 1 AND stores_id = 1");
+        assertEquals(9, service.getAvailable(1L, 1L));
+    }
+
+    private static StockReservationRequest request(Long productId, Long storeId, int quantity) {
+        StockReservationRequest request = new StockReservationRequest();
+        request.setProductId(productId);
+        request.setStoreId(storeId);
+        request.setQuantity(quantity);
+        return request;
+    }
+
+    private Optional<ShopStock> findStock(Long productId, Long storeId) {
+        return findStocks(List.of(productId)).stream()
+                .filter(s -> s.getStoreId().equals(storeId))
+                .findFirst();
+    }
+
+    private List<ShopStock> findStocks(Collection<Long> productIds) {
+        List<ShopStock> result = new ArrayList<>();
+        for (Long productId : productIds) {
+            result.addAll(jdbcTemplate.query(
+                    "SELECT products_id, stores_id, quantity FROM shop_stocks WHERE products_id = ?",
+                    (rs, i) -> {
+                        ShopStock stock = new ShopStock();
+                        stock.setProductId(rs.getLong("products_id"));
+                        stock.setStoreId(rs.getLong("stores_id"));
+                        stock.setQuantity(rs.getInt("quantity"));
+                        return stock;
+                    }, productId));
+        }
+        return result;
+    }
+
+    private void insertStock(Long productId, Long storeId, int quantity) {
+        jdbcTemplate.update("INSERT INTO shop_stocks (products_id, stores_id, quantity, min_stock, max_stock) " +
+                "VALUES (?, ?, ?, 0, 999999)", productId, storeId, quantity);
+    }
+
+    private int quantityOf(Long productId, Long storeId) {
+        return jdbcTemplate.queryForObject(
+                "SELECT quantity FROM shop_stocks WHERE products_id = ? AND stores_id = ?",
+                Integer.class, productId, storeId);
+    }
+}
@@ -57,6 +57,14 @@ public class ShopProductController {
         return productService.search(code, name, fromDate, toDate, pageable);
     }
 
+    // Tìm nhanh cho ô tìm kiếm: không dấu, xếp hạng, trả về top-K (mặc định 20, tối đa 100)
+    @GetMapping("/search/fast")
+    public ApiResponse<List<ProductDto>> fastSearch(
+            @RequestParam("q") String keyword,
+            @RequestParam(defaultValue = "20") int limit) {
+        return ApiResponse.ok(productService.fastSearch(keyword, limit));
+    }
+
     // =======================
     // CRUD PRODUCT
     // =======================
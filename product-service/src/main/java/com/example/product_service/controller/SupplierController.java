@@ -13,6 +13,8 @@ import java.util.List;
 @RequestMapping("/api/suppliers")
 public class SupplierController {
 
+    private static final int MAX_BATCH_SIZE = 500;
+
     private final ShopSupplierService service;
 
     public SupplierController(ShopSupplierService service) {
@@ -43,6 +45,18 @@ public class SupplierController {
         return ApiResponse.ok(service.getById(id));
     }
 
+    /**
+     * Lấy nhiều supplier trong 1 request (dùng cho inventory-service khi map danh sách phiếu)
+     * Ví dụ: GET /api/suppliers/batch?ids=1,2,3
+     */
+    @GetMapping("/batch")
+    public ApiResponse<List<ShopSupplier>> getBatch(@RequestParam List<Long> ids) {
+        if (ids.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Tối đa " + MAX_BATCH_SIZE + " supplier mỗi lần");
+        }
+        return ApiResponse.ok(service.findByIds(ids));
+    }
+
     @PostMapping
     public ApiResponse<ShopSupplier> create(@RequestBody ShopSupplier supplier) {
         return ApiResponse.ok("Created", service.create(supplier));
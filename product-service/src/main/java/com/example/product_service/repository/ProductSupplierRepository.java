@@ -4,6 +4,7 @@ import com.example.product_service.entity.ProductSupplier;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -11,6 +12,9 @@ import java.util.Optional;
 public interface ProductSupplierRepository extends JpaRepository<ProductSupplier, Long> {
     
     List<ProductSupplier> findByProductId(Long productId);
+
+    // Lấy NCC của cả 1 trang sản phẩm trong 1 query (IN ...)
+    List<ProductSupplier> findByProductIdIn(Collection<Long> productIds);
     
     List<ProductSupplier> findBySupplierId(Long supplierId);
     
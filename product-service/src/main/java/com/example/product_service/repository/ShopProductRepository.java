@@ -10,5 +10,6 @@ public interface ShopProductRepository
         extends JpaRepository<ShopProduct, Long>, JpaSpecificationExecutor<ShopProduct> {
 
     boolean existsByUnitId(Long unitId);
+    boolean existsByCode(String code);
     List<ShopProduct> findByCodeStartingWith(String prefix);
 }
\ No newline at end of file
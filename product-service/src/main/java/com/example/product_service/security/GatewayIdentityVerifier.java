@@ -0,0 +1,117 @@
+package com.example.product_service.security;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Kiểm tra header danh tính do api-gateway gắn sau khi đã verify JWT (X-Auth-*, ký HMAC-SHA256
+ * bằng security.gateway-identity.secret, khóa riêng khác jwt.secret).
+ * Chữ ký gồm cả SHA-256 của bearer token trong request, nên bộ header bị lộ không dùng được với token khác.
+ * Header hợp lệ thì filter dùng luôn username, không parse lại JWT.
+ * Filter truyền vào bearer token đã tách; digest dùng chung JwtService.tokenDigest, không tự tính lại.
+ * Thiếu header/secret, sai chữ ký hoặc quá security.gateway-identity.max-age-ms thì trả null để filter verify JWT như cũ.
+ * Lớp này được chép giống hệt ở mọi service (mỗi service build và đóng gói Docker độc lập, chưa có module dùng chung);
+ * sửa ở đây thì sửa cả các bản còn lại và JwtAuthenticationGlobalFilter.sign ở api-gateway.
+ */
+@Component
+@Slf4j
+public class GatewayIdentityVerifier {
+
+    public static final String HEADER_USER = "X-Auth-User";
+    public static final String HEADER_USER_ID = "X-Auth-User-Id";
+    public static final String HEADER_ROLES = "X-Auth-Roles";
+    public static final String HEADER_TIMESTAMP = "X-Auth-Timestamp";
+    public static final String HEADER_SIGNATURE = "X-Auth-Signature";
+
+    // Không có mặc định: để trống thì không tin header danh tính
+    @Value("${security.gateway-identity.secret:}")
+    private String identitySecret;
+
+    @Value("${jwt.secret}")
+    private String jwtSecret;
+
+    @Value("${security.gateway-identity.trust:true}")
+    private boolean trust;
+
+    @Value("${security.gateway-identity.max-age-ms:60000}")
+    private long maxAgeMs;
+
+    private SecretKeySpec identityKey;
+
+    @PostConstruct
+    public void init() {
+        if (!trust) {
+            return;
+        }
+        if (identitySecret == null || identitySecret.isBlank()) {
+            log.warn("[JWT] security.gateway-identity.secret is not set, gateway identity headers are ignored");
+            return;
+        }
+        if (identitySecret.equals(jwtSecret)) {
+            throw new IllegalStateException("security.gateway-identity.secret phải khác jwt.secret");
+        }
+        identityKey = new SecretKeySpec(identitySecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    /**
+     * Username đã được gateway xác thực, null nếu request không mang header danh tính hợp lệ.
+     * token: bearer token của request (JwtService.resolveBearerToken), null thì không tin header
+     */
+    public String verifiedUsername(HttpServletRequest request, String token) {
+        if (identityKey == null || token == null) {
+            return null;
+        }
+        String username = request.getHeader(HEADER_USER);
+        String signature = request.getHeader(HEADER_SIGNATURE);
+        String timestamp = request.getHeader(HEADER_TIMESTAMP);
+        if (username == null || signature == null || timestamp == null) {
+            return null;
+        }
+
+        long issuedAt;
+        try {
+            issuedAt = Long.parseLong(timestamp);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (Math.abs(System.currentTimeMillis() - issuedAt) > maxAgeMs) {
+            log.debug("[JWT] Gateway identity header too old for {}", username);
+            return null;
+        }
+
+        String userId = request.getHeader(HEADER_USER_ID);
+        String roles = request.getHeader(HEADER_ROLES);
+        String tokenDigest = JwtService.tokenDigest(token);
+        String expected = sign(username, userId != null ? userId : "", roles != null ? roles : "", timestamp,
+                tokenDigest);
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                signature.getBytes(StandardCharsets.US_ASCII))) {
+            log.warn("[JWT] Invalid gateway identity signature for {}", username);
+            return null;
+        }
+        return username;
+    }
+
+    // Phải khớp với JwtAuthenticationGlobalFilter.sign ở api-gateway
+    private String sign(String username, String userId, String roles, String timestamp, String tokenDigest) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(identityKey);
+            byte[] payload = (username + "\n" + userId + "\n" + roles + "\n" + timestamp + "\n" + tokenDigest)
+                    .getBytes(StandardCharsets.UTF_8);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(payload));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 không khả dụng", e);
+        }
+    }
+}
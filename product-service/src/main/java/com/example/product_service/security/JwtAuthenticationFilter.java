@@ -24,6 +24,7 @@ import java.util.List;
 public class JwtAuthenticationFilter extends OncePerRequestFilter {
 
     private final JwtService jwtService;
+    private final GatewayIdentityVerifier gatewayIdentityVerifier;
 
     @Override
     protected void doFilterInternal(
@@ -32,7 +33,7 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
             FilterChain filterChain) throws ServletException, IOException {
 
         String path = request.getRequestURI();
-        log.info("[JWT] Request path: {}", path);
+        log.debug("[JWT] Request path: {}", path);
 
         // ⚠️ Bỏ qua mọi request tới /uploads/**
         if (path.startsWith("/uploads/")) {
@@ -40,18 +41,30 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
             return;
         }
 
-        String authHeader = request.getHeader(HttpHeaders.AUTHORIZATION);
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-            log.info("[JWT] No Authorization header");
+        // Header thiếu hoặc không đúng dạng JWT: bỏ qua ngay, không parse
+        String token = JwtService.resolveBearerToken(request.getHeader(HttpHeaders.AUTHORIZATION));
+        if (token == null) {
+            log.debug("[JWT] No valid Authorization header");
             filterChain.doFilter(request, response);
             return;
         }
 
-        String token = authHeader.substring(7);
+        // Request đi qua api-gateway: JWT đã verify ở gateway, chỉ cần kiểm tra chữ ký header danh tính
+        String gatewayUser = gatewayIdentityVerifier.verifiedUsername(request, token);
+        if (gatewayUser != null) {
+            if (SecurityContextHolder.getContext().getAuthentication() == null) {
+                UsernamePasswordAuthenticationToken authToken =
+                        new UsernamePasswordAuthenticationToken(gatewayUser, null, List.of());
+                authToken.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
+                SecurityContextHolder.getContext().setAuthentication(authToken);
+            }
+            filterChain.doFilter(request, response);
+            return;
+        }
 
         try {
             String username = jwtService.extractUsername(token);
-            log.info("[JWT] Username from token: {}", username);
+            log.debug("[JWT] Username from token: {}", username);
 
             if (username != null && SecurityContextHolder.getContext().getAuthentication() == null) {
                 UsernamePasswordAuthenticationToken authToken = new UsernamePasswordAuthenticationToken(username, null,
@@ -60,9 +73,9 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
                 SecurityContextHolder.getContext().setAuthentication(authToken);
             }
         } catch (ExpiredJwtException e) {
-            log.warn("[JWT] Token expired at {}", e.getClaims().getExpiration(), e);
+            log.warn("[JWT] Token expired at {}", e.getClaims().getExpiration());
         } catch (JwtException e) { // tất cả lỗi JWT khác (signature sai, malformed, ...)
-            log.error("[JWT] Invalid token: {}", e.getMessage(), e);
+            log.warn("[JWT] Invalid token: {}", e.getMessage());
         }
 
         filterChain.doFilter(request, response);
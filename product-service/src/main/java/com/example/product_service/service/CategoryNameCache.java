@@ -0,0 +1,69 @@
+package com.example.product_service.service;
+
+import com.example.product_service.entity.ShopCategory;
+import com.example.product_service.repository.ShopCategoryRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache tên danh mục trong bộ nhớ.
+ * Bảng shop_categories nhỏ và ít thay đổi nên nạp toàn bộ 1 lần (1 query),
+ * làm mới sau TTL hoặc khi danh mục được tạo/sửa/xóa (invalidate).
+ */
+@Service
+public class CategoryNameCache {
+
+    private final ShopCategoryRepository categoryRepo;
+
+    @Value("${product.category-cache.ttl-ms:300000}")
+    private long ttlMs;
+
+    private volatile Snapshot snapshot;
+
+    public CategoryNameCache(ShopCategoryRepository categoryRepo) {
+        this.categoryRepo = categoryRepo;
+    }
+
+    public String getName(Long categoryId) {
+        if (categoryId == null) {
+            return null;
+        }
+        return current().names.get(categoryId);
+    }
+
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    private Snapshot current() {
+        Snapshot s = snapshot;
+        if (s != null && s.expiresAt > System.currentTimeMillis()) {
+            return s;
+        }
+        synchronized (this) {
+            s = snapshot;
+            if (s == null || s.expiresAt <= System.currentTimeMillis()) {
+                Map<Long, String> names = new HashMap<>();
+                for (ShopCategory c : categoryRepo.findAll()) {
+                    names.put(c.getId(), c.getName());
+                }
+                s = new Snapshot(names, System.currentTimeMillis() + ttlMs);
+                snapshot = s;
+            }
+            return s;
+        }
+    }
+
+    private static final class Snapshot {
+        private final Map<Long, String> names;
+        private final long expiresAt;
+
+        private Snapshot(Map<Long, String> names, long expiresAt) {
+            this.names = names;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.product_service.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Sinh mã theo prefix (SP, ...) dựa trên bảng code_sequences.
+ * Mỗi instance xin 1 khối số (hi/lo) bằng 1 lần UPDATE có khóa dòng, sau đó cấp mã trong bộ nhớ,
+ * nên sinh mã là O(1) và không trùng giữa các replica (số chưa dùng khi restart sẽ bị bỏ qua).
+ * Bảng code_sequences được tạo bởi db/migration/V001__add_code_sequences.sql.
+ */
+@Service
+public class CodeSequenceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(CodeSequenceService.class);
+
+    private static final String INSERT_SQL =
+            "INSERT IGNORE INTO code_sequences (seq_name, next_value) VALUES (?, ?)";
+    private static final String SELECT_FOR_UPDATE_SQL =
+            "SELECT next_value FROM code_sequences WHERE seq_name = ? FOR UPDATE";
+    private static final String ADVANCE_SQL =
+            "UPDATE code_sequences SET next_value = ? WHERE seq_name = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate txTemplate;
+    private final Map<String, Block> blocks = new ConcurrentHashMap<>();
+
+    @Value("${product.code-sequence.block-size:20}")
+    private int blockSize;
+
+    @Value("${product.code-sequence.digits:5}")
+    private int digits;
+
+    public CodeSequenceService(JdbcTemplate jdbcTemplate, PlatformTransactionManager txManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        // Xin khối số trong transaction riêng: khóa dòng chỉ giữ trong lúc cấp khối,
+        // và khối không bị trả lại khi transaction tạo sản phẩm rollback
+        this.txTemplate = new TransactionTemplate(txManager);
+        this.txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Mã kế tiếp, ví dụ SP00042
+     */
+    public String nextCode(String prefix) {
+        return nextCode(prefix, () -> 1L);
+    }
+
+    /**
+     * Mã kế tiếp; firstValue chỉ được gọi khi prefix chưa có trong code_sequences
+     * (để bắt đầu sau các mã đã tồn tại)
+     */
+    public String nextCode(String prefix, LongSupplier firstValue) {
+        long value = blocks.computeIfAbsent(prefix, k -> new Block()).next(prefix, firstValue);
+        return format(prefix, value);
+    }
+
+    /**
+     * Mã kế tiếp chưa được dùng: bỏ qua số trùng với mã đã có (ví dụ mã người dùng tự nhập)
+     */
+    public String nextCode(String prefix, LongSupplier firstValue, Predicate<String> taken) {
+        while (true) {
+            String code = nextCode(prefix, firstValue);
+            if (!taken.test(code)) {
+                return code;
+            }
+            logger.debug("Skipping code {} already in use", code);
+        }
+    }
+
+    private long[] allocate(String prefix, LongSupplier firstValue) {
+        Long start = txTemplate.execute(status -> {
+            List<Long> rows = jdbcTemplate.queryForList(SELECT_FOR_UPDATE_SQL, Long.class, prefix);
+            if (rows.isEmpty()) {
+                // Seed bằng INSERT IGNORE để 2 replica cùng khởi tạo không lỗi
+                jdbcTemplate.update(INSERT_SQL, prefix, Math.max(1L, firstValue.getAsLong()));
+                rows = jdbcTemplate.queryForList(SELECT_FOR_UPDATE_SQL, Long.class, prefix);
+            }
+            long next = rows.get(0);
+            jdbcTemplate.update(ADVANCE_SQL, next + blockSize, prefix);
+            return next;
+        });
+        logger.debug("Allocated code block {}[{}..{})", prefix, start, start + blockSize);
+        return new long[]{start, start + blockSize};
+    }
+
+    private String format(String prefix, long value) {
+        String number = Long.toString(value);
+        StringBuilder sb = new StringBuilder(prefix.length() + Math.max(digits, number.length()))
+                .append(prefix);
+        for (int i = number.length(); i < digits; i++) {
+            sb.append('0');
+        }
+        return sb.append(number).toString();
+    }
+
+    // Khối số [next, end) đang dùng của 1 prefix
+    private final class Block {
+        private long next;
+        private long end;
+
+        private synchronized long next(String prefix, LongSupplier firstValue) {
+            if (next >= end) {
+                long[] range = allocate(prefix, firstValue);
+                next = range[0];
+                end = range[1];
+            }
+            return next++;
+        }
+    }
+}
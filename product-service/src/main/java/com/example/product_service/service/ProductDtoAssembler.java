@@ -0,0 +1,162 @@
+package com.example.product_service.service;
+
+import com.example.product_service.dto.ProductDto;
+import com.example.product_service.entity.ProductSupplier;
+import com.example.product_service.entity.ShopProduct;
+import com.example.product_service.repository.ProductSupplierRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chuyển ShopProduct -> ProductDto theo cả trang.
+ * - Tên danh mục lấy từ CategoryNameCache (không query theo từng sản phẩm)
+ * - NCC của cả trang lấy bằng 1 query IN trên product_suppliers
+ * - Cột JSON supplierIds được parse 1 lần cho mỗi chuỗi khác nhau (cache theo chuỗi)
+ * => 1 trang bất kỳ chỉ tốn số query cố định, không phụ thuộc số sản phẩm.
+ */
+@Component
+public class ProductDtoAssembler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProductDtoAssembler.class);
+
+    private static final int MAX_PARSED_JSON = 2000;
+
+    private final ProductSupplierRepository productSupplierRepo;
+    private final CategoryNameCache categoryNameCache;
+    private final ObjectReader supplierIdsReader = new ObjectMapper().readerForListOf(Long.class);
+    private final Map<String, List<Long>> parsedSupplierIds = new ConcurrentHashMap<>();
+
+    public ProductDtoAssembler(ProductSupplierRepository productSupplierRepo,
+            CategoryNameCache categoryNameCache) {
+        this.productSupplierRepo = productSupplierRepo;
+        this.categoryNameCache = categoryNameCache;
+    }
+
+    public ProductDto toDto(ShopProduct p) {
+        return toDtos(Collections.singletonList(p)).get(0);
+    }
+
+    public List<ProductDto> toDtos(List<ShopProduct> products) {
+        if (products == null || products.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Map<Long, List<ProductSupplier>> suppliersByProduct = loadSuppliers(products);
+
+        List<ProductDto> result = new ArrayList<>(products.size());
+        for (ShopProduct p : products) {
+            result.add(toDto(p, suppliersByProduct.getOrDefault(p.getId(), Collections.emptyList())));
+        }
+        return result;
+    }
+
+    private Map<Long, List<ProductSupplier>> loadSuppliers(List<ShopProduct> products) {
+        Set<Long> productIds = new LinkedHashSet<>();
+        for (ShopProduct p : products) {
+            if (p.getId() != null) {
+                productIds.add(p.getId());
+            }
+        }
+
+        Map<Long, List<ProductSupplier>> byProduct = new HashMap<>();
+        if (productIds.isEmpty()) {
+            return byProduct;
+        }
+        try {
+            for (ProductSupplier ps : productSupplierRepo.findByProductIdIn(productIds)) {
+                byProduct.computeIfAbsent(ps.getProductId(), k -> new ArrayList<>()).add(ps);
+            }
+        } catch (Exception e) {
+            // Nếu lỗi, fallback về supplierId từ entity
+            logger.error("Error loading product suppliers for {} products: {}", productIds.size(), e.getMessage());
+        }
+        return byProduct;
+    }
+
+    private ProductDto toDto(ShopProduct p, List<ProductSupplier> productSuppliers) {
+        ProductDto dto = new ProductDto();
+        dto.setId(p.getId());
+        dto.setCode(p.getCode());
+        dto.setName(p.getName());
+        dto.setShortDescription(p.getShortDescription());
+        dto.setImage(p.getImage());
+        dto.setUnitPrice(p.getUnitPrice());
+        dto.setStatus(p.getStatus());
+        dto.setCategoryId(p.getCategoryId());
+        dto.setSupplierId(p.getSupplierId());
+        dto.setUnitId(p.getUnitId());
+        dto.setCreatedAt(p.getCreatedAt());
+        dto.setUpdatedAt(p.getUpdatedAt());
+        dto.setCategoryName(categoryNameCache.getName(p.getCategoryId()));
+
+        // Danh sách NCC từ junction table, NCC chính (isPrimary) hoặc NCC đầu tiên
+        List<Long> supplierIds = new ArrayList<>();
+        Long primaryId = null;
+        for (ProductSupplier ps : productSuppliers) {
+            Long supplierId = ps.getSupplierId();
+            if (supplierId == null) {
+                continue;
+            }
+            if (!supplierIds.contains(supplierId)) {
+                supplierIds.add(supplierId);
+            }
+            if (primaryId == null && Boolean.TRUE.equals(ps.getIsPrimary())) {
+                primaryId = supplierId;
+            }
+        }
+        if (!supplierIds.isEmpty()) {
+            dto.setSupplierIds(supplierIds);
+            dto.setSupplierId(primaryId != null ? primaryId : supplierIds.get(0));
+        } else if (p.getSupplierId() != null) {
+            // Không có trong junction table, dùng supplierId từ entity (tương thích ngược)
+            dto.setSupplierIds(new ArrayList<>(List.of(p.getSupplierId())));
+            dto.setSupplierId(p.getSupplierId());
+        }
+
+        // supplierIds dạng JSON (nếu có) được ưu tiên
+        List<Long> idsFromJson = parseSupplierIds(p.getSupplierIds());
+        if (!idsFromJson.isEmpty()) {
+            dto.setSupplierIds(new ArrayList<>(idsFromJson));
+            if (dto.getSupplierId() == null) {
+                dto.setSupplierId(idsFromJson.get(0));
+            }
+        }
+
+        return dto;
+    }
+
+    private List<Long> parseSupplierIds(String json) {
+        if (json == null || json.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> cached = parsedSupplierIds.get(json);
+        if (cached != null) {
+            return cached;
+        }
+        List<Long> parsed;
+        try {
+            List<Long> ids = supplierIdsReader.readValue(json);
+            parsed = ids != null ? Collections.unmodifiableList(ids) : Collections.emptyList();
+        } catch (Exception e) {
+            // Nếu parse JSON lỗi, bỏ qua
+            parsed = Collections.emptyList();
+        }
+        if (parsedSupplierIds.size() >= MAX_PARSED_JSON) {
+            parsedSupplierIds.clear();
+        }
+        parsedSupplierIds.put(json, parsed);
+        return parsed;
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.product_service.service;
+
+import com.example.product_service.entity.ShopProduct;
+import com.example.product_service.repository.ShopProductRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Chỉ mục tìm kiếm sản phẩm trong bộ nhớ (inverted index theo trigram) trên code/name/shortDescription.
+ * - Chữ được bỏ dấu tiếng Việt ("Bánh mì" ~ "banh mi"), chữ thường, bỏ ký tự đặc biệt
+ * - Truy vấn lấy giao các posting list của trigram, sau đó chấm điểm và lấy top-K
+ * - Cập nhật từng sản phẩm khi tạo/sửa/xóa (sau khi transaction commit); rebuild toàn bộ định kỳ
+ *   để nhận thay đổi từ replica khác, cập nhật đến trong lúc rebuild được áp lại lên snapshot mới
+ */
+@Service
+public class ProductSearchIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProductSearchIndex.class);
+
+    private static final int GRAM = 3;
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern NON_ALNUM = Pattern.compile("[^a-z0-9]+");
+
+    private final ShopProductRepository repo;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Được bảo vệ bởi lock
+    private final Map<Long, IndexedProduct> docs = new HashMap<>();
+    private final Map<String, Set<Long>> postings = new HashMap<>();
+    // Khác null khi đang rebuild: cập nhật đến sau lúc đọc DB, áp lại trước khi thay snapshot (value null = xóa)
+    private Map<Long, IndexedProduct> updatesDuringRebuild;
+    private volatile boolean built;
+
+    public ProductSearchIndex(ShopProductRepository repo) {
+        this.repo = repo;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            // Chưa có DB lúc khởi động: build lại ở lần tìm kiếm đầu tiên
+            logger.warn("Could not build product search index on startup: {}", e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${product.search-index.rebuild-interval-ms:300000}",
+            initialDelayString = "${product.search-index.rebuild-interval-ms:300000}")
+    public synchronized void rebuild() {
+        lock.writeLock().lock();
+        try {
+            updatesDuringRebuild = new HashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Map<Long, IndexedProduct> newDocs;
+        Map<String, Set<Long>> newPostings = new HashMap<>();
+        try {
+            List<ShopProduct> products = repo.findAll();
+            newDocs = new HashMap<>(products.size() * 2);
+            for (ShopProduct p : products) {
+                IndexedProduct doc = toDoc(p);
+                newDocs.put(doc.id, doc);
+                addPostings(newPostings, doc);
+            }
+        } catch (RuntimeException e) {
+            lock.writeLock().lock();
+            try {
+                updatesDuringRebuild = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        }
+
+        int replayed;
+        lock.writeLock().lock();
+        try {
+            Map<Long, IndexedProduct> updates = updatesDuringRebuild;
+            updatesDuringRebuild = null;
+            docs.clear();
+            docs.putAll(newDocs);
+            postings.clear();
+            postings.putAll(newPostings);
+            updates.forEach(this::apply);
+            replayed = updates.size();
+            built = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Product search index built: {} products, {} grams, {} updates replayed",
+                newDocs.size(), newPostings.size(), replayed);
+    }
+
+    /**
+     * Cập nhật sản phẩm vào chỉ mục khi transaction hiện tại commit (rollback thì không đổi)
+     */
+    public void index(ShopProduct p) {
+        if (p == null || p.getId() == null) {
+            return;
+        }
+        IndexedProduct doc = toDoc(p);
+        afterCommit(() -> update(doc.id, doc));
+    }
+
+    /**
+     * Xóa sản phẩm khỏi chỉ mục khi transaction hiện tại commit
+     */
+    public void remove(Long productId) {
+        if (productId == null) {
+            return;
+        }
+        afterCommit(() -> update(productId, null));
+    }
+
+    /**
+     * Tìm top-K id sản phẩm theo từ khóa, sắp theo điểm giảm dần
+     */
+    public List<Long> search(String keyword, int limit) {
+        String query = fold(keyword);
+        if (query.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        if (!built) {
+            rebuild();
+        }
+
+        String[] tokens = query.split(" ");
+        PriorityQueue<Scored> top = new PriorityQueue<>(Comparator.comparingInt((Scored s) -> s.score)
+                .thenComparing(s -> -s.id));
+
+        lock.readLock().lock();
+        try {
+            for (IndexedProduct doc : candidates(tokens)) {
+                int score = score(doc, query, tokens);
+                if (score <= 0) {
+                    continue;
+                }
+                top.offer(new Scored(doc.id, score));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Long> ids = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            ids.add(top.poll().id);
+        }
+        Collections.reverse(ids);
+        return ids;
+    }
+
+    /**
+     * Bỏ dấu tiếng Việt + chữ thường + chỉ giữ chữ/số, các từ cách nhau 1 khoảng trắng
+     */
+    public static String fold(String text) {
+        if (text == null || text.isBlank()) {
+            return "";
+        }
+        String s = text.replace('đ', 'd').replace('Đ', 'D');
+        s = COMBINING_MARKS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("");
+        s = NON_ALNUM.matcher(s.toLowerCase()).replaceAll(" ");
+        return s.trim();
+    }
+
+    // Các sản phẩm chứa tất cả trigram của mọi từ >= 3 ký tự; nếu không có từ nào đủ dài thì duyệt hết
+    private Iterable<IndexedProduct> candidates(String[] tokens) {
+        Set<Long> result = null;
+        for (String token : tokens) {
+            if (token.length() < GRAM) {
+                continue;
+            }
+            for (String gram : grams(token)) {
+                Set<Long> posting = postings.get(gram);
+                if (posting == null) {
+                    return Collections.emptyList();
+                }
+                if (result == null) {
+                    result = new HashSet<>(posting);
+                } else {
+                    result.retainAll(posting);
+                }
+                if (result.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+        }
+        if (result == null) {
+            return new ArrayList<>(docs.values());
+        }
+        List<IndexedProduct> list = new ArrayList<>(result.size());
+        for (Long id : result) {
+            list.add(docs.get(id));
+        }
+        return list;
+    }
+
+    private int score(IndexedProduct doc, String query, String[] tokens) {
+        int score = 0;
+        if (doc.code.equals(query)) {
+            score += 1000;
+        } else if (doc.code.startsWith(query)) {
+            score += 500;
+        } else if (doc.code.contains(query)) {
+            score += 200;
+        }
+        if (doc.name.equals(query)) {
+            score += 400;
+        } else if (doc.name.startsWith(query)) {
+            score += 300;
+        } else if (doc.name.contains(query)) {
+            score += 150;
+        }
+
+        // Mọi từ phải xuất hiện ở code/name/mô tả
+        for (String token : tokens) {
+            if (doc.name.contains(token)) {
+                score += (doc.name.startsWith(token) || doc.name.contains(" " + token)) ? 20 : 10;
+            } else if (doc.code.contains(token)) {
+                score += 10;
+            } else if (doc.description.contains(token)) {
+                score += 2;
+            } else {
+                return 0;
+            }
+        }
+        return score;
+    }
+
+    private void update(Long id, IndexedProduct doc) {
+        lock.writeLock().lock();
+        try {
+            apply(id, doc);
+            if (updatesDuringRebuild != null) {
+                updatesDuringRebuild.put(id, doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Gọi khi đang giữ write lock; doc null = xóa
+    private void apply(Long id, IndexedProduct doc) {
+        IndexedProduct old = doc != null ? docs.put(id, doc) : docs.remove(id);
+        if (old != null) {
+            removePostings(old);
+        }
+        if (doc != null) {
+            addPostings(postings, doc);
+        }
+    }
+
+    // Ngoài transaction thì chạy luôn
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private IndexedProduct toDoc(ShopProduct p) {
+        return new IndexedProduct(p.getId(), fold(p.getCode()), fold(p.getName()), fold(p.getShortDescription()));
+    }
+
+    private static void addPostings(Map<String, Set<Long>> target, IndexedProduct doc) {
+        for (String gram : doc.allGrams()) {
+            target.computeIfAbsent(gram, k -> new HashSet<>()).add(doc.id);
+        }
+    }
+
+    private void removePostings(IndexedProduct doc) {
+        for (String gram : doc.allGrams()) {
+            Set<Long> posting = postings.get(gram);
+            if (posting != null) {
+                posting.remove(doc.id);
+                if (posting.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    private static Set<String> grams(String text) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String word : text.split(" ")) {
+            for (int i = 0; i + GRAM <= word.length(); i++) {
+                result.add(word.substring(i, i + GRAM));
+            }
+        }
+        return result;
+    }
+
+    private static final class IndexedProduct {
+        private final Long id;
+        private final String code;
+        private final String name;
+        private final String description;
+
+        private IndexedProduct(Long id, String code, String name, String description) {
+            this.id = id;
+            this.code = code;
+            this.name = name;
+            this.description = description;
+        }
+
+        private Set<String> allGrams() {
+            Set<String> result = grams(code);
+            result.addAll(grams(name));
+            result.addAll(grams(description));
+            return result;
+        }
+    }
+
+    private static final class Scored {
+        private final Long id;
+        private final int score;
+
+        private Scored(Long id, int score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+}
@@ -26,4 +26,7 @@ public interface ShopProductService {
             LocalDate fromDate,
             LocalDate toDate,
             Pageable pageable);
+
+    // Tìm nhanh theo code/name/mô tả (không dấu, xếp hạng, top-K) qua chỉ mục trong bộ nhớ
+    List<ProductDto> fastSearch(String keyword, int limit);
 }
@@ -4,6 +4,7 @@ import com.example.product_service.entity.ShopSupplier;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface ShopSupplierService {
@@ -14,6 +15,8 @@ public interface ShopSupplierService {
 
     ShopSupplier getById(Long id);
 
+    List<ShopSupplier> findByIds(Collection<Long> ids);
+
     ShopSupplier create(ShopSupplier supplier);
 
     ShopSupplier update(Long id, ShopSupplier supplier);
@@ -5,6 +5,7 @@ import com.example.product_service.dto.CategoryRequest;
 import com.example.product_service.entity.ShopCategory;
 import com.example.product_service.exception.NotFoundException;
 import com.example.product_service.repository.ShopCategoryRepository;
+import com.example.product_service.service.CategoryNameCache;
 import com.example.product_service.service.ShopCategoryService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
@@ -20,6 +21,7 @@ import java.util.List;
 public class ShopCategoryServiceImpl implements ShopCategoryService {
 
     private final ShopCategoryRepository repo;
+    private final CategoryNameCache categoryNameCache;
 
     @Override
     public List<CategoryDto> getAll() {
@@ -46,7 +48,9 @@ public class ShopCategoryServiceImpl implements ShopCategoryService {
         apply(req, c);
         c.setCreatedAt(LocalDateTime.now());
         c.setUpdatedAt(LocalDateTime.now());
-        return toDto(repo.save(c));
+        CategoryDto dto = toDto(repo.save(c));
+        categoryNameCache.invalidate();
+        return dto;
     }
 
     /**
@@ -82,7 +86,9 @@ public class ShopCategoryServiceImpl implements ShopCategoryService {
 
         apply(req, c);
         c.setUpdatedAt(LocalDateTime.now());
-        return toDto(repo.save(c));
+        CategoryDto dto = toDto(repo.save(c));
+        categoryNameCache.invalidate();
+        return dto;
     }
 
     @Override
@@ -91,6 +97,7 @@ public class ShopCategoryServiceImpl implements ShopCategoryService {
             throw new NotFoundException("Category not found: " + id);
         }
         repo.deleteById(id);
+        categoryNameCache.invalidate();
     }
 
     @Override
@@ -4,16 +4,18 @@ import com.example.product_service.dto.ProductDto;
 import com.example.product_service.dto.ProductRequest;
 import com.example.product_service.entity.ShopProduct;
 import com.example.product_service.exception.NotFoundException;
-import com.example.product_service.repository.ShopCategoryRepository;
 import com.example.product_service.repository.ShopProductRepository;
+import com.example.product_service.service.CodeSequenceService;
+import com.example.product_service.service.ProductDtoAssembler;
+import com.example.product_service.service.ProductSearchIndex;
 import com.example.product_service.service.ShopProductService;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.time.LocalDate;
@@ -26,34 +28,40 @@ import java.util.ArrayList;
 @Service
 public class ShopProductServiceImpl implements ShopProductService {
 
+    private static final int MAX_FAST_SEARCH_LIMIT = 100;
+
     private final ShopProductRepository repo;
-    private final ShopCategoryRepository categoryRepo;
     private final com.example.product_service.repository.ProductSupplierRepository productSupplierRepo;
     private final com.example.product_service.repository.ShopProductImageRepository imageRepo;
     private final com.example.product_service.repository.ShopProductDiscountRepository discountRepo;
     private final com.example.product_service.client.InventoryServiceClient inventoryClient;
+    private final ProductDtoAssembler assembler;
+    private final CodeSequenceService codeSequence;
+    private final ProductSearchIndex searchIndex;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     // ✅ Constructor duy nhất, tiêm cả các repo
     public ShopProductServiceImpl(ShopProductRepository repo,
-            ShopCategoryRepository categoryRepo,
             com.example.product_service.repository.ProductSupplierRepository productSupplierRepo,
             com.example.product_service.repository.ShopProductImageRepository imageRepo,
             com.example.product_service.repository.ShopProductDiscountRepository discountRepo,
-            com.example.product_service.client.InventoryServiceClient inventoryClient) {
+            com.example.product_service.client.InventoryServiceClient inventoryClient,
+            ProductDtoAssembler assembler,
+            CodeSequenceService codeSequence,
+            ProductSearchIndex searchIndex) {
         this.repo = repo;
-        this.categoryRepo = categoryRepo;
         this.productSupplierRepo = productSupplierRepo;
         this.imageRepo = imageRepo;
         this.discountRepo = discountRepo;
         this.inventoryClient = inventoryClient;
+        this.assembler = assembler;
+        this.codeSequence = codeSequence;
+        this.searchIndex = searchIndex;
     }
 
     @Override
     public List<ProductDto> getAll() {
-        return repo.findAll().stream()
-                .map(this::toDto)
-                .toList();
+        return assembler.toDtos(repo.findAll());
     }
 
     @Override
@@ -74,6 +82,7 @@ public class ShopProductServiceImpl implements ShopProductService {
 
         // Lưu nhiều NCC vào junction table
         saveProductSuppliers(saved.getId(), request);
+        searchIndex.index(saved);
 
         return toDto(saved);
     }
@@ -94,6 +103,7 @@ public class ShopProductServiceImpl implements ShopProductService {
         // Reload product để đảm bảo có dữ liệu mới nhất
         ShopProduct reloaded = repo.findById(saved.getId())
                 .orElseThrow(() -> new NotFoundException("Product not found after update: " + id));
+        searchIndex.index(reloaded);
 
         return toDto(reloaded);
     }
@@ -127,6 +137,7 @@ public class ShopProductServiceImpl implements ShopProductService {
         // 5. Cuối cùng mới xóa sản phẩm
         // DataIntegrityViolationException sẽ được xử lý bởi GlobalExceptionHandler
         repo.deleteById(id);
+        searchIndex.remove(id);
     }
 
     // ✅ search + phân trang
@@ -161,94 +172,35 @@ public class ShopProductServiceImpl implements ShopProductService {
             spec = spec.and((root, query, cb) -> cb.lessThan(root.get("createdAt"), to));
         }
 
-        return repo.findAll(spec, pageable)
-                .map(this::toDto);
+        // Map cả trang 1 lần (batch NCC + cache danh mục) thay vì query theo từng sản phẩm
+        Page<ShopProduct> page = repo.findAll(spec, pageable);
+        return new PageImpl<>(assembler.toDtos(page.getContent()), page.getPageable(), page.getTotalElements());
     }
 
-    // ---------- mapping helpers ----------
-
-    private ProductDto toDto(ShopProduct p) {
-        ProductDto dto = new ProductDto();
-        dto.setId(p.getId());
-        dto.setCode(p.getCode());
-        dto.setName(p.getName());
-        dto.setShortDescription(p.getShortDescription());
-        dto.setImage(p.getImage());
-        dto.setUnitPrice(p.getUnitPrice());
-        dto.setStatus(p.getStatus());
-        dto.setCategoryId(p.getCategoryId());
-        dto.setSupplierId(p.getSupplierId());
-        dto.setUnitId(p.getUnitId());
-        dto.setCreatedAt(p.getCreatedAt());
-        dto.setUpdatedAt(p.getUpdatedAt());
-
-        // ⭐ LẤY CATEGORY NAME
-        if (p.getCategoryId() != null) {
-            categoryRepo.findById(p.getCategoryId())
-                    .ifPresent(cat -> dto.setCategoryName(cat.getName()));
-        }
-
-        // ⭐ LẤY DANH SÁCH NCC TỪ JUNCTION TABLE
-        try {
-            List<com.example.product_service.entity.ProductSupplier> productSuppliers = productSupplierRepo
-                    .findByProductId(p.getId());
-            if (productSuppliers != null && !productSuppliers.isEmpty()) {
-                List<Long> supplierIds = productSuppliers.stream()
-                        .map(com.example.product_service.entity.ProductSupplier::getSupplierId)
-                        .filter(id -> id != null)
-                        .distinct()
-                        .collect(Collectors.toList());
-
-                if (!supplierIds.isEmpty()) {
-                    dto.setSupplierIds(supplierIds);
-
-                    // Set NCC chính (isPrimary = true) hoặc NCC đầu tiên
-                    Optional<com.example.product_service.entity.ProductSupplier> primary = productSuppliers.stream()
-                            .filter(ps -> Boolean.TRUE.equals(ps.getIsPrimary()))
-                            .findFirst();
-
-                    if (primary.isPresent()) {
-                        dto.setSupplierId(primary.get().getSupplierId());
-                    } else if (!supplierIds.isEmpty()) {
-                        dto.setSupplierId(supplierIds.get(0));
-                    }
-                }
-            }
-        } catch (Exception e) {
-            System.err.println(
-                    "Error loading product suppliers for productId: " + p.getId() + ", error: " + e.getMessage());
-            e.printStackTrace();
-            // Nếu lỗi, fallback về supplierId từ entity
+    @Override
+    public List<ProductDto> fastSearch(String keyword, int limit) {
+        List<Long> ids = searchIndex.search(keyword, Math.min(Math.max(limit, 1), MAX_FAST_SEARCH_LIMIT));
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
         }
 
-        // Nếu không có trong junction table, dùng supplierId từ entity (tương thích
-        // ngược)
-        if (dto.getSupplierIds() == null || dto.getSupplierIds().isEmpty()) {
-            if (p.getSupplierId() != null) {
-                dto.setSupplierIds(Arrays.asList(p.getSupplierId()));
-                dto.setSupplierId(p.getSupplierId());
+        // Giữ thứ tự theo điểm của chỉ mục
+        Map<Long, ShopProduct> byId = repo.findAllById(ids).stream()
+                .collect(Collectors.toMap(ShopProduct::getId, p -> p));
+        List<ShopProduct> ordered = new ArrayList<>(ids.size());
+        for (Long productId : ids) {
+            ShopProduct p = byId.get(productId);
+            if (p != null) {
+                ordered.add(p);
             }
         }
+        return assembler.toDtos(ordered);
+    }
 
-        // Xử lý supplierIds từ JSON nếu có
-        if (p.getSupplierIds() != null && !p.getSupplierIds().trim().isEmpty()) {
-            try {
-                List<Long> idsFromJson = objectMapper.readValue(
-                        p.getSupplierIds(),
-                        new TypeReference<List<Long>>() {
-                        });
-                if (!idsFromJson.isEmpty()) {
-                    dto.setSupplierIds(idsFromJson);
-                    if (dto.getSupplierId() == null && !idsFromJson.isEmpty()) {
-                        dto.setSupplierId(idsFromJson.get(0));
-                    }
-                }
-            } catch (Exception e) {
-                // Nếu parse JSON lỗi, bỏ qua
-            }
-        }
+    // ---------- mapping helpers ----------
 
-        return dto;
+    private ProductDto toDto(ShopProduct p) {
+        return assembler.toDto(p);
     }
 
     private void applyRequestToEntity(ProductRequest req, ShopProduct p) {
@@ -382,9 +334,17 @@ public class ShopProductServiceImpl implements ShopProductService {
     }
 
     /**
-     * Tự động tạo mã sản phẩm: SP + 5 số (ví dụ: SP00001)
+     * Tự động tạo mã sản phẩm: SP + 5 số (ví dụ: SP00001), cấp từ code_sequences,
+     * bỏ qua mã đã có (người dùng có thể tự nhập mã dạng SP + số)
      */
     private String generateProductCode() {
+        return codeSequence.nextCode("SP", this::findNextProductCodeNumber, repo::existsByCode);
+    }
+
+    /**
+     * Số kế tiếp sau mã SP lớn nhất hiện có, chỉ dùng 1 lần để khởi tạo sequence "SP"
+     */
+    private long findNextProductCodeNumber() {
         String prefix = "SP";
         List<ShopProduct> existing = repo.findByCodeStartingWith(prefix);
         long maxNumber = 0;
@@ -403,8 +363,7 @@ public class ShopProductServiceImpl implements ShopProductService {
             }
         }
 
-        long nextNumber = maxNumber + 1;
-        return prefix + String.format("%05d", nextNumber);
+        return maxNumber + 1;
     }
 
 }
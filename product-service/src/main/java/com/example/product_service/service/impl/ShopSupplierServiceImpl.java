@@ -10,7 +10,9 @@ import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
 
 @Service
 public class ShopSupplierServiceImpl implements ShopSupplierService {
@@ -37,6 +39,18 @@ public class ShopSupplierServiceImpl implements ShopSupplierService {
                 .orElseThrow(() -> new NotFoundException("Supplier not found with id = " + id));
     }
 
+    @Override
+    public List<ShopSupplier> findByIds(Collection<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return List.of();
+        }
+        List<Long> distinctIds = ids.stream()
+                .filter(Objects::nonNull)
+                .distinct()
+                .toList();
+        return repo.findAllById(distinctIds);
+    }
+
     @Override
     public ShopSupplier create(ShopSupplier supplier) {
         // Tự động tạo mã nếu không có
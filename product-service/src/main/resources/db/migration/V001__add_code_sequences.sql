@@ -0,0 +1,12 @@
+-- Bảng cấp số cho mã tự sinh (CodeSequenceService, cấp theo khối hi/lo)
+CREATE TABLE IF NOT EXISTS code_sequences (
+    seq_name VARCHAR(32) NOT NULL PRIMARY KEY,
+    next_value BIGINT NOT NULL
+);
+
+-- Khởi tạo sequence SP sau mã sản phẩm lớn nhất hiện có (SP + số)
+-- Nếu bỏ qua bước này, dòng "SP" sẽ được tạo tự động ở lần tạo sản phẩm đầu tiên.
+INSERT IGNORE INTO code_sequences (seq_name, next_value)
+SELECT 'SP', COALESCE(MAX(CAST(SUBSTRING(product_code, 3) AS UNSIGNED)), 0) + 1
+FROM shop_products
+WHERE product_code REGEXP '^SP[0-9]+$';
@@ -0,0 +1,5 @@
+-- Index cho tra cứu theo mã sản phẩm (CodeSequenceService bỏ qua mã đã có khi sinh mã SP)
+CREATE INDEX idx_product_code ON shop_products(product_code);
+
+-- Note: MySQL 8.0.41 does not support IF NOT EXISTS for CREATE INDEX.
+-- If the index already exists, the command will throw an error and can be ignored.
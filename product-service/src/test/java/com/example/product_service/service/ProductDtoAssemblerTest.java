@@ -0,0 +1,121 @@
+package com.example.product_service.service;
+
+import com.example.product_service.dto.ProductDto;
+import com.example.product_service.entity.ProductSupplier;
+import com.example.product_service.entity.ShopCategory;
+import com.example.product_service.entity.ShopProduct;
+import com.example.product_service.repository.ProductSupplierRepository;
+import com.example.product_service.repository.ShopCategoryRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Đo số query khi map 1 trang sản phẩm: phải cố định, không phụ thuộc số sản phẩm.
+ */
+class ProductDtoAssemblerTest {
+
+    private static final int PAGE_SIZE = 100;
+
+    private ProductSupplierRepository productSupplierRepo;
+    private ShopCategoryRepository categoryRepo;
+    private ProductDtoAssembler assembler;
+
+    @BeforeEach
+    void setUp() {
+        productSupplierRepo = mock(ProductSupplierRepository.class);
+        categoryRepo = mock(ShopCategoryRepository.class);
+
+        List<ShopCategory> categories = new ArrayList<>();
+        for (long i = 1; i <= 5; i++) {
+            ShopCategory c = new ShopCategory();
+            c.setId(i);
+            c.setName("Danh mục " + i);
+            categories.add(c);
+        }
+        when(categoryRepo.findAll()).thenReturn(categories);
+
+        when(productSupplierRepo.findByProductIdIn(anyCollection())).thenAnswer(inv -> {
+            Collection<Long> ids = inv.getArgument(0);
+            List<ProductSupplier> rows = new ArrayList<>();
+            for (Long productId : ids) {
+                if (productId % 2 == 0) {
+                    rows.add(new ProductSupplier(null, productId, 10L, false, null, null));
+                    rows.add(new ProductSupplier(null, productId, 20L, true, null, null));
+                }
+            }
+            return rows;
+        });
+
+        CategoryNameCache categoryNameCache = new CategoryNameCache(categoryRepo);
+        ReflectionTestUtils.setField(categoryNameCache, "ttlMs", 60_000L);
+        assembler = new ProductDtoAssembler(productSupplierRepo, categoryNameCache);
+    }
+
+    @Test
+    void mapsPageWithConstantNumberOfQueries() {
+        List<ShopProduct> page = new ArrayList<>();
+        for (long i = 1; i <= PAGE_SIZE; i++) {
+            ShopProduct p = new ShopProduct();
+            p.setId(i);
+            p.setCode("SP" + i);
+            p.setCategoryId(i % 5 + 1);
+            p.setSupplierId(99L);
+            page.add(p);
+        }
+
+        List<ProductDto> dtos = assembler.toDtos(page);
+        List<ProductDto> again = assembler.toDtos(page);
+
+        assertEquals(PAGE_SIZE, dtos.size());
+        assertEquals(PAGE_SIZE, again.size());
+        // 1 query NCC cho mỗi trang, danh mục nạp 1 lần cho cả 2 trang
+        verify(productSupplierRepo, times(2)).findByProductIdIn(anyCollection());
+        verify(productSupplierRepo, never()).findByProductId(anyLong());
+        verify(categoryRepo, times(1)).findAll();
+        verify(categoryRepo, never()).findById(any());
+
+        ProductDto even = dtos.get(1); // id 2
+        assertEquals(List.of(10L, 20L), even.getSupplierIds());
+        assertEquals(20L, even.getSupplierId());
+        assertEquals("Danh mục 3", even.getCategoryName());
+
+        ProductDto odd = dtos.get(0); // id 1, không có trong junction table
+        assertEquals(List.of(99L), odd.getSupplierIds());
+        assertEquals(99L, odd.getSupplierId());
+
+        // Trang thứ 2 (danh mục lấy từ cache) cho cùng kết quả
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertEquals(dtos.get(i).getSupplierIds(), again.get(i).getSupplierIds());
+            assertEquals(dtos.get(i).getCategoryName(), again.get(i).getCategoryName());
+        }
+    }
+
+    @Test
+    void jsonSupplierIdsTakePrecedence() {
+        ShopProduct p = new ShopProduct();
+        p.setId(1L);
+        p.setSupplierIds("[7,8]");
+
+        ProductDto dto = assembler.toDto(p);
+
+        assertEquals(List.of(7L, 8L), dto.getSupplierIds());
+        assertEquals(7L, dto.getSupplierId());
+        assertNull(dto.getCategoryName());
+    }
+}